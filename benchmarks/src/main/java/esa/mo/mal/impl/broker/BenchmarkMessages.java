@@ -0,0 +1,397 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.ccsds.moims.mo.mal.MALArea;
+import org.ccsds.moims.mo.mal.MALContextFactory;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALOperation;
+import org.ccsds.moims.mo.mal.MALPubSubOperation;
+import org.ccsds.moims.mo.mal.MALService;
+import org.ccsds.moims.mo.mal.provider.MALInteraction;
+import org.ccsds.moims.mo.mal.structures.Blob;
+import org.ccsds.moims.mo.mal.structures.EntityKeyList;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.InteractionType;
+import org.ccsds.moims.mo.mal.structures.QoSLevel;
+import org.ccsds.moims.mo.mal.structures.SessionType;
+import org.ccsds.moims.mo.mal.structures.Subscription;
+import org.ccsds.moims.mo.mal.structures.Time;
+import org.ccsds.moims.mo.mal.structures.UInteger;
+import org.ccsds.moims.mo.mal.structures.UOctet;
+import org.ccsds.moims.mo.mal.structures.URI;
+import org.ccsds.moims.mo.mal.structures.UShort;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.transport.MALDeregisterBody;
+import org.ccsds.moims.mo.mal.transport.MALEncodedBody;
+import org.ccsds.moims.mo.mal.transport.MALEncodedElement;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+import org.ccsds.moims.mo.mal.transport.MALNotifyBody;
+import org.ccsds.moims.mo.mal.transport.MALPublishBody;
+import org.ccsds.moims.mo.mal.transport.MALPublishRegisterBody;
+import org.ccsds.moims.mo.mal.transport.MALRegisterBody;
+
+/**
+ * The message headers, interactions and decoded message bodies used by the benchmarks to drive a broker handler
+ * directly.
+ */
+final class BenchmarkMessages
+{
+  /**
+   * The name of the broker endpoint.
+   */
+  static final String BROKER_NAME = "broker";
+  private static final UShort AREA = new UShort(200);
+  private static final UShort SERVICE = new UShort(1);
+  private static final UShort OPERATION = new UShort(1);
+  private static final UOctet VERSION = new UOctet((short) 1);
+
+  private BenchmarkMessages()
+  {
+  }
+
+  /**
+   * Registers the area of the benchmark messages with the MAL, so that their operation can be looked up by a broker
+   * that receives them through a transport and by a federation link.
+   *
+   * @throws MALException On error.
+   */
+  static synchronized void registerArea() throws MALException
+  {
+    if (null == MALContextFactory.lookupArea(AREA, VERSION))
+    {
+      final MALService service = new MALService(SERVICE, new Identifier("Benchmark"));
+      service.addOperation(new MALPubSubOperation(OPERATION, new Identifier("updates"), Boolean.TRUE, new UShort(1),
+              new Object[0], new Object[0]));
+
+      final MALArea area = new MALArea(AREA, new Identifier("Benchmark"), VERSION);
+      area.addService(service);
+      MALContextFactory.registerArea(area);
+    }
+  }
+
+  /**
+   * Creates the header of a message sent to the broker.
+   *
+   * @param uriFrom The URI of the sender.
+   * @param domain The domain of the message.
+   * @param interactionType The interaction type of the message.
+   * @return the header.
+   */
+  static MALMessageHeader createHeader(final String uriFrom,
+          final IdentifierList domain,
+          final InteractionType interactionType)
+  {
+    return createHeader(uriFrom, BROKER_NAME, domain, interactionType);
+  }
+
+  /**
+   * Creates the header of a message sent to a named broker.
+   *
+   * @param uriFrom The URI of the sender.
+   * @param brokerName The name of the broker endpoint.
+   * @param domain The domain of the message.
+   * @param interactionType The interaction type of the message.
+   * @return the header.
+   */
+  static MALMessageHeader createHeader(final String uriFrom,
+          final String brokerName,
+          final IdentifierList domain,
+          final InteractionType interactionType)
+  {
+    final JournalHeader hdr = new JournalHeader();
+    hdr.setURIFrom(new URI(uriFrom));
+    hdr.setURITo(new URI(InMemoryTransportFactory.PROTOCOL + "://" + brokerName));
+    hdr.setAuthenticationId(new Blob(new byte[0]));
+    hdr.setTimestamp(new Time(0L));
+    hdr.setQoSlevel(QoSLevel.BESTEFFORT);
+    hdr.setPriority(new UInteger(0));
+    hdr.setDomain(domain);
+    hdr.setNetworkZone(new Identifier("zone"));
+    hdr.setSession(SessionType.LIVE);
+    hdr.setSessionName(new Identifier("LIVE"));
+    hdr.setInteractionType(interactionType);
+    hdr.setInteractionStage(new UOctet((short) 1));
+    hdr.setTransactionId(0L);
+    hdr.setServiceArea(AREA);
+    hdr.setService(SERVICE);
+    hdr.setOperation(OPERATION);
+    hdr.setAreaVersion(VERSION);
+    hdr.setIsErrorMessage(Boolean.FALSE);
+    return hdr;
+  }
+
+  /**
+   * An interaction that only carries its message header.
+   */
+  static final class Interaction implements MALInteraction
+  {
+    private final MALMessageHeader header;
+    private final Map<String, Object> qosProperties = new HashMap<String, Object>();
+
+    Interaction(final MALMessageHeader header)
+    {
+      this.header = header;
+    }
+
+    @Override
+    public MALMessageHeader getMessageHeader()
+    {
+      return header;
+    }
+
+    @Override
+    public MALOperation getOperation()
+    {
+      return null;
+    }
+
+    @Override
+    public void setQoSProperty(final String name, final Object value)
+    {
+      qosProperties.put(name, value);
+    }
+
+    @Override
+    public Object getQoSProperty(final String name)
+    {
+      return qosProperties.get(name);
+    }
+
+    @Override
+    public Map<String, Object> getQoSProperties()
+    {
+      return qosProperties;
+    }
+  }
+
+  /**
+   * Base class of the decoded message bodies.
+   */
+  abstract static class Body
+  {
+    public int getElementCount()
+    {
+      return 0;
+    }
+
+    public Object getBodyElement(final int index, final Object sourceBodyElement)
+    {
+      return null;
+    }
+
+    public MALEncodedElement getEncodedBodyElement(final int index)
+    {
+      return null;
+    }
+
+    public MALEncodedBody getEncodedBody()
+    {
+      return null;
+    }
+  }
+
+  /**
+   * A decoded REGISTER body.
+   */
+  static final class RegisterBody extends Body implements MALRegisterBody
+  {
+    private final Subscription subscription;
+
+    RegisterBody(final Subscription subscription)
+    {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public Subscription getSubscription()
+    {
+      return subscription;
+    }
+  }
+
+  /**
+   * A decoded DEREGISTER body.
+   */
+  static final class DeregisterBody extends Body implements MALDeregisterBody
+  {
+    private final IdentifierList subscriptions;
+
+    DeregisterBody(final IdentifierList subscriptions)
+    {
+      this.subscriptions = subscriptions;
+    }
+
+    @Override
+    public IdentifierList getIdentifierList()
+    {
+      return subscriptions;
+    }
+  }
+
+  /**
+   * A decoded PUBLISH REGISTER body.
+   */
+  static final class PublishRegisterBody extends Body implements MALPublishRegisterBody
+  {
+    private final EntityKeyList keys;
+
+    PublishRegisterBody(final EntityKeyList keys)
+    {
+      this.keys = keys;
+    }
+
+    @Override
+    public EntityKeyList getEntityKeyList()
+    {
+      return keys;
+    }
+  }
+
+  /**
+   * A decoded PUBLISH body holding a single update list.
+   */
+  static final class PublishBody extends Body implements MALPublishBody
+  {
+    private final UpdateHeaderList updateHeaderList;
+    private final List updateList;
+
+    PublishBody(final UpdateHeaderList updateHeaderList, final List updateList)
+    {
+      this.updateHeaderList = updateHeaderList;
+      this.updateList = updateList;
+    }
+
+    @Override
+    public int getElementCount()
+    {
+      return 2;
+    }
+
+    @Override
+    public UpdateHeaderList getUpdateHeaderList()
+    {
+      return updateHeaderList;
+    }
+
+    @Override
+    public List[] getUpdateLists(final List... updateLists)
+    {
+      return new List[]
+      {
+        updateList
+      };
+    }
+
+    @Override
+    public List getUpdateList(final int listIndex, final List updateList)
+    {
+      return this.updateList;
+    }
+
+    @Override
+    public int getUpdateCount()
+    {
+      return updateHeaderList.size();
+    }
+
+    @Override
+    public Object getUpdate(final int listIndex, final int updateIndex)
+    {
+      return updateList.get(updateIndex);
+    }
+
+    @Override
+    public MALEncodedElement getEncodedUpdate(final int listIndex, final int updateIndex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * A decoded NOTIFY body, holding the update lists of the message.
+   */
+  static final class NotifyBody extends Body implements MALNotifyBody
+  {
+    private final Identifier subscriptionId;
+    private final UpdateHeaderList updateHeaderList;
+    private final List[] updateLists;
+
+    NotifyBody(final Identifier subscriptionId, final UpdateHeaderList updateHeaderList, final List[] updateLists)
+    {
+      this.subscriptionId = subscriptionId;
+      this.updateHeaderList = updateHeaderList;
+      this.updateLists = updateLists;
+    }
+
+    @Override
+    public int getElementCount()
+    {
+      return 2 + updateLists.length;
+    }
+
+    @Override
+    public Identifier getSubscriptionId()
+    {
+      return subscriptionId;
+    }
+
+    @Override
+    public UpdateHeaderList getUpdateHeaderList()
+    {
+      return updateHeaderList;
+    }
+
+    @Override
+    public List[] getUpdateLists(final List... updateLists)
+    {
+      return this.updateLists;
+    }
+
+    @Override
+    public List getUpdateList(final int listIndex, final List updateList)
+    {
+      return updateLists[listIndex];
+    }
+
+    @Override
+    public int getUpdateCount()
+    {
+      return updateHeaderList.size();
+    }
+
+    @Override
+    public Object getUpdate(final int listIndex, final int updateIndex)
+    {
+      return updateLists[listIndex].get(updateIndex);
+    }
+
+    @Override
+    public MALEncodedElement getEncodedUpdate(final int listIndex, final int updateIndex)
+    {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,258 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.MALContextFactoryImpl;
+import esa.mo.mal.impl.broker.indexed.IndexedBrokerHandler;
+import esa.mo.mal.impl.broker.simple.SimpleBrokerHandler;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.ccsds.moims.mo.mal.MALContext;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALInteractionException;
+import org.ccsds.moims.mo.mal.broker.MALBroker;
+import org.ccsds.moims.mo.mal.broker.MALBrokerManager;
+import org.ccsds.moims.mo.mal.provider.MALInteraction;
+import org.ccsds.moims.mo.mal.structures.Blob;
+import org.ccsds.moims.mo.mal.structures.EntityKey;
+import org.ccsds.moims.mo.mal.structures.EntityKeyList;
+import org.ccsds.moims.mo.mal.structures.EntityRequest;
+import org.ccsds.moims.mo.mal.structures.EntityRequestList;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.InteractionType;
+import org.ccsds.moims.mo.mal.structures.QoSLevel;
+import org.ccsds.moims.mo.mal.structures.Subscription;
+import org.ccsds.moims.mo.mal.structures.Time;
+import org.ccsds.moims.mo.mal.structures.UInteger;
+import org.ccsds.moims.mo.mal.structures.UIntegerList;
+import org.ccsds.moims.mo.mal.structures.URI;
+import org.ccsds.moims.mo.mal.structures.UpdateHeader;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.structures.UpdateType;
+import org.ccsds.moims.mo.mal.transport.MALPublishBody;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the publish path of the broker, from the receipt of a PUBLISH to the NOTIFY messages being passed to the
+ * endpoints of the consumers. The broker handler is driven directly, bound to an {@link InMemoryEndpoint} through
+ * the broker manager of a MAL context, so that decoding, encoding and I/O are not measured.
+ *
+ * Each consumer holds a single subscription of a number of entity keys, each of which is the wildcard with the given
+ * probability and otherwise one of a fixed set of key names. The publishes are generated up front from the same key
+ * names and are sent in turn. Run with -prof gc to report the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BrokerFanOutBenchmark
+{
+  private static final int KEY_NAME_COUNT = 64;
+  private static final int PUBLISH_COUNT = 64;
+
+  /**
+   * The broker handler, simple or indexed.
+   */
+  @Param(
+          {
+            "simple", "indexed"
+          })
+  public String handler;
+
+  /**
+   * The number of consumers, each with one subscription.
+   */
+  @Param(
+          {
+            "10", "100", "1000"
+          })
+  public int subscribers;
+
+  /**
+   * The number of entity keys in a subscription.
+   */
+  @Param(
+          {
+            "1", "8"
+          })
+  public int keysPerSubscription;
+
+  /**
+   * The probability of a subscription entity key being the wildcard.
+   */
+  @Param(
+          {
+            "0.0", "0.1", "0.5"
+          })
+  public double wildcardRatio;
+
+  /**
+   * The number of updates in a publish.
+   */
+  @Param(
+          {
+            "1", "10", "100"
+          })
+  public int updatesPerPublish;
+
+  /**
+   * The number of identifiers in the domain of the subscriptions and publishes.
+   */
+  @Param(
+          {
+            "1", "4"
+          })
+  public int domainDepth;
+
+  private MALContext context;
+  private MALBrokerHandlerImpl brokerHandler;
+  private InMemoryEndpoint endpoint;
+  private MALInteraction publishInteraction;
+  private MALPublishBody[] publishes;
+  private int nextPublish = 0;
+
+  /**
+   * Creates the broker and registers the consumers and the provider.
+   *
+   * @throws MALException On error.
+   * @throws MALInteractionException On error.
+   */
+  @Setup(Level.Trial)
+  public void setup() throws MALException, MALInteractionException
+  {
+    InMemoryTransportFactory.register();
+
+    final Random random = new Random(42);
+    final IdentifierList domain = new IdentifierList();
+    for (int i = 0; i < domainDepth; ++i)
+    {
+      domain.add(new Identifier("domain" + i));
+    }
+
+    final Map<String, Object> qosProperties = new HashMap<String, Object>();
+    qosProperties.put(BrokerMetrics.CLASS_PROPERTY, "none");
+
+    brokerHandler = "indexed".equals(handler) ? new IndexedBrokerHandler(null) : new SimpleBrokerHandler(null);
+    endpoint = new InMemoryEndpoint(new URI(InMemoryTransportFactory.PROTOCOL + "://"
+            + BenchmarkMessages.BROKER_NAME));
+    context = new MALContextFactoryImpl().createMALContext(null);
+
+    final MALBrokerManager brokerManager = context.createBrokerManager();
+    final MALBroker broker = brokerManager.createBroker(brokerHandler);
+    final MALBrokerBindingImpl binding = (MALBrokerBindingImpl) brokerManager.createBrokerBinding(broker,
+            endpoint, new Blob(new byte[0]), new QoSLevel[]
+            {
+              QoSLevel.BESTEFFORT
+            }, new UInteger(1), qosProperties);
+
+    for (int i = 0; i < subscribers; ++i)
+    {
+      final String consumer = InMemoryTransportFactory.PROTOCOL + "://consumer" + i;
+      final EntityKeyList keys = new EntityKeyList();
+
+      for (int k = 0; k < keysPerSubscription; ++k)
+      {
+        final String name = (random.nextDouble() < wildcardRatio) ? "*" : getKeyName(random);
+        keys.add(new EntityKey(new Identifier(name), 0L, 0L, 0L));
+      }
+
+      final EntityRequestList requests = new EntityRequestList();
+      requests.add(new EntityRequest(null, Boolean.FALSE, Boolean.FALSE, Boolean.FALSE, Boolean.FALSE, keys));
+
+      binding.addSubscriber(consumer);
+      brokerHandler.handleRegister(new BenchmarkMessages.Interaction(
+              BenchmarkMessages.createHeader(consumer, domain, InteractionType.PUBSUB)),
+              new BenchmarkMessages.RegisterBody(new Subscription(new Identifier("sub"), requests)));
+    }
+
+    final EntityKeyList providerKeys = new EntityKeyList();
+    providerKeys.add(new EntityKey(new Identifier("*"), 0L, 0L, 0L));
+    publishInteraction = new BenchmarkMessages.Interaction(BenchmarkMessages.createHeader(
+            InMemoryTransportFactory.PROTOCOL + "://provider", domain, InteractionType.PUBSUB));
+    brokerHandler.handlePublishRegister(publishInteraction,
+            new BenchmarkMessages.PublishRegisterBody(providerKeys));
+
+    publishes = new MALPublishBody[PUBLISH_COUNT];
+    for (int p = 0; p < PUBLISH_COUNT; ++p)
+    {
+      final UpdateHeaderList headers = new UpdateHeaderList(updatesPerPublish);
+      final UIntegerList values = new UIntegerList(updatesPerPublish);
+
+      for (int u = 0; u < updatesPerPublish; ++u)
+      {
+        headers.add(new UpdateHeader(new Time(0L), new URI("provider"), UpdateType.UPDATE,
+                new EntityKey(new Identifier(getKeyName(random)), 1L, 1L, 1L)));
+        values.add(new UInteger(u));
+      }
+
+      publishes[p] = new BenchmarkMessages.PublishBody(headers, values);
+    }
+  }
+
+  /**
+   * Closes the MAL context.
+   *
+   * @throws MALException On error.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() throws MALException
+  {
+    context.close();
+  }
+
+  /**
+   * Publishes the next of the generated publishes.
+   *
+   * @return the number of NOTIFY messages sent so far.
+   * @throws MALException On error.
+   * @throws MALInteractionException On error.
+   */
+  @Benchmark
+  public long publish() throws MALException, MALInteractionException
+  {
+    brokerHandler.handlePublish(publishInteraction, publishes[nextPublish]);
+    nextPublish = (nextPublish + 1) % PUBLISH_COUNT;
+
+    return endpoint.getSentCount();
+  }
+
+  private static String getKeyName(final Random random)
+  {
+    return "key" + random.nextInt(KEY_NAME_COUNT);
+  }
+}
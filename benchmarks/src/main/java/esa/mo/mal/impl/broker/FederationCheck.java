@@ -0,0 +1,352 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.MALContextFactoryImpl;
+import esa.mo.mal.impl.broker.indexed.IndexedBrokerHandler;
+import esa.mo.mal.impl.broker.simple.SimpleBrokerHandler;
+import java.util.HashMap;
+import java.util.Map;
+import org.ccsds.moims.mo.mal.MALContext;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALInteractionException;
+import org.ccsds.moims.mo.mal.broker.MALBrokerManager;
+import org.ccsds.moims.mo.mal.structures.Blob;
+import org.ccsds.moims.mo.mal.structures.EntityKey;
+import org.ccsds.moims.mo.mal.structures.EntityKeyList;
+import org.ccsds.moims.mo.mal.structures.EntityRequest;
+import org.ccsds.moims.mo.mal.structures.EntityRequestList;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.InteractionType;
+import org.ccsds.moims.mo.mal.structures.QoSLevel;
+import org.ccsds.moims.mo.mal.structures.Subscription;
+import org.ccsds.moims.mo.mal.structures.Time;
+import org.ccsds.moims.mo.mal.structures.UInteger;
+import org.ccsds.moims.mo.mal.structures.UIntegerList;
+import org.ccsds.moims.mo.mal.structures.URI;
+import org.ccsds.moims.mo.mal.structures.UpdateHeader;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.structures.UpdateType;
+import org.ccsds.moims.mo.mal.transport.MALEndpoint;
+import org.ccsds.moims.mo.mal.transport.MALMessage;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+import org.ccsds.moims.mo.mal.transport.MALMessageListener;
+
+/**
+ * Checks the federation of two brokers linked to each other, in one process, through the in-memory transport. It is a
+ * program rather than a benchmark and exits with a non zero status if any check fails:
+ *
+ * <pre>
+ *   java -cp target/benchmarks.jar esa.mo.mal.impl.broker.FederationCheck [simple|indexed]
+ * </pre>
+ *
+ * Each broker has local consumers and a provider, and a link to the other broker. The register messages of the links
+ * go through the MAL of the receiving broker, and the NOTIFY messages of a broker are delivered to the link of its
+ * peer. The checks are:
+ * <ul>
+ * <li>interest forwarding, an update only crosses to the other broker while one of its consumers has subscribed to
+ * it, and stops once they have all deregistered;</li>
+ * <li>single crossing, an update crosses once however many consumers of the other broker it matches;</li>
+ * <li>split horizon, an update received over a link is not sent back to the broker it came from.</li>
+ * </ul>
+ * A consumer whose subscription identifier looks like one registered by a link is still a local consumer, only the
+ * endpoints given as the links of the peers are treated as such.
+ */
+public final class FederationCheck
+{
+  private static final String SUBSCRIPTION = "sub";
+  private final IdentifierList domain = new IdentifierList();
+  private final MALContext context;
+  private final Broker brokerA;
+  private final Broker brokerB;
+  private int failures = 0;
+
+  private FederationCheck(final String handler) throws MALException
+  {
+    InMemoryTransportFactory.register();
+    BenchmarkMessages.registerArea();
+
+    domain.add(new Identifier("federation"));
+    context = new MALContextFactoryImpl().createMALContext(null);
+    brokerA = new Broker(context.createBrokerManager(), "brokerA", handler);
+    brokerB = new Broker(context.createBrokerManager(), "brokerB", handler);
+    brokerA.link(brokerB);
+    brokerB.link(brokerA);
+  }
+
+  /**
+   * Runs the checks with the simple broker, or the one given as argument.
+   *
+   * @param args The broker handler, simple or indexed.
+   * @throws Exception On error.
+   */
+  public static void main(final String[] args) throws Exception
+  {
+    final FederationCheck check = new FederationCheck((0 < args.length) ? args[0] : "simple");
+
+    try
+    {
+      check.run();
+    }
+    finally
+    {
+      check.context.close();
+    }
+
+    if (0 != check.failures)
+    {
+      System.out.println(check.failures + " federation checks failed");
+      System.exit(1);
+    }
+
+    System.out.println("All federation checks passed");
+  }
+
+  private void run() throws MALException, MALInteractionException
+  {
+    final Consumer consumerA1 = new Consumer("consumerA1");
+    final Consumer consumerA2 = new Consumer("consumerA2");
+    final Consumer consumerB1 = new Consumer("consumerB1");
+
+    brokerA.publishRegister();
+    brokerB.publishRegister();
+
+    Counts counts = new Counts(consumerA1, consumerA2, consumerB1);
+    brokerB.publish("key1");
+    counts.expect("no interest, update of B", 0, 0, 0, 0, 0);
+
+    brokerA.register(consumerA1, "key1");
+    brokerA.register(consumerA2, "key1");
+    counts = new Counts(consumerA1, consumerA2, consumerB1);
+    brokerB.publish("key1");
+    counts.expect("two consumers on A, update of B", 1, 1, 0, 1, 0);
+
+    counts = new Counts(consumerA1, consumerA2, consumerB1);
+    brokerB.publish("key2");
+    counts.expect("two consumers on A, unmatched update of B", 0, 0, 0, 0, 0);
+
+    brokerB.register(consumerB1, "key1");
+    counts = new Counts(consumerA1, consumerA2, consumerB1);
+    brokerB.publish("key1");
+    counts.expect("consumers on both, update of B", 1, 1, 1, 1, 0);
+
+    counts = new Counts(consumerA1, consumerA2, consumerB1);
+    brokerA.publish("key1");
+    counts.expect("consumers on both, update of A", 1, 1, 1, 0, 1);
+
+    brokerA.deregister(consumerA1);
+    brokerA.deregister(consumerA2);
+    counts = new Counts(consumerA1, consumerA2, consumerB1);
+    brokerB.publish("key1");
+    counts.expect("consumers on A deregistered, update of B", 0, 0, 1, 0, 0);
+
+    final Consumer consumerB2 = new Consumer("consumerB2", FederationLink.SUBSCRIPTION_PREFIX + "1");
+    brokerB.register(consumerB2, "key3");
+    counts = new Counts(consumerB2);
+    brokerA.publish("key3");
+    counts.expect("consumer on B with a link like subscription, update of A", 1, 0, 1);
+  }
+
+  private void expect(final String check, final String what, final long actual, final long expected)
+  {
+    if (actual != expected)
+    {
+      System.out.println("FAILED " + check + " : " + what + " received " + actual + " NOTIFY, expected " + expected);
+      ++failures;
+    }
+  }
+
+  /**
+   * The NOTIFY messages received by the consumers and links before a step of the check.
+   */
+  private final class Counts
+  {
+    private final Consumer[] consumers;
+    private final long[] before;
+    private final long linkABefore;
+    private final long linkBBefore;
+
+    private Counts(final Consumer... consumers)
+    {
+      this.consumers = consumers;
+      this.before = new long[consumers.length];
+
+      for (int i = 0; i < consumers.length; ++i)
+      {
+        before[i] = consumers[i].endpoint.getNotifyReceivedCount();
+      }
+
+      linkABefore = brokerA.linkEndpoint.getNotifyReceivedCount();
+      linkBBefore = brokerB.linkEndpoint.getNotifyReceivedCount();
+    }
+
+    /**
+     * Checks the messages received since the counts were taken.
+     *
+     * @param check The name of the step.
+     * @param expected The number expected by each consumer, followed by the number that crossed to A and to B.
+     */
+    private void expect(final String check, final long... expected)
+    {
+      for (int i = 0; i < consumers.length; ++i)
+      {
+        FederationCheck.this.expect(check, consumers[i].name, consumers[i].endpoint.getNotifyReceivedCount()
+                - before[i], expected[i]);
+      }
+
+      FederationCheck.this.expect(check, "link of A", brokerA.linkEndpoint.getNotifyReceivedCount() - linkABefore,
+              expected[consumers.length]);
+      FederationCheck.this.expect(check, "link of B", brokerB.linkEndpoint.getNotifyReceivedCount() - linkBBefore,
+              expected[consumers.length + 1]);
+    }
+  }
+
+  /**
+   * A broker, its provider and its link to the other broker.
+   */
+  private final class Broker
+  {
+    private final String name;
+    private final MALBrokerHandlerImpl handler;
+    private final MALBrokerBindingImpl binding;
+    private final InMemoryEndpoint linkEndpoint;
+    private final String provider;
+
+    private Broker(final MALBrokerManager brokerManager, final String name, final String handlerName)
+            throws MALException
+    {
+      final Map<String, Object> qosProperties = new HashMap<String, Object>();
+      qosProperties.put(BrokerMetrics.CLASS_PROPERTY, "none");
+
+      this.name = name;
+      this.handler = "indexed".equals(handlerName) ? new IndexedBrokerHandler(null) : new SimpleBrokerHandler(null);
+      this.binding = (MALBrokerBindingImpl) brokerManager.createBrokerBinding(brokerManager.createBroker(handler),
+              new InMemoryEndpoint(new URI(InMemoryTransportFactory.PROTOCOL + "://" + name)),
+              new Blob(new byte[0]), new QoSLevel[]
+              {
+                QoSLevel.BESTEFFORT
+              }, new UInteger(1), qosProperties);
+      this.linkEndpoint = new InMemoryEndpoint(new URI(InMemoryTransportFactory.PROTOCOL + "://" + name + "Link"));
+      this.provider = InMemoryTransportFactory.PROTOCOL + "://" + name + "Provider";
+    }
+
+    private void link(final Broker peer) throws MALException
+    {
+      FederationLink.open(binding, linkEndpoint, peer.binding.getURI(), peer.linkEndpoint.getURI());
+    }
+
+    private BenchmarkMessages.Interaction interaction(final String uriFrom)
+    {
+      return new BenchmarkMessages.Interaction(BenchmarkMessages.createHeader(uriFrom, name, domain,
+              InteractionType.PUBSUB));
+    }
+
+    private void register(final Consumer consumer, final String keyName)
+            throws MALException, MALInteractionException
+    {
+      final EntityKeyList keys = new EntityKeyList();
+      keys.add(new EntityKey(new Identifier(keyName), 0L, 0L, 0L));
+
+      final EntityRequestList requests = new EntityRequestList();
+      requests.add(new EntityRequest(null, Boolean.FALSE, Boolean.FALSE, Boolean.FALSE, Boolean.FALSE, keys));
+
+      binding.addSubscriber(consumer.endpoint.getURI().getValue());
+      handler.handleRegister(interaction(consumer.endpoint.getURI().getValue()),
+              new BenchmarkMessages.RegisterBody(new Subscription(new Identifier(consumer.subscriptionId), requests)));
+    }
+
+    private void deregister(final Consumer consumer) throws MALException, MALInteractionException
+    {
+      final IdentifierList subscriptions = new IdentifierList();
+      subscriptions.add(new Identifier(consumer.subscriptionId));
+
+      handler.handleDeregister(interaction(consumer.endpoint.getURI().getValue()),
+              new BenchmarkMessages.DeregisterBody(subscriptions));
+    }
+
+    private void publishRegister() throws MALException, MALInteractionException
+    {
+      final EntityKeyList keys = new EntityKeyList();
+      keys.add(new EntityKey(new Identifier("*"), 0L, 0L, 0L));
+
+      handler.handlePublishRegister(interaction(provider), new BenchmarkMessages.PublishRegisterBody(keys));
+    }
+
+    private void publish(final String keyName) throws MALException, MALInteractionException
+    {
+      final UpdateHeaderList headers = new UpdateHeaderList();
+      headers.add(new UpdateHeader(new Time(0L), new URI(provider), UpdateType.UPDATE,
+              new EntityKey(new Identifier(keyName), 0L, 0L, 0L)));
+
+      final UIntegerList values = new UIntegerList();
+      values.add(new UInteger(1));
+
+      handler.handlePublish(interaction(provider), new BenchmarkMessages.PublishBody(headers, values));
+    }
+  }
+
+  /**
+   * A consumer, whose endpoint counts the NOTIFY messages delivered to it.
+   */
+  private static final class Consumer implements MALMessageListener
+  {
+    private final String name;
+    private final String subscriptionId;
+    private final InMemoryEndpoint endpoint;
+
+    private Consumer(final String name) throws MALException
+    {
+      this(name, SUBSCRIPTION);
+    }
+
+    private Consumer(final String name, final String subscriptionId) throws MALException
+    {
+      this.name = name;
+      this.subscriptionId = subscriptionId;
+      this.endpoint = new InMemoryEndpoint(new URI(InMemoryTransportFactory.PROTOCOL + "://" + name));
+      this.endpoint.setMessageListener(this);
+    }
+
+    @Override
+    public void onMessage(final MALEndpoint callingEndpoint, final MALMessage msg)
+    {
+    }
+
+    @Override
+    public void onMessages(final MALEndpoint callingEndpoint, final MALMessage[] msgList)
+    {
+    }
+
+    @Override
+    public void onInternalError(final MALEndpoint callingEndpoint, final Throwable err)
+    {
+    }
+
+    @Override
+    public void onTransmitError(final MALEndpoint callingEndpoint,
+            final MALMessageHeader srcMessageHeader,
+            final org.ccsds.moims.mo.mal.MALStandardError err,
+            final Map qosMap)
+    {
+    }
+  }
+}
@@ -0,0 +1,414 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALOperation;
+import org.ccsds.moims.mo.mal.MALPubSubOperation;
+import org.ccsds.moims.mo.mal.MALService;
+import org.ccsds.moims.mo.mal.structures.Blob;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.InteractionType;
+import org.ccsds.moims.mo.mal.structures.QoSLevel;
+import org.ccsds.moims.mo.mal.structures.SessionType;
+import org.ccsds.moims.mo.mal.structures.Subscription;
+import org.ccsds.moims.mo.mal.structures.Time;
+import org.ccsds.moims.mo.mal.structures.UInteger;
+import org.ccsds.moims.mo.mal.structures.UOctet;
+import org.ccsds.moims.mo.mal.structures.URI;
+import org.ccsds.moims.mo.mal.structures.UShort;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.transport.MALEncodedBody;
+import org.ccsds.moims.mo.mal.transport.MALEndpoint;
+import org.ccsds.moims.mo.mal.transport.MALMessage;
+import org.ccsds.moims.mo.mal.transport.MALMessageBody;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+import org.ccsds.moims.mo.mal.transport.MALMessageListener;
+
+/**
+ * An endpoint of the in-memory transport. Messages are created holding only their body and are counted, not
+ * delivered, when sent. The last message sent is retained so that the JIT cannot remove the construction of the
+ * messages from a benchmark.
+ *
+ * A message to an endpoint of the process that has a message listener is instead created with its header and decoded
+ * body and passed to that listener on the sending thread, so that brokers can be linked to each other in one process.
+ * Only the PUBSUB stages used between brokers are decoded, the body of any other message is null.
+ */
+final class InMemoryEndpoint implements MALEndpoint
+{
+  private static final ConcurrentMap<String, InMemoryEndpoint> LISTENING
+          = new ConcurrentHashMap<String, InMemoryEndpoint>();
+  private final URI uri;
+  private long sentCount = 0;
+  private long notifyReceivedCount = 0;
+  private MALMessage lastMessage = null;
+  private volatile MALMessageListener listener = null;
+
+  /**
+   * Constructor.
+   *
+   * @param uri The URI of the endpoint.
+   */
+  InMemoryEndpoint(final URI uri)
+  {
+    this.uri = uri;
+  }
+
+  /**
+   * Returns the number of messages sent through this endpoint.
+   *
+   * @return the sent count.
+   */
+  long getSentCount()
+  {
+    return sentCount;
+  }
+
+  /**
+   * Returns the number of NOTIFY messages delivered to this endpoint.
+   *
+   * @return the received count.
+   */
+  long getNotifyReceivedCount()
+  {
+    return notifyReceivedCount;
+  }
+
+  @Override
+  public void startMessageDelivery() throws MALException
+  {
+  }
+
+  @Override
+  public void stopMessageDelivery() throws MALException
+  {
+  }
+
+  @Override
+  public MALMessage createMessage(final Blob authenticationId,
+          final URI uriTo,
+          final Time timestamp,
+          final QoSLevel qosLevel,
+          final UInteger priority,
+          final IdentifierList domain,
+          final Identifier networkZone,
+          final SessionType session,
+          final Identifier sessionName,
+          final InteractionType interactionType,
+          final UOctet interactionStage,
+          final Long transactionId,
+          final UShort serviceArea,
+          final UShort service,
+          final UShort operation,
+          final UOctet serviceVersion,
+          final Boolean isErrorMessage,
+          final Map qosProperties,
+          final Object... body) throws MALException
+  {
+    final InMemoryEndpoint destination = LISTENING.get(uriTo.getValue());
+
+    if (null == destination)
+    {
+      return new InMemoryMessage(body);
+    }
+
+    final JournalHeader hdr = new JournalHeader();
+    hdr.setURIFrom(uri);
+    hdr.setAuthenticationId(authenticationId);
+    hdr.setURITo(uriTo);
+    hdr.setTimestamp(timestamp);
+    hdr.setQoSlevel(qosLevel);
+    hdr.setPriority(priority);
+    hdr.setDomain(domain);
+    hdr.setNetworkZone(networkZone);
+    hdr.setSession(session);
+    hdr.setSessionName(sessionName);
+    hdr.setInteractionType(interactionType);
+    hdr.setInteractionStage(interactionStage);
+    hdr.setTransactionId(transactionId);
+    hdr.setServiceArea(serviceArea);
+    hdr.setService(service);
+    hdr.setOperation(operation);
+    hdr.setAreaVersion(serviceVersion);
+    hdr.setIsErrorMessage(isErrorMessage);
+
+    return new DeliveredMessage(destination, hdr, qosProperties, body);
+  }
+
+  @Override
+  public MALMessage createMessage(final Blob authenticationId,
+          final URI uriTo,
+          final Time timestamp,
+          final QoSLevel qosLevel,
+          final UInteger priority,
+          final IdentifierList domain,
+          final Identifier networkZone,
+          final SessionType session,
+          final Identifier sessionName,
+          final InteractionType interactionType,
+          final UOctet interactionStage,
+          final Long transactionId,
+          final UShort serviceArea,
+          final UShort service,
+          final UShort operation,
+          final UOctet serviceVersion,
+          final Boolean isErrorMessage,
+          final Map qosProperties,
+          final MALEncodedBody body) throws MALException
+  {
+    return new InMemoryMessage(body);
+  }
+
+  @Override
+  public MALMessage createMessage(final Blob authenticationId,
+          final URI uriTo,
+          final Time timestamp,
+          final QoSLevel qosLevel,
+          final UInteger priority,
+          final IdentifierList domain,
+          final Identifier networkZone,
+          final SessionType session,
+          final Identifier sessionName,
+          final Long transactionId,
+          final Boolean isErrorMessage,
+          final MALOperation op,
+          final UOctet interactionStage,
+          final Map qosProperties,
+          final Object... body) throws MALException
+  {
+    final MALService service = op.getService();
+
+    return createMessage(authenticationId, uriTo, timestamp, qosLevel, priority, domain, networkZone, session,
+            sessionName, op.getInteractionType(), interactionStage, transactionId, service.getArea().getNumber(),
+            service.getNumber(), op.getNumber(), service.getArea().getVersion(), isErrorMessage, qosProperties, body);
+  }
+
+  @Override
+  public MALMessage createMessage(final Blob authenticationId,
+          final URI uriTo,
+          final Time timestamp,
+          final QoSLevel qosLevel,
+          final UInteger priority,
+          final IdentifierList domain,
+          final Identifier networkZone,
+          final SessionType session,
+          final Identifier sessionName,
+          final Long transactionId,
+          final Boolean isErrorMessage,
+          final MALOperation op,
+          final UOctet interactionStage,
+          final Map qosProperties,
+          final MALEncodedBody body) throws MALException
+  {
+    return new InMemoryMessage(body);
+  }
+
+  @Override
+  public void sendMessage(final MALMessage msg) throws MALException
+  {
+    ++sentCount;
+    lastMessage = msg;
+
+    if (msg instanceof DeliveredMessage)
+    {
+      ((DeliveredMessage) msg).deliver();
+    }
+  }
+
+  @Override
+  public void sendMessages(final MALMessage[] msgs) throws MALException
+  {
+    sentCount += msgs.length;
+    lastMessage = msgs[msgs.length - 1];
+
+    for (MALMessage msg : msgs)
+    {
+      if (msg instanceof DeliveredMessage)
+      {
+        ((DeliveredMessage) msg).deliver();
+      }
+    }
+  }
+
+  @Override
+  public void setMessageListener(final MALMessageListener listener) throws MALException
+  {
+    this.listener = listener;
+
+    if (null == listener)
+    {
+      LISTENING.remove(uri.getValue(), this);
+    }
+    else
+    {
+      LISTENING.put(uri.getValue(), this);
+    }
+  }
+
+  @Override
+  public URI getURI()
+  {
+    return uri;
+  }
+
+  @Override
+  public String getLocalName()
+  {
+    return uri.getValue();
+  }
+
+  @Override
+  public void close() throws MALException
+  {
+    setMessageListener(null);
+  }
+
+  /**
+   * A message that only holds its body.
+   */
+  private static final class InMemoryMessage implements MALMessage
+  {
+    private final Object body;
+
+    private InMemoryMessage(final Object body)
+    {
+      this.body = body;
+    }
+
+    @Override
+    public MALMessageHeader getHeader()
+    {
+      return null;
+    }
+
+    @Override
+    public MALMessageBody getBody()
+    {
+      return null;
+    }
+
+    @Override
+    public Map getQoSProperties()
+    {
+      return null;
+    }
+
+    @Override
+    public void free() throws MALException
+    {
+    }
+  }
+
+  /**
+   * A message to an endpoint with a listener, holding its header and decoded body.
+   */
+  private static final class DeliveredMessage implements MALMessage
+  {
+    private final InMemoryEndpoint destination;
+    private final MALMessageHeader header;
+    private final Map qosProperties;
+    private final MALMessageBody body;
+
+    private DeliveredMessage(final InMemoryEndpoint destination,
+            final MALMessageHeader header,
+            final Map qosProperties,
+            final Object[] body)
+    {
+      this.destination = destination;
+      this.header = header;
+      this.qosProperties = qosProperties;
+      this.body = decode(header, body);
+    }
+
+    private void deliver()
+    {
+      final MALMessageListener currentListener = destination.listener;
+
+      if (null != currentListener)
+      {
+        if (isNotify(header))
+        {
+          ++destination.notifyReceivedCount;
+        }
+
+        currentListener.onMessage(destination, this);
+      }
+    }
+
+    @Override
+    public MALMessageHeader getHeader()
+    {
+      return header;
+    }
+
+    @Override
+    public MALMessageBody getBody()
+    {
+      return body;
+    }
+
+    @Override
+    public Map getQoSProperties()
+    {
+      return qosProperties;
+    }
+
+    @Override
+    public void free() throws MALException
+    {
+    }
+
+    private static boolean isNotify(final MALMessageHeader header)
+    {
+      return InteractionType.PUBSUB.equals(header.getInteractionType())
+              && !Boolean.TRUE.equals(header.getIsErrorMessage())
+              && (MALPubSubOperation._NOTIFY_STAGE == header.getInteractionStage().getValue());
+    }
+
+    private static MALMessageBody decode(final MALMessageHeader header, final Object[] body)
+    {
+      if (!InteractionType.PUBSUB.equals(header.getInteractionType())
+              || Boolean.TRUE.equals(header.getIsErrorMessage()) || (null == body) || (0 == body.length))
+      {
+        return null;
+      }
+
+      switch (header.getInteractionStage().getValue())
+      {
+        case MALPubSubOperation._REGISTER_STAGE:
+          return new BenchmarkMessages.RegisterBody((Subscription) body[0]);
+        case MALPubSubOperation._DEREGISTER_STAGE:
+          return new BenchmarkMessages.DeregisterBody((IdentifierList) body[0]);
+        case MALPubSubOperation._NOTIFY_STAGE:
+          final List[] updateLists = new List[body.length - 2];
+          System.arraycopy(body, 2, updateLists, 0, updateLists.length);
+          return new BenchmarkMessages.NotifyBody((Identifier) body[0], (UpdateHeaderList) body[1], updateLists);
+        default:
+          return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.util.Map;
+import org.ccsds.moims.mo.mal.MALContext;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.broker.MALBrokerBinding;
+import org.ccsds.moims.mo.mal.structures.Blob;
+import org.ccsds.moims.mo.mal.structures.InteractionType;
+import org.ccsds.moims.mo.mal.structures.QoSLevel;
+import org.ccsds.moims.mo.mal.structures.UInteger;
+import org.ccsds.moims.mo.mal.structures.URI;
+import org.ccsds.moims.mo.mal.transport.MALEndpoint;
+import org.ccsds.moims.mo.mal.transport.MALTransport;
+import org.ccsds.moims.mo.mal.transport.MALTransportFactory;
+
+/**
+ * Factory of a transport that never leaves the process, the endpoints of which count the messages sent to them rather
+ * than delivering them. It lets the broker be benchmarked without the cost of encoding and I/O. Messages to an
+ * endpoint with a message listener are delivered, see {@link InMemoryEndpoint}.
+ */
+public class InMemoryTransportFactory extends MALTransportFactory
+{
+  /**
+   * The protocol of the transport.
+   */
+  public static final String PROTOCOL = "bench";
+
+  /**
+   * Constructor.
+   *
+   * @param protocol The protocol string.
+   */
+  public InMemoryTransportFactory(final String protocol)
+  {
+    super(protocol);
+  }
+
+  /**
+   * Makes the transport available to the MAL under the {@link #PROTOCOL} protocol.
+   */
+  public static void register()
+  {
+    System.setProperty(FACTORY_PROP_NAME_PREFIX + "." + PROTOCOL, InMemoryTransportFactory.class.getName());
+    registerFactoryClass(InMemoryTransportFactory.class);
+  }
+
+  @Override
+  public MALTransport createTransport(final MALContext malContext, final Map properties) throws MALException
+  {
+    return new InMemoryTransport();
+  }
+
+  /**
+   * The in-memory transport, endpoints are created on demand and are not looked up by name.
+   */
+  private static final class InMemoryTransport implements MALTransport
+  {
+    @Override
+    public MALEndpoint createEndpoint(final String localName, final Map qosProperties) throws MALException
+    {
+      return new InMemoryEndpoint(new URI(PROTOCOL + "://" + localName));
+    }
+
+    @Override
+    public MALEndpoint getEndpoint(final String localName) throws MALException
+    {
+      return null;
+    }
+
+    @Override
+    public MALEndpoint getEndpoint(final URI uri) throws MALException
+    {
+      return null;
+    }
+
+    @Override
+    public void deleteEndpoint(final String localName) throws MALException
+    {
+    }
+
+    @Override
+    public MALBrokerBinding createBroker(final String localName,
+            final Blob authenticationId,
+            final QoSLevel[] expectedQos,
+            final UInteger priorityLevelNumber,
+            final Map defaultQoSProperties) throws MALException
+    {
+      // use the broker of the MAL
+      return null;
+    }
+
+    @Override
+    public MALBrokerBinding createBroker(final MALEndpoint endpoint,
+            final Blob authenticationId,
+            final QoSLevel[] qosLevels,
+            final UInteger priorities,
+            final Map properties) throws MALException
+    {
+      // use the broker of the MAL
+      return null;
+    }
+
+    @Override
+    public boolean isSupportedQoSLevel(final QoSLevel qos)
+    {
+      return true;
+    }
+
+    @Override
+    public boolean isSupportedInteractionType(final InteractionType type)
+    {
+      return true;
+    }
+
+    @Override
+    public void close() throws MALException
+    {
+    }
+  }
+}
@@ -0,0 +1,317 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.MALContextFactoryImpl;
+import esa.mo.mal.impl.broker.indexed.IndexedBrokerHandler;
+import esa.mo.mal.impl.broker.simple.SimpleBrokerHandler;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.ccsds.moims.mo.mal.MALContext;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALInteractionException;
+import org.ccsds.moims.mo.mal.broker.MALBroker;
+import org.ccsds.moims.mo.mal.broker.MALBrokerManager;
+import org.ccsds.moims.mo.mal.provider.MALInteraction;
+import org.ccsds.moims.mo.mal.structures.Blob;
+import org.ccsds.moims.mo.mal.structures.EntityKey;
+import org.ccsds.moims.mo.mal.structures.EntityKeyList;
+import org.ccsds.moims.mo.mal.structures.EntityRequest;
+import org.ccsds.moims.mo.mal.structures.EntityRequestList;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.InteractionType;
+import org.ccsds.moims.mo.mal.structures.QoSLevel;
+import org.ccsds.moims.mo.mal.structures.Subscription;
+import org.ccsds.moims.mo.mal.structures.Time;
+import org.ccsds.moims.mo.mal.structures.UInteger;
+import org.ccsds.moims.mo.mal.structures.UIntegerList;
+import org.ccsds.moims.mo.mal.structures.URI;
+import org.ccsds.moims.mo.mal.structures.UpdateHeader;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.structures.UpdateType;
+
+/**
+ * Checks that a broker restores its subscriptions from its journal within a bound, by default one second for 100000
+ * subscriptions. It is a program rather than a benchmark and exits with a non zero status if the bound is exceeded
+ * or a restored subscription is not delivered to:
+ *
+ * <pre>
+ *   java -cp target/benchmarks.jar esa.mo.mal.impl.broker.JournalRecoveryCheck [milliseconds] [subscriptions]
+ * </pre>
+ *
+ * The subscriptions are registered through the broker, so that the journal is compacted in the background while they
+ * are, and the longest register is reported alongside the recovery time. The recovery time is that of creating the
+ * broker binding, which reads the snapshot and journal and restores the subscriptions into the handler. The journal is
+ * restored into a new broker several times and the bound applies to the fastest, the first, which includes the
+ * compilation of the restore code by the JVM, is also reported.
+ */
+public final class JournalRecoveryCheck
+{
+  /**
+   * The default bound, in milliseconds, on the recovery time.
+   */
+  public static final long DEFAULT_MAXIMUM_RECOVERY_MILLIS = 1000;
+  /**
+   * The default number of subscriptions.
+   */
+  public static final int DEFAULT_SUBSCRIPTIONS = 100000;
+  private static final int SUBSCRIPTIONS_PER_CONSUMER = 100;
+  private static final int RECOVERY_ROUNDS = 3;
+
+  private JournalRecoveryCheck()
+  {
+  }
+
+  /**
+   * Measures the recovery time of both broker handlers.
+   *
+   * @param args The optional bound in milliseconds and number of subscriptions.
+   * @throws Exception On error.
+   */
+  public static void main(final String[] args) throws Exception
+  {
+    final long bound = (0 < args.length) ? Long.parseLong(args[0]) : DEFAULT_MAXIMUM_RECOVERY_MILLIS;
+    final int subscriptions = (1 < args.length) ? Integer.parseInt(args[1]) : DEFAULT_SUBSCRIPTIONS;
+    int failures = 0;
+
+    InMemoryTransportFactory.register();
+
+    for (String handler : new String[]
+    {
+      "simple", "indexed"
+    })
+    {
+      final File directory = createDirectory();
+
+      try
+      {
+        final double registerMillis = register(handler, directory, subscriptions);
+        double firstMillis = 0;
+        double bestMillis = Double.MAX_VALUE;
+        boolean delivered = true;
+
+        for (int i = 0; i < RECOVERY_ROUNDS; ++i)
+        {
+          final double millis = recover(handler, directory);
+          delivered &= (0 <= millis);
+          firstMillis = (0 == i) ? Math.abs(millis) : firstMillis;
+          bestMillis = Math.min(bestMillis, Math.abs(millis));
+        }
+
+        final boolean failed = !delivered || (bound < bestMillis);
+
+        System.out.println(String.format(
+                "%s %-8s subscriptions=%6d recovery=%7.1fms (first %7.1fms) bound=%dms longest register=%6.1fms",
+                failed ? "FAILED" : "OK    ", handler, subscriptions, bestMillis, firstMillis, bound,
+                registerMillis));
+
+        if (failed)
+        {
+          ++failures;
+        }
+      }
+      finally
+      {
+        delete(directory);
+      }
+    }
+
+    if (0 != failures)
+    {
+      System.exit(1);
+    }
+  }
+
+  private static double register(final String handler, final File directory, final int subscriptions)
+          throws MALException, MALInteractionException
+  {
+    final Broker broker = new Broker(handler, directory);
+    long longest = 0;
+
+    try
+    {
+      broker.bind();
+
+      // each consumer subscribes to its own key name, one subscription for each of its entity numbers
+      for (int i = 0; i < subscriptions; ++i)
+      {
+        final int consumerIndex = i / SUBSCRIPTIONS_PER_CONSUMER;
+        final EntityKeyList keys = new EntityKeyList();
+        keys.add(new EntityKey(new Identifier("key" + consumerIndex), 0L, (long) i, 0L));
+
+        final EntityRequestList requests = new EntityRequestList();
+        requests.add(new EntityRequest(null, Boolean.FALSE, Boolean.FALSE, Boolean.FALSE, Boolean.FALSE, keys));
+
+        final long start = System.nanoTime();
+        broker.brokerHandler.handleRegister(new BenchmarkMessages.Interaction(
+                BenchmarkMessages.createHeader(consumer(consumerIndex), broker.domain, InteractionType.PUBSUB)),
+                new BenchmarkMessages.RegisterBody(new Subscription(new Identifier("sub" + i), requests)));
+        longest = Math.max(longest, System.nanoTime() - start);
+      }
+    }
+    finally
+    {
+      broker.close();
+    }
+
+    return longest / 1000000.0;
+  }
+
+  /**
+   * Restores the subscriptions into a new broker and checks that the first consumer is delivered to.
+   *
+   * @param handler The broker handler, simple or indexed.
+   * @param directory The journal directory.
+   * @return The recovery time in milliseconds, negative if the first consumer was not delivered to.
+   */
+  private static double recover(final String handler, final File directory)
+          throws MALException, MALInteractionException
+  {
+    final Broker broker = new Broker(handler, directory);
+
+    try
+    {
+      // the garbage of the previous broker is not collected while this one is restored
+      System.gc();
+
+      final long start = System.nanoTime();
+      broker.bind();
+      final double millis = (System.nanoTime() - start) / 1000000.0;
+
+      return broker.publishToFirstConsumer() ? millis : -millis;
+    }
+    finally
+    {
+      broker.close();
+    }
+  }
+
+  private static String consumer(final int index)
+  {
+    return InMemoryTransportFactory.PROTOCOL + "://consumer" + index;
+  }
+
+  private static File createDirectory() throws IOException
+  {
+    final File file = File.createTempFile("broker", ".journal");
+
+    if (!file.delete() || !file.mkdir())
+    {
+      throw new IOException("Unable to create journal directory " + file);
+    }
+
+    return file;
+  }
+
+  private static void delete(final File file)
+  {
+    final File[] children = file.listFiles();
+
+    if (null != children)
+    {
+      for (File child : children)
+      {
+        delete(child);
+      }
+    }
+
+    if (!file.delete())
+    {
+      file.deleteOnExit();
+    }
+  }
+
+  /**
+   * A broker with a journal.
+   */
+  private static final class Broker
+  {
+    private final IdentifierList domain = new IdentifierList();
+    private final Map<String, Object> qosProperties = new HashMap<String, Object>();
+    private final MALContext context;
+    private final MALBrokerHandlerImpl brokerHandler;
+    private final InMemoryEndpoint endpoint;
+    private final MALBrokerManager brokerManager;
+    private final MALBroker broker;
+    private MALBrokerBindingImpl binding;
+
+    private Broker(final String handler, final File directory) throws MALException
+    {
+      domain.add(new Identifier("domain"));
+      qosProperties.put(BrokerMetrics.CLASS_PROPERTY, "none");
+      qosProperties.put(SubscriptionJournal.DIRECTORY_PROPERTY, directory.getPath());
+
+      brokerHandler = "indexed".equals(handler) ? new IndexedBrokerHandler(null) : new SimpleBrokerHandler(null);
+      endpoint = new InMemoryEndpoint(new URI(InMemoryTransportFactory.PROTOCOL + "://"
+              + BenchmarkMessages.BROKER_NAME));
+      context = new MALContextFactoryImpl().createMALContext(null);
+      brokerManager = context.createBrokerManager();
+      broker = brokerManager.createBroker(brokerHandler);
+    }
+
+    /**
+     * Binds the broker to its endpoint, which opens the journal and restores the subscriptions held in it.
+     *
+     * @throws MALException On error.
+     */
+    private void bind() throws MALException
+    {
+      binding = (MALBrokerBindingImpl) brokerManager.createBrokerBinding(broker,
+              endpoint, new Blob(new byte[0]), new QoSLevel[]
+              {
+                QoSLevel.BESTEFFORT
+              }, new UInteger(1), qosProperties);
+    }
+
+    private boolean publishToFirstConsumer() throws MALException, MALInteractionException
+    {
+      binding.addSubscriber(consumer(0));
+
+      final EntityKeyList providerKeys = new EntityKeyList();
+      providerKeys.add(new EntityKey(new Identifier("*"), 0L, 0L, 0L));
+      final MALInteraction interaction = new BenchmarkMessages.Interaction(BenchmarkMessages.createHeader(
+              InMemoryTransportFactory.PROTOCOL + "://provider", domain, InteractionType.PUBSUB));
+      brokerHandler.handlePublishRegister(interaction, new BenchmarkMessages.PublishRegisterBody(providerKeys));
+
+      final UpdateHeaderList headers = new UpdateHeaderList();
+      headers.add(new UpdateHeader(new Time(0L), new URI("provider"), UpdateType.UPDATE,
+              new EntityKey(new Identifier("key0"), 1L, 1L, 1L)));
+      final UIntegerList values = new UIntegerList();
+      values.add(new UInteger(0));
+
+      final long before = endpoint.getSentCount();
+      brokerHandler.handlePublish(interaction, new BenchmarkMessages.PublishBody(headers, values));
+
+      return before < endpoint.getSentCount();
+    }
+
+    private void close() throws MALException
+    {
+      context.close();
+
+      // a handler passed to the broker manager is not closed with the context, closing it closes the journal
+      brokerHandler.close();
+    }
+  }
+}
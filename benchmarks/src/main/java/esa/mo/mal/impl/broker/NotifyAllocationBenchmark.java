@@ -0,0 +1,237 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.MALContextFactoryImpl;
+import esa.mo.mal.impl.broker.indexed.IndexedBrokerHandler;
+import esa.mo.mal.impl.broker.simple.SimpleBrokerHandler;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.ccsds.moims.mo.mal.MALContext;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALInteractionException;
+import org.ccsds.moims.mo.mal.broker.MALBroker;
+import org.ccsds.moims.mo.mal.broker.MALBrokerManager;
+import org.ccsds.moims.mo.mal.provider.MALInteraction;
+import org.ccsds.moims.mo.mal.structures.Blob;
+import org.ccsds.moims.mo.mal.structures.EntityKey;
+import org.ccsds.moims.mo.mal.structures.EntityKeyList;
+import org.ccsds.moims.mo.mal.structures.EntityRequest;
+import org.ccsds.moims.mo.mal.structures.EntityRequestList;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.InteractionType;
+import org.ccsds.moims.mo.mal.structures.QoSLevel;
+import org.ccsds.moims.mo.mal.structures.Subscription;
+import org.ccsds.moims.mo.mal.structures.Time;
+import org.ccsds.moims.mo.mal.structures.UInteger;
+import org.ccsds.moims.mo.mal.structures.UIntegerList;
+import org.ccsds.moims.mo.mal.structures.URI;
+import org.ccsds.moims.mo.mal.structures.UpdateHeader;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.structures.UpdateType;
+import org.ccsds.moims.mo.mal.transport.MALPublishBody;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the steady state allocation of the broker for each published update. Each operation is one update, so
+ * that the gc.alloc.rate.norm figure reported by -prof gc is the number of bytes allocated per update.
+ *
+ * Each consumer subscribes to its own key name and each update is either for the key name of one consumer or for a key
+ * name that no consumer uses, in the given ratio. An update that matches no subscription should allocate no more than
+ * the key it is matched with, whatever the number of subscriptions, while an update that is delivered adds the NOTIFY
+ * message passed to the endpoint of its consumer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(NotifyAllocationBenchmark.UPDATES_PER_PUBLISH)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class NotifyAllocationBenchmark
+{
+  /**
+   * The number of updates in a publish.
+   */
+  static final int UPDATES_PER_PUBLISH = 100;
+  private static final int PUBLISH_COUNT = 64;
+
+  /**
+   * The broker handler, simple or indexed.
+   */
+  @Param(
+          {
+            "simple", "indexed"
+          })
+  public String handler;
+
+  /**
+   * The number of consumers, each with one subscription.
+   */
+  @Param(
+          {
+            "100", "1000"
+          })
+  public int subscribers;
+
+  /**
+   * The proportion of updates that are delivered to a consumer.
+   */
+  @Param(
+          {
+            "0.0", "0.1", "1.0"
+          })
+  public double matchRatio;
+
+  private MALContext context;
+  private MALBrokerHandlerImpl brokerHandler;
+  private InMemoryEndpoint endpoint;
+  private MALInteraction publishInteraction;
+  private MALPublishBody[] publishes;
+  private int nextPublish = 0;
+
+  /**
+   * Creates the broker and registers the consumers and the provider.
+   *
+   * @throws MALException On error.
+   * @throws MALInteractionException On error.
+   */
+  @Setup(Level.Trial)
+  public void setup() throws MALException, MALInteractionException
+  {
+    InMemoryTransportFactory.register();
+
+    final IdentifierList domain = new IdentifierList();
+    domain.add(new Identifier("domain"));
+
+    final Map<String, Object> qosProperties = new HashMap<String, Object>();
+    qosProperties.put(BrokerMetrics.CLASS_PROPERTY, "none");
+
+    brokerHandler = "indexed".equals(handler) ? new IndexedBrokerHandler(null) : new SimpleBrokerHandler(null);
+    endpoint = new InMemoryEndpoint(new URI(InMemoryTransportFactory.PROTOCOL + "://"
+            + BenchmarkMessages.BROKER_NAME));
+    context = new MALContextFactoryImpl().createMALContext(null);
+
+    final MALBrokerManager brokerManager = context.createBrokerManager();
+    final MALBroker broker = brokerManager.createBroker(brokerHandler);
+    final MALBrokerBindingImpl binding = (MALBrokerBindingImpl) brokerManager.createBrokerBinding(broker,
+            endpoint, new Blob(new byte[0]), new QoSLevel[]
+            {
+              QoSLevel.BESTEFFORT
+            }, new UInteger(1), qosProperties);
+
+    for (int i = 0; i < subscribers; ++i)
+    {
+      final String consumer = InMemoryTransportFactory.PROTOCOL + "://consumer" + i;
+      final EntityKeyList keys = new EntityKeyList();
+      keys.add(new EntityKey(new Identifier("key" + i), 0L, 0L, 0L));
+
+      final EntityRequestList requests = new EntityRequestList();
+      requests.add(new EntityRequest(null, Boolean.FALSE, Boolean.FALSE, Boolean.FALSE, Boolean.FALSE, keys));
+
+      binding.addSubscriber(consumer);
+      brokerHandler.handleRegister(new BenchmarkMessages.Interaction(
+              BenchmarkMessages.createHeader(consumer, domain, InteractionType.PUBSUB)),
+              new BenchmarkMessages.RegisterBody(new Subscription(new Identifier("sub"), requests)));
+    }
+
+    final EntityKeyList providerKeys = new EntityKeyList();
+    providerKeys.add(new EntityKey(new Identifier("*"), 0L, 0L, 0L));
+    publishInteraction = new BenchmarkMessages.Interaction(BenchmarkMessages.createHeader(
+            InMemoryTransportFactory.PROTOCOL + "://provider", domain, InteractionType.PUBSUB));
+    brokerHandler.handlePublishRegister(publishInteraction,
+            new BenchmarkMessages.PublishRegisterBody(providerKeys));
+
+    // the matching updates are spread evenly over the publishes and the consumers
+    final int matchingPerPublish = (int) Math.round(UPDATES_PER_PUBLISH * matchRatio);
+    int nextConsumer = 0;
+
+    publishes = new MALPublishBody[PUBLISH_COUNT];
+    for (int p = 0; p < PUBLISH_COUNT; ++p)
+    {
+      final UpdateHeaderList headers = new UpdateHeaderList(UPDATES_PER_PUBLISH);
+      final UIntegerList values = new UIntegerList(UPDATES_PER_PUBLISH);
+
+      for (int u = 0; u < UPDATES_PER_PUBLISH; ++u)
+      {
+        final String name;
+
+        if (u < matchingPerPublish)
+        {
+          name = "key" + nextConsumer;
+          nextConsumer = (nextConsumer + 1) % subscribers;
+        }
+        else
+        {
+          name = "unmatched" + u;
+        }
+
+        headers.add(new UpdateHeader(new Time(0L), new URI("provider"), UpdateType.UPDATE,
+                new EntityKey(new Identifier(name), 1L, 1L, 1L)));
+        values.add(new UInteger(u));
+      }
+
+      publishes[p] = new BenchmarkMessages.PublishBody(headers, values);
+    }
+  }
+
+  /**
+   * Closes the MAL context.
+   *
+   * @throws MALException On error.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() throws MALException
+  {
+    context.close();
+  }
+
+  /**
+   * Publishes the next of the generated publishes.
+   *
+   * @return the number of NOTIFY messages sent so far.
+   * @throws MALException On error.
+   * @throws MALInteractionException On error.
+   */
+  @Benchmark
+  public long publish() throws MALException, MALInteractionException
+  {
+    brokerHandler.handlePublish(publishInteraction, publishes[nextPublish]);
+    nextPublish = (nextPublish + 1) % PUBLISH_COUNT;
+
+    return endpoint.getSentCount();
+  }
+}
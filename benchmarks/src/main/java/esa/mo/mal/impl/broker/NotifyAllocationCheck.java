@@ -0,0 +1,138 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.lang.management.ManagementFactory;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALInteractionException;
+
+/**
+ * Checks that the steady state allocation of the broker for an update that matches no subscription stays within a
+ * bound, so that a change that adds allocation to the publish path fails rather than only showing in the figures of
+ * NotifyAllocationBenchmark. It is a program rather than a benchmark and exits with a non zero status if the bound is
+ * exceeded:
+ *
+ * <pre>
+ *   java -cp target/benchmarks.jar esa.mo.mal.impl.broker.NotifyAllocationCheck [bytes per update]
+ * </pre>
+ *
+ * The bytes allocated by the publishing thread are read from the ThreadMXBean of the JVM, which must support thread
+ * allocation counting.
+ */
+public final class NotifyAllocationCheck
+{
+  /**
+   * The default bound, in bytes per update. An unmatched update allocates the key it is matched with, about 160 bytes.
+   */
+  public static final long DEFAULT_MAXIMUM_BYTES_PER_UPDATE = 256;
+  private static final int WARMUP_PUBLISHES = 20000;
+  private static final int MEASURED_PUBLISHES = 5000;
+
+  private NotifyAllocationCheck()
+  {
+  }
+
+  /**
+   * Measures the allocation per unmatched update of both broker handlers.
+   *
+   * @param args The optional bound in bytes per update.
+   * @throws Exception On error.
+   */
+  public static void main(final String[] args) throws Exception
+  {
+    final long bound = (0 < args.length) ? Long.parseLong(args[0]) : DEFAULT_MAXIMUM_BYTES_PER_UPDATE;
+    final com.sun.management.ThreadMXBean threadBean
+            = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    if (!threadBean.isThreadAllocatedMemorySupported())
+    {
+      System.out.println("Thread allocation counting is not supported by this JVM");
+      System.exit(1);
+    }
+
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+
+    int failures = 0;
+
+    for (String handler : new String[]
+    {
+      "simple", "indexed"
+    })
+    {
+      for (int subscribers : new int[]
+      {
+        100, 1000
+      })
+      {
+        final double bytes = measure(threadBean, handler, subscribers);
+        final boolean failed = bound < bytes;
+
+        System.out.println(String.format("%s %-8s subscribers=%5d bytes/update=%6.1f bound=%d",
+                failed ? "FAILED" : "OK    ", handler, subscribers, bytes, bound));
+
+        if (failed)
+        {
+          ++failures;
+        }
+      }
+    }
+
+    if (0 != failures)
+    {
+      System.exit(1);
+    }
+  }
+
+  private static double measure(final com.sun.management.ThreadMXBean threadBean,
+          final String handler,
+          final int subscribers) throws MALException, MALInteractionException
+  {
+    final NotifyAllocationBenchmark benchmark = new NotifyAllocationBenchmark();
+    benchmark.handler = handler;
+    benchmark.subscribers = subscribers;
+    benchmark.matchRatio = 0.0;
+    benchmark.setup();
+
+    try
+    {
+      for (int i = 0; i < WARMUP_PUBLISHES; ++i)
+      {
+        benchmark.publish();
+      }
+
+      final long threadId = Thread.currentThread().getId();
+      final long before = threadBean.getThreadAllocatedBytes(threadId);
+
+      for (int i = 0; i < MEASURED_PUBLISHES; ++i)
+      {
+        benchmark.publish();
+      }
+
+      final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+      return allocated / (double) (MEASURED_PUBLISHES * NotifyAllocationBenchmark.UPDATES_PER_PUBLISH);
+    }
+    finally
+    {
+      benchmark.tearDown();
+    }
+  }
+}
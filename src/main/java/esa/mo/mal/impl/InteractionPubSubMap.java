@@ -37,15 +37,19 @@ import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
  */
 class InteractionPubSubMap
 {
-  private final Map<StringPair, MALPublishInteractionListener> publisherMap
-          = new HashMap<StringPair, MALPublishInteractionListener>();
+  private final Map<ProviderKey, MALPublishInteractionListener> publisherMap
+          = new HashMap<ProviderKey, MALPublishInteractionListener>();
   private final Map<String, Map<String, MALInteractionListener>> errorMap
           = new HashMap<String, Map<String, MALInteractionListener>>();
   private final Map<StringPair, MALInteractionListener> notifyMap = new HashMap<StringPair, MALInteractionListener>();
 
   void registerPublishListener(final MessageDetails details, final MALPublishInteractionListener listener)
   {
-    final StringPair id = new StringPair(details.uriFrom.getValue(), createProviderKey(details));
+    final ProviderKey id = new ProviderKey(details.uriFrom.getValue(),
+            details.sessionType,
+            details.sessionName,
+            details.networkZone,
+            details.domain);
 
     synchronized (publisherMap)
     {
@@ -57,7 +61,7 @@ class InteractionPubSubMap
 
   MALPublishInteractionListener getPublishListener(final URI uri, final MALMessageHeader mshHdr)
   {
-    final StringPair id = new StringPair(uri.getValue(), createProviderKey(mshHdr));
+    final ProviderKey id = new ProviderKey(uri.getValue(), mshHdr);
     MALPublishInteractionListener list;
 
     synchronized (publisherMap)
@@ -78,7 +82,7 @@ class InteractionPubSubMap
     synchronized (publisherMap)
     {
       MALContextFactoryImpl.LOGGER.fine("Starting dump of publisher map");
-      for (StringPair e : publisherMap.keySet())
+      for (ProviderKey e : publisherMap.keySet())
       {
         MALContextFactoryImpl.LOGGER.log(Level.FINE, "  {0}", e);
       }
@@ -104,7 +108,11 @@ class InteractionPubSubMap
 
   MALPublishInteractionListener getPublishListenerAndRemove(final URI uri, final MessageDetails details)
   {
-    final StringPair id = new StringPair(uri.getValue(), createProviderKey(details));
+    final ProviderKey id = new ProviderKey(uri.getValue(),
+            details.sessionType,
+            details.sessionName,
+            details.networkZone,
+            details.domain);
     MALPublishInteractionListener list;
 
     synchronized (publisherMap)
@@ -236,34 +244,4 @@ class InteractionPubSubMap
       }
     }
   }
-
-  private static String createProviderKey(final MessageDetails details)
-  {
-    final StringBuilder buf = new StringBuilder();
-
-    buf.append(details.sessionType);
-    buf.append(':');
-    buf.append(details.sessionName);
-    buf.append(':');
-    buf.append(details.networkZone);
-    buf.append(':');
-    buf.append(details.domain);
-
-    return buf.toString();
-  }
-
-  private static String createProviderKey(final MALMessageHeader details)
-  {
-    final StringBuilder buf = new StringBuilder();
-
-    buf.append(details.getSession());
-    buf.append(':');
-    buf.append(details.getSessionName());
-    buf.append(':');
-    buf.append(details.getNetworkZone());
-    buf.append(':');
-    buf.append(details.getDomain());
-
-    return buf.toString();
-  }
 }
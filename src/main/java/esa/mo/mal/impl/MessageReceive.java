@@ -21,6 +21,7 @@
 package esa.mo.mal.impl;
 
 import esa.mo.mal.impl.broker.MALBrokerBindingImpl;
+import esa.mo.mal.impl.broker.MALBrokerHandlerImpl;
 import esa.mo.mal.impl.patterns.InvokeInteractionImpl;
 import esa.mo.mal.impl.patterns.ProgressInteractionImpl;
 import esa.mo.mal.impl.patterns.PubSubInteractionImpl;
@@ -443,6 +444,12 @@ public class MessageReceive implements MALMessageListener
                 interaction.getOperation(),
                 interaction.getQoSProperties(),
                 (Object[]) null);
+
+        if (brokerHandler.getBrokerImpl().getHandler() instanceof MALBrokerHandlerImpl)
+        {
+          ((MALBrokerHandlerImpl) brokerHandler.getBrokerImpl().getHandler())
+                  .sendRegisterSnapshot(interaction, (MALRegisterBody) msg.getBody());
+        }
       }
       else
       {
@@ -0,0 +1,116 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl;
+
+import esa.mo.mal.impl.util.InternedDomain;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.SessionType;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+
+/**
+ * Immutable key that identifies a provider of a PubSub interaction, which is its URI and the session, network zone
+ * and domain it publishes to. The hash code is calculated once on construction.
+ */
+public final class ProviderKey
+{
+  private static final int HASH_MAGIC_NUMBER = 79;
+  private final String uri;
+  private final SessionType sessionType;
+  private final Identifier sessionName;
+  private final Identifier networkZone;
+  private final InternedDomain domain;
+  private final int hash;
+
+  /**
+   * Constructor.
+   *
+   * @param uri The URI of the provider.
+   * @param sessionType The session type.
+   * @param sessionName The session name.
+   * @param networkZone The network zone.
+   * @param domain The domain.
+   */
+  public ProviderKey(final String uri,
+          final SessionType sessionType,
+          final Identifier sessionName,
+          final Identifier networkZone,
+          final IdentifierList domain)
+  {
+    this.uri = uri;
+    this.sessionType = sessionType;
+    this.sessionName = sessionName;
+    this.networkZone = networkZone;
+    this.domain = InternedDomain.intern(domain);
+
+    int h = 3;
+    h = HASH_MAGIC_NUMBER * h + (null != uri ? uri.hashCode() : 0);
+    h = HASH_MAGIC_NUMBER * h + (null != sessionType ? sessionType.hashCode() : 0);
+    h = HASH_MAGIC_NUMBER * h + (null != sessionName ? sessionName.hashCode() : 0);
+    h = HASH_MAGIC_NUMBER * h + (null != networkZone ? networkZone.hashCode() : 0);
+    h = HASH_MAGIC_NUMBER * h + (null != this.domain ? this.domain.hashCode() : 0);
+    this.hash = h;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param uri The URI of the provider.
+   * @param hdr The message header that holds the session, network zone and domain.
+   */
+  public ProviderKey(final String uri, final MALMessageHeader hdr)
+  {
+    this(uri, hdr.getSession(), hdr.getSessionName(), hdr.getNetworkZone(), hdr.getDomain());
+  }
+
+  @Override
+  public boolean equals(final Object obj)
+  {
+    if (this == obj)
+    {
+      return true;
+    }
+    if (!(obj instanceof ProviderKey))
+    {
+      return false;
+    }
+
+    final ProviderKey other = (ProviderKey) obj;
+    return (hash == other.hash)
+            && (domain == other.domain)
+            && (uri == null ? other.uri == null : uri.equals(other.uri))
+            && (sessionType == null ? other.sessionType == null : sessionType.equals(other.sessionType))
+            && (sessionName == null ? other.sessionName == null : sessionName.equals(other.sessionName))
+            && (networkZone == null ? other.networkZone == null : networkZone.equals(other.networkZone));
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return hash;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "(" + uri + " : " + sessionType + ':' + sessionName + ':' + networkZone + ':' + domain + ")";
+  }
+}
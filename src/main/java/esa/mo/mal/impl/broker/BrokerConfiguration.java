@@ -0,0 +1,128 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+
+/**
+ * The configuration of a broker handler that applies to all of its bindings, read once from the QoS properties of the
+ * first binding to be initialised, and from the system properties.
+ *
+ * The dispatcher, journal, metrics, shards and pipeline of the handler are created from the same properties, so a
+ * broker is configured per handler rather than per binding. The broker properties of a later binding are not used and
+ * a warning is logged if they differ from those of the first.
+ */
+final class BrokerConfiguration
+{
+  private final Map qosProperties;
+  private final Map<String, Object> brokerProperties;
+  private final boolean passThrough;
+  private final boolean lastValueCache;
+  private final int lastValueCacheSize;
+
+  /**
+   * Constructor.
+   *
+   * @param qosProperties The QoS properties of the first broker binding, may be null.
+   */
+  BrokerConfiguration(final Map qosProperties)
+  {
+    this.qosProperties = qosProperties;
+    this.brokerProperties = BrokerProperties.getBrokerProperties(qosProperties);
+    this.passThrough = BrokerProperties.getBooleanProperty(qosProperties,
+            PublishedUpdates.PASS_THROUGH_PROPERTY, false);
+    this.lastValueCache = BrokerProperties.getBooleanProperty(qosProperties,
+            LastValueCache.ENABLED_PROPERTY, false);
+    this.lastValueCacheSize = BrokerProperties.getIntProperty(qosProperties,
+            LastValueCache.SIZE_PROPERTY, LastValueCache.DEFAULT_SIZE);
+  }
+
+  /**
+   * Returns true if the update lists of a publish are passed through to the notify messages in their encoded form.
+   *
+   * @return True if the updates are passed through.
+   */
+  boolean isPassThrough()
+  {
+    return passThrough;
+  }
+
+  /**
+   * Creates the last value cache of a broker key.
+   *
+   * @return The cache, or null if the last value cache is not enabled.
+   */
+  LastValueCache createLastValueCache()
+  {
+    return lastValueCache ? new LastValueCache(lastValueCacheSize) : null;
+  }
+
+  /**
+   * Checks the QoS properties of a later binding against those the broker was configured from, logging a warning
+   * naming the broker properties that differ as they are not used.
+   *
+   * @param binding The URI of the binding, may be null.
+   * @param bindingProperties The QoS properties of the binding, may be null.
+   */
+  void checkBinding(final Object binding, final Map bindingProperties)
+  {
+    if (bindingProperties == qosProperties)
+    {
+      // the binding the broker was configured from
+      return;
+    }
+
+    final Map<String, Object> other = BrokerProperties.getBrokerProperties(bindingProperties);
+
+    if (!brokerProperties.equals(other))
+    {
+      final Set<String> names = new TreeSet<String>(brokerProperties.keySet());
+      names.addAll(other.keySet());
+
+      final List<String> differ = new ArrayList<String>();
+
+      for (String name : names)
+      {
+        if (!equal(brokerProperties.get(name), other.get(name)))
+        {
+          differ.add(name);
+        }
+      }
+
+      MALBrokerImpl.LOGGER.log(Level.WARNING,
+              "Broker binding {0} is configured from the QoS properties of the first binding of its handler, "
+              + "ignoring the differing properties : {1}", new Object[]
+              {
+                binding, differ
+              });
+    }
+  }
+
+  private static boolean equal(final Object lhs, final Object rhs)
+  {
+    return (null == lhs) ? (null == rhs) : lhs.equals(rhs);
+  }
+}
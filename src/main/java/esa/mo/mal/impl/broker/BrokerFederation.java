@@ -0,0 +1,95 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.broker.key.BrokerKey;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The federation links of a broker handler. Tells the handler which of its consumers are federated brokers, whose
+ * subscriptions are not forwarded and who are not sent the updates received from other federated brokers, and
+ * forwards the changes to the subscriptions of the local consumers of a broker key to the links that serve it.
+ */
+final class BrokerFederation
+{
+  private final List<FederationLink> links = new CopyOnWriteArrayList<FederationLink>();
+
+  /**
+   * Adds a link.
+   *
+   * @param link The link.
+   */
+  void add(final FederationLink link)
+  {
+    links.add(link);
+  }
+
+  /**
+   * Removes a link.
+   *
+   * @param link The link.
+   */
+  void remove(final FederationLink link)
+  {
+    links.remove(link);
+  }
+
+  /**
+   * Returns true if a consumer of a broker key is the link of a federated broker, identified by the URI of the
+   * endpoint given for it when the local link to that broker was opened.
+   *
+   * @param key The broker key.
+   * @param consumerUri The URI of the consumer.
+   * @return True if the consumer is a federated broker.
+   */
+  boolean isPeer(final BrokerKey key, final String consumerUri)
+  {
+    for (FederationLink link : links)
+    {
+      if (link.serves(key) && link.isPeerLink(consumerUri))
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Forwards the current subscriptions of the local consumers of a broker key to the links that serve it.
+   *
+   * Must be called without holding the lock of the broker key as the links send to their peers, and never for the
+   * changes of a link so that two brokers registering with each other do not wait on each other's links.
+   *
+   * @param key The broker key.
+   */
+  void refresh(final BrokerKey key)
+  {
+    for (FederationLink link : links)
+    {
+      if (link.serves(key))
+      {
+        link.refresh(key);
+      }
+    }
+  }
+}
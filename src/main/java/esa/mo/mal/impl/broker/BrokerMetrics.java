@@ -0,0 +1,95 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.broker.key.BrokerKey;
+
+/**
+ * Receives the measurements of the fan-out of a broker handler. The implementation is selected with the
+ * org.ccsds.moims.mo.mal.broker.metrics.class property, which names a class with a public no argument constructor, the
+ * default being {@link JmxBrokerMetrics}. Setting the property to none disables the measurements.
+ *
+ * The methods are called on the publishing and sending threads, concurrently with each other, and so must be thread
+ * safe and must not block.
+ */
+public interface BrokerMetrics
+{
+  /**
+   * Property that selects the metrics implementation.
+   */
+  String CLASS_PROPERTY = "org.ccsds.moims.mo.mal.broker.metrics.class";
+
+  /**
+   * Called once the broker handler is configured, before any other method.
+   *
+   * @param handler The broker handler, from which its current state can be read.
+   */
+  void open(MALBrokerHandlerImpl handler);
+
+  /**
+   * Called for each publish once its notify messages have been created.
+   *
+   * @param key The broker key of the publish.
+   * @param updateCount The number of updates in the publish.
+   * @param matchCount The number of updates in the created notify messages.
+   * @param createNotifyNanos The time taken to create the notify messages, in nanoseconds.
+   */
+  void published(BrokerKey key, int updateCount, int matchCount, long createNotifyNanos);
+
+  /**
+   * Called for each set of notify messages sent to a consumer.
+   *
+   * @param key The broker key of the consumer.
+   * @param uriTo The URI of the consumer.
+   * @param messageCount The number of notify messages sent.
+   * @param sendNotifyNanos The time taken to send the messages, in nanoseconds.
+   */
+  void notifySent(BrokerKey key, String uriTo, int messageCount, long sendNotifyNanos);
+
+  /**
+   * Called for each set of notify messages that could not be sent to a consumer.
+   *
+   * @param key The broker key of the consumer.
+   * @param uriTo The URI of the consumer.
+   */
+  void notifyFailed(BrokerKey key, String uriTo);
+
+  /**
+   * Called when a consumer has been added to a broker key, before any notify message is sent to it.
+   *
+   * @param key The broker key of the consumer.
+   * @param uriTo The URI of the consumer.
+   */
+  void consumerAdded(BrokerKey key, String uriTo);
+
+  /**
+   * Called when a consumer has been removed from a broker key.
+   *
+   * @param key The broker key of the consumer.
+   * @param uriTo The URI of the consumer.
+   */
+  void consumerRemoved(BrokerKey key, String uriTo);
+
+  /**
+   * Called when the broker handler is closed.
+   */
+  void close();
+}
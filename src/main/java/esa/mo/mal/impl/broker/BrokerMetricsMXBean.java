@@ -0,0 +1,113 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.util.Map;
+
+/**
+ * Management interface of the default broker metrics. Times are in nanoseconds, rates are averaged since the metrics
+ * were created or last reset. A distribution is reported as its count, mean, 50th, 90th and 99th percentiles and
+ * maximum, the percentiles being accurate to within a factor of two.
+ */
+public interface BrokerMetricsMXBean
+{
+  /**
+   * Returns the number of publishes.
+   *
+   * @return the publish count.
+   */
+  long getPublishCount();
+
+  /**
+   * Returns the average number of publishes per second.
+   *
+   * @return the publish rate.
+   */
+  double getPublishRate();
+
+  /**
+   * Returns the number of published updates.
+   *
+   * @return the update count.
+   */
+  long getUpdateCount();
+
+  /**
+   * Returns the distribution of the number of updates in a publish.
+   *
+   * @return the distribution.
+   */
+  Map<String, Long> getUpdatesPerPublish();
+
+  /**
+   * Returns the number of updates sent in notify messages.
+   *
+   * @return the match count.
+   */
+  long getMatchCount();
+
+  /**
+   * Returns the average number of notify updates generated by a published update.
+   *
+   * @return the matches per update.
+   */
+  double getMatchesPerUpdate();
+
+  /**
+   * Returns the distribution of the time taken to create the notify messages of a publish.
+   *
+   * @return the distribution.
+   */
+  Map<String, Long> getCreateNotifyTime();
+
+  /**
+   * Returns the distribution of the time taken to send a set of notify messages to a consumer.
+   *
+   * @return the distribution.
+   */
+  Map<String, Long> getSendNotifyTime();
+
+  /**
+   * Returns the number of notify messages sent to each consumer, keyed by consumer and broker.
+   *
+   * @return the counts.
+   */
+  Map<String, Long> getConsumerNotifyCounts();
+
+  /**
+   * Returns the number of failed sends to each consumer, keyed by consumer and broker.
+   *
+   * @return the counts.
+   */
+  Map<String, Long> getConsumerErrorCounts();
+
+  /**
+   * Returns the number of subscriptions registered with each broker.
+   *
+   * @return the counts.
+   */
+  Map<String, Integer> getSubscriptionCounts();
+
+  /**
+   * Clears the counters and distributions.
+   */
+  void reset();
+}
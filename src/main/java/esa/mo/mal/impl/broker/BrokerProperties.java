@@ -0,0 +1,155 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+/**
+ * Helper for reading the configuration properties of the broker. A property is taken from the QoS properties of the
+ * broker binding if present, otherwise from the system properties.
+ */
+final class BrokerProperties
+{
+  /**
+   * The prefix of the names of the broker properties.
+   */
+  static final String PREFIX = "org.ccsds.moims.mo.mal.broker.";
+
+  private BrokerProperties()
+  {
+  }
+
+  /**
+   * Returns the value of an integer property.
+   *
+   * @param qosProperties The QoS properties of the broker binding, may be null.
+   * @param name The property name.
+   * @param defaultValue The value to return if the property is not set or is invalid.
+   * @return The property value.
+   */
+  static int getIntProperty(final Map qosProperties, final String name, final int defaultValue)
+  {
+    final Object value = getProperty(qosProperties, name);
+
+    if (null != value)
+    {
+      try
+      {
+        return Integer.parseInt(value.toString().trim());
+      }
+      catch (NumberFormatException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Invalid value for broker property {0} : {1}", new Object[]
+        {
+          name, value
+        });
+      }
+    }
+
+    return defaultValue;
+  }
+
+  /**
+   * Returns the value of a boolean property.
+   *
+   * @param qosProperties The QoS properties of the broker binding, may be null.
+   * @param name The property name.
+   * @param defaultValue The value to return if the property is not set.
+   * @return The property value.
+   */
+  static boolean getBooleanProperty(final Map qosProperties, final String name, final boolean defaultValue)
+  {
+    final Object value = getProperty(qosProperties, name);
+
+    if (null != value)
+    {
+      return Boolean.parseBoolean(value.toString().trim());
+    }
+
+    return defaultValue;
+  }
+
+  /**
+   * Returns the value of a string property.
+   *
+   * @param qosProperties The QoS properties of the broker binding, may be null.
+   * @param name The property name.
+   * @param defaultValue The value to return if the property is not set.
+   * @return The property value.
+   */
+  static String getStringProperty(final Map qosProperties, final String name, final String defaultValue)
+  {
+    final Object value = getProperty(qosProperties, name);
+
+    if (null != value)
+    {
+      return value.toString();
+    }
+
+    return defaultValue;
+  }
+
+  /**
+   * Returns the broker properties set in the QoS properties of a broker binding, those whose name starts with
+   * {@link #PREFIX}.
+   *
+   * @param qosProperties The QoS properties of the broker binding, may be null.
+   * @return The broker properties, sorted by name.
+   */
+  static Map<String, Object> getBrokerProperties(final Map qosProperties)
+  {
+    final Map<String, Object> rv = new TreeMap<String, Object>();
+
+    if (null != qosProperties)
+    {
+      for (Object entry : qosProperties.entrySet())
+      {
+        final Map.Entry property = (Map.Entry) entry;
+
+        if ((property.getKey() instanceof String) && ((String) property.getKey()).startsWith(PREFIX))
+        {
+          rv.put((String) property.getKey(), property.getValue());
+        }
+      }
+    }
+
+    return rv;
+  }
+
+  private static Object getProperty(final Map qosProperties, final String name)
+  {
+    Object value = null;
+
+    if (null != qosProperties)
+    {
+      value = qosProperties.get(name);
+    }
+
+    if (null == value)
+    {
+      value = System.getProperty(name);
+    }
+
+    return value;
+  }
+}
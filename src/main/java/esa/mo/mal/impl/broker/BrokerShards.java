@@ -0,0 +1,370 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.broker.key.BrokerKey;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALInteractionException;
+
+/**
+ * Runs the work of a broker on a fixed number of shards, each a single thread that owns a disjoint set of broker keys.
+ * A broker key is always handled by the same shard, chosen from its hash, so the registrations and publishes of a key
+ * are processed one at a time in the order they were received while those of other keys are processed in parallel on
+ * the other shards.
+ *
+ * Each shard is fed by its own multiple producer, single consumer queue of tasks. A task is linked into the queue with
+ * a single atomic exchange so the transport threads placing work never wait on each other or on the shard, except
+ * that a producer waits while the queue of the shard holds more than its size. An idle shard spins briefly before
+ * parking until a task is queued.
+ */
+final class BrokerShards
+{
+  /**
+   * Property that sets the number of shards. Zero, the default, disables the shards so that the broker is run on the
+   * transport threads.
+   */
+  public static final String COUNT_PROPERTY = "org.ccsds.moims.mo.mal.broker.shards";
+  /**
+   * Property that sets the number of tasks each shard may hold before a producer waits.
+   */
+  public static final String QUEUE_SIZE_PROPERTY = "org.ccsds.moims.mo.mal.broker.shards.queueSize";
+  private static final int DEFAULT_QUEUE_SIZE = 1024;
+  private static final int SPIN_TRIES = 100;
+  private static final int YIELD_TRIES = 200;
+  private static final long FULL_PARK_NANOS = 10000;
+  private static final long WAIT_PARK_NANOS = 1000000;
+  private final Shard[] shards;
+  private volatile boolean running = true;
+
+  /**
+   * Constructor, starts the shard threads.
+   *
+   * @param count The number of shards.
+   * @param queueSize The number of tasks each shard may hold.
+   */
+  BrokerShards(final int count, final int queueSize)
+  {
+    this.shards = new Shard[count];
+
+    for (int i = 0; i < count; ++i)
+    {
+      shards[i] = new Shard(i, queueSize);
+    }
+
+    for (Shard shard : shards)
+    {
+      shard.start();
+    }
+
+    MALBrokerImpl.LOGGER.log(Level.FINE, "Created {0} broker shards", count);
+  }
+
+  /**
+   * Returns the number of shards from the QoS properties of the broker binding.
+   *
+   * @param qosProperties The QoS properties of the broker binding, may be null.
+   * @return the number of shards, zero if the shards are disabled.
+   */
+  static int getCount(final Map qosProperties)
+  {
+    return Math.max(0, BrokerProperties.getIntProperty(qosProperties, COUNT_PROPERTY, 0));
+  }
+
+  /**
+   * Returns the size of the queue of each shard from the QoS properties of the broker binding.
+   *
+   * @param qosProperties The QoS properties of the broker binding, may be null.
+   * @return the queue size.
+   */
+  static int getQueueSize(final Map qosProperties)
+  {
+    return Math.max(1, BrokerProperties.getIntProperty(qosProperties, QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE));
+  }
+
+  /**
+   * Queues a task on the shard of a broker key and returns without waiting for it to run. An error raised by the task
+   * is logged. If called from the thread of that shard, for example by a transport that delivers locally on the
+   * calling thread, the task is run directly as the shard would otherwise wait on its own queue.
+   *
+   * @param key The broker key.
+   * @param task The task.
+   * @throws MALException If the shards have been closed.
+   */
+  void execute(final BrokerKey key, final Task task) throws MALException
+  {
+    final Shard shard = shardOf(key);
+
+    if (Thread.currentThread() == shard.thread)
+    {
+      shard.runTask(task);
+    }
+    else
+    {
+      shard.offer(task);
+    }
+  }
+
+  /**
+   * Runs a task on the shard of a broker key and waits for it to complete, raising any error of the task. If called
+   * from the thread of that shard the task is run directly. A task must not wait on a shard that may in turn be
+   * waiting on its own.
+   *
+   * @param key The broker key.
+   * @param task The task.
+   * @throws MALInteractionException If raised by the task.
+   * @throws MALException If raised by the task or the shards have been closed.
+   */
+  void executeAndWait(final BrokerKey key, final Task task) throws MALInteractionException, MALException
+  {
+    final Shard shard = shardOf(key);
+
+    if (Thread.currentThread() == shard.thread)
+    {
+      task.run();
+      return;
+    }
+
+    task.waiter = Thread.currentThread();
+    shard.offer(task);
+
+    while (!task.done)
+    {
+      if (!running)
+      {
+        throw new MALException("Broker shards are closed");
+      }
+
+      LockSupport.parkNanos(task, WAIT_PARK_NANOS);
+    }
+
+    if (task.error instanceof MALInteractionException)
+    {
+      throw (MALInteractionException) task.error;
+    }
+    else if (task.error instanceof MALException)
+    {
+      throw (MALException) task.error;
+    }
+    else if (task.error instanceof RuntimeException)
+    {
+      throw (RuntimeException) task.error;
+    }
+  }
+
+  /**
+   * Stops the shard threads, any tasks still queued are discarded.
+   */
+  void close()
+  {
+    running = false;
+
+    for (Shard shard : shards)
+    {
+      LockSupport.unpark(shard.thread);
+    }
+  }
+
+  private Shard shardOf(final BrokerKey key)
+  {
+    // spread the hash as broker keys of one broker often differ only in the low bits of the session
+    final int hash = key.hashCode();
+
+    return shards[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.length];
+  }
+
+  /**
+   * A unit of work run on a shard. A task is linked directly into the queue of its shard so can only be queued once.
+   */
+  abstract static class Task
+  {
+    private volatile Task next = null;
+    private volatile boolean done = false;
+    private Thread waiter = null;
+    private Exception error = null;
+
+    /**
+     * Runs the task on the thread of its shard.
+     *
+     * @throws MALInteractionException On error.
+     * @throws MALException On error.
+     */
+    abstract void run() throws MALInteractionException, MALException;
+  }
+
+  private final class Shard implements Runnable
+  {
+    private final int index;
+    private final int capacity;
+    private final AtomicReference<Task> tail;
+    private final AtomicInteger size = new AtomicInteger(0);
+    private Task head;
+    private volatile Thread thread = null;
+    private volatile boolean waiting = false;
+
+    private Shard(final int index, final int capacity)
+    {
+      this.index = index;
+      this.capacity = capacity;
+
+      // the queue always holds the last task taken from it, initially a placeholder that is never run
+      this.head = new Task()
+      {
+        @Override
+        void run()
+        {
+          // placeholder
+        }
+      };
+      this.tail = new AtomicReference<Task>(head);
+    }
+
+    private void start()
+    {
+      final Thread t = new Thread(this, "MALBrokerShard-" + index);
+      t.setDaemon(true);
+      thread = t;
+      t.start();
+    }
+
+    private void offer(final Task task) throws MALException
+    {
+      int tries = 0;
+
+      while (size.get() >= capacity)
+      {
+        if (!running)
+        {
+          throw new MALException("Broker shards are closed");
+        }
+
+        if (YIELD_TRIES > tries++)
+        {
+          Thread.yield();
+        }
+        else
+        {
+          LockSupport.parkNanos(this, FULL_PARK_NANOS);
+        }
+      }
+
+      if (!running)
+      {
+        throw new MALException("Broker shards are closed");
+      }
+
+      size.incrementAndGet();
+
+      // the task is visible to the shard once linked from the previous tail, which may be just after the exchange
+      tail.getAndSet(task).next = task;
+
+      if (waiting)
+      {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    private Task poll()
+    {
+      final Task rv = head.next;
+
+      if (null != rv)
+      {
+        head = rv;
+        size.decrementAndGet();
+      }
+
+      return rv;
+    }
+
+    @Override
+    public void run()
+    {
+      int tries = 0;
+
+      while (running)
+      {
+        final Task task = poll();
+
+        if (null != task)
+        {
+          runTask(task);
+          tries = 0;
+        }
+        else if (SPIN_TRIES > tries++)
+        {
+          // spin briefly as the next task is usually close behind
+        }
+        else
+        {
+          // the flag is set before checking again so that a task queued meanwhile is not missed
+          waiting = true;
+
+          if (running && (null == head.next))
+          {
+            LockSupport.park(this);
+          }
+
+          waiting = false;
+        }
+      }
+    }
+
+    private void runTask(final Task task)
+    {
+      try
+      {
+        task.run();
+      }
+      catch (MALInteractionException ex)
+      {
+        task.error = ex;
+      }
+      catch (MALException ex)
+      {
+        task.error = ex;
+      }
+      catch (RuntimeException ex)
+      {
+        task.error = ex;
+      }
+
+      final Thread waiter = task.waiter;
+
+      if (null == waiter)
+      {
+        if (null != task.error)
+        {
+          MALBrokerImpl.LOGGER.log(Level.WARNING, "Error in broker shard " + index, task.error);
+        }
+      }
+      else
+      {
+        task.done = true;
+        LockSupport.unpark(waiter);
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.broker.NotifyMessageSet.NotifyMessage;
+import esa.mo.mal.impl.util.InternedDomain;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.ccsds.moims.mo.mal.structures.EntityKey;
+import org.ccsds.moims.mo.mal.structures.UpdateHeader;
+import org.ccsds.moims.mo.mal.structures.UpdateType;
+
+/**
+ * Index of the updates waiting in an outbound queue, keyed by subscription and entity key, that allows a newer update
+ * to replace a queued one in place. Only updates of type UPDATE or MODIFICATION are replaced, a queued CREATION or
+ * DELETION is never conflated away and, as the index only holds the newest queued update of each key, an update queued
+ * after one of them is never moved in front of it.
+ *
+ * The index is not thread safe, it is guarded by the lock of its queue.
+ */
+final class ConflationIndex
+{
+  private final Map<Key, Slot> lastValues = new HashMap<Key, Slot>();
+  private long conflatedCount = 0;
+
+  /**
+   * Replaces the queued updates of the same keys with the updates of a new set of notify messages. The replaced updates
+   * are removed from the new set, as are any messages left empty.
+   *
+   * @param notifyMessageSet The new messages.
+   */
+  void conflate(final NotifyMessageSet notifyMessageSet)
+  {
+    // keys that keep an update in the new set, later updates of them must stay behind it
+    final Set<Key> retained = new HashSet<Key>();
+    final Iterator<NotifyMessage> it = notifyMessageSet.messages.iterator();
+
+    while (it.hasNext())
+    {
+      final NotifyMessage msg = it.next();
+      final InternedDomain domain = InternedDomain.intern(msg.domain);
+      int i = 0;
+
+      while (i < msg.updateHeaderList.size())
+      {
+        final UpdateHeader updateHeader = msg.updateHeaderList.get(i);
+        final Key key = new Key(msg, domain, updateHeader.getKey());
+        final Slot slot = retained.contains(key) ? null : lastValues.get(key);
+
+        if ((null != slot) && isConflatable(updateHeader) && isConflatable(slot.msg.updateHeaderList.get(slot.index)))
+        {
+          replace(slot, msg, i);
+          ++conflatedCount;
+        }
+        else
+        {
+          retained.add(key);
+          ++i;
+        }
+      }
+
+      if (msg.updateHeaderList.isEmpty())
+      {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Adds the updates of a queued message to the index.
+   *
+   * @param owner The queued set holding the message.
+   * @param msg The message.
+   * @param from The index of the first update to add.
+   * @param keys The keys indexed for the owner, added to.
+   */
+  void index(final Object owner, final NotifyMessage msg, final int from, final List<Object> keys)
+  {
+    final InternedDomain domain = InternedDomain.intern(msg.domain);
+
+    for (int i = from; i < msg.updateHeaderList.size(); ++i)
+    {
+      final Key key = new Key(msg, domain, msg.updateHeaderList.get(i).getKey());
+      lastValues.put(key, new Slot(owner, msg, i));
+      keys.add(key);
+    }
+  }
+
+  /**
+   * Removes the updates of a queued set from the index once it has left the queue.
+   *
+   * @param owner The queued set.
+   * @param keys The keys indexed for the owner.
+   */
+  void remove(final Object owner, final List<Object> keys)
+  {
+    for (Object key : keys)
+    {
+      final Slot slot = lastValues.get(key);
+
+      if ((null != slot) && (owner == slot.owner))
+      {
+        lastValues.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Empties the index.
+   */
+  void clear()
+  {
+    lastValues.clear();
+  }
+
+  /**
+   * Returns the number of updates replaced by a newer update.
+   *
+   * @return the conflated count.
+   */
+  long getConflatedCount()
+  {
+    return conflatedCount;
+  }
+
+  private static void replace(final Slot slot, final NotifyMessage msg, final int index)
+  {
+    slot.msg.updateHeaderList.set(slot.index, msg.updateHeaderList.remove(index));
+
+    if ((null != slot.msg.updateList) && (null != msg.updateList))
+    {
+      for (int i = 0; i < msg.updateList.length; i++)
+      {
+        if ((null != slot.msg.updateList[i]) && (null != msg.updateList[i]))
+        {
+          slot.msg.updateList[i].set(slot.index, msg.updateList[i].remove(index));
+        }
+      }
+    }
+  }
+
+  private static boolean isConflatable(final UpdateHeader updateHeader)
+  {
+    final UpdateType updateType = updateHeader.getUpdateType();
+
+    return UpdateType.UPDATE.equals(updateType) || UpdateType.MODIFICATION.equals(updateType);
+  }
+
+  private static boolean equal(final Object lhs, final Object rhs)
+  {
+    return (lhs == null) ? (rhs == null) : lhs.equals(rhs);
+  }
+
+  /**
+   * The position of the newest queued update of a key.
+   */
+  private static final class Slot
+  {
+    private final Object owner;
+    private final NotifyMessage msg;
+    private final int index;
+
+    private Slot(final Object owner, final NotifyMessage msg, final int index)
+    {
+      this.owner = owner;
+      this.msg = msg;
+      this.index = index;
+    }
+  }
+
+  /**
+   * The subscription, message routing and entity key of an update.
+   */
+  private static final class Key
+  {
+    private static final int HASH_MAGIC_NUMBER = 47;
+    private final Object subscriptionId;
+    private final InternedDomain domain;
+    private final Object networkZone;
+    private final Object area;
+    private final Object service;
+    private final Object operation;
+    private final EntityKey entityKey;
+    private final int hash;
+
+    private Key(final NotifyMessage msg, final InternedDomain domain, final EntityKey entityKey)
+    {
+      this.subscriptionId = msg.subscriptionId;
+      this.domain = domain;
+      this.networkZone = msg.networkZone;
+      this.area = msg.area;
+      this.service = msg.service;
+      this.operation = msg.operation;
+      this.entityKey = entityKey;
+
+      int h = 7;
+      h = HASH_MAGIC_NUMBER * h + (null == subscriptionId ? 0 : subscriptionId.hashCode());
+      h = HASH_MAGIC_NUMBER * h + (null == domain ? 0 : domain.hashCode());
+      h = HASH_MAGIC_NUMBER * h + (null == operation ? 0 : operation.hashCode());
+      h = HASH_MAGIC_NUMBER * h + (null == entityKey ? 0 : entityKey.hashCode());
+      this.hash = h;
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+      if (this == obj)
+      {
+        return true;
+      }
+
+      if (!(obj instanceof Key))
+      {
+        return false;
+      }
+
+      final Key other = (Key) obj;
+
+      return (hash == other.hash)
+              && (domain == other.domain)
+              && equal(subscriptionId, other.subscriptionId)
+              && equal(networkZone, other.networkZone)
+              && equal(area, other.area)
+              && equal(service, other.service)
+              && equal(operation, other.operation)
+              && equal(entityKey, other.entityKey);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,272 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALInteractionException;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+
+/**
+ * Hands the notify messages of a consumer on to be sent, in order, around its last value snapshots and throttled
+ * subscriptions.
+ *
+ * The messages of a consumer that is being sent a snapshot are held back by its {@link SnapshotGate} and sent once
+ * the snapshot has been. The updates of its throttled subscriptions are held back by its {@link SubscriptionThrottle}
+ * and sent by the timer of the {@link NotifyDispatcher} once their interval has expired, the other messages are handed
+ * on under the send lock of the throttle so that they are ordered with the held updates.
+ *
+ * @param <S> The type of the state of a broker key, passed back to the sender.
+ */
+final class ConsumerDelivery<S>
+{
+  private final NotifyDispatcher dispatcher;
+  private final Sender<S> sender;
+
+  /**
+   * Constructor.
+   *
+   * @param dispatcher The notify dispatcher, whose timer sends the held updates of throttled subscriptions.
+   * @param sender Sends the messages of a consumer.
+   */
+  ConsumerDelivery(final NotifyDispatcher dispatcher, final Sender<S> sender)
+  {
+    this.dispatcher = dispatcher;
+    this.sender = sender;
+  }
+
+  /**
+   * Hands on the notify messages of a publish to a consumer.
+   *
+   * @param state The state of the broker key.
+   * @param ent The consumer, may be null if it is no longer registered.
+   * @param notifyMessageSet The messages.
+   * @throws MALInteractionException On error.
+   * @throws MALException On error.
+   */
+  void deliver(final S state, final SubscriptionSource ent, final NotifyMessageSet notifyMessageSet)
+          throws MALInteractionException, MALException
+  {
+    // the messages of a consumer that is being sent a last value snapshot follow the snapshot
+    if ((null == ent) || !ent.getSnapshotGate().hold(notifyMessageSet))
+    {
+      deliverThrottled(state, ent, notifyMessageSet);
+    }
+  }
+
+  /**
+   * Sends a consumer the cached last values that match one of its subscriptions.
+   *
+   * The snapshot is built under the lock of the last value cache and sent once it is released, while the notify
+   * messages of the consumer are held back by its gate, so any value cached afterwards is notified after the snapshot
+   * and cannot be overwritten by it, and a slow consumer does not hold up the publishes of the broker key.
+   *
+   * @param state The state of the broker key.
+   * @param ent The consumer.
+   * @param cache The last value cache of the broker key.
+   * @param subscriptionId The identifier of the subscription.
+   * @throws MALInteractionException On error.
+   * @throws MALException On error.
+   */
+  void sendSnapshot(final S state,
+          final SubscriptionSource ent,
+          final LastValueCache cache,
+          final Identifier subscriptionId) throws MALInteractionException, MALException
+  {
+    final SnapshotGate gate = ent.getSnapshotGate();
+    final NotifyMessageSet snapshot;
+
+    // a publish updates the cache before sending, so closing the gate under its lock holds back newer values
+    synchronized (cache)
+    {
+      snapshot = cache.snapshot(ent, subscriptionId);
+
+      if (null != snapshot)
+      {
+        gate.start();
+      }
+    }
+
+    if (null != snapshot)
+    {
+      MALBrokerImpl.LOGGER.log(Level.FINE, "Sending last value snapshot to consumer : {0}", ent.getSignature());
+
+      try
+      {
+        sender.send(state, ent, snapshot);
+      }
+      finally
+      {
+        if (gate.finish())
+        {
+          sendHeldBehindSnapshot(state, ent, gate);
+        }
+      }
+    }
+  }
+
+  private void sendHeldBehindSnapshot(final S state, final SubscriptionSource ent, final SnapshotGate gate)
+  {
+    // the gate stays closed until every held message has been handed on, so a failed send must not stop the others
+    for (List<NotifyMessageSet> held = gate.takeHeld(); null != held; held = gate.takeHeld())
+    {
+      for (NotifyMessageSet notifyMessageSet : held)
+      {
+        try
+        {
+          deliverThrottled(state, ent, notifyMessageSet);
+        }
+        catch (MALInteractionException ex)
+        {
+          MALBrokerImpl.LOGGER.log(Level.WARNING,
+                  "Exception raised during transmission of held NOTIFY to consumer : {0}", ent.getSignature());
+        }
+        catch (MALException ex)
+        {
+          MALBrokerImpl.LOGGER.log(Level.WARNING,
+                  "Exception raised during transmission of held NOTIFY to consumer : {0}", ent.getSignature());
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends a consumer notify messages, holding back the updates of its throttled subscriptions and scheduling them to
+   * be sent once their interval has expired.
+   */
+  private void deliverThrottled(final S state,
+          final SubscriptionSource ent,
+          final NotifyMessageSet notifyMessageSet) throws MALInteractionException, MALException
+  {
+    final SubscriptionThrottle throttle = (null == ent) ? null : ent.getThrottle();
+
+    if (null == throttle)
+    {
+      sender.send(state, ent, notifyMessageSet);
+      return;
+    }
+
+    synchronized (throttle.getSendLock())
+    {
+      final long delay = throttle.hold(notifyMessageSet, System.nanoTime());
+
+      if (0 <= delay)
+      {
+        scheduleFlush(state, ent, throttle, delay);
+      }
+
+      if (!notifyMessageSet.messages.isEmpty())
+      {
+        sender.send(state, ent, notifyMessageSet);
+      }
+    }
+  }
+
+  private void scheduleFlush(final S state,
+          final SubscriptionSource ent,
+          final SubscriptionThrottle throttle,
+          final long delay)
+  {
+    try
+    {
+      dispatcher.scheduleAfter(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          flush(state, ent, throttle);
+        }
+      }, delay);
+    }
+    catch (RejectedExecutionException ex)
+    {
+      // the broker is closing
+    }
+  }
+
+  private void flush(final S state, final SubscriptionSource ent, final SubscriptionThrottle throttle)
+  {
+    final long now = System.nanoTime();
+
+    // the held updates are sent before the send lock is released, so a later publish cannot overtake them
+    synchronized (throttle.getSendLock())
+    {
+      final NotifyMessageSet notifyMessageSet = throttle.flush(ent.getMsgHeaderDetails(), now);
+
+      // the held updates of a consumer that has since been removed are dropped
+      if ((null != notifyMessageSet) && sender.isRegistered(state, ent))
+      {
+        try
+        {
+          sender.send(state, ent, notifyMessageSet);
+        }
+        catch (MALInteractionException ex)
+        {
+          MALBrokerImpl.LOGGER.log(Level.WARNING,
+                  "Exception raised during transmission of held NOTIFY to consumer : {0}", ent.getSignature());
+        }
+        catch (MALException ex)
+        {
+          MALBrokerImpl.LOGGER.log(Level.WARNING,
+                  "Exception raised during transmission of held NOTIFY to consumer : {0}", ent.getSignature());
+        }
+      }
+    }
+
+    final long delay = throttle.reschedule(now);
+
+    if (0 <= delay)
+    {
+      scheduleFlush(state, ent, throttle, delay);
+    }
+  }
+
+  /**
+   * Sends the notify messages of a consumer.
+   *
+   * @param <S> The type of the state of a broker key.
+   */
+  interface Sender<S>
+  {
+    /**
+     * Sends notify messages to a consumer, straight away or through its outbound queue.
+     *
+     * @param state The state of the broker key.
+     * @param ent The consumer, may be null if it is no longer registered.
+     * @param notifyMessageSet The messages.
+     * @throws MALInteractionException On error.
+     * @throws MALException On error.
+     */
+    void send(S state, SubscriptionSource ent, NotifyMessageSet notifyMessageSet)
+            throws MALInteractionException, MALException;
+
+    /**
+     * Returns true if a consumer is still registered with a broker key.
+     *
+     * @param state The state of the broker key.
+     * @param ent The consumer.
+     * @return True if the consumer is registered.
+     */
+    boolean isRegistered(S state, SubscriptionSource ent);
+  }
+}
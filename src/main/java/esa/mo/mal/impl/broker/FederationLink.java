@@ -0,0 +1,480 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.broker.key.BrokerKey;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import org.ccsds.moims.mo.mal.MALArea;
+import org.ccsds.moims.mo.mal.MALContextFactory;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALInteractionException;
+import org.ccsds.moims.mo.mal.MALOperation;
+import org.ccsds.moims.mo.mal.MALPubSubOperation;
+import org.ccsds.moims.mo.mal.MALService;
+import org.ccsds.moims.mo.mal.MALStandardError;
+import org.ccsds.moims.mo.mal.broker.MALBrokerBinding;
+import org.ccsds.moims.mo.mal.structures.Blob;
+import org.ccsds.moims.mo.mal.structures.EntityRequest;
+import org.ccsds.moims.mo.mal.structures.EntityRequestList;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.InteractionType;
+import org.ccsds.moims.mo.mal.structures.Subscription;
+import org.ccsds.moims.mo.mal.structures.Time;
+import org.ccsds.moims.mo.mal.structures.URI;
+import org.ccsds.moims.mo.mal.structures.UOctet;
+import org.ccsds.moims.mo.mal.transport.MALEndpoint;
+import org.ccsds.moims.mo.mal.transport.MALMessage;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+import org.ccsds.moims.mo.mal.transport.MALMessageListener;
+import org.ccsds.moims.mo.mal.transport.MALNotifyBody;
+import org.ccsds.moims.mo.mal.transport.MALTransmitErrorException;
+
+/**
+ * Links a local broker to a peer broker, possibly in another process, so that the consumers of the local broker receive
+ * the updates published to the peer. The link registers with the peer, as an ordinary consumer, the union of the
+ * subscriptions of the local consumers and publishes the updates it is notified of to the local consumers. An update
+ * therefore crosses the link once however many local consumers it matches. The link only uses standard MAL messages
+ * sent through an endpoint supplied by the caller, so it works over any MAL transport.
+ *
+ * The consumer that is the link of the peer back to the local broker is identified by the URI of its endpoint, given
+ * when the link is opened. A broker does not forward the subscriptions of such a consumer to its own links, nor send
+ * it the updates received from another link, so brokers are federated by linking each broker to each of the others,
+ * and each update crosses at most one link. The identifiers of the subscriptions a link registers are only used to
+ * tell them apart, a consumer using the same identifiers is not mistaken for a link.
+ *
+ * The subscriptions of the local consumers are grouped by the routing of their register messages, domain, network
+ * zone, session, area, service and operation, and each group is registered with the peer as one subscription that is
+ * re-registered whenever the group changes.
+ */
+public final class FederationLink implements MALMessageListener
+{
+  /**
+   * Prefix of the identifiers of the subscriptions registered by a federation link.
+   */
+  public static final String SUBSCRIPTION_PREFIX = "federation.";
+  private final MALBrokerHandlerImpl handler;
+  private final URI localBrokerUri;
+  private final Blob authenticationId;
+  private final MALEndpoint endpoint;
+  private final URI peerBrokerUri;
+  private final URI peerLinkUri;
+  private final Map<BrokerKey, Map<GroupKey, Group>> forwarded = new HashMap<BrokerKey, Map<GroupKey, Group>>();
+  private long lastSubscription = 0;
+  private long lastTransactionId = 0;
+  private boolean closed = false;
+
+  private FederationLink(final MALBrokerHandlerImpl handler,
+          final URI localBrokerUri,
+          final Blob authenticationId,
+          final MALEndpoint endpoint,
+          final URI peerBrokerUri,
+          final URI peerLinkUri)
+  {
+    this.handler = handler;
+    this.localBrokerUri = localBrokerUri;
+    this.authenticationId = authenticationId;
+    this.endpoint = endpoint;
+    this.peerBrokerUri = peerBrokerUri;
+    this.peerLinkUri = peerLinkUri;
+  }
+
+  /**
+   * Links a local broker binding to a peer broker. The endpoint must be dedicated to the link, it is used to send the
+   * subscriptions to the peer and to receive its notify messages. The subscriptions already held by the local broker
+   * are forwarded straight away.
+   *
+   * When the peer also links back to the local broker the URI of the endpoint of that link must be given, the local
+   * broker then treats the consumer with that URI as the peer rather than as one of its own consumers.
+   *
+   * @param localBinding The binding of the local broker, the local broker must be a MAL level broker.
+   * @param endpoint The endpoint of the link.
+   * @param peerBrokerUri The URI of the peer broker.
+   * @param peerLinkUri The URI of the endpoint of the link of the peer to the local broker, null if it has none.
+   * @return The link.
+   * @throws MALException If the binding is not of a MAL level broker or the endpoint cannot be used.
+   */
+  public static FederationLink open(final MALBrokerBinding localBinding,
+          final MALEndpoint endpoint,
+          final URI peerBrokerUri,
+          final URI peerLinkUri) throws MALException
+  {
+    if (!(localBinding instanceof MALBrokerBindingImpl)
+            || !(((MALBrokerBindingImpl) localBinding).getBrokerImpl().getHandler() instanceof MALBrokerHandlerImpl))
+    {
+      throw new MALException("Federation is only supported by MAL level brokers");
+    }
+
+    final MALBrokerBindingImpl binding = (MALBrokerBindingImpl) localBinding;
+    final FederationLink rv = new FederationLink((MALBrokerHandlerImpl) binding.getBrokerImpl().getHandler(),
+            binding.getURI(), binding.getAuthenticationId(), endpoint, peerBrokerUri, peerLinkUri);
+
+    endpoint.setMessageListener(rv);
+    endpoint.startMessageDelivery();
+    rv.handler.addFederationLink(rv);
+
+    MALBrokerImpl.LOGGER.log(Level.INFO, "Federated broker {0} with {1} through {2}", new Object[]
+    {
+      rv.localBrokerUri, peerBrokerUri, endpoint.getURI()
+    });
+
+    return rv;
+  }
+
+  /**
+   * Removes the subscriptions of this link from the peer broker and detaches it from the local broker. The endpoint of
+   * the link is not closed.
+   */
+  public synchronized void close()
+  {
+    if (!closed)
+    {
+      closed = true;
+      handler.removeFederationLink(this);
+
+      for (Map<GroupKey, Group> groups : forwarded.values())
+      {
+        for (Group group : groups.values())
+        {
+          sendDeregister(group);
+        }
+      }
+
+      forwarded.clear();
+    }
+  }
+
+  /**
+   * Returns true if a consumer of the local broker is the link of the peer back to it.
+   *
+   * @param consumerUri The URI of the consumer.
+   * @return True if the consumer is the link of the peer.
+   */
+  boolean isPeerLink(final String consumerUri)
+  {
+    return (null != peerLinkUri) && peerLinkUri.getValue().equals(consumerUri);
+  }
+
+  /**
+   * Returns true if this link forwards the subscriptions of a broker key.
+   *
+   * @param key The broker key.
+   * @return True if the key is of the local broker of this link.
+   */
+  boolean serves(final BrokerKey key)
+  {
+    return localBrokerUri.getValue().equals(key.getUri());
+  }
+
+  /**
+   * Brings the subscriptions registered with the peer broker in line with those of the local consumers of a broker
+   * key. Only the groups that have changed are registered again.
+   *
+   * @param key The broker key.
+   */
+  synchronized void refresh(final BrokerKey key)
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    final Map<GroupKey, Group> groups = new LinkedHashMap<GroupKey, Group>();
+
+    for (SubscriptionSource.Registration reg : handler.getFederationInterest(key))
+    {
+      final GroupKey groupKey = new GroupKey(reg.hdr);
+      Group group = groups.get(groupKey);
+
+      if (null == group)
+      {
+        group = new Group(reg.hdr);
+        groups.put(groupKey, group);
+      }
+
+      group.requests.addAll(reg.subscription.getEntities());
+    }
+
+    final Map<GroupKey, Group> previous = forwarded.get(key);
+
+    if (null != previous)
+    {
+      for (Map.Entry<GroupKey, Group> entry : previous.entrySet())
+      {
+        if (!groups.containsKey(entry.getKey()))
+        {
+          sendDeregister(entry.getValue());
+        }
+      }
+    }
+
+    for (Map.Entry<GroupKey, Group> entry : groups.entrySet())
+    {
+      final Group group = entry.getValue();
+      final Group old = (null == previous) ? null : previous.get(entry.getKey());
+
+      if (null == old)
+      {
+        group.subscriptionId = new Identifier(SUBSCRIPTION_PREFIX + (++lastSubscription));
+        sendRegister(group);
+      }
+      else
+      {
+        group.subscriptionId = old.subscriptionId;
+
+        if (!old.requests.equals(group.requests))
+        {
+          sendRegister(group);
+        }
+      }
+    }
+
+    if (groups.isEmpty())
+    {
+      forwarded.remove(key);
+    }
+    else
+    {
+      forwarded.put(key, groups);
+    }
+  }
+
+  @Override
+  public void onMessage(final MALEndpoint callingEndpoint, final MALMessage msg)
+  {
+    final MALMessageHeader hdr = msg.getHeader();
+
+    if (!InteractionType.PUBSUB.equals(hdr.getInteractionType()))
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Federation link ignoring unexpected message : {0}", hdr);
+      return;
+    }
+
+    if (Boolean.TRUE.equals(hdr.getIsErrorMessage()))
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Federated broker {0} returned an error : {1}", new Object[]
+      {
+        peerBrokerUri, hdr
+      });
+      return;
+    }
+
+    if (MALPubSubOperation._NOTIFY_STAGE == hdr.getInteractionStage().getValue())
+    {
+      try
+      {
+        final MALOperation operation = lookupOperation(hdr);
+
+        if (null == operation)
+        {
+          MALBrokerImpl.LOGGER.log(Level.WARNING, "Federation link received updates of an unknown operation : {0}",
+                  hdr);
+        }
+        else
+        {
+          handler.publishFederated(createLocalHeader(hdr), operation, (MALNotifyBody) msg.getBody());
+        }
+      }
+      catch (MALInteractionException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to publish updates of federated broker", ex);
+      }
+      catch (MALException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to publish updates of federated broker", ex);
+      }
+    }
+  }
+
+  @Override
+  public void onMessages(final MALEndpoint callingEndpoint, final MALMessage[] msgList)
+  {
+    for (MALMessage msg : msgList)
+    {
+      onMessage(callingEndpoint, msg);
+    }
+  }
+
+  @Override
+  public void onInternalError(final MALEndpoint callingEndpoint, final Throwable err)
+  {
+    MALBrokerImpl.LOGGER.log(Level.WARNING, "Federation link endpoint reported an internal error", err);
+  }
+
+  @Override
+  public void onTransmitError(final MALEndpoint callingEndpoint,
+          final MALMessageHeader srcMessageHeader,
+          final MALStandardError err,
+          final Map qosMap)
+  {
+    MALBrokerImpl.LOGGER.log(Level.WARNING, "Federation link unable to reach broker {0} : {1}", new Object[]
+    {
+      peerBrokerUri, err
+    });
+  }
+
+  private void sendRegister(final Group group)
+  {
+    final EntityRequestList lst = new EntityRequestList(group.requests.size());
+    lst.addAll(group.requests);
+
+    send(group, MALPubSubOperation.REGISTER_STAGE, new Subscription(group.subscriptionId, lst));
+  }
+
+  private void sendDeregister(final Group group)
+  {
+    final IdentifierList lst = new IdentifierList();
+    lst.add(group.subscriptionId);
+
+    send(group, MALPubSubOperation.DEREGISTER_STAGE, lst);
+  }
+
+  private void send(final Group group, final UOctet stage, final Object body)
+  {
+    final MALMessageHeader hdr = group.hdr;
+
+    try
+    {
+      endpoint.sendMessage(endpoint.createMessage(authenticationId,
+              peerBrokerUri,
+              new Time(new Date().getTime()),
+              hdr.getQoSlevel(),
+              hdr.getPriority(),
+              hdr.getDomain(),
+              hdr.getNetworkZone(),
+              hdr.getSession(),
+              hdr.getSessionName(),
+              InteractionType.PUBSUB,
+              stage,
+              ++lastTransactionId,
+              hdr.getServiceArea(),
+              hdr.getService(),
+              hdr.getOperation(),
+              hdr.getAreaVersion(),
+              Boolean.FALSE,
+              new HashMap(),
+              body));
+    }
+    catch (MALException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Federation link unable to send subscription to broker "
+              + peerBrokerUri, ex);
+    }
+    catch (MALTransmitErrorException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Federation link unable to send subscription to broker "
+              + peerBrokerUri, ex);
+    }
+  }
+
+  private MALMessageHeader createLocalHeader(final MALMessageHeader hdr)
+  {
+    final JournalHeader rv = new JournalHeader();
+    rv.setURIFrom(endpoint.getURI());
+    rv.setAuthenticationId(hdr.getAuthenticationId());
+    rv.setURITo(localBrokerUri);
+    rv.setTimestamp(hdr.getTimestamp());
+    rv.setQoSlevel(hdr.getQoSlevel());
+    rv.setPriority(hdr.getPriority());
+    rv.setDomain(hdr.getDomain());
+    rv.setNetworkZone(hdr.getNetworkZone());
+    rv.setSession(hdr.getSession());
+    rv.setSessionName(hdr.getSessionName());
+    rv.setInteractionType(InteractionType.PUBSUB);
+    rv.setInteractionStage(MALPubSubOperation.PUBLISH_STAGE);
+    rv.setTransactionId(hdr.getTransactionId());
+    rv.setServiceArea(hdr.getServiceArea());
+    rv.setService(hdr.getService());
+    rv.setOperation(hdr.getOperation());
+    rv.setAreaVersion(hdr.getAreaVersion());
+    rv.setIsErrorMessage(Boolean.FALSE);
+    return rv;
+  }
+
+  private static MALOperation lookupOperation(final MALMessageHeader hdr)
+  {
+    final MALArea area = MALContextFactory.lookupArea(hdr.getServiceArea(), hdr.getAreaVersion());
+    final MALService service = (null == area) ? null : area.getServiceByNumber(hdr.getService());
+
+    return (null == service) ? null : service.getOperationByNumber(hdr.getOperation());
+  }
+
+  /**
+   * The routing of a register message, the local subscriptions with the same routing are registered with the peer as
+   * a single subscription.
+   */
+  private static final class GroupKey
+  {
+    private static final int HASH_MAGIC_NUMBER = 61;
+    private final Object[] fields;
+    private final int hash;
+
+    private GroupKey(final MALMessageHeader hdr)
+    {
+      this.fields = new Object[]
+      {
+        hdr.getDomain(), hdr.getNetworkZone(), hdr.getSession(), hdr.getSessionName(), hdr.getServiceArea(),
+        hdr.getService(), hdr.getOperation(), hdr.getAreaVersion()
+      };
+
+      int h = 7;
+      for (Object field : fields)
+      {
+        h = HASH_MAGIC_NUMBER * h + (null == field ? 0 : field.hashCode());
+      }
+      this.hash = h;
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+      return (obj instanceof GroupKey) && Arrays.equals(fields, ((GroupKey) obj).fields);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+  }
+
+  /**
+   * The union of the local subscriptions with the same routing.
+   */
+  private static final class Group
+  {
+    private final MALMessageHeader hdr;
+    private final Set<EntityRequest> requests = new LinkedHashSet<EntityRequest>();
+    private Identifier subscriptionId;
+
+    private Group(final MALMessageHeader hdr)
+    {
+      this.hdr = hdr;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of non-negative values. Values are counted in power of two buckets so recording a value is a
+ * handful of atomic increments and the reported percentiles are accurate to within a factor of two, which is enough to
+ * spot a change in behaviour while staying cheap enough to be left enabled.
+ *
+ * The statistics are read without stopping the writers so a reading taken during a record may be slightly inconsistent.
+ */
+final class Histogram
+{
+  private static final int BUCKET_COUNT = 64;
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a value, negative values are recorded as zero.
+   *
+   * @param value The value.
+   */
+  void record(final long value)
+  {
+    final long v = Math.max(0, value);
+
+    // bucket i holds the values below 2^i that are not in a lower bucket
+    buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(v));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+
+    long current = max.get();
+    while ((v > current) && !max.compareAndSet(current, v))
+    {
+      current = max.get();
+    }
+  }
+
+  /**
+   * Returns the number of recorded values.
+   *
+   * @return the count.
+   */
+  long getCount()
+  {
+    return count.get();
+  }
+
+  /**
+   * Returns the sum of the recorded values.
+   *
+   * @return the sum.
+   */
+  long getSum()
+  {
+    return sum.get();
+  }
+
+  /**
+   * Returns the largest recorded value.
+   *
+   * @return the maximum.
+   */
+  long getMax()
+  {
+    return max.get();
+  }
+
+  /**
+   * Returns the mean of the recorded values.
+   *
+   * @return the mean, zero if no values have been recorded.
+   */
+  double getMean()
+  {
+    final long c = count.get();
+
+    return (0 == c) ? 0 : (double) sum.get() / c;
+  }
+
+  /**
+   * Returns an upper bound of the given percentile of the recorded values.
+   *
+   * @param percentile The percentile, between 0 and 100.
+   * @return the upper bound of the bucket holding the percentile, zero if no values have been recorded.
+   */
+  long getPercentile(final double percentile)
+  {
+    long total = 0;
+    final long[] counts = new long[BUCKET_COUNT];
+
+    for (int i = 0; i < BUCKET_COUNT; ++i)
+    {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+
+    final long rank = (long) Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+
+    for (int i = 0; i < BUCKET_COUNT; ++i)
+    {
+      seen += counts[i];
+
+      if ((0 < seen) && (seen >= rank))
+      {
+        // the maximum is a tighter bound when it lies in the same bucket
+        return Math.min(max.get(), (1L << i) - 1);
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Returns a summary of the histogram, the count, mean, 50th, 90th and 99th percentiles and the maximum.
+   *
+   * @return the summary.
+   */
+  Map<String, Long> getSummary()
+  {
+    final Map<String, Long> rv = new LinkedHashMap<String, Long>();
+    rv.put("count", getCount());
+    rv.put("mean", Math.round(getMean()));
+    rv.put("p50", getPercentile(50));
+    rv.put("p90", getPercentile(90));
+    rv.put("p99", getPercentile(99));
+    rv.put("max", getMax());
+    return rv;
+  }
+
+  /**
+   * Clears the histogram.
+   */
+  void reset()
+  {
+    for (int i = 0; i < BUCKET_COUNT; ++i)
+    {
+      buckets.set(i, 0);
+    }
+
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+}
@@ -0,0 +1,322 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.broker.key.BrokerKey;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The default broker metrics, which keeps lock free counters and histograms of the measurements and registers them
+ * with the platform MBean server as esa.mo.mal.impl.broker:type=BrokerMetrics,handler=[class],id=[n].
+ *
+ * The counts of a consumer are dropped when it is removed from its broker.
+ */
+public class JmxBrokerMetrics implements BrokerMetrics, BrokerMetricsMXBean
+{
+  private static final AtomicInteger NEXT_ID = new AtomicInteger();
+  private final AtomicLong publishCount = new AtomicLong();
+  private final AtomicLong updateCount = new AtomicLong();
+  private final AtomicLong matchCount = new AtomicLong();
+  private final Histogram updatesPerPublish = new Histogram();
+  private final Histogram createNotifyTime = new Histogram();
+  private final Histogram sendNotifyTime = new Histogram();
+  private final ConcurrentMap<BrokerKey, ConcurrentMap<String, ConsumerCounters>> consumers
+          = new ConcurrentHashMap<BrokerKey, ConcurrentMap<String, ConsumerCounters>>();
+  private volatile long startTime = System.nanoTime();
+  private volatile MALBrokerHandlerImpl handler = null;
+  private ObjectName name = null;
+
+  @Override
+  public void open(final MALBrokerHandlerImpl handler)
+  {
+    this.handler = handler;
+
+    try
+    {
+      name = new ObjectName("esa.mo.mal.impl.broker:type=BrokerMetrics,handler="
+              + handler.getClass().getSimpleName() + ",id=" + NEXT_ID.incrementAndGet());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+    catch (JMException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to register broker metrics MBean", ex);
+      name = null;
+    }
+  }
+
+  @Override
+  public void published(final BrokerKey key, final int updates, final int matches, final long createNotifyNanos)
+  {
+    publishCount.incrementAndGet();
+    updateCount.addAndGet(updates);
+    matchCount.addAndGet(matches);
+    updatesPerPublish.record(updates);
+    createNotifyTime.record(createNotifyNanos);
+  }
+
+  @Override
+  public void notifySent(final BrokerKey key, final String uriTo, final int messageCount, final long sendNotifyNanos)
+  {
+    sendNotifyTime.record(sendNotifyNanos);
+
+    final ConsumerCounters counters = getCounters(key, uriTo);
+    if (null != counters)
+    {
+      counters.notifyCount.addAndGet(messageCount);
+    }
+  }
+
+  @Override
+  public void notifyFailed(final BrokerKey key, final String uriTo)
+  {
+    final ConsumerCounters counters = getCounters(key, uriTo);
+    if (null != counters)
+    {
+      counters.errorCount.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void consumerAdded(final BrokerKey key, final String uriTo)
+  {
+    ConcurrentMap<String, ConsumerCounters> broker;
+
+    // added again if the map of the broker key was dropped meanwhile by the removal of its last consumer
+    do
+    {
+      broker = consumers.get(key);
+
+      if (null == broker)
+      {
+        final ConcurrentMap<String, ConsumerCounters> newBroker = new ConcurrentHashMap<String, ConsumerCounters>();
+        broker = consumers.putIfAbsent(key, newBroker);
+
+        if (null == broker)
+        {
+          broker = newBroker;
+        }
+      }
+
+      broker.putIfAbsent(uriTo, new ConsumerCounters());
+    }
+    while (broker != consumers.get(key));
+  }
+
+  @Override
+  public void consumerRemoved(final BrokerKey key, final String uriTo)
+  {
+    final ConcurrentMap<String, ConsumerCounters> counters = consumers.get(key);
+
+    if (null != counters)
+    {
+      counters.remove(uriTo);
+
+      // the map of a broker key is dropped with its last consumer
+      if (counters.isEmpty())
+      {
+        consumers.remove(key, counters);
+      }
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    if (null != name)
+    {
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      }
+      catch (JMException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to unregister broker metrics MBean", ex);
+      }
+
+      name = null;
+    }
+  }
+
+  @Override
+  public long getPublishCount()
+  {
+    return publishCount.get();
+  }
+
+  @Override
+  public double getPublishRate()
+  {
+    final long elapsed = System.nanoTime() - startTime;
+
+    return (0 >= elapsed) ? 0 : publishCount.get() * 1e9 / elapsed;
+  }
+
+  @Override
+  public long getUpdateCount()
+  {
+    return updateCount.get();
+  }
+
+  @Override
+  public Map<String, Long> getUpdatesPerPublish()
+  {
+    return updatesPerPublish.getSummary();
+  }
+
+  @Override
+  public long getMatchCount()
+  {
+    return matchCount.get();
+  }
+
+  @Override
+  public double getMatchesPerUpdate()
+  {
+    final long updates = updateCount.get();
+
+    return (0 == updates) ? 0 : (double) matchCount.get() / updates;
+  }
+
+  @Override
+  public Map<String, Long> getCreateNotifyTime()
+  {
+    return createNotifyTime.getSummary();
+  }
+
+  @Override
+  public Map<String, Long> getSendNotifyTime()
+  {
+    return sendNotifyTime.getSummary();
+  }
+
+  @Override
+  public Map<String, Long> getConsumerNotifyCounts()
+  {
+    final Map<String, Long> rv = new TreeMap<String, Long>();
+
+    for (Map.Entry<BrokerKey, ConcurrentMap<String, ConsumerCounters>> broker : consumers.entrySet())
+    {
+      for (Map.Entry<String, ConsumerCounters> consumer : broker.getValue().entrySet())
+      {
+        rv.put(getName(consumer.getKey(), broker.getKey()), consumer.getValue().notifyCount.get());
+      }
+    }
+
+    return rv;
+  }
+
+  @Override
+  public Map<String, Long> getConsumerErrorCounts()
+  {
+    final Map<String, Long> rv = new TreeMap<String, Long>();
+
+    for (Map.Entry<BrokerKey, ConcurrentMap<String, ConsumerCounters>> broker : consumers.entrySet())
+    {
+      for (Map.Entry<String, ConsumerCounters> consumer : broker.getValue().entrySet())
+      {
+        rv.put(getName(consumer.getKey(), broker.getKey()), consumer.getValue().errorCount.get());
+      }
+    }
+
+    return rv;
+  }
+
+  @Override
+  public Map<String, Integer> getSubscriptionCounts()
+  {
+    final Map<String, Integer> rv = new TreeMap<String, Integer>();
+    final MALBrokerHandlerImpl currentHandler = handler;
+
+    if (null != currentHandler)
+    {
+      for (Map.Entry<BrokerKey, Integer> entry : currentHandler.getSubscriptionCounts().entrySet())
+      {
+        rv.put(getName(null, entry.getKey()), entry.getValue());
+      }
+    }
+
+    return rv;
+  }
+
+  @Override
+  public void reset()
+  {
+    // the counters are cleared one at a time so a concurrent publish may be partly counted
+    startTime = System.nanoTime();
+    publishCount.set(0);
+    updateCount.set(0);
+    matchCount.set(0);
+    updatesPerPublish.reset();
+    createNotifyTime.reset();
+    sendNotifyTime.reset();
+
+    for (ConcurrentMap<String, ConsumerCounters> broker : consumers.values())
+    {
+      for (ConsumerCounters counters : broker.values())
+      {
+        counters.notifyCount.set(0);
+        counters.errorCount.set(0);
+      }
+    }
+  }
+
+  /**
+   * Returns the counters of a consumer, null if it has been removed. Notify messages may still be sent to a consumer
+   * for a short while after it has been removed, the counters are not created again for them.
+   */
+  private ConsumerCounters getCounters(final BrokerKey key, final String uriTo)
+  {
+    final ConcurrentMap<String, ConsumerCounters> broker = consumers.get(key);
+
+    return (null == broker) ? null : broker.get(uriTo);
+  }
+
+  private static String getName(final String uriTo, final BrokerKey key)
+  {
+    final StringBuilder buf = new StringBuilder();
+
+    if (null != uriTo)
+    {
+      buf.append(uriTo).append(" @ ");
+    }
+
+    return buf.append(key.getUri()).append(' ').append(key.getSession()).append(' ').append(key.getSessionName())
+            .toString();
+  }
+
+  /**
+   * The counts of a single consumer.
+   */
+  private static final class ConsumerCounters
+  {
+    private final AtomicLong notifyCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+  }
+}
@@ -0,0 +1,285 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import org.ccsds.moims.mo.mal.structures.Blob;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.InteractionType;
+import org.ccsds.moims.mo.mal.structures.QoSLevel;
+import org.ccsds.moims.mo.mal.structures.SessionType;
+import org.ccsds.moims.mo.mal.structures.Time;
+import org.ccsds.moims.mo.mal.structures.UInteger;
+import org.ccsds.moims.mo.mal.structures.UOctet;
+import org.ccsds.moims.mo.mal.structures.URI;
+import org.ccsds.moims.mo.mal.structures.UShort;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+
+/**
+ * A message header built by the broker itself rather than received, either restored from the subscription journal,
+ * holding the fields of the original register message, or the publish header of updates received over a
+ * {@link FederationLink}.
+ */
+final class JournalHeader implements MALMessageHeader
+{
+  private URI uriFrom;
+  private Blob authenticationId;
+  private URI uriTo;
+  private Time timestamp;
+  private QoSLevel qosLevel;
+  private UInteger priority;
+  private IdentifierList domain;
+  private Identifier networkZone;
+  private SessionType session;
+  private Identifier sessionName;
+  private InteractionType interactionType;
+  private UOctet interactionStage;
+  private Long transactionId;
+  private UShort serviceArea;
+  private UShort service;
+  private UShort operation;
+  private UOctet areaVersion;
+  private Boolean isErrorMessage;
+
+  @Override
+  public URI getURIFrom()
+  {
+    return uriFrom;
+  }
+
+  @Override
+  public void setURIFrom(final URI uriFrom)
+  {
+    this.uriFrom = uriFrom;
+  }
+
+  @Override
+  public Blob getAuthenticationId()
+  {
+    return authenticationId;
+  }
+
+  @Override
+  public void setAuthenticationId(final Blob authenticationId)
+  {
+    this.authenticationId = authenticationId;
+  }
+
+  @Override
+  public URI getURITo()
+  {
+    return uriTo;
+  }
+
+  @Override
+  public void setURITo(final URI uriTo)
+  {
+    this.uriTo = uriTo;
+  }
+
+  @Override
+  public Time getTimestamp()
+  {
+    return timestamp;
+  }
+
+  @Override
+  public void setTimestamp(final Time timestamp)
+  {
+    this.timestamp = timestamp;
+  }
+
+  @Override
+  public QoSLevel getQoSlevel()
+  {
+    return qosLevel;
+  }
+
+  @Override
+  public void setQoSlevel(final QoSLevel qosLevel)
+  {
+    this.qosLevel = qosLevel;
+  }
+
+  @Override
+  public UInteger getPriority()
+  {
+    return priority;
+  }
+
+  @Override
+  public void setPriority(final UInteger priority)
+  {
+    this.priority = priority;
+  }
+
+  @Override
+  public IdentifierList getDomain()
+  {
+    return domain;
+  }
+
+  @Override
+  public void setDomain(final IdentifierList domain)
+  {
+    this.domain = domain;
+  }
+
+  @Override
+  public Identifier getNetworkZone()
+  {
+    return networkZone;
+  }
+
+  @Override
+  public void setNetworkZone(final Identifier networkZone)
+  {
+    this.networkZone = networkZone;
+  }
+
+  @Override
+  public SessionType getSession()
+  {
+    return session;
+  }
+
+  @Override
+  public void setSession(final SessionType session)
+  {
+    this.session = session;
+  }
+
+  @Override
+  public Identifier getSessionName()
+  {
+    return sessionName;
+  }
+
+  @Override
+  public void setSessionName(final Identifier sessionName)
+  {
+    this.sessionName = sessionName;
+  }
+
+  @Override
+  public InteractionType getInteractionType()
+  {
+    return interactionType;
+  }
+
+  @Override
+  public void setInteractionType(final InteractionType interactionType)
+  {
+    this.interactionType = interactionType;
+  }
+
+  @Override
+  public UOctet getInteractionStage()
+  {
+    return interactionStage;
+  }
+
+  @Override
+  public void setInteractionStage(final UOctet interactionStage)
+  {
+    this.interactionStage = interactionStage;
+  }
+
+  @Override
+  public Long getTransactionId()
+  {
+    return transactionId;
+  }
+
+  @Override
+  public void setTransactionId(final Long transactionId)
+  {
+    this.transactionId = transactionId;
+  }
+
+  @Override
+  public UShort getServiceArea()
+  {
+    return serviceArea;
+  }
+
+  @Override
+  public void setServiceArea(final UShort serviceArea)
+  {
+    this.serviceArea = serviceArea;
+  }
+
+  @Override
+  public UShort getService()
+  {
+    return service;
+  }
+
+  @Override
+  public void setService(final UShort service)
+  {
+    this.service = service;
+  }
+
+  @Override
+  public UShort getOperation()
+  {
+    return operation;
+  }
+
+  @Override
+  public void setOperation(final UShort operation)
+  {
+    this.operation = operation;
+  }
+
+  @Override
+  public UOctet getAreaVersion()
+  {
+    return areaVersion;
+  }
+
+  @Override
+  public void setAreaVersion(final UOctet areaVersion)
+  {
+    this.areaVersion = areaVersion;
+  }
+
+  @Override
+  public Boolean getIsErrorMessage()
+  {
+    return isErrorMessage;
+  }
+
+  @Override
+  public void setIsErrorMessage(final Boolean isErrorMessage)
+  {
+    this.isErrorMessage = isErrorMessage;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "JournalHeader{" + "URIFrom=" + uriFrom + ", URITo=" + uriTo + ", domain=" + domain
+            + ", networkZone=" + networkZone + ", session=" + session + ", sessionName=" + sessionName
+            + ", serviceArea=" + serviceArea + ", service=" + service + ", operation=" + operation + '}';
+  }
+}
@@ -0,0 +1,316 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.broker.NotifyMessageSet.NotifyMessage;
+import esa.mo.mal.impl.util.InternedDomain;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.structures.EntityKey;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.UpdateHeader;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.structures.UpdateType;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+
+/**
+ * Holds the last published value of each entity of a broker key, keyed by domain, network zone, area, service,
+ * operation and entity key, so that a new subscription can be sent the current values straight away rather than
+ * waiting for each entity to be published again. A DELETION removes the entity from the cache.
+ *
+ * The cached values are matched against a new subscription by the subscription source itself, so the snapshot holds
+ * exactly the updates the subscription would have been sent had it been registered when they were published.
+ *
+ * The values are updated holding the monitor of the cache, before the updates are sent. A caller that builds a
+ * snapshot holding the same monitor therefore knows that any newer value is sent after it has started, see
+ * {@link SnapshotGate}.
+ *
+ * The number of entities held is bounded, once full the entity updated least recently is evicted, so that a broker
+ * key whose entities keep changing does not grow the cache for the life of the broker.
+ */
+final class LastValueCache
+{
+  /**
+   * Property that enables the last value cache, false by default.
+   */
+  public static final String ENABLED_PROPERTY = "org.ccsds.moims.mo.mal.broker.lastValueCache";
+  /**
+   * Property that sets the maximum number of entities held in the last value cache of each broker key.
+   */
+  public static final String SIZE_PROPERTY = "org.ccsds.moims.mo.mal.broker.lastValueCache.size";
+  /**
+   * The default maximum number of entities held in the cache of each broker key.
+   */
+  public static final int DEFAULT_SIZE = 65536;
+  private final Map<Key, Value> values;
+
+  /**
+   * Constructor.
+   *
+   * @param maximumSize The maximum number of entities held.
+   */
+  LastValueCache(final int maximumSize)
+  {
+    // in access order so that the entity updated least recently is the eldest, iterating does not change the order
+    values = new LinkedHashMap<Key, Value>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Key, Value> eldest)
+      {
+        return size() > maximumSize;
+      }
+    };
+  }
+
+  /**
+   * Records the updates of a publish.
+   *
+   * @param hdr The publish message header.
+   * @param updateHeaderList The update header list of the publish.
+   * @param updates The update lists of the publish.
+   * @throws MALException On error.
+   */
+  void update(final MALMessageHeader hdr, final UpdateHeaderList updateHeaderList, final PublishedUpdates updates)
+          throws MALException
+  {
+    final InternedDomain domain = InternedDomain.intern(hdr.getDomain());
+    final List<Value> newValues = new ArrayList<Value>(updateHeaderList.size());
+
+    // the elements are copied out of the publish before taking the lock
+    for (int i = 0; i < updateHeaderList.size(); ++i)
+    {
+      final UpdateHeader updateHeader = updateHeaderList.get(i);
+      List[] lists = null;
+
+      if (!UpdateType.DELETION.equals(updateHeader.getUpdateType()))
+      {
+        lists = updates.createNotifyLists();
+        updates.addUpdate(lists, i);
+      }
+
+      newValues.add(new Value(new Key(hdr, domain, updateHeader.getKey()), hdr, updateHeader, lists));
+    }
+
+    synchronized (this)
+    {
+      for (Value value : newValues)
+      {
+        if (UpdateType.DELETION.equals(value.updateHeader.getUpdateType()))
+        {
+          values.remove(value.key);
+        }
+        else
+        {
+          values.put(value.key, value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the notify messages holding the cached values that match a subscription of a consumer.
+   *
+   * @param consumer The consumer.
+   * @param subscriptionId The subscription.
+   * @return The notify messages, null if there are none.
+   * @throws MALException On error.
+   */
+  NotifyMessageSet snapshot(final SubscriptionSource consumer, final Identifier subscriptionId) throws MALException
+  {
+    final Map<Key, List<Value>> groups = new LinkedHashMap<Key, List<Value>>();
+
+    synchronized (this)
+    {
+      for (Value value : values.values())
+      {
+        final Key groupKey = value.key.getGroupKey();
+        List<Value> group = groups.get(groupKey);
+
+        if (null == group)
+        {
+          group = new ArrayList<Value>();
+          groups.put(groupKey, group);
+        }
+
+        group.add(value);
+      }
+    }
+
+    final List<NotifyMessageSet> lst = new LinkedList<NotifyMessageSet>();
+
+    for (List<Value> group : groups.values())
+    {
+      final UpdateHeaderList updateHeaderList = new UpdateHeaderList(group.size());
+      final List[] lists = PublishedUpdates.createEmptyLists(group.get(0).lists);
+
+      for (Value value : group)
+      {
+        updateHeaderList.add(value.updateHeader);
+
+        if (null != lists)
+        {
+          for (int i = 0; i < lists.length; i++)
+          {
+            if ((null != lists[i]) && (null != value.lists) && (null != value.lists[i]))
+            {
+              lists[i].add(value.lists[i].get(0));
+            }
+          }
+        }
+      }
+
+      consumer.populateNotifyList(group.get(0).hdr, lst, updateHeaderList,
+              new PublishedUpdates(updateHeaderList, lists));
+    }
+
+    NotifyMessageSet rv = null;
+
+    for (NotifyMessageSet notifyMessageSet : lst)
+    {
+      final Iterator<NotifyMessage> it = notifyMessageSet.messages.iterator();
+
+      while (it.hasNext())
+      {
+        if (!subscriptionId.equals(it.next().subscriptionId))
+        {
+          it.remove();
+        }
+      }
+
+      if (null == rv)
+      {
+        rv = notifyMessageSet;
+      }
+      else
+      {
+        rv.messages.addAll(notifyMessageSet.messages);
+      }
+    }
+
+    return ((null == rv) || rv.messages.isEmpty()) ? null : rv;
+  }
+
+  /**
+   * The last value of an entity.
+   */
+  private static final class Value
+  {
+    private final Key key;
+    private final MALMessageHeader hdr;
+    private final UpdateHeader updateHeader;
+    private final List[] lists;
+
+    private Value(final Key key, final MALMessageHeader hdr, final UpdateHeader updateHeader, final List[] lists)
+    {
+      this.key = key;
+      this.hdr = hdr;
+      this.updateHeader = updateHeader;
+      this.lists = lists;
+    }
+  }
+
+  /**
+   * The publish routing and entity key of a value, the group key of a value has no entity key.
+   */
+  private static final class Key
+  {
+    private static final int HASH_MAGIC_NUMBER = 53;
+    private final InternedDomain domain;
+    private final Object networkZone;
+    private final Object area;
+    private final Object service;
+    private final Object operation;
+    private final Object version;
+    private final EntityKey entityKey;
+    private final int hash;
+
+    private Key(final MALMessageHeader hdr, final InternedDomain domain, final EntityKey entityKey)
+    {
+      this(domain, hdr.getNetworkZone(), hdr.getServiceArea(), hdr.getService(), hdr.getOperation(),
+              hdr.getAreaVersion(), entityKey);
+    }
+
+    private Key(final InternedDomain domain, final Object networkZone, final Object area, final Object service,
+            final Object operation, final Object version, final EntityKey entityKey)
+    {
+      this.domain = domain;
+      this.networkZone = networkZone;
+      this.area = area;
+      this.service = service;
+      this.operation = operation;
+      this.version = version;
+      this.entityKey = entityKey;
+
+      int h = 7;
+      h = HASH_MAGIC_NUMBER * h + (null == domain ? 0 : domain.hashCode());
+      h = HASH_MAGIC_NUMBER * h + (null == service ? 0 : service.hashCode());
+      h = HASH_MAGIC_NUMBER * h + (null == operation ? 0 : operation.hashCode());
+      h = HASH_MAGIC_NUMBER * h + (null == entityKey ? 0 : entityKey.hashCode());
+      this.hash = h;
+    }
+
+    private Key getGroupKey()
+    {
+      return new Key(domain, networkZone, area, service, operation, version, null);
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+      if (this == obj)
+      {
+        return true;
+      }
+
+      if (!(obj instanceof Key))
+      {
+        return false;
+      }
+
+      final Key other = (Key) obj;
+
+      return (hash == other.hash)
+              && (domain == other.domain)
+              && equal(networkZone, other.networkZone)
+              && equal(area, other.area)
+              && equal(service, other.service)
+              && equal(operation, other.operation)
+              && equal(version, other.version)
+              && equal(entityKey, other.entityKey);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    private static boolean equal(final Object lhs, final Object rhs)
+    {
+      return (lhs == null) ? (rhs == null) : lhs.equals(rhs);
+    }
+  }
+}
@@ -22,11 +22,10 @@ package esa.mo.mal.impl.broker;
 
 import esa.mo.mal.impl.MALContextImpl;
 import esa.mo.mal.impl.ServiceComponentImpl;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.logging.Level;
 import org.ccsds.moims.mo.mal.*;
 import org.ccsds.moims.mo.mal.broker.MALBrokerBinding;
@@ -41,8 +40,9 @@ import org.ccsds.moims.mo.mal.transport.MALTransmitErrorListener;
 public class MALBrokerBindingImpl extends ServiceComponentImpl implements MALBrokerBinding
 {
   private final MALBrokerImpl brokerImpl;
-  private final Set<String> subscriberSet = new TreeSet<String>();
+  private final Set<String> subscriberSet = new ConcurrentSkipListSet<String>();
   private MALTransmitErrorListener listener;
+  private volatile Time lastTimestamp = new Time(0L);
 
   MALBrokerBindingImpl(final MALBrokerImpl parent,
           final MALContextImpl impl,
@@ -106,6 +106,103 @@ public class MALBrokerBindingImpl extends ServiceComponentImpl implements MALBro
     this.brokerImpl.addBinding(this);
   }
 
+  /**
+   * Returns the QoS properties supplied when this binding was created.
+   *
+   * @return the QoS properties, may be null.
+   */
+  Map getQoSProperties()
+  {
+    return defaultQoSProperties;
+  }
+
+  /**
+   * Returns the timestamp of an outgoing message. Times are immutable so the messages sent within the same millisecond
+   * share one instance.
+   *
+   * @return the current time.
+   */
+  private Time getTimestamp()
+  {
+    final long now = System.currentTimeMillis();
+    Time rv = lastTimestamp;
+
+    if (rv.getValue() != now)
+    {
+      rv = new Time(now);
+      lastTimestamp = rv;
+    }
+
+    return rv;
+  }
+
+  /**
+   * Sends all the notify messages of a set to its consumer, more than one message is passed to the endpoint in a
+   * single call so that the transport may combine them.
+   *
+   * @param notifyMessageSet The messages to send.
+   * @throws MALInteractionException If the single message of the set could not be sent.
+   * @throws MALException If one or more of the messages could not be sent.
+   */
+  void sendNotifies(final NotifyMessageSet notifyMessageSet) throws MALInteractionException, MALException
+  {
+    final NotifyMessageSet.MessageHeaderDetails details = notifyMessageSet.details;
+    final Time timestamp = getTimestamp();
+    final int count = notifyMessageSet.messages.size();
+
+    if (1 == count)
+    {
+      // the common case of a single message does not need an array of messages
+      endpoint.sendMessage(createNotify(details, timestamp, notifyMessageSet.messages.get(0)));
+    }
+    else if (1 < count)
+    {
+      final MALMessage[] msgs = new MALMessage[count];
+      int i = 0;
+
+      for (NotifyMessageSet.NotifyMessage notifyMessage : notifyMessageSet.messages)
+      {
+        msgs[i++] = createNotify(details, timestamp, notifyMessage);
+      }
+
+      endpoint.sendMessages(msgs);
+    }
+  }
+
+  private MALMessage createNotify(final NotifyMessageSet.MessageHeaderDetails details,
+          final Time timestamp,
+          final NotifyMessageSet.NotifyMessage notifyMessage) throws MALException
+  {
+    final int updateCount = (null == notifyMessage.updateList) ? 0 : notifyMessage.updateList.length;
+    final Object[] body = new Object[2 + updateCount];
+    body[0] = notifyMessage.subscriptionId;
+    body[1] = notifyMessage.updateHeaderList;
+    if (0 < updateCount)
+    {
+      System.arraycopy(notifyMessage.updateList, 0, body, 2, updateCount);
+    }
+
+    return endpoint.createMessage(authenticationId,
+            details.uriTo,
+            timestamp,
+            details.qosLevel,
+            details.priority,
+            notifyMessage.domain,
+            notifyMessage.networkZone,
+            details.sessionType,
+            details.sessionName,
+            InteractionType.PUBSUB,
+            MALPubSubOperation.NOTIFY_STAGE,
+            details.transactionId,
+            notifyMessage.area,
+            notifyMessage.service,
+            notifyMessage.operation,
+            notifyMessage.version,
+            Boolean.FALSE,
+            details.qosProps,
+            body);
+  }
+
   @Override
   public MALMessage sendNotify(final UShort area,
           final UShort service,
@@ -135,7 +232,7 @@ public class MALBrokerBindingImpl extends ServiceComponentImpl implements MALBro
 
     final MALMessage msg = endpoint.createMessage(authenticationId,
             subscriber,
-            new Time(new Date().getTime()),
+            getTimestamp(),
             notifyQos,
             notifyPriority,
             domainId,
@@ -184,7 +281,7 @@ public class MALBrokerBindingImpl extends ServiceComponentImpl implements MALBro
 
     final MALMessage msg = endpoint.createMessage(authenticationId,
             subscriber,
-            new Time(new Date().getTime()),
+            getTimestamp(),
             notifyQos,
             notifyPriority,
             domainId,
@@ -221,7 +318,7 @@ public class MALBrokerBindingImpl extends ServiceComponentImpl implements MALBro
   {
     final MALMessage msg = endpoint.createMessage(authenticationId,
             subscriber,
-            new Time(new Date().getTime()),
+            getTimestamp(),
             notifyQos,
             notifyPriority,
             domainId,
@@ -259,7 +356,7 @@ public class MALBrokerBindingImpl extends ServiceComponentImpl implements MALBro
   {
     final MALMessage msg = endpoint.createMessage(authenticationId,
             subscriber,
-            new Time(new Date().getTime()),
+            getTimestamp(),
             notifyQos,
             notifyPriority,
             domainId,
@@ -296,7 +393,7 @@ public class MALBrokerBindingImpl extends ServiceComponentImpl implements MALBro
   {
     final MALMessage msg = endpoint.createMessage(authenticationId,
             publisher,
-            new Time(new Date().getTime()),
+            getTimestamp(),
             qos,
             priority,
             domainId,
@@ -334,7 +431,7 @@ public class MALBrokerBindingImpl extends ServiceComponentImpl implements MALBro
   {
     final MALMessage msg = endpoint.createMessage(authenticationId,
             publisher,
-            new Time(new Date().getTime()),
+            getTimestamp(),
             qos,
             priority,
             domainId,
@@ -383,6 +480,11 @@ public class MALBrokerBindingImpl extends ServiceComponentImpl implements MALBro
   public void addSubscriber(String uriTo)
   {
     subscriberSet.add(uriTo);
+
+    if (brokerImpl.getHandler() instanceof MALBrokerHandlerImpl)
+    {
+      ((MALBrokerHandlerImpl) brokerImpl.getHandler()).addConsumerBinding(uriTo, this);
+    }
   }
 
   /**
@@ -393,6 +495,11 @@ public class MALBrokerBindingImpl extends ServiceComponentImpl implements MALBro
   public void removeSubscriber(String uriTo)
   {
     subscriberSet.remove(uriTo);
+
+    if (brokerImpl.getHandler() instanceof MALBrokerHandlerImpl)
+    {
+      ((MALBrokerHandlerImpl) brokerImpl.getHandler()).removeConsumerBinding(uriTo, this);
+    }
   }
 
   /**
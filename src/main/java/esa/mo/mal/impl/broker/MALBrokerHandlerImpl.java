@@ -20,18 +20,28 @@
  */
 package esa.mo.mal.impl.broker;
 
-import esa.mo.mal.impl.StringPair;
-import esa.mo.mal.impl.broker.NotifyMessageSet.NotifyMessage;
+import esa.mo.mal.impl.ProviderKey;
 import esa.mo.mal.impl.broker.key.BrokerKey;
+import esa.mo.mal.impl.patterns.BaseInteractionImpl;
+import esa.mo.mal.impl.patterns.PubSubInteractionImpl;
 import esa.mo.mal.impl.util.MALClose;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import org.ccsds.moims.mo.mal.MALException;
 import org.ccsds.moims.mo.mal.MALHelper;
 import org.ccsds.moims.mo.mal.MALInteractionException;
+import org.ccsds.moims.mo.mal.MALOperation;
 import org.ccsds.moims.mo.mal.MALStandardError;
 import org.ccsds.moims.mo.mal.broker.MALBrokerBinding;
 import org.ccsds.moims.mo.mal.broker.MALBrokerHandler;
@@ -40,6 +50,8 @@ import org.ccsds.moims.mo.mal.structures.EntityKeyList;
 import org.ccsds.moims.mo.mal.structures.IdentifierList;
 import org.ccsds.moims.mo.mal.structures.QoSLevel;
 import org.ccsds.moims.mo.mal.structures.Subscription;
+import org.ccsds.moims.mo.mal.structures.UInteger;
+import org.ccsds.moims.mo.mal.structures.Union;
 import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
 import org.ccsds.moims.mo.mal.transport.MALDeregisterBody;
 import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
@@ -47,15 +59,76 @@ import org.ccsds.moims.mo.mal.transport.MALPublishBody;
 import org.ccsds.moims.mo.mal.transport.MALPublishRegisterBody;
 import org.ccsds.moims.mo.mal.transport.MALRegisterBody;
 import org.ccsds.moims.mo.mal.transport.MALTransmitErrorException;
+import org.ccsds.moims.mo.mal.transport.MALTransmitMultipleErrorException;
 
 /**
  * Base implementation of the MALBrokerHandler class that should be extended by real broker implementations.
+ *
+ * The state of the broker is partitioned by broker key, each partition being guarded by its own lock, so that
+ * operations on independent sessions and brokers do not contend with each other. The lock is only taken by changes to
+ * the registered publishers and consumers, which publish a new immutable view of them on each change. The publish path
+ * only reads the current view and so never waits for a registration to complete.
+ *
+ * A publish is handled on the transport thread that received it unless a publish pipeline is configured, in which case
+ * it is checked, matched and sent by the stages of a {@link PublishPipeline} and the transport thread returns as soon
+ * as the publish has been queued. The broker may instead be run on a number of {@link BrokerShards}, each a single
+ * thread owning the broker keys that hash to it. The registrations and publishes of a broker key are then handled on
+ * its shard in the order they were received, and those of different keys in parallel. The transport thread waits for
+ * a registration to complete, so that it is only acknowledged once applied, but only queues a publish. The locks of
+ * the broker keys are kept as the state is still reached from other threads, such as those sending the notify
+ * messages, but are then uncontended.
+ *
+ * The generated notify messages are sent on the publishing thread unless a pool of threads is configured, using the
+ * QoS properties of the broker binding, in which case each consumer is given a bounded {@link OutboundQueue} that is
+ * drained in parallel with the others. In both cases the consumers are served in the priority order of their
+ * subscriptions, see {@link NotifyDispatcher}. A consumer with a queue that cannot keep up is handled by the overflow
+ * policy and the maximum lag of its queue, only the consumers sent to on the publishing thread are removed after
+ * repeated send errors. The update lists of a publish can also be passed through to the notify
+ * messages in their encoded form, see {@link PublishedUpdates}.
+ *
+ * If enabled, the broker also holds the last published value of each entity and sends a new subscription a snapshot
+ * of the matching values once it has been acknowledged, see {@link #sendRegisterSnapshot}. A subscription may also
+ * limit the rate it is notified of each entity, see {@link SubscriptionThrottle}. The registrations can also be
+ * written to a journal, from which they are restored when the broker is next started.
+ *
+ * The fan-out of each publish is measured and reported to a pluggable {@link BrokerMetrics}, by default exposed as a
+ * JMX MBean.
+ *
+ * Brokers may be federated through {@link FederationLink}s. Each link forwards the subscriptions of the local
+ * consumers to a peer broker and publishes the updates it is notified of to the local consumers, but not to other
+ * federated brokers, so that an update crosses each link at most once, see {@link BrokerFederation}.
+ *
+ * A handler is configured once, from the QoS properties of the first binding initialised with it, see
+ * {@link BrokerConfiguration}. The broker properties of the bindings initialised later are not used, a warning is
+ * logged if they differ. The last value snapshots and throttled subscriptions of a consumer are handed on to it by a
+ * {@link ConsumerDelivery}.
  */
 public abstract class MALBrokerHandlerImpl extends MALClose implements MALBrokerHandler
 {
-  private final List<MALBrokerBindingImpl> bindings = new LinkedList<MALBrokerBindingImpl>();
-  private final Map<BrokerKey, Map<StringPair, PublisherSource>> providerMap = new HashMap();
-  private final Map<BrokerKey, Map<String, SubscriptionSource>> consumerMap = new HashMap();
+  private static final Comparator<NotifyMessageSet> PRIORITY_ORDER = new Comparator<NotifyMessageSet>()
+  {
+    @Override
+    public int compare(final NotifyMessageSet lhs, final NotifyMessageSet rhs)
+    {
+      final long lhsPriority = priorityOf(lhs);
+      final long rhsPriority = priorityOf(rhs);
+
+      // highest priority first
+      return (lhsPriority > rhsPriority) ? -1 : ((lhsPriority == rhsPriority) ? 0 : 1);
+    }
+  };
+  private final List<MALBrokerBindingImpl> bindings = new CopyOnWriteArrayList<MALBrokerBindingImpl>();
+  private final ConcurrentMap<BrokerKey, BrokerState> brokerMap = new ConcurrentHashMap<BrokerKey, BrokerState>();
+  private final ConcurrentMap<String, MALBrokerBindingImpl> consumerBindings
+          = new ConcurrentHashMap<String, MALBrokerBindingImpl>();
+  private final BrokerFederation federation = new BrokerFederation();
+  private volatile BrokerConfiguration configuration = null;
+  private volatile NotifyDispatcher dispatcher = null;
+  private volatile ConsumerDelivery<BrokerState> delivery = null;
+  private volatile SubscriptionJournal journal = null;
+  private volatile BrokerMetrics metrics = null;
+  private volatile PublishPipeline pipeline = null;
+  private volatile BrokerShards shards = null;
 
   /**
    * Constructor.
@@ -70,331 +143,1348 @@ public abstract class MALBrokerHandlerImpl extends MALClose implements MALBroker
   @Override
   public void malInitialize(MALBrokerBinding brokerBinding)
   {
-    bindings.add((MALBrokerBindingImpl) brokerBinding);
+    final MALBrokerBindingImpl binding = (MALBrokerBindingImpl) brokerBinding;
+    bindings.add(binding);
+
+    // the broker is configured from the QoS properties of the first binding, those of the others are only checked
+    getDispatcher(binding.getQoSProperties());
+    configuration.checkBinding(binding.getURI(), binding.getQoSProperties());
+    attachRestoredConsumers(binding);
   }
   
   @Override
   public void malFinalize(MALBrokerBinding brokerBinding)
   {
     bindings.remove((MALBrokerBindingImpl) brokerBinding);
+    consumerBindings.values().removeAll(Collections.singleton(brokerBinding));
+  }
+
+  /**
+   * Records the broker binding that a consumer is registered through.
+   *
+   * @param uriTo The URI of the consumer.
+   * @param binding The binding.
+   */
+  void addConsumerBinding(final String uriTo, final MALBrokerBindingImpl binding)
+  {
+    consumerBindings.put(uriTo, binding);
+  }
+
+  /**
+   * Removes the record of the broker binding that a consumer is registered through.
+   *
+   * @param uriTo The URI of the consumer.
+   * @param binding The binding.
+   */
+  void removeConsumerBinding(final String uriTo, final MALBrokerBindingImpl binding)
+  {
+    consumerBindings.remove(uriTo, binding);
   }
   
   @Override
-  public synchronized void handleRegister(final MALInteraction interaction, final MALRegisterBody body)
+  public void handleRegister(final MALInteraction interaction, final MALRegisterBody body)
           throws MALInteractionException, MALException
   {
     final MALMessageHeader hdr = interaction.getMessageHeader();
     final Subscription lst = body.getSubscription();
-    final BrokerKey key = new BrokerKey(hdr);
-    
-    report(key);
-    if ((null != hdr) && (null != lst))
+
+    register(hdr, (null == lst) ? Collections.<SubscriptionSource.Registration>emptyList()
+            : Collections.singletonList(new SubscriptionSource.Registration(hdr, lst,
+                    SubscriptionThrottle.getMinimumInterval(getMessageQoSProperties(interaction)))));
+  }
+
+  /**
+   * Registers several subscriptions of one consumer in a single pass holding the lock of the broker key, for example
+   * those of a consumer re-registering its subscriptions after reconnecting. The result is the same as a register of
+   * each subscription in turn, but the subscriptions of the consumer are only re-indexed once. No snapshot of the last
+   * value cache is sent.
+   *
+   * @param registrations The register message headers and subscriptions, all from the same consumer and broker key.
+   * @throws IllegalArgumentException If the registrations are not all of the same consumer and broker key.
+   * @throws MALInteractionException On error.
+   * @throws MALException If the broker has been closed.
+   */
+  public void registerAll(final List<SubscriptionSource.Registration> registrations)
+          throws IllegalArgumentException, MALInteractionException, MALException
+  {
+    if (!registrations.isEmpty())
     {
-      getConsumerEntry(key, hdr, true).addSubscription(hdr, lst);
+      final MALMessageHeader hdr = registrations.get(0).hdr;
+      final BrokerKey key = new BrokerKey(hdr);
+
+      for (SubscriptionSource.Registration reg : registrations)
+      {
+        if (!key.equals(new BrokerKey(reg.hdr)) || !hdr.getURIFrom().equals(reg.hdr.getURIFrom()))
+        {
+          throw new IllegalArgumentException("Registrations must be of a single consumer and broker");
+        }
+      }
+
+      register(hdr, registrations);
     }
-    report(key);
   }
-  
-  @Override
-  public synchronized void handlePublishRegister(final MALInteraction interaction, final MALPublishRegisterBody body)
+
+  private void register(final MALMessageHeader hdr, final List<SubscriptionSource.Registration> registrations)
           throws MALInteractionException, MALException
   {
-    final MALMessageHeader hdr = interaction.getMessageHeader();
-    final EntityKeyList providerKeyList = body.getEntityKeyList();
-    final BrokerKey key = new BrokerKey(hdr);
-    
-    report(key);
-    if ((null != hdr) && (null != providerKeyList))
+    runOnShard(new BrokerKey(hdr), new BrokerShards.Task()
     {
-      getProviderEntry(key, hdr, true).setKeyList(hdr, providerKeyList);
-    }
-    report(key);
+      @Override
+      void run()
+      {
+        internalRegister(hdr, registrations);
+      }
+    });
   }
-  
-  @Override
-  public void handlePublish(final MALInteraction interaction, final MALPublishBody body)
-          throws MALInteractionException, MALException
+
+  private void internalRegister(final MALMessageHeader hdr,
+          final List<SubscriptionSource.Registration> registrations)
   {
-    final MALMessageHeader hdr = interaction.getMessageHeader();
     final BrokerKey key = new BrokerKey(hdr);
-    final java.util.List<NotifyMessageSet> notifyList = createNotify(key, hdr, body);
-    
-    if (!notifyList.isEmpty())
+    final NotifyDispatcher currentDispatcher = getDispatcher(null);
+    boolean refresh = false;
+    boolean registered = false;
+
+    while (!registered)
     {
-      for (NotifyMessageSet notifyMessageSet : notifyList)
+      final BrokerState state = createBrokerState(key);
+
+      synchronized (state)
       {
-        MALBrokerBinding binding = getBinding(notifyMessageSet.details.uriTo.getValue());
-        
-        if (null != binding)
+        // the state may have been removed, once left empty, while waiting for its lock
+        if (!state.removed)
         {
-          for (NotifyMessage notifyMessage : notifyMessageSet.messages)
+          registered = true;
+          report(state);
+          if ((null != hdr) && !registrations.isEmpty())
           {
-            try
+            final String sig = hdr.getURIFrom().getValue();
+            final SubscriptionSource existing = state.consumers.get(sig);
+            final SubscriptionSource ent = (null == existing) ? createEntry(hdr) : existing;
+            final SubscriptionJournal currentJournal = journal;
+
+            ent.addSubscriptions(registrations);
+
+            // the subscriptions of a federated broker do not change the interest forwarded to the others
+            refresh = !federation.isPeer(key, sig);
+
+            for (SubscriptionSource.Registration reg : registrations)
             {
-              binding.sendNotify(notifyMessage.area,
-                      notifyMessage.service,
-                      notifyMessage.operation,
-                      notifyMessage.version,
-                      notifyMessageSet.details.uriTo,
-                      notifyMessageSet.details.transactionId,
-                      notifyMessage.domain,
-                      notifyMessage.networkZone,
-                      notifyMessageSet.details.sessionType,
-                      notifyMessageSet.details.sessionName,
-                      notifyMessageSet.details.qosLevel,
-                      notifyMessageSet.details.qosProps,
-                      notifyMessageSet.details.priority,
-                      notifyMessage.subscriptionId,
-                      notifyMessage.updateHeaderList,
-                      notifyMessage.updateList);
+              ent.recordRegistration(reg);
+
+              if (null != currentJournal)
+              {
+                currentJournal.register(reg);
+              }
+            }
+
+            if (null == existing)
+            {
+              // a new consumer is only made visible once it holds its first subscription
+              prepareConsumer(state, ent, currentDispatcher);
+              state.putConsumer(sig, ent);
             }
-            catch (MALTransmitErrorException ex)
+            else
             {
-              MALBrokerImpl.LOGGER.log(Level.WARNING, "Exception raised during transmission of NOTIFY to consumer : {0}", notifyMessageSet.details.uriTo.getValue());
-              
-              handleConsumerCommunicationError(key, notifyMessageSet);
+              existing.setBinding(getBinding(sig));
             }
           }
-        }
-        else
-        {
-          MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to find consumer for NOTIFY : {0}", notifyMessageSet.details.uriTo.getValue());
+          else
+          {
+            removeIfUnused(state);
+          }
+          report(state);
         }
       }
     }
+
+    if (refresh)
+    {
+      federation.refresh(key);
+    }
   }
   
   @Override
-  public synchronized void handleDeregister(final MALInteraction interaction, final MALDeregisterBody body)
+  public void handlePublishRegister(final MALInteraction interaction, final MALPublishRegisterBody body)
           throws MALInteractionException, MALException
   {
     final MALMessageHeader hdr = interaction.getMessageHeader();
-    final IdentifierList lst = body.getIdentifierList();
+    final EntityKeyList providerKeyList = body.getEntityKeyList();
+
+    runOnShard(new BrokerKey(hdr), new BrokerShards.Task()
+    {
+      @Override
+      void run()
+      {
+        internalPublishRegister(hdr, providerKeyList);
+      }
+    });
+  }
+
+  private void internalPublishRegister(final MALMessageHeader hdr, final EntityKeyList providerKeyList)
+  {
     final BrokerKey key = new BrokerKey(hdr);
-    
-    report(key);
-    
-    if ((null != hdr) && (null != lst) && !lst.isEmpty())
+    boolean registered = false;
+
+    awaitPublishPipeline();
+
+    while (!registered)
     {
-      internalDeregisterSubscriptions(key, getConsumerEntry(key, hdr, false), lst);
+      final BrokerState state = createBrokerState(key);
+
+      synchronized (state)
+      {
+        if (!state.removed)
+        {
+          registered = true;
+          report(state);
+          if ((null != hdr) && (null != providerKeyList))
+          {
+            final ProviderKey sig = new ProviderKey(hdr.getURIFrom().getValue(), hdr);
+            final PublisherSource details = state.providers.get(sig);
+            QoSLevel qosLevel = hdr.getQoSlevel();
+
+            if (null == details)
+            {
+              MALBrokerImpl.LOGGER.log(Level.FINE, "New publisher registering: {0}", hdr);
+            }
+            else
+            {
+              // the QoS level of the original publish register is retained
+              qosLevel = details.getQosLevel();
+            }
+
+            state.putProvider(sig, new PublisherSource(hdr.getURIFrom().getValue(), qosLevel, hdr, providerKeyList));
+
+            final SubscriptionJournal currentJournal = journal;
+            if (null != currentJournal)
+            {
+              currentJournal.publishRegister(hdr, providerKeyList);
+            }
+          }
+          report(state);
+        }
+      }
     }
-    
-    report(key);
   }
   
   @Override
-  public synchronized void handlePublishDeregister(final MALInteraction interaction)
+  public void handlePublish(final MALInteraction interaction, final MALPublishBody body)
           throws MALInteractionException, MALException
   {
-    final MALMessageHeader hdr = interaction.getMessageHeader();
-    final BrokerKey key = new BrokerKey(hdr);
-    
-    report(key);
-    final Map<StringPair, PublisherSource> rv = getProviderMap(key);
-    if (null != rv.remove(new StringPair(hdr.getURIFrom().getValue(), createProviderKey(hdr))))
+    final BrokerShards currentShards = shards;
+    final PublishPipeline currentPipeline = pipeline;
+
+    if (null != currentShards)
+    {
+      final MALMessageHeader hdr = interaction.getMessageHeader();
+      final MALOperation operation = interaction.getOperation();
+      final BrokerKey key = new BrokerKey(hdr);
+
+      currentShards.execute(key, new BrokerShards.Task()
+      {
+        @Override
+        void run() throws MALInteractionException, MALException
+        {
+          final BrokerState state = getBrokerState(key);
+          final UpdateHeaderList hl;
+
+          try
+          {
+            hl = checkPublish(state, hdr, body, false);
+          }
+          catch (MALInteractionException ex)
+          {
+            rejectPublish(interaction, hdr, ex.getStandardError());
+            return;
+          }
+          catch (MALException ex)
+          {
+            rejectPublish(interaction, hdr, new MALStandardError(MALHelper.INTERNAL_ERROR_NUMBER,
+                    new Union(ex.getLocalizedMessage())));
+            return;
+          }
+
+          deliverPublish(state, matchPublish(key, state, hdr, operation, body, hl, false));
+        }
+      });
+    }
+    else if (null != currentPipeline)
     {
-      MALBrokerImpl.LOGGER.log(Level.FINE, "Removing publisher details: {0}", hdr);
+      final MALMessageHeader hdr = interaction.getMessageHeader();
+      currentPipeline.submit(interaction, new BrokerKey(hdr), hdr, interaction.getOperation(), body, false);
     }
-    
-    if (rv.isEmpty())
+    else
     {
-      providerMap.remove(key);
+      publish(interaction.getMessageHeader(), interaction.getOperation(), body, false);
     }
-    report(key);
   }
 
   /**
-   * Returns the QoS used when contacting the provider.
+   * Publishes updates received from a federated broker to the local consumers. The updates are not passed on to other
+   * federated brokers and the publisher does not need to have registered.
    *
-   * @param hdr The supplied header message.
-   * @return The required QoS level.
+   * @param hdr The publish message header, addressed to the local broker.
+   * @param operation The operation of the updates.
+   * @param body The updates.
+   * @throws MALInteractionException On error.
+   * @throws MALException On error.
    */
-  public QoSLevel getProviderQoSLevel(final MALMessageHeader hdr)
+  void publishFederated(final MALMessageHeader hdr, final MALOperation operation, final MALPublishBody body)
+          throws MALInteractionException, MALException
   {
-    final BrokerKey key = new BrokerKey(hdr);
-    final PublisherSource details = getProviderEntry(key, hdr, false);
-    
-    if (null != details)
+    final BrokerShards currentShards = shards;
+    final PublishPipeline currentPipeline = pipeline;
+
+    if (null != currentShards)
     {
-      MALBrokerImpl.LOGGER.log(Level.FINE, "Getting publisher QoS details: {0}", hdr);
-      return details.getQosLevel();
+      currentShards.execute(new BrokerKey(hdr), new BrokerShards.Task()
+      {
+        @Override
+        void run() throws MALInteractionException, MALException
+        {
+          publish(hdr, operation, body, true);
+        }
+      });
+    }
+    else if (null != currentPipeline)
+    {
+      currentPipeline.submit(null, new BrokerKey(hdr), hdr, operation, body, true);
+    }
+    else
+    {
+      publish(hdr, operation, body, true);
     }
-    
-    return QoSLevel.BESTEFFORT;
   }
-  
-  private synchronized MALBrokerBinding getBinding(String uriTo)
+
+  private void publish(final MALMessageHeader hdr,
+          final MALOperation operation,
+          final MALPublishBody body,
+          final boolean federated) throws MALInteractionException, MALException
+  {
+    final BrokerKey key = new BrokerKey(hdr);
+    final BrokerState state = getBrokerState(key);
+    final UpdateHeaderList hl = checkPublish(state, hdr, body, federated);
+
+    deliverPublish(state, matchPublish(key, state, hdr, operation, body, hl, federated));
+  }
+
+  private java.util.List<NotifyMessageSet> matchPublish(final BrokerKey key,
+          final BrokerState state,
+          final MALMessageHeader hdr,
+          final MALOperation operation,
+          final MALPublishBody body,
+          final UpdateHeaderList hl,
+          final boolean federated) throws MALException
   {
-    for (MALBrokerBindingImpl binding : bindings)
+    final BrokerMetrics currentMetrics = metrics;
+    final long start = (null == currentMetrics) ? 0 : System.nanoTime();
+    final java.util.List<NotifyMessageSet> notifyList = createNotify(key, state, hdr, operation, body, hl);
+
+    if (federated && !notifyList.isEmpty())
     {
-      if (binding.hasSubscriber(uriTo))
+      final Iterator<NotifyMessageSet> it = notifyList.iterator();
+
+      while (it.hasNext())
       {
-        return binding;
+        if (federation.isPeer(key, it.next().details.uriTo.getValue()))
+        {
+          it.remove();
+        }
       }
     }
-    
-    return null;
-  }
-  
-  private synchronized java.util.List<NotifyMessageSet> createNotify(final BrokerKey key, final MALMessageHeader hdr,
-          final MALPublishBody publishBody) throws MALInteractionException, MALException
-  {
-    MALBrokerImpl.LOGGER.fine("Checking provider");
-    final PublisherSource details = getProviderEntry(key, hdr, false);
-    
-    if (null == details)
+
+    if (null != currentMetrics)
     {
-      MALBrokerImpl.LOGGER.warning("Provider not known");
-      throw new MALInteractionException(new MALStandardError(MALHelper.INCORRECT_STATE_ERROR_NUMBER, null));
+      int matchCount = 0;
+
+      for (NotifyMessageSet notifyMessageSet : notifyList)
+      {
+        for (NotifyMessageSet.NotifyMessage msg : notifyMessageSet.messages)
+        {
+          matchCount += msg.updateHeaderList.size();
+        }
+      }
+
+      currentMetrics.published(key, (null == hl) ? 0 : hl.size(), matchCount, System.nanoTime() - start);
     }
-    
-    final UpdateHeaderList hl = publishBody.getUpdateHeaderList();
-    details.checkPublish(hdr, hl);
-    
-    final List<NotifyMessageSet> lst = new LinkedList<NotifyMessageSet>();
-    
-    if (hl != null)
+
+    // the sort is stable so consumers of the same priority keep their order
+    Collections.sort(notifyList, PRIORITY_ORDER);
+
+    return notifyList;
+  }
+
+  private void deliverPublish(final BrokerState state, final java.util.List<NotifyMessageSet> notifyList)
+          throws MALInteractionException, MALException
+  {
+    if (!notifyList.isEmpty())
     {
-      final Map<String, SubscriptionSource> rv = getConsumerMap(key);
-      for (Map.Entry<String, SubscriptionSource> entry : rv.entrySet())
+      final Map<String, SubscriptionSource> consumers = state.consumers;
+      final ConsumerDelivery<BrokerState> currentDelivery = getDelivery();
+
+      for (final NotifyMessageSet notifyMessageSet : notifyList)
       {
-        entry.getValue().populateNotifyList(hdr, lst, hl, publishBody);
+        currentDelivery.deliver(state, consumers.get(notifyMessageSet.details.uriTo.getValue()), notifyMessageSet);
       }
     }
-    
-    return lst;
   }
-  
-  private synchronized void report(final BrokerKey key)
+
+  /**
+   * Sends a new subscription the cached last values that match it. Called once the subscription has been registered
+   * and acknowledged, does nothing if the last value cache is not enabled.
+   *
+   * The notify messages of the consumer are held back while the snapshot is sent, see
+   * {@link ConsumerDelivery#sendSnapshot}. A value published while the subscription is being registered may still be
+   * received both in the snapshot and as a normal update. As the register has already been acknowledged any error is logged rather than
+   * raised.
+   *
+   * @param interaction The register interaction.
+   * @param body The register message body.
+   */
+  public void sendRegisterSnapshot(final MALInteraction interaction, final MALRegisterBody body)
   {
-    if (MALBrokerImpl.LOGGER.isLoggable(Level.FINE))
+    try
     {
-      MALBrokerImpl.LOGGER.fine("START REPORT");
-      
-      for (PublisherSource subscriptionSource : getProviderMap(key).values())
+      final BrokerShards currentShards = shards;
+
+      if (null != currentShards)
       {
-        subscriptionSource.report();
+        // sent from the shard so that the snapshot is ordered with the publishes of the broker key
+        currentShards.execute(new BrokerKey(interaction.getMessageHeader()), new BrokerShards.Task()
+        {
+          @Override
+          void run() throws MALInteractionException, MALException
+          {
+            internalSendRegisterSnapshot(interaction, body);
+          }
+        });
       }
-      
-      for (SubscriptionSource subscriptionSource : getConsumerMap(key).values())
+      else
       {
-        subscriptionSource.report();
+        internalSendRegisterSnapshot(interaction, body);
       }
-      
-      MALBrokerImpl.LOGGER.fine("END REPORT");
     }
-  }
-  
-  private static String createProviderKey(final MALMessageHeader details)
-  {
-    final StringBuilder buf = new StringBuilder();
-    
-    buf.append(details.getSession());
-    buf.append(':');
-    buf.append(details.getSessionName());
-    buf.append(':');
-    buf.append(details.getNetworkZone());
-    buf.append(':');
-    buf.append(details.getDomain());
-    
-    return buf.toString();
-  }
-  
-  private Map<String, SubscriptionSource> getConsumerMap(final BrokerKey key)
-  {
-    Map<String, SubscriptionSource> rv = consumerMap.get(key);
-    
-    if (null == rv)
+    catch (MALInteractionException ex)
     {
-      rv = new HashMap();
-      consumerMap.put(key, rv);
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to send last value snapshot to consumer", ex);
     }
-    
-    return rv;
-  }
-  
-  private SubscriptionSource getConsumerEntry(final BrokerKey key, final MALMessageHeader hdr, final boolean create)
-  {
-    final Map<String, SubscriptionSource> rv = getConsumerMap(key);
-    final String sig = hdr.getURIFrom().getValue();
-    SubscriptionSource ent = rv.get(sig);
-    
-    if ((null == ent) && (create))
+    catch (MALException ex)
     {
-      ent = createEntry(hdr);
-      rv.put(sig, ent);
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to send last value snapshot to consumer", ex);
     }
-    
-    return ent;
-  }
-  
-  private SubscriptionSource getConsumerEntry(final BrokerKey key, final String consumerUri)
-  {
-    return getConsumerMap(key).get(consumerUri);
   }
-  
-  private Map<StringPair, PublisherSource> getProviderMap(final BrokerKey key)
+
+  private void internalSendRegisterSnapshot(final MALInteraction interaction, final MALRegisterBody body)
+          throws MALInteractionException, MALException
   {
-    Map<StringPair, PublisherSource> rv = providerMap.get(key);
-    
-    if (null == rv)
+    final MALMessageHeader hdr = interaction.getMessageHeader();
+    final Subscription lst = body.getSubscription();
+
+    if ((null != hdr) && (null != lst))
     {
-      rv = new HashMap();
-      providerMap.put(key, rv);
+      final BrokerState state = getBrokerState(new BrokerKey(hdr));
+      final SubscriptionSource ent = state.consumers.get(hdr.getURIFrom().getValue());
+
+      // the state of a broker key only has a cache if the last value cache is enabled
+      if ((null != state.lastValues) && (null != ent))
+      {
+        getDelivery().sendSnapshot(state, ent, state.lastValues, lst.getSubscriptionId());
+      }
     }
-    
-    return rv;
   }
-  
-  private PublisherSource getProviderEntry(final BrokerKey key, final MALMessageHeader hdr, final boolean create)
+
+  @Override
+  public void handleDeregister(final MALInteraction interaction, final MALDeregisterBody body)
+          throws MALInteractionException, MALException
   {
-    final Map<StringPair, PublisherSource> rv = getProviderMap(key);
-    PublisherSource details = rv.get(new StringPair(hdr.getURIFrom().getValue(), createProviderKey(hdr)));
-    
-    if ((null == details) && create)
+    final MALMessageHeader hdr = interaction.getMessageHeader();
+    final IdentifierList lst = body.getIdentifierList();
+
+    runOnShard(new BrokerKey(hdr), new BrokerShards.Task()
     {
-      details = new PublisherSource(hdr.getURIFrom().getValue(), hdr.getQoSlevel());
-      rv.put(new StringPair(hdr.getURIFrom().getValue(), createProviderKey(hdr)), details);
-      MALBrokerImpl.LOGGER.log(Level.FINE, "New publisher registering: {0}", hdr);
-    }
-    
-    return details;
+      @Override
+      void run()
+      {
+        internalDeregister(hdr, lst);
+      }
+    });
   }
-  
-  private void handleConsumerCommunicationError(final BrokerKey key, final NotifyMessageSet notifyMessageSet)
+
+  private void internalDeregister(final MALMessageHeader hdr, final IdentifierList lst)
   {
-    final SubscriptionSource ent = getConsumerEntry(key, notifyMessageSet.details.uriTo.getValue());
+    final BrokerKey key = new BrokerKey(hdr);
+    final BrokerState state = getBrokerState(key);
     
-    if (null != ent)
+    synchronized (state)
     {
-      ent.incCommsErrorCount();
-      
-      if (ent.getCommsErrorCount() > 2)
+      report(state);
+
+      if ((null != hdr) && (null != lst) && !lst.isEmpty())
       {
-        MALBrokerImpl.LOGGER.log(Level.WARNING, "Removing to consumer due to too many comms errors : {0}", notifyMessageSet.details.uriTo.getValue());
+        internalDeregisterSubscriptions(state, state.consumers.get(hdr.getURIFrom().getValue()), lst);
 
-        // three strikes and you're out!
-        internalDeregisterSubscriptions(key, ent, null);
+        final SubscriptionJournal currentJournal = journal;
+        if (null != currentJournal)
+        {
+          currentJournal.deregister(hdr, lst);
+        }
+      }
+
+      report(state);
+    }
+
+    if ((null != hdr) && (null != lst) && !federation.isPeer(key, hdr.getURIFrom().getValue()))
+    {
+      federation.refresh(key);
+    }
+  }
+  
+  @Override
+  public void handlePublishDeregister(final MALInteraction interaction)
+          throws MALInteractionException, MALException
+  {
+    final MALMessageHeader hdr = interaction.getMessageHeader();
+
+    runOnShard(new BrokerKey(hdr), new BrokerShards.Task()
+    {
+      @Override
+      void run()
+      {
+        internalPublishDeregister(hdr);
+      }
+    });
+  }
+
+  private void internalPublishDeregister(final MALMessageHeader hdr)
+  {
+    final BrokerState state = getBrokerState(new BrokerKey(hdr));
+
+    awaitPublishPipeline();
+    
+    synchronized (state)
+    {
+      report(state);
+      if (null != state.removeProvider(new ProviderKey(hdr.getURIFrom().getValue(), hdr)))
+      {
+        MALBrokerImpl.LOGGER.log(Level.FINE, "Removing publisher details: {0}", hdr);
+
+        final SubscriptionJournal currentJournal = journal;
+        if (null != currentJournal)
+        {
+          currentJournal.publishDeregister(hdr);
+        }
+
+        removeIfUnused(state);
+      }
+      report(state);
+    }
+  }
+
+  /**
+   * Returns the QoS used when contacting the provider.
+   *
+   * @param hdr The supplied header message.
+   * @return The required QoS level.
+   */
+  public QoSLevel getProviderQoSLevel(final MALMessageHeader hdr)
+  {
+    final PublisherSource details = getProviderEntry(getBrokerState(new BrokerKey(hdr)), hdr);
+    
+    if (null != details)
+    {
+      MALBrokerImpl.LOGGER.log(Level.FINE, "Getting publisher QoS details: {0}", hdr);
+      return details.getQosLevel();
+    }
+    
+    return QoSLevel.BESTEFFORT;
+  }
+  
+  @Override
+  protected void thisObjectClose() throws MALException
+  {
+    super.thisObjectClose();
+
+    final BrokerShards currentShards = shards;
+
+    if (null != currentShards)
+    {
+      currentShards.close();
+    }
+
+    final PublishPipeline currentPipeline = pipeline;
+
+    if (null != currentPipeline)
+    {
+      currentPipeline.close();
+    }
+
+    final NotifyDispatcher currentDispatcher = dispatcher;
+
+    if (null != currentDispatcher)
+    {
+      currentDispatcher.close();
+    }
+
+    final SubscriptionJournal currentJournal = journal;
+
+    if (null != currentJournal)
+    {
+      currentJournal.close();
+    }
+
+    final BrokerMetrics currentMetrics = metrics;
+
+    if (null != currentMetrics)
+    {
+      currentMetrics.close();
+    }
+  }
+
+  /**
+   * Returns the number of subscriptions registered with each broker key.
+   *
+   * @return the subscription counts.
+   */
+  public Map<BrokerKey, Integer> getSubscriptionCounts()
+  {
+    final Map<BrokerKey, Integer> rv = new HashMap<BrokerKey, Integer>();
+
+    for (BrokerState state : brokerMap.values())
+    {
+      int count = 0;
+
+      for (SubscriptionSource ent : state.consumers.values())
+      {
+        count += ent.getSubscriptionCount();
+      }
+
+      rv.put(state.key, count);
+    }
+
+    return rv;
+  }
+  
+  private NotifyDispatcher getDispatcher(final Map qosProperties)
+  {
+    NotifyDispatcher rv = dispatcher;
+
+    if (null == rv)
+    {
+      synchronized (bindings)
+      {
+        rv = dispatcher;
+
+        if (null == rv)
+        {
+          configuration = new BrokerConfiguration(qosProperties);
+          rv = new NotifyDispatcher(qosProperties);
+          delivery = new ConsumerDelivery<BrokerState>(rv, new ConsumerSender());
+          metrics = createMetrics(qosProperties);
+          configure(qosProperties);
+
+          // the journal is restored before the dispatcher is visible to the publish path
+          final SubscriptionJournal newJournal = SubscriptionJournal.open(qosProperties);
+
+          if (null != newJournal)
+          {
+            newJournal.restore(this, rv);
+          }
+
+          journal = newJournal;
+          shards = createShards(qosProperties);
+          pipeline = (null == shards) ? createPipeline(qosProperties) : null;
+          dispatcher = rv;
+        }
+      }
+    }
+
+    return rv;
+  }
+
+  private ConsumerDelivery<BrokerState> getDelivery()
+  {
+    // the delivery is created along with the dispatcher
+    getDispatcher(null);
+
+    return delivery;
+  }
+  
+  /**
+   * Allows a broker implementation to read its own configuration. Called once, with the QoS properties of the first
+   * binding, before any registrations are restored from the journal.
+   *
+   * @param qosProperties The QoS properties of the broker binding, may be null.
+   */
+  protected void configure(final Map qosProperties)
+  {
+    // nothing to configure by default
+  }
+
+  /**
+   * Returns the value of an integer configuration property, taken from the QoS properties if present, otherwise from
+   * the system properties.
+   *
+   * @param qosProperties The QoS properties of the broker binding, may be null.
+   * @param name The property name.
+   * @param defaultValue The value to return if the property is not set or is invalid.
+   * @return The property value.
+   */
+  protected static int getIntProperty(final Map qosProperties, final String name, final int defaultValue)
+  {
+    return BrokerProperties.getIntProperty(qosProperties, name, defaultValue);
+  }
+
+  private BrokerMetrics createMetrics(final Map qosProperties)
+  {
+    final String clsName = BrokerProperties.getStringProperty(qosProperties,
+            BrokerMetrics.CLASS_PROPERTY, JmxBrokerMetrics.class.getName());
+
+    if ("none".equalsIgnoreCase(clsName.trim()))
+    {
+      return null;
+    }
+
+    BrokerMetrics rv = null;
+
+    try
+    {
+      rv = (BrokerMetrics) Thread.currentThread().getContextClassLoader().loadClass(clsName.trim()).newInstance();
+    }
+    catch (ClassNotFoundException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to find broker metrics class: {0}", clsName);
+    }
+    catch (InstantiationException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to instantiate broker metrics: {0}", clsName);
+    }
+    catch (IllegalAccessException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "IllegalAccessException when instantiating broker metrics class: {0}", clsName);
+    }
+    catch (ClassCastException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Broker metrics class does not implement BrokerMetrics: {0}", clsName);
+    }
+
+    if (null == rv)
+    {
+      rv = new JmxBrokerMetrics();
+    }
+
+    rv.open(this);
+
+    return rv;
+  }
+  
+  private PublishPipeline createPipeline(final Map qosProperties)
+  {
+    final int size = PublishPipeline.getSize(qosProperties);
+
+    return (0 < size) ? new PublishPipeline(size, new PublishStages()) : null;
+  }
+
+  private BrokerShards createShards(final Map qosProperties)
+  {
+    final int count = BrokerShards.getCount(qosProperties);
+
+    if (0 == count)
+    {
+      return null;
+    }
+
+    if (0 < PublishPipeline.getSize(qosProperties))
+    {
+      MALBrokerImpl.LOGGER.warning("Broker publish pipeline is not used as the broker is run on shards");
+    }
+
+    return new BrokerShards(count, BrokerShards.getQueueSize(qosProperties));
+  }
+
+  /**
+   * Runs a change to the registrations of a broker key on the shard of the key, waiting for it to complete, or
+   * directly if the broker is not run on shards.
+   *
+   * @param key The broker key.
+   * @param task The change.
+   * @throws MALInteractionException On error.
+   * @throws MALException On error.
+   */
+  private void runOnShard(final BrokerKey key, final BrokerShards.Task task)
+          throws MALInteractionException, MALException
+  {
+    final BrokerShards currentShards = shards;
+
+    if (null != currentShards)
+    {
+      currentShards.executeAndWait(key, task);
+    }
+    else
+    {
+      task.run();
+    }
+  }
+
+  /**
+   * Waits for the publishes already in the pipeline to be checked before the registration of a publisher changes.
+   */
+  private void awaitPublishPipeline()
+  {
+    final PublishPipeline currentPipeline = pipeline;
+
+    if (null != currentPipeline)
+    {
+      currentPipeline.awaitValidated();
+    }
+  }
+
+  /**
+   * Replaces the registrations of a broker key with those restored from the journal.
+   *
+   * @param key The broker key.
+   * @param providers The restored providers.
+   * @param consumers The restored consumers.
+   * @param currentDispatcher The notify dispatcher.
+   */
+  void restoreState(final BrokerKey key,
+          final Map<ProviderKey, PublisherSource> providers,
+          final Map<String, SubscriptionSource> consumers,
+          final NotifyDispatcher currentDispatcher)
+  {
+    boolean restored = false;
+
+    while (!restored)
+    {
+      final BrokerState state = createBrokerState(key);
+
+      synchronized (state)
+      {
+        if (!state.removed)
+        {
+          restored = true;
+
+          for (SubscriptionSource ent : consumers.values())
+          {
+            prepareConsumer(state, ent, currentDispatcher);
+          }
+
+          state.providers = Collections.unmodifiableMap(providers);
+          state.consumers = Collections.unmodifiableMap(consumers);
+          removeIfUnused(state);
+        }
+      }
+    }
+  }
+
+  private void attachRestoredConsumers(final MALBrokerBindingImpl binding)
+  {
+    // restored consumers have not registered through a binding so are attached by the URI of the broker
+    if ((null != journal) && (null != binding.getURI()))
+    {
+      for (BrokerState state : brokerMap.values())
+      {
+        if (binding.getURI().getValue().equals(state.key.getUri()))
+        {
+          for (SubscriptionSource ent : state.consumers.values())
+          {
+            if (null == ent.getBinding())
+            {
+              binding.addSubscriber(ent.getSignature());
+              ent.setBinding(binding);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void prepareConsumer(final BrokerState state,
+          final SubscriptionSource ent,
+          final NotifyDispatcher currentDispatcher)
+  {
+    ent.setBinding(getBinding(ent.getSignature()));
+
+    if (currentDispatcher.isParallel())
+    {
+      ent.setOutboundQueue(currentDispatcher.createQueue(new OutboundQueue.Sender()
+      {
+        @Override
+        public boolean send(final NotifyMessageSet notifyMessageSet)
+        {
+          return sendQueuedNotify(state, ent, notifyMessageSet);
+        }
+
+        @Override
+        public void disconnect()
+        {
+          MALBrokerImpl.LOGGER.log(Level.WARNING, "Removing consumer due to NOTIFY lag : {0}", ent.getSignature());
+
+          disconnectConsumer(state, ent);
+        }
+      }));
+    }
+
+    final BrokerMetrics currentMetrics = metrics;
+    if (null != currentMetrics)
+    {
+      currentMetrics.consumerAdded(state.key, ent.getSignature());
+    }
+  }
+
+  private static Map getMessageQoSProperties(final MALInteraction interaction)
+  {
+    // the QoS properties of an interaction are those of its responses, the register properties are on its message
+    return (interaction instanceof BaseInteractionImpl)
+            ? ((BaseInteractionImpl) interaction).getMessageQoSProperties() : interaction.getQoSProperties();
+  }
+
+  private MALBrokerBindingImpl getBinding(final String uriTo)
+  {
+    return consumerBindings.get(uriTo);
+  }
+
+  private MALBrokerBindingImpl getBinding(final SubscriptionSource ent, final String uriTo)
+  {
+    // the binding is resolved when the consumer registers so normally no lookup is needed
+    final MALBrokerBindingImpl binding = (null == ent) ? null : ent.getBinding();
+
+    return (null != binding) ? binding : getBinding(uriTo);
+  }
+  
+  private void deliverNotify(final BrokerState state,
+          final SubscriptionSource ent,
+          final NotifyMessageSet notifyMessageSet) throws MALInteractionException, MALException
+  {
+    final String uriTo = notifyMessageSet.details.uriTo.getValue();
+    final OutboundQueue queue = (null == ent) ? null : ent.getOutboundQueue();
+
+    if (null != queue)
+    {
+      if (!queue.offer(notifyMessageSet))
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Removing consumer due to full or lagging NOTIFY queue : {0}", uriTo);
+
+        disconnectConsumer(state, ent);
+      }
+    }
+    else
+    {
+      final MALBrokerBindingImpl binding = getBinding(ent, uriTo);
+
+      if (null != binding)
+      {
+        if (!sendNotify(state, binding, notifyMessageSet))
+        {
+          handleConsumerCommunicationError(state, notifyMessageSet);
+        }
+      }
+      else
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to find consumer for NOTIFY : {0}", uriTo);
+      }
+    }
+  }
+
+  private boolean sendQueuedNotify(final BrokerState state,
+          final SubscriptionSource ent,
+          final NotifyMessageSet notifyMessageSet)
+  {
+    final MALBrokerBindingImpl binding = getBinding(ent, notifyMessageSet.details.uriTo.getValue());
+
+    if (null == binding)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to find consumer for NOTIFY : {0}", notifyMessageSet.details.uriTo.getValue());
+      return false;
+    }
+
+    try
+    {
+      return sendNotify(state, binding, notifyMessageSet);
+    }
+    catch (MALInteractionException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Exception raised during transmission of NOTIFY to consumer : {0}", notifyMessageSet.details.uriTo.getValue());
+    }
+    catch (MALException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Exception raised during transmission of NOTIFY to consumer : {0}", notifyMessageSet.details.uriTo.getValue());
+    }
+
+    return false;
+  }
+
+  /**
+   * Sends a set of notify messages through the binding of their consumer.
+   *
+   * @return False if the transport failed to send them.
+   */
+  private boolean sendNotify(final BrokerState state,
+          final MALBrokerBindingImpl binding,
+          final NotifyMessageSet notifyMessageSet) throws MALInteractionException, MALException
+  {
+    final BrokerMetrics currentMetrics = metrics;
+    final long start = (null == currentMetrics) ? 0 : System.nanoTime();
+    boolean failed = false;
+
+    try
+    {
+      binding.sendNotifies(notifyMessageSet);
+    }
+    catch (MALTransmitErrorException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Exception raised during transmission of NOTIFY to consumer : {0}", notifyMessageSet.details.uriTo.getValue());
+      failed = true;
+    }
+    catch (MALTransmitMultipleErrorException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Exception raised during transmission of NOTIFY to consumer : {0}", notifyMessageSet.details.uriTo.getValue());
+      failed = true;
+    }
+
+    if (null != currentMetrics)
+    {
+      if (failed)
+      {
+        currentMetrics.notifyFailed(state.key, notifyMessageSet.details.uriTo.getValue());
+      }
+      else
+      {
+        currentMetrics.notifySent(state.key, notifyMessageSet.details.uriTo.getValue(),
+                notifyMessageSet.messages.size(), System.nanoTime() - start);
+      }
+    }
+
+    return !failed;
+  }
+  
+  private UpdateHeaderList checkPublish(final BrokerState state,
+          final MALMessageHeader hdr,
+          final MALPublishBody publishBody,
+          final boolean federated) throws MALInteractionException, MALException
+  {
+    final UpdateHeaderList hl = publishBody.getUpdateHeaderList();
+
+    // the updates of a federated broker have already been checked against their provider
+    if (!federated)
+    {
+      MALBrokerImpl.LOGGER.fine("Checking provider");
+      final PublisherSource details = getProviderEntry(state, hdr);
+
+      if (null == details)
+      {
+        MALBrokerImpl.LOGGER.warning("Provider not known");
+        throw new MALInteractionException(new MALStandardError(MALHelper.INCORRECT_STATE_ERROR_NUMBER, null));
+      }
+
+      details.checkPublish(hdr, hl);
+    }
+
+    return hl;
+  }
+
+  private java.util.List<NotifyMessageSet> createNotify(final BrokerKey key, final BrokerState state,
+          final MALMessageHeader hdr, final MALOperation operation, final MALPublishBody publishBody,
+          final UpdateHeaderList hl) throws MALException
+  {
+    final List<NotifyMessageSet> lst = new LinkedList<NotifyMessageSet>();
+    
+    if (hl != null)
+    {
+      final BrokerConfiguration currentConfiguration = configuration;
+      final PublishedUpdates updates = new PublishedUpdates(publishBody, hl, operation,
+              (null != currentConfiguration) && currentConfiguration.isPassThrough());
+
+      if (null != state.lastValues)
+      {
+        state.lastValues.update(hdr, hl, updates);
+      }
+
+      populateNotifyList(key, hdr, lst, hl, updates);
+    }
+    
+    return lst;
+  }
+
+  /**
+   * Adds the notify messages generated by a publish to the list of messages to be sent out. The default implementation
+   * asks each registered consumer of the broker in turn, broker implementations may override this to provide a more
+   * efficient search of the registered subscriptions. It is called without holding the lock of the broker key and so
+   * must only read state that has been safely published by the registration methods.
+   *
+   * @param key The broker key of the publish.
+   * @param hdr Source publish message.
+   * @param lst List of broker messages.
+   * @param updateHeaderList The update header list.
+   * @param updates The update lists of the publish message.
+   * @throws MALException On error.
+   */
+  protected void populateNotifyList(final BrokerKey key,
+          final MALMessageHeader hdr,
+          final List<NotifyMessageSet> lst,
+          final UpdateHeaderList updateHeaderList,
+          final PublishedUpdates updates) throws MALException
+  {
+    for (SubscriptionSource subscriptionSource : getConsumers(key))
+    {
+      subscriptionSource.populateNotifyList(hdr, lst, updateHeaderList, updates);
+    }
+  }
+
+  /**
+   * Returns the consumers currently registered with a broker key. The returned collection is an immutable view that is
+   * safe to iterate without holding the lock of the broker key.
+   *
+   * @param key The broker key.
+   * @return The consumers.
+   */
+  protected Collection<SubscriptionSource> getConsumers(final BrokerKey key)
+  {
+    return getBrokerState(key).consumers.values();
+  }
+  
+  private static void report(final BrokerState state)
+  {
+    if (MALBrokerImpl.LOGGER.isLoggable(Level.FINE))
+    {
+      MALBrokerImpl.LOGGER.fine("START REPORT");
+      
+      for (PublisherSource subscriptionSource : state.providers.values())
+      {
+        subscriptionSource.report();
+      }
+      
+      for (SubscriptionSource subscriptionSource : state.consumers.values())
+      {
+        subscriptionSource.report();
+
+        if (null != subscriptionSource.getOutboundQueue())
+        {
+          MALBrokerImpl.LOGGER.log(Level.FINE, "  NOTIFY queue : {0}", subscriptionSource.getOutboundQueue());
+        }
+      }
+      
+      MALBrokerImpl.LOGGER.fine("END REPORT");
+    }
+  }
+  
+  /**
+   * Returns the state of a broker key, or an empty state that is not held by the broker if the key has no providers or
+   * consumers, so that looking up an unused key does not add it.
+   */
+  private BrokerState getBrokerState(final BrokerKey key)
+  {
+    final BrokerState rv = brokerMap.get(key);
+
+    return (null == rv) ? new BrokerState(key, null) : rv;
+  }
+
+  /**
+   * Returns the state of a broker key, adding it if needed. The state is removed once it has no providers or
+   * consumers, so the caller must check that it has not been removed once it holds its lock, and get it again if it
+   * has.
+   */
+  private BrokerState createBrokerState(final BrokerKey key)
+  {
+    BrokerState rv = brokerMap.get(key);
+    
+    if (null == rv)
+    {
+      final BrokerConfiguration currentConfiguration = configuration;
+      final BrokerState newState = new BrokerState(key,
+              (null == currentConfiguration) ? null : currentConfiguration.createLastValueCache());
+      rv = brokerMap.putIfAbsent(key, newState);
+      
+      if (null == rv)
+      {
+        rv = newState;
+      }
+    }
+    
+    return rv;
+  }
+
+  /**
+   * Removes the state of a broker key once it has neither providers nor consumers, called holding its lock.
+   */
+  private void removeIfUnused(final BrokerState state)
+  {
+    if (state.providers.isEmpty() && state.consumers.isEmpty() && (state == brokerMap.get(state.key)))
+    {
+      // the subclass state is dropped first, as a new state for the key can only be added once this one is removed
+      brokerKeyRemoved(state.key);
+      state.removed = true;
+      brokerMap.remove(state.key, state);
+    }
+  }
+  
+  private static PublisherSource getProviderEntry(final BrokerState state, final MALMessageHeader hdr)
+  {
+    return state.providers.get(new ProviderKey(hdr.getURIFrom().getValue(), hdr));
+  }
+  
+  /**
+   * Counts a failed send to a consumer without an outbound queue, consumers with one are removed by the lag of their
+   * queue instead.
+   */
+  private void handleConsumerCommunicationError(final BrokerState state, final NotifyMessageSet notifyMessageSet)
+  {
+    boolean refresh = false;
+
+    synchronized (state)
+    {
+      final SubscriptionSource ent = state.consumers.get(notifyMessageSet.details.uriTo.getValue());
+
+      if (null != ent)
+      {
+        ent.incCommsErrorCount();
+
+        if (ent.getCommsErrorCount() > 2)
+        {
+          MALBrokerImpl.LOGGER.log(Level.WARNING, "Removing to consumer due to too many comms errors : {0}", notifyMessageSet.details.uriTo.getValue());
+
+          // three strikes and you're out!
+          refresh = !federation.isPeer(state.key, ent.getSignature());
+          removeConsumer(state, ent);
+        }
       }
     }
+
+    if (refresh)
+    {
+      federation.refresh(state.key);
+    }
   }
   
-  private void internalDeregisterSubscriptions(final BrokerKey key, final SubscriptionSource ent, final IdentifierList subscriptions)
+  private void disconnectConsumer(final BrokerState state, final SubscriptionSource ent)
+  {
+    boolean refresh = false;
+
+    synchronized (state)
+    {
+      // the consumer may already have been removed by another publish
+      if (ent == state.consumers.get(ent.getSignature()))
+      {
+        refresh = !federation.isPeer(state.key, ent.getSignature());
+        removeConsumer(state, ent);
+      }
+    }
+
+    if (refresh)
+    {
+      federation.refresh(state.key);
+    }
+  }
+
+  private void removeConsumer(final BrokerState state, final SubscriptionSource ent)
+  {
+    internalDeregisterSubscriptions(state, ent, null);
+
+    final SubscriptionJournal currentJournal = journal;
+    if (null != currentJournal)
+    {
+      currentJournal.removeConsumer(state.key, ent.getSignature());
+    }
+  }
+
+  private void internalDeregisterSubscriptions(final BrokerState state, final SubscriptionSource ent, final IdentifierList subscriptions)
   {
     if (null != ent)
     {
       ent.removeSubscriptions(subscriptions);
+      ent.recordDeregistration(subscriptions);
       if (!ent.active())
       {
-        final Map<String, SubscriptionSource> rv = getConsumerMap(key);
-        rv.remove(ent.getSignature());
-        
-        if (rv.isEmpty())
+        state.removeConsumer(ent.getSignature());
+
+        if (null != ent.getOutboundQueue())
+        {
+          ent.getOutboundQueue().close();
+        }
+
+        final BrokerMetrics currentMetrics = metrics;
+        if (null != currentMetrics)
+        {
+          currentMetrics.consumerRemoved(state.key, ent.getSignature());
+        }
+
+        removeIfUnused(state);
+      }
+    }
+  }
+
+  /**
+   * Adds a federation link, the subscriptions of the broker keys it serves are forwarded to its peer straight away.
+   * The consumer that is the link of its peer stops counting as a local consumer, so the other links are refreshed
+   * too.
+   *
+   * @param link The link.
+   */
+  void addFederationLink(final FederationLink link)
+  {
+    federation.add(link);
+    refreshFederation();
+  }
+
+  /**
+   * Removes a federation link, the consumer that is the link of its peer counts as a local consumer again.
+   *
+   * @param link The link.
+   */
+  void removeFederationLink(final FederationLink link)
+  {
+    federation.remove(link);
+    refreshFederation();
+  }
+
+  /**
+   * Returns the subscriptions of the local consumers of a broker key, those of federated brokers are excluded.
+   *
+   * @param key The broker key.
+   * @return The subscriptions in the form they were registered.
+   */
+  List<SubscriptionSource.Registration> getFederationInterest(final BrokerKey key)
+  {
+    final BrokerState state = getBrokerState(key);
+    final List<SubscriptionSource.Registration> rv = new ArrayList<SubscriptionSource.Registration>();
+
+    synchronized (state)
+    {
+      for (SubscriptionSource ent : state.consumers.values())
+      {
+        if (!federation.isPeer(key, ent.getSignature()))
         {
-          consumerMap.remove(key);
+          rv.addAll(ent.getRegistrations());
         }
       }
     }
+
+    return rv;
+  }
+
+  private static long priorityOf(final NotifyMessageSet notifyMessageSet)
+  {
+    final UInteger priority = notifyMessageSet.details.priority;
+
+    return (null == priority) ? 0 : priority.getValue();
+  }
+
+  private void refreshFederation()
+  {
+    for (BrokerState state : brokerMap.values())
+    {
+      federation.refresh(state.key);
+    }
+  }
+
+  /**
+   * Called when a broker key no longer has any providers or consumers, holding the lock of the key, so that broker
+   * implementations can drop the state they keep for it. Does nothing by default.
+   *
+   * @param key The broker key.
+   */
+  protected void brokerKeyRemoved(final BrokerKey key)
+  {
   }
 
   /**
@@ -404,4 +1494,164 @@ public abstract class MALBrokerHandlerImpl extends MALClose implements MALBroker
    * @return The new subscription source object.
    */
   protected abstract SubscriptionSource createEntry(final MALMessageHeader hdr);
+
+  /**
+   * Returns an error to a publisher whose publish was rejected after the transport thread returned, or logs it if the
+   * publish was not received from a publisher.
+   *
+   * @param interaction The publish interaction, may be null.
+   * @param hdr The publish message header.
+   * @param error The error.
+   */
+  private void rejectPublish(final MALInteraction interaction,
+          final MALMessageHeader hdr,
+          final MALStandardError error)
+  {
+    if (interaction instanceof PubSubInteractionImpl)
+    {
+      try
+      {
+        ((PubSubInteractionImpl) interaction).returnPublishError(error);
+      }
+      catch (MALException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to return publish error to publisher", ex);
+      }
+    }
+    else
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Rejected publish from {0} : {1}",
+              new Object[]{hdr.getURIFrom(), error});
+    }
+  }
+
+  /**
+   * The stages of the publish pipeline, each running the corresponding part of the inline publish path.
+   */
+  private final class PublishStages implements PublishPipeline.Stages
+  {
+    @Override
+    public boolean validate(final PublishPipeline.Slot slot)
+    {
+      try
+      {
+        slot.updateHeaders = checkPublish(getBrokerState(slot.key), slot.header, slot.body, slot.federated);
+        return true;
+      }
+      catch (MALInteractionException ex)
+      {
+        rejectPublish(slot.interaction, slot.header, ex.getStandardError());
+      }
+      catch (MALException ex)
+      {
+        rejectPublish(slot.interaction, slot.header, new MALStandardError(MALHelper.INTERNAL_ERROR_NUMBER,
+                new Union(ex.getLocalizedMessage())));
+      }
+
+      return false;
+    }
+
+    @Override
+    public boolean match(final PublishPipeline.Slot slot)
+    {
+      try
+      {
+        slot.notifyList = matchPublish(slot.key, getBrokerState(slot.key), slot.header, slot.operation, slot.body,
+                slot.updateHeaders, slot.federated);
+        return true;
+      }
+      catch (MALException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to match published updates", ex);
+      }
+
+      return false;
+    }
+
+    @Override
+    public void send(final PublishPipeline.Slot slot)
+    {
+      try
+      {
+        deliverPublish(getBrokerState(slot.key), slot.notifyList);
+      }
+      catch (MALInteractionException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to send notify messages of publish", ex);
+      }
+      catch (MALException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to send notify messages of publish", ex);
+      }
+    }
+  }
+
+  /**
+   * Sends the notify messages handed on by the consumer delivery.
+   */
+  private final class ConsumerSender implements ConsumerDelivery.Sender<BrokerState>
+  {
+    @Override
+    public void send(final BrokerState state,
+            final SubscriptionSource ent,
+            final NotifyMessageSet notifyMessageSet) throws MALInteractionException, MALException
+    {
+      deliverNotify(state, ent, notifyMessageSet);
+    }
+
+    @Override
+    public boolean isRegistered(final BrokerState state, final SubscriptionSource ent)
+    {
+      return ent == state.consumers.get(ent.getSignature());
+    }
+  }
+
+  /**
+   * Holds the publishers and consumers of a single broker key. The object is also used as the lock for that state, the
+   * maps are never modified once published and are instead replaced, holding the lock, with updated copies. The state
+   * is removed from the broker, and flagged as removed holding its lock, once both maps are empty.
+   */
+  private static final class BrokerState
+  {
+    private final BrokerKey key;
+    private final LastValueCache lastValues;
+    private boolean removed = false;
+    private volatile Map<ProviderKey, PublisherSource> providers = Collections.emptyMap();
+    private volatile Map<String, SubscriptionSource> consumers = Collections.emptyMap();
+
+    private BrokerState(final BrokerKey key, final LastValueCache lastValues)
+    {
+      this.key = key;
+      this.lastValues = lastValues;
+    }
+
+    private void putProvider(final ProviderKey sig, final PublisherSource details)
+    {
+      final Map<ProviderKey, PublisherSource> rv = new HashMap<ProviderKey, PublisherSource>(providers);
+      rv.put(sig, details);
+      providers = Collections.unmodifiableMap(rv);
+    }
+
+    private PublisherSource removeProvider(final ProviderKey sig)
+    {
+      final Map<ProviderKey, PublisherSource> rv = new HashMap<ProviderKey, PublisherSource>(providers);
+      final PublisherSource details = rv.remove(sig);
+      providers = Collections.unmodifiableMap(rv);
+      return details;
+    }
+
+    private void putConsumer(final String sig, final SubscriptionSource ent)
+    {
+      final Map<String, SubscriptionSource> rv = new HashMap<String, SubscriptionSource>(consumers);
+      rv.put(sig, ent);
+      consumers = Collections.unmodifiableMap(rv);
+    }
+
+    private void removeConsumer(final String sig)
+    {
+      final Map<String, SubscriptionSource> rv = new HashMap<String, SubscriptionSource>(consumers);
+      rv.remove(sig);
+      consumers = Collections.unmodifiableMap(rv);
+    }
+  }
 }
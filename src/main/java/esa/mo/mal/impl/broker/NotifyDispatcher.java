@@ -0,0 +1,275 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import org.ccsds.moims.mo.mal.structures.UInteger;
+
+/**
+ * Sends the notify messages of a broker to its consumers. By default the messages are sent on the thread that handles
+ * the publish, if a pool size is configured each consumer is instead given its own bounded outbound queue that is
+ * drained by a pool of worker threads so that a slow consumer does not delay the others. The messages of a single
+ * consumer are always sent in the order they were queued, what happens when the queue of a consumer is full is set by
+ * the overflow policy property, and a consumer whose lag exceeds the maximum lag property is disconnected.
+ *
+ * When the pool is saturated the consumer queues waiting for a worker are served in the priority order of the
+ * subscriptions of their consumers, a higher MAL priority value being served first, so that for example alarms overtake
+ * bulk telemetry. To stop a busy high priority consumer starving the others a waiting queue is aged, each aging
+ * interval it has waited counts as one extra level of priority.
+ *
+ * The dispatcher also owns the timer that sends the updates held back by throttled subscriptions, created when first
+ * needed.
+ */
+final class NotifyDispatcher
+{
+  /**
+   * Property that sets the number of threads used to send notify messages, zero (the default) sends them on the
+   * publishing thread.
+   */
+  public static final String POOL_SIZE_PROPERTY = "org.ccsds.moims.mo.mal.broker.notify.poolSize";
+  /**
+   * Property that sets the maximum number of notify message sets queued for a single consumer.
+   */
+  public static final String QUEUE_SIZE_PROPERTY = "org.ccsds.moims.mo.mal.broker.notify.queueSize";
+  /**
+   * Property that sets the overflow policy of the consumer queues, one of the names of
+   * {@link OutboundQueue.OverflowPolicy}, DISCONNECT by default.
+   */
+  public static final String OVERFLOW_POLICY_PROPERTY = "org.ccsds.moims.mo.mal.broker.notify.overflowPolicy";
+  /**
+   * Property that sets the time, in milliseconds, a consumer queue must wait for a worker to gain one level of
+   * priority.
+   */
+  public static final String PRIORITY_AGING_PROPERTY = "org.ccsds.moims.mo.mal.broker.notify.priorityAging";
+  /**
+   * Property that sets the lag, in milliseconds, beyond which a consumer with an outbound queue is disconnected, zero
+   * never disconnects a consumer for its lag.
+   */
+  public static final String MAX_LAG_PROPERTY = "org.ccsds.moims.mo.mal.broker.notify.maxLag";
+  private static final int DEFAULT_POOL_SIZE = 0;
+  private static final int DEFAULT_QUEUE_SIZE = 1000;
+  private static final int DEFAULT_PRIORITY_AGING = 10;
+  private static final int DEFAULT_MAX_LAG = 10000;
+  private final ThreadPoolExecutor executor;
+  private final int queueSize;
+  private final OutboundQueue.OverflowPolicy overflowPolicy;
+  private final long agingNanos;
+  private final long maxLagNanos;
+  private final AtomicLong sequence = new AtomicLong();
+  private ScheduledThreadPoolExecutor timer = null;
+  private boolean closed = false;
+
+  /**
+   * Constructor.
+   *
+   * @param qosProperties The QoS properties of the broker binding, may be null.
+   */
+  NotifyDispatcher(final Map qosProperties)
+  {
+    final int poolSize = BrokerProperties.getIntProperty(qosProperties, POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE);
+    this.queueSize = BrokerProperties.getIntProperty(qosProperties, QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+    this.overflowPolicy = getOverflowPolicy(qosProperties);
+    this.agingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1,
+            BrokerProperties.getIntProperty(qosProperties, PRIORITY_AGING_PROPERTY, DEFAULT_PRIORITY_AGING)));
+    this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+            BrokerProperties.getIntProperty(qosProperties, MAX_LAG_PROPERTY, DEFAULT_MAX_LAG)));
+
+    if (0 < poolSize)
+    {
+      executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+              new PriorityBlockingQueue<Runnable>(), new NotifyThreadFactory("MALBrokerNotify-"));
+      MALBrokerImpl.LOGGER.log(Level.FINE, "Creating broker notify pool of {0} threads", poolSize);
+    }
+    else
+    {
+      executor = null;
+    }
+  }
+
+  /**
+   * Returns true if notify messages are sent by a pool of worker threads rather than the publishing thread.
+   *
+   * @return True if a pool is used.
+   */
+  boolean isParallel()
+  {
+    return null != executor;
+  }
+
+  /**
+   * Creates the outbound queue of a new consumer. Must only be called if this dispatcher is parallel.
+   *
+   * @param sender The sender of the queued messages.
+   * @return The new queue.
+   */
+  OutboundQueue createQueue(final OutboundQueue.Sender sender)
+  {
+    return new OutboundQueue(this, queueSize, overflowPolicy, maxLagNanos, sender);
+  }
+
+  /**
+   * Schedules a task on the worker pool in priority order. A task of priority p that has waited since a given time is
+   * run ahead of one of priority p + n that was queued less than n aging intervals later.
+   *
+   * @param task The task.
+   * @param priority The MAL priority of the task, null is the lowest priority.
+   * @param waitingSince The time, from System.nanoTime, the task has been waiting since.
+   * @throws java.util.concurrent.RejectedExecutionException If the pool is closed.
+   */
+  void schedule(final Runnable task, final UInteger priority, final long waitingSince)
+  {
+    final long level = (null == priority) ? 0 : priority.getValue();
+
+    executor.execute(new PrioritisedTask(task, waitingSince - level * agingNanos, sequence.getAndIncrement()));
+  }
+
+  /**
+   * Runs a task on the timer thread after a delay.
+   *
+   * @param task The task.
+   * @param delay The delay in nanoseconds.
+   * @throws java.util.concurrent.RejectedExecutionException If the dispatcher is closed.
+   */
+  void scheduleAfter(final Runnable task, final long delay)
+  {
+    getTimer().schedule(task, delay, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Stops the worker threads and the timer, any messages not yet sent are discarded.
+   */
+  void close()
+  {
+    if (null != executor)
+    {
+      executor.shutdownNow();
+    }
+
+    synchronized (this)
+    {
+      closed = true;
+
+      if (null != timer)
+      {
+        timer.shutdownNow();
+      }
+    }
+  }
+
+  private synchronized ScheduledThreadPoolExecutor getTimer()
+  {
+    if (null == timer)
+    {
+      timer = new ScheduledThreadPoolExecutor(1, new NotifyThreadFactory("MALBrokerThrottle-"));
+
+      if (closed)
+      {
+        timer.shutdown();
+      }
+    }
+
+    return timer;
+  }
+
+  private static OutboundQueue.OverflowPolicy getOverflowPolicy(final Map qosProperties)
+  {
+    final String value = BrokerProperties.getStringProperty(qosProperties, OVERFLOW_POLICY_PROPERTY, null);
+
+    if (null != value)
+    {
+      try
+      {
+        return OutboundQueue.OverflowPolicy.valueOf(value.trim().toUpperCase());
+      }
+      catch (IllegalArgumentException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Unknown broker overflow policy, using DISCONNECT : {0}", value);
+      }
+    }
+
+    return OutboundQueue.OverflowPolicy.DISCONNECT;
+  }
+
+  /**
+   * A task ordered by its virtual start time, its waiting time brought forward by its priority, ties are broken in
+   * scheduling order.
+   */
+  private static final class PrioritisedTask implements Runnable, Comparable<PrioritisedTask>
+  {
+    private final Runnable task;
+    private final long virtualTime;
+    private final long sequence;
+
+    private PrioritisedTask(final Runnable task, final long virtualTime, final long sequence)
+    {
+      this.task = task;
+      this.virtualTime = virtualTime;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run()
+    {
+      task.run();
+    }
+
+    @Override
+    public int compareTo(final PrioritisedTask other)
+    {
+      // the times are compared by difference as System.nanoTime may wrap
+      final long diff = virtualTime - other.virtualTime;
+
+      if (0 != diff)
+      {
+        return (0 > diff) ? -1 : 1;
+      }
+
+      return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+    }
+  }
+
+  private static final class NotifyThreadFactory implements ThreadFactory
+  {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    private NotifyThreadFactory(final String prefix)
+    {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r)
+    {
+      final Thread thread = new Thread(r, prefix + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
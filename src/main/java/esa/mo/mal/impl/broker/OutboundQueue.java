@@ -0,0 +1,487 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.broker.NotifyMessageSet.NotifyMessage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+
+/**
+ * A bounded queue of the notify messages waiting to be sent to a single consumer. The queue is drained by at most one
+ * worker thread at a time so the messages are sent in the order they were queued. What happens when a message is
+ * queued to a full queue is decided by the overflow policy of the queue.
+ *
+ * A worker sends at most a small batch of messages before scheduling the queue again with the priority of its consumer,
+ * so that a busy consumer does not hold a worker while queues of a higher priority are waiting.
+ *
+ * The queue records its depth, the number of messages it has dropped or conflated and the lag of the consumer, which is the time a
+ * message waited in the queue before being sent.
+ *
+ * A consumer is disconnected by the lag of its queue rather than by counting its failed sends. The lag of a consumer
+ * whose sends fail keeps growing from the first message that failed until one is delivered, and the lag of a consumer
+ * whose send does not return grows with the age of the oldest message still queued. Once it exceeds the maximum lag of
+ * the queue the queue is closed and the consumer disconnected.
+ */
+public final class OutboundQueue
+{
+  /**
+   * The action taken when a message is queued to a full queue.
+   */
+  public enum OverflowPolicy
+  {
+    /**
+     * The oldest queued message is dropped to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * The new message is dropped.
+     */
+    DROP_NEWEST,
+    /**
+     * The consumer is disconnected from the broker.
+     */
+    DISCONNECT,
+    /**
+     * Queued updates are replaced by newer updates of the same subscription and entity key, so a lagging consumer
+     * receives only the latest value of each key. CREATION and DELETION updates are never replaced. If the queue is
+     * still full the remaining updates are merged into the newest queued message.
+     */
+    CONFLATE
+  }
+
+  private static final int DRAIN_BATCH_SIZE = 16;
+  private final NotifyDispatcher dispatcher;
+  private final int capacity;
+  private final OverflowPolicy policy;
+  private final Sender sender;
+  private final long maxLag;
+  private final Deque<QueuedSet> queue = new ArrayDeque<QueuedSet>();
+  private final ConflationIndex conflationIndex;
+  private final Runnable drainTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      drain();
+    }
+  };
+  private boolean scheduled = false;
+  private boolean closed = false;
+  private int maxDepth = 0;
+  private long droppedCount = 0;
+  private long lastLag = 0;
+  private long maxLagSeen = 0;
+  private long failingSince = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param dispatcher The dispatcher whose workers drain the queue.
+   * @param capacity The maximum number of queued message sets.
+   * @param policy The overflow policy.
+   * @param maxLag The lag, in nanoseconds, beyond which the consumer is disconnected, zero for no limit.
+   * @param sender The sender of the queued messages.
+   */
+  OutboundQueue(final NotifyDispatcher dispatcher,
+          final int capacity,
+          final OverflowPolicy policy,
+          final long maxLag,
+          final Sender sender)
+  {
+    this.dispatcher = dispatcher;
+    this.capacity = (0 < capacity) ? capacity : 1;
+    this.policy = policy;
+    this.maxLag = maxLag;
+    this.sender = sender;
+    this.conflationIndex = (OverflowPolicy.CONFLATE == policy) ? new ConflationIndex() : null;
+  }
+
+  /**
+   * Queues a set of notify messages for sending. Returns false if the queue is full and its policy is to disconnect
+   * the consumer, or if the oldest queued message has waited longer than the maximum lag, in which case the messages
+   * are not queued.
+   *
+   * @param notifyMessageSet The messages to send.
+   * @return False if the consumer should be disconnected.
+   */
+  boolean offer(final NotifyMessageSet notifyMessageSet)
+  {
+    final QueuedSet queuedSet;
+
+    synchronized (this)
+    {
+      if (closed)
+      {
+        return true;
+      }
+
+      // a consumer whose send never returns is only noticed by the age of the messages waiting behind it
+      if (!queue.isEmpty() && isLagging(queue.peekFirst().queuedTime))
+      {
+        return false;
+      }
+
+      if (null != conflationIndex)
+      {
+        conflationIndex.conflate(notifyMessageSet);
+
+        if (notifyMessageSet.messages.isEmpty())
+        {
+          return true;
+        }
+      }
+
+      if (capacity <= queue.size())
+      {
+        switch (policy)
+        {
+          case DROP_OLDEST:
+            removed(queue.pollFirst());
+            ++droppedCount;
+            break;
+          case DROP_NEWEST:
+            ++droppedCount;
+            return true;
+          case CONFLATE:
+            merge(queue.peekLast(), notifyMessageSet);
+            return true;
+          default:
+            return false;
+        }
+      }
+
+      queuedSet = new QueuedSet(notifyMessageSet);
+      queue.addLast(queuedSet);
+
+      if (null != conflationIndex)
+      {
+        for (NotifyMessage msg : notifyMessageSet.messages)
+        {
+          conflationIndex.index(queuedSet, msg, 0, queuedSet.indexedKeys);
+        }
+      }
+
+      if (maxDepth < queue.size())
+      {
+        maxDepth = queue.size();
+      }
+
+      if (scheduled)
+      {
+        return true;
+      }
+
+      scheduled = true;
+    }
+
+    schedule(queuedSet);
+
+    return true;
+  }
+
+  /**
+   * Discards any queued messages and stops the queue accepting new ones.
+   */
+  synchronized void close()
+  {
+    closed = true;
+    queue.clear();
+
+    if (null != conflationIndex)
+    {
+      conflationIndex.clear();
+    }
+  }
+
+  /**
+   * Returns the overflow policy of this queue.
+   *
+   * @return the policy.
+   */
+  public OverflowPolicy getPolicy()
+  {
+    return policy;
+  }
+
+  /**
+   * Returns the number of message sets currently queued.
+   *
+   * @return the depth.
+   */
+  public synchronized int getDepth()
+  {
+    return queue.size();
+  }
+
+  /**
+   * Returns the largest number of message sets that have been queued at once.
+   *
+   * @return the maximum depth.
+   */
+  public synchronized int getMaxDepth()
+  {
+    return maxDepth;
+  }
+
+  /**
+   * Returns the number of message sets dropped because the queue was full.
+   *
+   * @return the dropped count.
+   */
+  public synchronized long getDroppedCount()
+  {
+    return droppedCount;
+  }
+
+  /**
+   * Returns the number of updates replaced by a newer update of the same key, always zero unless the policy is
+   * CONFLATE.
+   *
+   * @return the conflated count.
+   */
+  public synchronized long getConflatedCount()
+  {
+    return (null == conflationIndex) ? 0 : conflationIndex.getConflatedCount();
+  }
+
+  /**
+   * Returns the time, in nanoseconds, that the last message sent waited in the queue.
+   *
+   * @return the last lag.
+   */
+  public synchronized long getLastLag()
+  {
+    return lastLag;
+  }
+
+  /**
+   * Returns the longest time, in nanoseconds, that a message has waited in the queue.
+   *
+   * @return the maximum lag.
+   */
+  public synchronized long getMaxLag()
+  {
+    return maxLagSeen;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "depth=" + queue.size() + " maxDepth=" + maxDepth + " dropped=" + droppedCount
+            + " conflated=" + getConflatedCount()
+            + " lastLag=" + lastLag + "ns maxLag=" + maxLagSeen + "ns";
+  }
+
+  private void schedule(final QueuedSet head)
+  {
+    try
+    {
+      dispatcher.schedule(drainTask, head.notifyMessageSet.details.priority, head.queuedTime);
+    }
+    catch (RejectedExecutionException ex)
+    {
+      // the broker is closing
+      close();
+    }
+  }
+
+  private void drain()
+  {
+    QueuedSet head = null;
+
+    for (int i = 0; true; ++i)
+    {
+      final QueuedSet next;
+
+      synchronized (this)
+      {
+        if (DRAIN_BATCH_SIZE <= i)
+        {
+          // give way to the queues of a higher priority, the queue stays scheduled
+          head = queue.peekFirst();
+
+          if (null != head)
+          {
+            break;
+          }
+        }
+
+        next = queue.pollFirst();
+
+        if (null == next)
+        {
+          scheduled = false;
+          return;
+        }
+
+        removed(next);
+
+        lastLag = System.nanoTime() - next.queuedTime;
+        if (maxLagSeen < lastLag)
+        {
+          maxLagSeen = lastLag;
+        }
+      }
+
+      boolean sent = false;
+
+      try
+      {
+        sent = sender.send(next.notifyMessageSet);
+      }
+      catch (RuntimeException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Exception raised during transmission of NOTIFY", ex);
+      }
+
+      if (sentOrWithinLag(sent, next))
+      {
+        continue;
+      }
+
+      close();
+      sender.disconnect();
+      return;
+    }
+
+    schedule(head);
+  }
+
+  private synchronized boolean sentOrWithinLag(final boolean sent, final QueuedSet queuedSet)
+  {
+    if (sent)
+    {
+      failingSince = 0;
+      return true;
+    }
+
+    if (0 == failingSince)
+    {
+      failingSince = queuedSet.queuedTime;
+    }
+
+    return closed || !isLagging(failingSince);
+  }
+
+  private boolean isLagging(final long since)
+  {
+    return (0 < maxLag) && (maxLag < System.nanoTime() - since);
+  }
+
+  private void removed(final QueuedSet queuedSet)
+  {
+    if (null != conflationIndex)
+    {
+      conflationIndex.remove(queuedSet, queuedSet.indexedKeys);
+    }
+  }
+
+  private void merge(final QueuedSet queued, final NotifyMessageSet notifyMessageSet)
+  {
+    for (NotifyMessage msg : notifyMessageSet.messages)
+    {
+      final NotifyMessage target = findMatching(queued.notifyMessageSet.messages, msg);
+
+      if (null == target)
+      {
+        queued.notifyMessageSet.messages.add(msg);
+        conflationIndex.index(queued, msg, 0, queued.indexedKeys);
+      }
+      else
+      {
+        final int from = target.updateHeaderList.size();
+        target.updateHeaderList.addAll(msg.updateHeaderList);
+
+        if ((null != target.updateList) && (null != msg.updateList))
+        {
+          for (int i = 0; i < target.updateList.length; i++)
+          {
+            if ((null != target.updateList[i]) && (null != msg.updateList[i]))
+            {
+              target.updateList[i].addAll(msg.updateList[i]);
+            }
+          }
+        }
+
+        conflationIndex.index(queued, target, from, queued.indexedKeys);
+      }
+    }
+  }
+
+  private static NotifyMessage findMatching(final List<NotifyMessage> messages, final NotifyMessage msg)
+  {
+    for (NotifyMessage candidate : messages)
+    {
+      if (equal(candidate.subscriptionId, msg.subscriptionId)
+              && equal(candidate.domain, msg.domain)
+              && equal(candidate.networkZone, msg.networkZone)
+              && equal(candidate.area, msg.area)
+              && equal(candidate.service, msg.service)
+              && equal(candidate.operation, msg.operation)
+              && equal(candidate.version, msg.version))
+      {
+        return candidate;
+      }
+    }
+
+    return null;
+  }
+
+  private static boolean equal(final Object lhs, final Object rhs)
+  {
+    return (lhs == null) ? (rhs == null) : lhs.equals(rhs);
+  }
+
+  /**
+   * Sends the messages taken from the queue.
+   */
+  interface Sender
+  {
+    /**
+     * Sends a set of notify messages to the consumer.
+     *
+     * @param notifyMessageSet The messages to send.
+     * @return True if the messages were delivered to the transport.
+     */
+    boolean send(NotifyMessageSet notifyMessageSet);
+
+    /**
+     * Disconnects the consumer, called once its lag has exceeded the maximum lag of the queue.
+     */
+    void disconnect();
+  }
+
+  private static final class QueuedSet
+  {
+    private final NotifyMessageSet notifyMessageSet;
+    private final long queuedTime = System.nanoTime();
+    private final List<Object> indexedKeys = new ArrayList<Object>();
+
+    private QueuedSet(final NotifyMessageSet notifyMessageSet)
+    {
+      this.notifyMessageSet = notifyMessageSet;
+    }
+  }
+}
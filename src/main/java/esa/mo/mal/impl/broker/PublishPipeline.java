@@ -0,0 +1,398 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.broker.key.BrokerKey;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALOperation;
+import org.ccsds.moims.mo.mal.provider.MALInteraction;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+import org.ccsds.moims.mo.mal.transport.MALPublishBody;
+
+/**
+ * Runs the publish path of a broker as a pipeline of three stages, each on its own thread, so that the transport thread
+ * that receives a publish only has to place it in the pipeline and the stages overlap across consecutive publishes.
+ * The first stage decodes the update headers and checks them against the registration of the publisher, the second
+ * matches them against the subscriptions and the third sends the resulting notify messages.
+ *
+ * The publishes are held in a ring of slots allocated up front, each stage following the one before it around the
+ * ring. A slot is reused once the send stage has passed it, a publish received while the ring is full waits for a slot
+ * to be freed. As every publish passes through each stage in the order it was received, the publishes of a publisher
+ * are processed in the order they were sent.
+ *
+ * An idle stage spins briefly before parking until the stage before it has moved on.
+ */
+final class PublishPipeline
+{
+  /**
+   * Property that sets the number of publishes the pipeline can hold, rounded up to a power of two. Zero, the default,
+   * disables the pipeline so that publishes are processed on the transport thread.
+   */
+  public static final String SIZE_PROPERTY = "org.ccsds.moims.mo.mal.broker.publish.pipelineSize";
+  private static final int SPIN_TRIES = 100;
+  private static final int YIELD_TRIES = 200;
+  private static final long FULL_PARK_NANOS = 10000;
+  private final Slot[] ring;
+  private final int mask;
+  private final AtomicLong claimed = new AtomicLong(-1);
+  private final Stage validateStage;
+  private final Stage matchStage;
+  private final Stage sendStage;
+  private volatile boolean running = true;
+
+  /**
+   * Constructor, starts the stage threads.
+   *
+   * @param size The minimum number of slots in the ring.
+   * @param stages The work of each stage.
+   */
+  PublishPipeline(final int size, final Stages stages)
+  {
+    int capacity = 1;
+    while (capacity < size)
+    {
+      capacity <<= 1;
+    }
+
+    this.ring = new Slot[capacity];
+    this.mask = capacity - 1;
+
+    for (int i = 0; i < capacity; ++i)
+    {
+      ring[i] = new Slot(i - capacity);
+    }
+
+    sendStage = new Stage("send", null)
+    {
+      @Override
+      boolean isAvailable(final long sequence)
+      {
+        return matchStage.cursor.get() >= sequence;
+      }
+
+      @Override
+      void process(final Slot slot)
+      {
+        if (!slot.rejected)
+        {
+          stages.send(slot);
+        }
+
+        slot.clear();
+      }
+    };
+    matchStage = new Stage("match", sendStage)
+    {
+      @Override
+      boolean isAvailable(final long sequence)
+      {
+        return validateStage.cursor.get() >= sequence;
+      }
+
+      @Override
+      void process(final Slot slot)
+      {
+        slot.rejected = slot.rejected || !stages.match(slot);
+      }
+    };
+    validateStage = new Stage("validate", matchStage)
+    {
+      @Override
+      boolean isAvailable(final long sequence)
+      {
+        return ring[(int) sequence & mask].sequence == sequence;
+      }
+
+      @Override
+      void process(final Slot slot)
+      {
+        slot.rejected = !stages.validate(slot);
+      }
+    };
+
+    validateStage.start();
+    matchStage.start();
+    sendStage.start();
+
+    MALBrokerImpl.LOGGER.log(Level.FINE, "Created broker publish pipeline of {0} slots", capacity);
+  }
+
+  /**
+   * Returns the size of the pipeline from the QoS properties of the broker binding.
+   *
+   * @param qosProperties The QoS properties of the broker binding, may be null.
+   * @return the size, zero if the pipeline is disabled.
+   */
+  static int getSize(final Map qosProperties)
+  {
+    return Math.max(0, BrokerProperties.getIntProperty(qosProperties, SIZE_PROPERTY, 0));
+  }
+
+  /**
+   * Places a publish in the pipeline, waiting for a free slot if the pipeline is full.
+   *
+   * @param interaction The publish interaction, null if the publish was not received from a publisher.
+   * @param key The broker key of the publish.
+   * @param hdr The publish message header.
+   * @param operation The operation of the updates.
+   * @param body The updates.
+   * @param federated True if the updates were received from a federated broker.
+   * @throws MALException If the pipeline has been closed.
+   */
+  void submit(final MALInteraction interaction,
+          final BrokerKey key,
+          final MALMessageHeader hdr,
+          final MALOperation operation,
+          final MALPublishBody body,
+          final boolean federated) throws MALException
+  {
+    if (!running)
+    {
+      throw new MALException("Broker publish pipeline is closed");
+    }
+
+    final long sequence = claimed.incrementAndGet();
+    int tries = 0;
+
+    while (sequence - ring.length > sendStage.cursor.get())
+    {
+      if (!running)
+      {
+        throw new MALException("Broker publish pipeline is closed");
+      }
+
+      if (YIELD_TRIES > tries++)
+      {
+        Thread.yield();
+      }
+      else
+      {
+        LockSupport.parkNanos(this, FULL_PARK_NANOS);
+      }
+    }
+
+    final Slot slot = ring[(int) sequence & mask];
+    slot.interaction = interaction;
+    slot.key = key;
+    slot.header = hdr;
+    slot.operation = operation;
+    slot.body = body;
+    slot.federated = federated;
+    slot.sequence = sequence;
+
+    validateStage.wake();
+  }
+
+  /**
+   * Waits until every publish placed in the pipeline so far has been checked against the registration of its
+   * publisher, so that a change to the registration does not apply to publishes that were sent before it. Does not
+   * wait if called from one of the stage threads.
+   */
+  void awaitValidated()
+  {
+    final Thread current = Thread.currentThread();
+
+    if ((current == validateStage.thread) || (current == matchStage.thread) || (current == sendStage.thread))
+    {
+      return;
+    }
+
+    final long target = claimed.get();
+    int tries = 0;
+
+    while (running && (validateStage.cursor.get() < target))
+    {
+      if (YIELD_TRIES > tries++)
+      {
+        Thread.yield();
+      }
+      else
+      {
+        LockSupport.parkNanos(this, FULL_PARK_NANOS);
+      }
+    }
+  }
+
+  /**
+   * Stops the stage threads, any publishes still in the pipeline are discarded.
+   */
+  void close()
+  {
+    running = false;
+
+    LockSupport.unpark(validateStage.thread);
+    LockSupport.unpark(matchStage.thread);
+    LockSupport.unpark(sendStage.thread);
+  }
+
+  /**
+   * The work done by each stage of the pipeline. Each method is only ever called from the thread of its stage.
+   */
+  interface Stages
+  {
+    /**
+     * Decodes the update headers of a publish and checks them against the registration of the publisher, reporting
+     * any error to the publisher.
+     *
+     * @param slot The publish.
+     * @return False if the publish has been rejected.
+     */
+    boolean validate(Slot slot);
+
+    /**
+     * Matches the updates of a publish against the subscriptions, setting the notify messages of the slot.
+     *
+     * @param slot The publish.
+     * @return False if the publish could not be matched.
+     */
+    boolean match(Slot slot);
+
+    /**
+     * Sends the notify messages of a publish.
+     *
+     * @param slot The publish.
+     */
+    void send(Slot slot);
+  }
+
+  /**
+   * A publish held in the pipeline. The fields are written by one stage and read by the following stages once it has
+   * moved on, so need no further synchronisation.
+   */
+  static final class Slot
+  {
+    private volatile long sequence;
+    private boolean rejected;
+    MALInteraction interaction;
+    BrokerKey key;
+    MALMessageHeader header;
+    MALOperation operation;
+    MALPublishBody body;
+    boolean federated;
+    UpdateHeaderList updateHeaders;
+    List<NotifyMessageSet> notifyList;
+
+    private Slot(final long sequence)
+    {
+      this.sequence = sequence;
+    }
+
+    private void clear()
+    {
+      rejected = false;
+      interaction = null;
+      key = null;
+      header = null;
+      operation = null;
+      body = null;
+      federated = false;
+      updateHeaders = null;
+      notifyList = null;
+    }
+  }
+
+  private abstract class Stage implements Runnable
+  {
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private final String name;
+    private final Stage next;
+    private volatile Thread thread = null;
+    private volatile boolean waiting = false;
+
+    private Stage(final String name, final Stage next)
+    {
+      this.name = name;
+      this.next = next;
+    }
+
+    abstract boolean isAvailable(long sequence);
+
+    abstract void process(Slot slot);
+
+    private void start()
+    {
+      final Thread t = new Thread(this, "MALBrokerPublish-" + name);
+      t.setDaemon(true);
+      thread = t;
+      t.start();
+    }
+
+    private void wake()
+    {
+      if (waiting)
+      {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    @Override
+    public void run()
+    {
+      long sequence = cursor.get() + 1;
+      int tries = 0;
+
+      while (running)
+      {
+        if (isAvailable(sequence))
+        {
+          try
+          {
+            process(ring[(int) sequence & mask]);
+          }
+          catch (RuntimeException ex)
+          {
+            MALBrokerImpl.LOGGER.log(Level.WARNING, "Error in broker publish " + name + " stage", ex);
+          }
+
+          cursor.set(sequence++);
+          tries = 0;
+
+          if (null != next)
+          {
+            next.wake();
+          }
+        }
+        else if (SPIN_TRIES > tries++)
+        {
+          // spin briefly as the next publish is usually close behind
+        }
+        else
+        {
+          // the flag is set before checking again so that a wake from the previous stage is not missed
+          waiting = true;
+
+          if (running && !isAvailable(sequence))
+          {
+            LockSupport.park(this);
+          }
+
+          waiting = false;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,357 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.MALOperation;
+import org.ccsds.moims.mo.mal.MALPubSubOperation;
+import org.ccsds.moims.mo.mal.structures.Element;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.transport.MALEncodedBody;
+import org.ccsds.moims.mo.mal.transport.MALEncodedElement;
+import org.ccsds.moims.mo.mal.transport.MALEncodedElementList;
+import org.ccsds.moims.mo.mal.transport.MALPublishBody;
+
+/**
+ * Gives access to the update lists of a single publish message while the notify messages for it are created. The
+ * update lists are either decoded once for all subscriptions, or, in pass through mode, never decoded at all. In that
+ * mode the notify lists are encoded element lists that hold the matched elements as the encoded form taken from the
+ * publish message, so the broker only decodes the update header list it routes on.
+ */
+public final class PublishedUpdates
+{
+  /**
+   * Property that enables the pass through of encoded update lists, false by default.
+   */
+  public static final String PASS_THROUGH_PROPERTY = "org.ccsds.moims.mo.mal.broker.passThrough";
+  private static final int NOTIFY_LIST_OFFSET = 2;
+  private final MALPublishBody publishBody;
+  private final UpdateHeaderList updateHeaderList;
+  private final int updateCount;
+  private final List[] updateLists;
+  private final Object[] shortForms;
+  private final MALEncodedElement[][] encodedUpdates;
+
+  /**
+   * Constructor.
+   *
+   * @param publishBody The publish message body.
+   * @param updateHeaderList The update header list of the publish message.
+   * @param operation The operation of the publish, may be null.
+   * @param passThrough True if the update lists should be passed through in their encoded form.
+   * @throws MALException On error.
+   */
+  public PublishedUpdates(final MALPublishBody publishBody,
+          final UpdateHeaderList updateHeaderList,
+          final MALOperation operation,
+          final boolean passThrough) throws MALException
+  {
+    this.publishBody = publishBody;
+    this.updateHeaderList = updateHeaderList;
+    this.updateCount = updateHeaderList.size();
+
+    final Object[] notifyShortForms = passThrough ? getNotifyShortForms(operation) : null;
+
+    if (null != notifyShortForms)
+    {
+      this.updateLists = null;
+      this.shortForms = new Object[notifyShortForms.length - NOTIFY_LIST_OFFSET];
+      System.arraycopy(notifyShortForms, NOTIFY_LIST_OFFSET, this.shortForms, 0, this.shortForms.length);
+      this.encodedUpdates = new MALEncodedElement[this.shortForms.length][];
+    }
+    else
+    {
+      this.updateLists = publishBody.getUpdateLists((List[]) null);
+      this.shortForms = null;
+      this.encodedUpdates = null;
+    }
+  }
+
+  /**
+   * Constructor for update lists already held by the broker, in either their decoded or encoded form.
+   *
+   * @param updateHeaderList The update header list.
+   * @param updateLists The update lists, may be null.
+   */
+  PublishedUpdates(final UpdateHeaderList updateHeaderList, final List[] updateLists)
+  {
+    this.publishBody = null;
+    this.updateHeaderList = updateHeaderList;
+    this.updateCount = updateHeaderList.size();
+    this.updateLists = updateLists;
+    this.shortForms = null;
+    this.encodedUpdates = null;
+  }
+
+  /**
+   * Returns the update lists as a publish message body, for the subscription sources that only implement the form of
+   * populateNotifyList taking one.
+   *
+   * @return The publish message body, or a body holding the update lists if the updates are held by the broker.
+   */
+  public MALPublishBody getPublishBody()
+  {
+    if (null != publishBody)
+    {
+      return publishBody;
+    }
+
+    return new HeldPublishBody(updateHeaderList, updateLists);
+  }
+
+  /**
+   * Returns true if the update lists are passed through in their encoded form.
+   *
+   * @return True if in pass through mode.
+   */
+  public boolean isPassThrough()
+  {
+    return null != shortForms;
+  }
+
+  /**
+   * Creates a new, empty, set of notify lists matching the update lists of the publish.
+   *
+   * @return The new lists, or null if the publish does not contain a body.
+   */
+  public List[] createNotifyLists()
+  {
+    return createNotifyLists(0);
+  }
+
+  /**
+   * Creates a new, empty, set of notify lists matching the update lists of the publish, sized to hold a known number
+   * of updates so that they are not grown as the updates are added.
+   *
+   * @param capacity The number of updates the lists will hold.
+   * @return The new lists, or null if the publish does not contain a body.
+   */
+  public List[] createNotifyLists(final int capacity)
+  {
+    if (null != shortForms)
+    {
+      final List[] notifyLists = new List[shortForms.length];
+
+      for (int i = 0; i < notifyLists.length; i++)
+      {
+        notifyLists[i] = new MALEncodedElementList(shortForms[i], capacity);
+      }
+
+      return notifyLists;
+    }
+
+    final List[] notifyLists = createEmptyLists(updateLists);
+
+    if ((null != notifyLists) && (0 < capacity))
+    {
+      for (List notifyList : notifyLists)
+      {
+        if (notifyList instanceof ArrayList)
+        {
+          ((ArrayList) notifyList).ensureCapacity(capacity);
+        }
+      }
+    }
+
+    return notifyLists;
+  }
+
+  /**
+   * Creates a new, empty, list of the same type for each of the supplied lists.
+   *
+   * @param lists The lists, may be null.
+   * @return The new lists, or null if the supplied lists are null.
+   */
+  static List[] createEmptyLists(final List[] lists)
+  {
+    // have to check for the case where the pubsub message does not contain a body
+    if (null == lists)
+    {
+      return null;
+    }
+
+    final List[] notifyLists = new List[lists.length];
+
+    for (int i = 0; i < notifyLists.length; i++)
+    {
+      if (null != lists[i])
+      {
+        if (lists[i] instanceof MALEncodedElementList)
+        {
+          MALEncodedElementList encodedElementList = (MALEncodedElementList) lists[i];
+          notifyLists[i] = new MALEncodedElementList(encodedElementList.getShortForm(), encodedElementList.size());
+        }
+        else
+        {
+          notifyLists[i] = (List) ((Element) lists[i]).createElement();
+        }
+      }
+      else
+      {
+        // publishing an empty list
+        notifyLists[i] = null;
+      }
+    }
+
+    return notifyLists;
+  }
+
+  /**
+   * Adds the elements of an update to a set of notify lists created by this class.
+   *
+   * @param notifyLists The notify lists, may be null.
+   * @param index The index of the update in the publish message.
+   * @throws MALException On error.
+   */
+  public void addUpdate(final List[] notifyLists, final int index) throws MALException
+  {
+    if (null != notifyLists)
+    {
+      for (int i = 0; i < notifyLists.length; i++)
+      {
+        if (null != shortForms)
+        {
+          notifyLists[i].add(getEncodedUpdate(i, index));
+        }
+        else if ((null != notifyLists[i]) && (null != updateLists[i]))
+        {
+          notifyLists[i].add(updateLists[i].get(index));
+        }
+      }
+    }
+  }
+
+  private MALEncodedElement getEncodedUpdate(final int listIndex, final int updateIndex) throws MALException
+  {
+    MALEncodedElement[] list = encodedUpdates[listIndex];
+
+    if (null == list)
+    {
+      list = new MALEncodedElement[updateCount];
+      encodedUpdates[listIndex] = list;
+    }
+
+    // the encoded form of an element is shared by all the subscriptions that match it
+    MALEncodedElement element = list[updateIndex];
+
+    if (null == element)
+    {
+      element = publishBody.getEncodedUpdate(listIndex, updateIndex);
+      list[updateIndex] = element;
+    }
+
+    return element;
+  }
+
+  private static Object[] getNotifyShortForms(final MALOperation operation)
+  {
+    if (operation instanceof MALPubSubOperation)
+    {
+      final Object[] rv = operation.getOperationStage(MALPubSubOperation.NOTIFY_STAGE).getElementShortForms();
+
+      if ((null != rv) && (NOTIFY_LIST_OFFSET <= rv.length))
+      {
+        return rv;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * A publish message body for update lists held by the broker.
+   */
+  private static final class HeldPublishBody implements MALPublishBody
+  {
+    private final UpdateHeaderList updateHeaderList;
+    private final List[] updateLists;
+
+    private HeldPublishBody(final UpdateHeaderList updateHeaderList, final List[] updateLists)
+    {
+      this.updateHeaderList = updateHeaderList;
+      this.updateLists = updateLists;
+    }
+
+    @Override
+    public int getElementCount()
+    {
+      return 1 + ((null == updateLists) ? 0 : updateLists.length);
+    }
+
+    @Override
+    public Object getBodyElement(final int index, final Object sourceBodyElement)
+    {
+      return (0 == index) ? updateHeaderList : updateLists[index - 1];
+    }
+
+    @Override
+    public MALEncodedElement getEncodedBodyElement(final int index)
+    {
+      return null;
+    }
+
+    @Override
+    public MALEncodedBody getEncodedBody()
+    {
+      return null;
+    }
+
+    @Override
+    public UpdateHeaderList getUpdateHeaderList()
+    {
+      return updateHeaderList;
+    }
+
+    @Override
+    public List[] getUpdateLists(final List... updateLists)
+    {
+      return this.updateLists;
+    }
+
+    @Override
+    public List getUpdateList(final int listIndex, final List updateList)
+    {
+      return updateLists[listIndex];
+    }
+
+    @Override
+    public int getUpdateCount()
+    {
+      return updateHeaderList.size();
+    }
+
+    @Override
+    public Object getUpdate(final int listIndex, final int updateIndex)
+    {
+      return updateLists[listIndex].get(updateIndex);
+    }
+
+    @Override
+    public MALEncodedElement getEncodedUpdate(final int listIndex, final int updateIndex)
+    {
+      final Object update = updateLists[listIndex].get(updateIndex);
+
+      return (update instanceof MALEncodedElement) ? (MALEncodedElement) update : null;
+    }
+  }
+}
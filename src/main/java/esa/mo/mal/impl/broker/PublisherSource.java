@@ -21,9 +21,16 @@
 package esa.mo.mal.impl.broker;
 
 import esa.mo.mal.impl.broker.key.PublisherKey;
-import esa.mo.mal.impl.util.StructureHelper;
+import esa.mo.mal.impl.util.InternedDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import org.ccsds.moims.mo.mal.MALHelper;
 import org.ccsds.moims.mo.mal.MALInteractionException;
@@ -32,20 +39,52 @@ import org.ccsds.moims.mo.mal.structures.*;
 import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
 
 /**
- * Represents a publisher (provider) in a broker, so contains the list of entities it is allowed to publish.
+ * Represents a publisher (provider) in a broker, so contains the list of entities it is allowed to publish. Instances
+ * are immutable, a new publish register replaces the existing instance.
+ *
+ * The registered keys without a wildcard are held in a hash set so that most published keys are validated by a single
+ * lookup, only the wildcard keys are searched in turn. Published keys that are matched by such a search are remembered
+ * so that later publishes of the same key are also validated by a single lookup.
  */
 public final class PublisherSource
 {
+  private static final int MAX_CACHE_SIZE = 4096;
   private final String uri;
   private final QoSLevel qosLevel;
-  private final Set<PublisherKey> keySet = new TreeSet<PublisherKey>();
-  private IdentifierList domain = null;
+  private final Set<PublisherKey> keySet;
+  private final Set<PublisherKey> exactKeys;
+  private final List<PublisherKey> wildcardKeys;
+  private final Map<PublisherKey, Boolean> validatedKeys = new ConcurrentHashMap<PublisherKey, Boolean>();
+  private final InternedDomain domain;
 
-  PublisherSource(final String uri, final QoSLevel qosLevel)
+  PublisherSource(final String uri, final QoSLevel qosLevel, final MALMessageHeader hdr, final EntityKeyList l)
   {
     super();
     this.uri = uri;
     this.qosLevel = qosLevel;
+    this.domain = InternedDomain.intern(hdr.getDomain());
+
+    final Set<PublisherKey> keys = new TreeSet<PublisherKey>();
+    final Set<PublisherKey> exact = new HashSet<PublisherKey>();
+    final List<PublisherKey> wildcards = new ArrayList<PublisherKey>();
+    for (EntityKey entityKey : l)
+    {
+      final PublisherKey key = new PublisherKey(entityKey);
+      if (keys.add(key))
+      {
+        if (key.hasWildcard())
+        {
+          wildcards.add(key);
+        }
+        else
+        {
+          exact.add(key);
+        }
+      }
+    }
+    this.keySet = Collections.unmodifiableSet(keys);
+    this.exactKeys = exact;
+    this.wildcardKeys = wildcards;
   }
 
   QoSLevel getQosLevel()
@@ -56,7 +95,7 @@ public final class PublisherSource
   void report()
   {
     MALBrokerImpl.LOGGER.log(Level.FINE, "  START Provider ( {0} )", uri);
-    MALBrokerImpl.LOGGER.log(Level.FINE, "    Domain : {0}", StructureHelper.domainToString(domain));
+    MALBrokerImpl.LOGGER.log(Level.FINE, "    Domain : {0}", domain);
     for (PublisherKey key : keySet)
     {
       MALBrokerImpl.LOGGER.log(Level.FINE, "    Allowed: {0}", key);
@@ -64,34 +103,15 @@ public final class PublisherSource
     MALBrokerImpl.LOGGER.log(Level.FINE, "  END Provider ( {0} )", uri);
   }
 
-  void setKeyList(final MALMessageHeader hdr, final EntityKeyList l)
-  {
-    domain = hdr.getDomain();
-    keySet.clear();
-    for (EntityKey entityKey : l)
-    {
-      keySet.add(new PublisherKey(entityKey));
-    }
-  }
-
   void checkPublish(final MALMessageHeader hdr, final UpdateHeaderList updateList) throws MALInteractionException
   {
-    if (StructureHelper.isSubDomainOf(domain, hdr.getDomain()))
+    if (InternedDomain.isSubDomainOf(domain, InternedDomain.intern(hdr.getDomain())))
     {
       final EntityKeyList lst = new EntityKeyList();
       for (final UpdateHeader update : updateList)
       {
         final EntityKey updateKey = update.getKey();
-        boolean matched = false;
-        for (PublisherKey key : keySet)
-        {
-          if (key.matchesWithWildcard(updateKey))
-          {
-            matched = true;
-            break;
-          }
-        }
-        if (!matched)
+        if (!isAllowed(updateKey))
         {
           lst.add(updateKey);
         }
@@ -108,4 +128,36 @@ public final class PublisherSource
       throw new MALInteractionException(new MALStandardError(MALHelper.UNKNOWN_ERROR_NUMBER, null));
     }
   }
+
+  private boolean isAllowed(final EntityKey updateKey)
+  {
+    if (null == updateKey)
+    {
+      return false;
+    }
+
+    final PublisherKey key = new PublisherKey(updateKey);
+
+    if (exactKeys.contains(key) || validatedKeys.containsKey(key))
+    {
+      return true;
+    }
+
+    // a wildcard in the published key can match any of the registered keys
+    final Collection<PublisherKey> searchKeys = key.hasWildcard() ? keySet : wildcardKeys;
+    for (PublisherKey registeredKey : searchKeys)
+    {
+      if (registeredKey.matchesWithWildcard(updateKey))
+      {
+        if (MAX_CACHE_SIZE <= validatedKeys.size())
+        {
+          validatedKeys.clear();
+        }
+        validatedKeys.put(key, Boolean.TRUE);
+        return true;
+      }
+    }
+
+    return false;
+  }
 }
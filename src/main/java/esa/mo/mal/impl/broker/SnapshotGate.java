@@ -0,0 +1,120 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds back the notify messages of a consumer while a last value snapshot is being sent to it, so that they are sent
+ * after the snapshot without the snapshot being sent under the lock of the last value cache.
+ *
+ * A snapshot is started holding the lock of the cache, once it has been built, so a publish that caches a value after
+ * the snapshot was taken always finds the gate closed. The messages held are sent by the thread that finishes the last
+ * snapshot in progress, which keeps the gate closed until none are left, so later messages cannot overtake them.
+ */
+final class SnapshotGate
+{
+  private final List<NotifyMessageSet> held = new ArrayList<NotifyMessageSet>();
+  private volatile boolean closed = false;
+  private int snapshots = 0;
+  private boolean draining = false;
+
+  /**
+   * Closes the gate for a snapshot about to be sent.
+   */
+  synchronized void start()
+  {
+    ++snapshots;
+    closed = true;
+  }
+
+  /**
+   * Holds back a notify message set if a snapshot is being sent.
+   *
+   * @param notifyMessageSet The messages.
+   * @return True if the messages are held, false if they should be sent straight away.
+   */
+  boolean hold(final NotifyMessageSet notifyMessageSet)
+  {
+    if (!closed)
+    {
+      return false;
+    }
+
+    synchronized (this)
+    {
+      if (!closed)
+      {
+        return false;
+      }
+
+      held.add(notifyMessageSet);
+      return true;
+    }
+  }
+
+  /**
+   * Records that a snapshot has been sent.
+   *
+   * @return True if the caller must now send the held messages, see {@link #takeHeld()}.
+   */
+  synchronized boolean finish()
+  {
+    --snapshots;
+
+    if ((0 < snapshots) || draining)
+    {
+      // the thread finishing the last snapshot, or the one already sending, sends the held messages
+      return false;
+    }
+
+    draining = true;
+    return true;
+  }
+
+  /**
+   * Returns the next messages to send, called repeatedly by the thread that finished the last snapshot until it
+   * returns null. The gate is opened once no messages are left.
+   *
+   * @return The held messages, in the order they were held, or null if there are none left to send.
+   */
+  synchronized List<NotifyMessageSet> takeHeld()
+  {
+    if (0 < snapshots)
+    {
+      // a new snapshot was started, the messages held from now on are sent when it finishes
+      draining = false;
+      return null;
+    }
+
+    if (held.isEmpty())
+    {
+      draining = false;
+      closed = false;
+      return null;
+    }
+
+    final List<NotifyMessageSet> rv = new ArrayList<NotifyMessageSet>(held);
+    held.clear();
+    return rv;
+  }
+}
@@ -0,0 +1,1350 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.ProviderKey;
+import esa.mo.mal.impl.broker.SubscriptionSource.Registration;
+import esa.mo.mal.impl.broker.key.BrokerKey;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.structures.Blob;
+import org.ccsds.moims.mo.mal.structures.EntityKey;
+import org.ccsds.moims.mo.mal.structures.EntityKeyList;
+import org.ccsds.moims.mo.mal.structures.EntityRequest;
+import org.ccsds.moims.mo.mal.structures.EntityRequestList;
+import org.ccsds.moims.mo.mal.structures.Enumeration;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.InteractionType;
+import org.ccsds.moims.mo.mal.structures.QoSLevel;
+import org.ccsds.moims.mo.mal.structures.SessionType;
+import org.ccsds.moims.mo.mal.structures.Subscription;
+import org.ccsds.moims.mo.mal.structures.Time;
+import org.ccsds.moims.mo.mal.structures.UInteger;
+import org.ccsds.moims.mo.mal.structures.UOctet;
+import org.ccsds.moims.mo.mal.structures.URI;
+import org.ccsds.moims.mo.mal.structures.UShort;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+
+/**
+ * An append only journal of the registrations of a broker, written through a memory mapped file, that allows the
+ * broker to restore its consumers and providers after a restart rather than waiting for them all to register again.
+ *
+ * The journal holds its own model of the current registrations. Periodically, and whenever the mapped journal file
+ * is half full, the model is written to a snapshot file so that on start up only the snapshot and the journal records
+ * written since need to be read. This compaction runs on a thread of its own so that a registration never waits for
+ * the snapshot to be written. There are two journal files that are used in turn: when a compaction starts the records
+ * are switched to the other file, under the next generation number, and the snapshot is then written with that
+ * generation. A journal whose generation is older than the snapshot is ignored, so until the snapshot has replaced the
+ * previous one both journals are read, oldest first.
+ *
+ * The model and the mapped journal are only accessed holding the lock of the journal, all methods are synchronized.
+ */
+final class SubscriptionJournal
+{
+  /**
+   * Property that sets the directory of the journal, the journal is only used if this is set. Each broker must be
+   * given its own directory.
+   */
+  public static final String DIRECTORY_PROPERTY = "org.ccsds.moims.mo.mal.broker.journal.directory";
+  /**
+   * Property that sets the initial size, in bytes, of the mapped journal file.
+   */
+  public static final String SIZE_PROPERTY = "org.ccsds.moims.mo.mal.broker.journal.size";
+  /**
+   * The default size of the journal file.
+   */
+  public static final int DEFAULT_SIZE = 16 * 1024 * 1024;
+  /**
+   * Property that sets the interval, in milliseconds, between compactions of the journal, zero only compacts the
+   * journal when it is half full.
+   */
+  public static final String COMPACTION_INTERVAL_PROPERTY = "org.ccsds.moims.mo.mal.broker.journal.compactionInterval";
+  /**
+   * The default interval between compactions.
+   */
+  public static final int DEFAULT_COMPACTION_INTERVAL = 60000;
+  private static final String JOURNAL_FILE = "broker.journal";
+  private static final String STANDBY_JOURNAL_FILE = "broker.journal.1";
+  private static final String SNAPSHOT_FILE = "broker.snapshot";
+  private static final int MAGIC = 0x4D414C4A;
+  private static final int FILE_HEADER_SIZE = 12;
+  private static final int MIN_SIZE = 4096;
+  private static final byte REGISTER = 1;
+  private static final byte DEREGISTER = 2;
+  private static final byte PUBLISH_REGISTER = 3;
+  private static final byte PUBLISH_DEREGISTER = 4;
+  private static final byte CONSUMER = 5;
+  private static final byte CONSUMER_REMOVED = 6;
+  private static final byte REGISTER_THROTTLED = 7;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private final File snapshotFile;
+  private final Map<BrokerKey, BrokerRecords> brokers = new LinkedHashMap<BrokerKey, BrokerRecords>();
+  private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+  private final DataOutputStream recordOut = new DataOutputStream(recordBytes);
+  private final ScheduledThreadPoolExecutor compactor;
+  private final Runnable compactTask = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      compact();
+    }
+  };
+  private File journalFile;
+  private RandomAccessFile journalAccess;
+  private MappedByteBuffer journal;
+  private File standbyFile;
+  private RandomAccessFile standbyAccess;
+  private MappedByteBuffer standby;
+  private long generation = 0;
+  private boolean compacting = false;
+  private boolean failed = false;
+
+  private SubscriptionJournal(final File directory)
+  {
+    this.journalFile = new File(directory, JOURNAL_FILE);
+    this.standbyFile = new File(directory, STANDBY_JOURNAL_FILE);
+    this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+    this.compactor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(final Runnable r)
+      {
+        final Thread thread = new Thread(r, "MALBrokerJournal");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Opens the journal configured by the broker properties, reading any registrations already held in it.
+   *
+   * @param qosProperties The QoS properties of the broker binding, may be null.
+   * @return The journal, or null if no journal directory is configured or the journal cannot be opened.
+   */
+  static SubscriptionJournal open(final Map qosProperties)
+  {
+    final String directory = BrokerProperties.getStringProperty(qosProperties, DIRECTORY_PROPERTY, null);
+
+    if (null == directory)
+    {
+      return null;
+    }
+
+    try
+    {
+      return open(new File(directory),
+              BrokerProperties.getIntProperty(qosProperties, SIZE_PROPERTY, DEFAULT_SIZE),
+              BrokerProperties.getIntProperty(qosProperties, COMPACTION_INTERVAL_PROPERTY,
+                      DEFAULT_COMPACTION_INTERVAL));
+    }
+    catch (IOException ex)
+    {
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Unable to open broker journal, registrations will not be kept", ex);
+    }
+
+    return null;
+  }
+
+  /**
+   * Opens the journal in a directory, reading any registrations already held in it.
+   *
+   * @param directory The journal directory, created if needed.
+   * @param size The initial size of the mapped journal files.
+   * @param compactionInterval The interval, in milliseconds, between compactions, zero for none.
+   * @return The journal.
+   * @throws IOException If the journal cannot be opened.
+   */
+  static SubscriptionJournal open(final File directory, final int size, final int compactionInterval)
+          throws IOException
+  {
+    if (!directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Unable to create broker journal directory " + directory);
+    }
+
+    final SubscriptionJournal rv = new SubscriptionJournal(directory);
+
+    try
+    {
+      rv.load(Math.max(size, MIN_SIZE));
+    }
+    catch (IOException ex)
+    {
+      rv.close();
+      throw ex;
+    }
+
+    // the standby journal is cleared before any compaction can switch to it
+    rv.compactor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        rv.clearStandby();
+      }
+    });
+
+    if (0 < compactionInterval)
+    {
+      rv.compactor.scheduleWithFixedDelay(rv.compactTask, compactionInterval, compactionInterval,
+              TimeUnit.MILLISECONDS);
+    }
+
+    return rv;
+  }
+
+  /**
+   * Restores the registrations held by this journal into a broker handler.
+   *
+   * @param handler The handler.
+   * @param dispatcher The notify dispatcher of the handler.
+   */
+  synchronized void restore(final MALBrokerHandlerImpl handler, final NotifyDispatcher dispatcher)
+  {
+    int subscriptionCount = 0;
+
+    for (Map.Entry<BrokerKey, BrokerRecords> broker : brokers.entrySet())
+    {
+      final Map<ProviderKey, PublisherSource> providers = new HashMap<ProviderKey, PublisherSource>();
+
+      for (Map.Entry<ProviderKey, ProviderRecord> provider : broker.getValue().providers.entrySet())
+      {
+        final ProviderRecord rec = provider.getValue();
+        providers.put(provider.getKey(),
+                new PublisherSource(rec.hdr.getURIFrom().getValue(), rec.qosLevel, rec.hdr, rec.keys));
+      }
+
+      final Map<String, SubscriptionSource> consumers = new HashMap<String, SubscriptionSource>();
+
+      for (Map.Entry<String, ConsumerRecord> consumer : broker.getValue().consumers.entrySet())
+      {
+        final SubscriptionSource ent = handler.createEntry(consumer.getValue().hdr);
+
+        ent.addSubscriptions(new ArrayList<Registration>(consumer.getValue().subscriptions.values()));
+
+        for (Registration reg : consumer.getValue().subscriptions.values())
+        {
+          ent.recordRegistration(reg);
+          ++subscriptionCount;
+        }
+
+        consumers.put(consumer.getKey(), ent);
+      }
+
+      handler.restoreState(broker.getKey(), providers, consumers, dispatcher);
+    }
+
+    MALBrokerImpl.LOGGER.log(Level.INFO, "Restored {0} broker subscriptions from journal {1}", new Object[]
+    {
+      subscriptionCount, journalFile
+    });
+  }
+
+  /**
+   * Records a register.
+   *
+   * @param registration The register message header, subscription and minimum notify interval.
+   */
+  synchronized void register(final Registration registration)
+  {
+    applyRegister(registration);
+
+    try
+    {
+      // a register without an interval keeps the original record layout
+      recordOut.writeByte((0 < registration.minimumInterval) ? REGISTER_THROTTLED : REGISTER);
+      writeHeader(recordOut, registration.hdr);
+      writeSubscription(recordOut, registration.subscription);
+      if (0 < registration.minimumInterval)
+      {
+        recordOut.writeLong(registration.minimumInterval);
+      }
+      append();
+    }
+    catch (IOException ex)
+    {
+      failed(ex);
+    }
+  }
+
+  /**
+   * Records a deregister.
+   *
+   * @param hdr The deregister message header.
+   * @param subscriptions The subscriptions removed.
+   */
+  synchronized void deregister(final MALMessageHeader hdr, final IdentifierList subscriptions)
+  {
+    applyDeregister(hdr, subscriptions);
+
+    try
+    {
+      recordOut.writeByte(DEREGISTER);
+      writeHeader(recordOut, hdr);
+      writeIdentifierList(recordOut, subscriptions);
+      append();
+    }
+    catch (IOException ex)
+    {
+      failed(ex);
+    }
+  }
+
+  /**
+   * Records the removal of a consumer by the broker.
+   *
+   * @param key The broker key of the consumer.
+   * @param consumerUri The URI of the consumer.
+   */
+  synchronized void removeConsumer(final BrokerKey key, final String consumerUri)
+  {
+    applyRemoveConsumer(key, consumerUri);
+
+    try
+    {
+      recordOut.writeByte(CONSUMER_REMOVED);
+      writeBrokerKey(recordOut, key);
+      writeString(recordOut, consumerUri);
+      append();
+    }
+    catch (IOException ex)
+    {
+      failed(ex);
+    }
+  }
+
+  /**
+   * Records a publish register.
+   *
+   * @param hdr The publish register message header.
+   * @param keys The entity keys of the provider.
+   */
+  synchronized void publishRegister(final MALMessageHeader hdr, final EntityKeyList keys)
+  {
+    applyPublishRegister(hdr, hdr.getQoSlevel(), keys);
+
+    try
+    {
+      recordOut.writeByte(PUBLISH_REGISTER);
+      writeHeader(recordOut, hdr);
+      writeEnumeration(recordOut, hdr.getQoSlevel());
+      writeEntityKeyList(recordOut, keys);
+      append();
+    }
+    catch (IOException ex)
+    {
+      failed(ex);
+    }
+  }
+
+  /**
+   * Records a publish deregister.
+   *
+   * @param hdr The publish deregister message header.
+   */
+  synchronized void publishDeregister(final MALMessageHeader hdr)
+  {
+    applyPublishDeregister(hdr);
+
+    try
+    {
+      recordOut.writeByte(PUBLISH_DEREGISTER);
+      writeHeader(recordOut, hdr);
+      append();
+    }
+    catch (IOException ex)
+    {
+      failed(ex);
+    }
+  }
+
+  /**
+   * Waits for any compaction in progress, then flushes the journal to disk and closes it.
+   */
+  void close()
+  {
+    compactor.shutdown();
+
+    try
+    {
+      compactor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized (this)
+    {
+      if (null != journal)
+      {
+        journal.force();
+        journal = null;
+        standby = null;
+      }
+
+      close(journalAccess);
+      close(standbyAccess);
+    }
+  }
+
+  private void load(final int size) throws IOException
+  {
+    long snapshotGeneration = -1;
+
+    if (snapshotFile.isFile())
+    {
+      final ByteBuffer buffer = map(snapshotFile);
+      snapshotGeneration = readFileHeader(buffer);
+
+      if (0 <= snapshotGeneration)
+      {
+        readRecords(buffer, false);
+      }
+    }
+
+    journalAccess = new RandomAccessFile(journalFile, "rw");
+    journal = journalAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+            Math.max(size, journalAccess.length()));
+    standbyAccess = new RandomAccessFile(standbyFile, "rw");
+    standby = standbyAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+            Math.max(journal.capacity(), standbyAccess.length()));
+
+    long journalGeneration = readFileHeader(journal);
+    long standbyGeneration = readFileHeader(standby);
+
+    // the newer journal is the one records are appended to
+    if (standbyGeneration > journalGeneration)
+    {
+      swapJournals();
+      final long tmp = journalGeneration;
+      journalGeneration = standbyGeneration;
+      standbyGeneration = tmp;
+    }
+
+    // the older journal is still needed if a compaction did not finish writing its snapshot
+    final boolean readStandby = (0 <= standbyGeneration) && (standbyGeneration >= snapshotGeneration);
+
+    if (readStandby)
+    {
+      readRecords(standby, true);
+    }
+
+    if ((0 <= journalGeneration) && (journalGeneration >= snapshotGeneration))
+    {
+      generation = journalGeneration;
+      readRecords(journal, true);
+      clearTail();
+    }
+    else
+    {
+      // either a new journal, or one already included in the snapshot
+      generation = Math.max(snapshotGeneration, 0);
+      reset(journal.capacity());
+    }
+
+    if (readStandby)
+    {
+      // both journals are replaced by a snapshot so that the older one can be used by the next compaction
+      writeSnapshot(copyModel(), generation + 1);
+      ++generation;
+      reset(journal.position());
+    }
+  }
+
+  private void readRecords(final ByteBuffer buffer, final boolean lengthTerminated)
+  {
+    while (4 <= buffer.remaining())
+    {
+      final int start = buffer.position();
+      final int length = buffer.getInt();
+
+      if ((0 >= length) || (length > buffer.remaining()))
+      {
+        if (!lengthTerminated || (0 != length))
+        {
+          MALBrokerImpl.LOGGER.log(Level.WARNING, "Broker journal truncated at offset {0}", start);
+        }
+
+        buffer.position(start);
+        return;
+      }
+
+      final ByteBuffer rec = buffer.slice();
+      rec.limit(length);
+      buffer.position(buffer.position() + length);
+
+      try
+      {
+        readRecord(rec);
+      }
+      catch (RuntimeException ex)
+      {
+        // a record that cannot be read, whether too short or holding invalid values, ends the journal
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Corrupt broker journal record at offset {0}", start);
+        buffer.position(start);
+        return;
+      }
+    }
+  }
+
+  private void readRecord(final ByteBuffer rec)
+  {
+    final byte type = rec.get();
+
+    switch (type)
+    {
+      case REGISTER:
+        applyRegister(new Registration(readHeader(rec), readSubscription(rec)));
+        break;
+      case REGISTER_THROTTLED:
+        applyRegister(new Registration(readHeader(rec), readSubscription(rec), rec.getLong()));
+        break;
+      case CONSUMER:
+        applyConsumer(readHeader(rec));
+        break;
+      case DEREGISTER:
+        applyDeregister(readHeader(rec), readIdentifierList(rec));
+        break;
+      case CONSUMER_REMOVED:
+        applyRemoveConsumer(readBrokerKey(rec), readString(rec));
+        break;
+      case PUBLISH_REGISTER:
+      {
+        final MALMessageHeader hdr = readHeader(rec);
+        final int qos = rec.getInt();
+        applyPublishRegister(hdr, (0 > qos) ? null : QoSLevel.fromOrdinal(qos), readEntityKeyList(rec));
+        break;
+      }
+      case PUBLISH_DEREGISTER:
+        applyPublishDeregister(readHeader(rec));
+        break;
+      default:
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Unknown broker journal record type {0}", type);
+    }
+  }
+
+  private void append() throws IOException
+  {
+    final byte[] rec = recordBytes.toByteArray();
+    recordBytes.reset();
+
+    if (failed || (null == journal))
+    {
+      return;
+    }
+
+    // room is always left for the zero length that terminates the journal
+    if (journal.remaining() < rec.length + 8)
+    {
+      // the journal filled before a compaction could switch it, so it is grown in place
+      remap(Math.max(journal.capacity() * 2, journal.position() + rec.length + 8));
+    }
+
+    final int start = journal.position();
+    journal.position(start + 4);
+    journal.put(rec);
+
+    // the length is written last so a partly written record is never read back
+    journal.putInt(start, rec.length);
+
+    if (!compacting && (journal.position() > journal.capacity() / 2))
+    {
+      compacting = true;
+
+      try
+      {
+        compactor.execute(compactTask);
+      }
+      catch (RejectedExecutionException ex)
+      {
+        // the journal is being closed
+      }
+    }
+  }
+
+  /**
+   * Switches the records to the standby journal under a new generation and writes the model, as it was at the switch,
+   * to a snapshot of that generation. Only the switch and the copy of the model hold the lock of the journal, the
+   * snapshot is written without it. Runs on the compactor thread.
+   */
+  private void compact()
+  {
+    final List<BrokerRecords> model;
+    final long newGeneration;
+    final MappedByteBuffer current;
+    final MappedByteBuffer previous;
+    final int previousUsed;
+
+    synchronized (this)
+    {
+      if (failed || (null == journal) || (FILE_HEADER_SIZE == journal.position()))
+      {
+        compacting = false;
+        return;
+      }
+
+      compacting = true;
+      model = copyModel();
+      newGeneration = generation + 1;
+      previousUsed = journal.position();
+      swapJournals();
+
+      // the standby journal was cleared when it was last replaced
+      generation = newGeneration;
+      journal.putInt(0, MAGIC);
+      journal.putLong(4, generation);
+      journal.position(FILE_HEADER_SIZE);
+      current = journal;
+      previous = standby;
+    }
+
+    try
+    {
+      // the new journal must be on disk before the snapshot that makes the previous one obsolete
+      current.force();
+      final int size = writeSnapshot(model, newGeneration);
+      clearJournal(previous, previousUsed);
+
+      synchronized (this)
+      {
+        // grow the next journal with the snapshot so that compaction stays infrequent
+        final int nextSize = Math.max(current.capacity(), size * 2);
+
+        if ((null != standby) && (standby.capacity() < nextSize))
+        {
+          standby = standbyAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, nextSize);
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      synchronized (this)
+      {
+        failed(ex);
+      }
+    }
+    finally
+    {
+      synchronized (this)
+      {
+        compacting = false;
+      }
+    }
+  }
+
+  private List<BrokerRecords> copyModel()
+  {
+    final List<BrokerRecords> rv = new ArrayList<BrokerRecords>(brokers.size());
+
+    for (BrokerRecords broker : brokers.values())
+    {
+      final BrokerRecords copy = new BrokerRecords();
+      copy.providers.putAll(broker.providers);
+
+      for (Map.Entry<String, ConsumerRecord> consumer : broker.consumers.entrySet())
+      {
+        final ConsumerRecord consumerCopy = new ConsumerRecord(consumer.getValue().hdr);
+        consumerCopy.subscriptions.putAll(consumer.getValue().subscriptions);
+        copy.consumers.put(consumer.getKey(), consumerCopy);
+      }
+
+      rv.add(copy);
+    }
+
+    return rv;
+  }
+
+  /**
+   * Writes a snapshot of a model and replaces the current snapshot with it.
+   *
+   * @param model The model.
+   * @param newGeneration The generation of the snapshot.
+   * @return The size of the snapshot.
+   * @throws IOException If the snapshot cannot be written.
+   */
+  private int writeSnapshot(final List<BrokerRecords> model, final long newGeneration) throws IOException
+  {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    final ByteArrayOutputStream snapshotRecordBytes = new ByteArrayOutputStream();
+    final DataOutputStream snapshotRecordOut = new DataOutputStream(snapshotRecordBytes);
+
+    out.writeInt(MAGIC);
+    out.writeLong(newGeneration);
+
+    for (BrokerRecords broker : model)
+    {
+      for (ProviderRecord rec : broker.providers.values())
+      {
+        writeRecord(out, snapshotRecordBytes, snapshotRecordOut, PUBLISH_REGISTER, rec.hdr, rec.qosLevel, rec.keys,
+                null);
+      }
+
+      for (ConsumerRecord consumer : broker.consumers.values())
+      {
+        writeRecord(out, snapshotRecordBytes, snapshotRecordOut, CONSUMER, consumer.hdr, null, null, null);
+
+        for (Registration reg : consumer.subscriptions.values())
+        {
+          writeRecord(out, snapshotRecordBytes, snapshotRecordOut,
+                  (0 < reg.minimumInterval) ? REGISTER_THROTTLED : REGISTER, reg.hdr, null, null, reg);
+        }
+      }
+    }
+
+    out.flush();
+
+    final File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+    final FileOutputStream fos = new FileOutputStream(tmpFile);
+
+    try
+    {
+      bytes.writeTo(fos);
+      fos.getFD().sync();
+    }
+    finally
+    {
+      fos.close();
+    }
+
+    if (!tmpFile.renameTo(snapshotFile) && !(snapshotFile.delete() && tmpFile.renameTo(snapshotFile)))
+    {
+      throw new IOException("Unable to replace broker snapshot " + snapshotFile);
+    }
+
+    MALBrokerImpl.LOGGER.log(Level.FINE, "Compacted broker journal into snapshot of {0} bytes", bytes.size());
+    return bytes.size();
+  }
+
+  private static void writeRecord(final DataOutputStream out,
+          final ByteArrayOutputStream recordBuffer,
+          final DataOutputStream recordData,
+          final byte type,
+          final MALMessageHeader hdr,
+          final QoSLevel qosLevel,
+          final EntityKeyList keys,
+          final Registration registration) throws IOException
+  {
+    recordBuffer.reset();
+    recordData.writeByte(type);
+    writeHeader(recordData, hdr);
+
+    if (PUBLISH_REGISTER == type)
+    {
+      writeEnumeration(recordData, qosLevel);
+      writeEntityKeyList(recordData, keys);
+    }
+    else if ((REGISTER == type) || (REGISTER_THROTTLED == type))
+    {
+      writeSubscription(recordData, registration.subscription);
+
+      if (REGISTER_THROTTLED == type)
+      {
+        recordData.writeLong(registration.minimumInterval);
+      }
+    }
+
+    recordData.flush();
+    out.writeInt(recordBuffer.size());
+    recordBuffer.writeTo(out);
+    recordBuffer.reset();
+  }
+
+  private void reset(final int used)
+  {
+    // the used part of the journal is cleared before the new generation is written
+    clear(journal, FILE_HEADER_SIZE, used);
+
+    journal.putInt(0, MAGIC);
+    journal.putLong(4, generation);
+    journal.force();
+    journal.position(FILE_HEADER_SIZE);
+  }
+
+  private void clearTail()
+  {
+    // anything after the last record read, such as a partly written record, is cleared so that the records appended
+    // from here on are never followed by stale bytes that could later be read as a record
+    if (clear(journal, journal.position(), journal.capacity()))
+    {
+      journal.force();
+    }
+  }
+
+  private void clearStandby()
+  {
+    final MappedByteBuffer buffer;
+
+    synchronized (this)
+    {
+      buffer = standby;
+    }
+
+    if (null != buffer)
+    {
+      clearJournal(buffer, buffer.capacity());
+    }
+  }
+
+  private static void clearJournal(final MappedByteBuffer buffer, final int used)
+  {
+    // a cleared journal has no header, so it is never read, and no stale records for when it is next switched to
+    if (clear(buffer, 0, used))
+    {
+      buffer.force();
+    }
+  }
+
+  private static boolean clear(final ByteBuffer buffer, final int from, final int to)
+  {
+    // the bytes are read a long at a time, as most of them are normally already zero
+    boolean cleared = false;
+    int i = from;
+
+    for (; i + 8 <= to; i += 8)
+    {
+      if (0 != buffer.getLong(i))
+      {
+        buffer.putLong(i, 0);
+        cleared = true;
+      }
+    }
+
+    for (; i < to; i++)
+    {
+      if (0 != buffer.get(i))
+      {
+        buffer.put(i, (byte) 0);
+        cleared = true;
+      }
+    }
+
+    return cleared;
+  }
+
+  private void swapJournals()
+  {
+    final File file = journalFile;
+    final RandomAccessFile access = journalAccess;
+    final MappedByteBuffer buffer = journal;
+    journalFile = standbyFile;
+    journalAccess = standbyAccess;
+    journal = standby;
+    standbyFile = file;
+    standbyAccess = access;
+    standby = buffer;
+  }
+
+  private void remap(final int size) throws IOException
+  {
+    final int position = journal.position();
+    journal.force();
+    journal = journalAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    journal.position(position);
+  }
+
+  private void failed(final IOException ex)
+  {
+    recordBytes.reset();
+
+    if (!failed)
+    {
+      failed = true;
+      MALBrokerImpl.LOGGER.log(Level.WARNING, "Broker journal disabled due to write error", ex);
+    }
+  }
+
+  private static void close(final RandomAccessFile access)
+  {
+    if (null != access)
+    {
+      try
+      {
+        access.close();
+      }
+      catch (IOException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Error closing broker journal", ex);
+      }
+    }
+  }
+
+  private static ByteBuffer map(final File file) throws IOException
+  {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try
+    {
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  private static long readFileHeader(final ByteBuffer buffer)
+  {
+    if ((FILE_HEADER_SIZE <= buffer.remaining()) && (MAGIC == buffer.getInt(0)))
+    {
+      buffer.position(FILE_HEADER_SIZE);
+      return buffer.getLong(4);
+    }
+
+    return -1;
+  }
+
+  private BrokerRecords getBrokerRecords(final BrokerKey key)
+  {
+    BrokerRecords rv = brokers.get(key);
+
+    if (null == rv)
+    {
+      rv = new BrokerRecords();
+      brokers.put(key, rv);
+    }
+
+    return rv;
+  }
+
+  private void applyConsumer(final MALMessageHeader hdr)
+  {
+    final Map<String, ConsumerRecord> consumers = getBrokerRecords(new BrokerKey(hdr)).consumers;
+    final String uri = hdr.getURIFrom().getValue();
+
+    if (!consumers.containsKey(uri))
+    {
+      consumers.put(uri, new ConsumerRecord(hdr));
+    }
+  }
+
+  private void applyRegister(final Registration registration)
+  {
+    final MALMessageHeader hdr = registration.hdr;
+    applyConsumer(hdr);
+
+    getBrokerRecords(new BrokerKey(hdr)).consumers.get(hdr.getURIFrom().getValue()).subscriptions
+            .put(registration.subscription.getSubscriptionId().getValue(), registration);
+  }
+
+  private void applyDeregister(final MALMessageHeader hdr, final IdentifierList subscriptions)
+  {
+    final Map<String, ConsumerRecord> consumers = getBrokerRecords(new BrokerKey(hdr)).consumers;
+    final ConsumerRecord consumer = consumers.get(hdr.getURIFrom().getValue());
+
+    if ((null != consumer) && (null != subscriptions))
+    {
+      for (Identifier sub : subscriptions)
+      {
+        consumer.subscriptions.remove(sub.getValue());
+      }
+
+      if (consumer.subscriptions.isEmpty())
+      {
+        consumers.remove(hdr.getURIFrom().getValue());
+      }
+    }
+  }
+
+  private void applyRemoveConsumer(final BrokerKey key, final String consumerUri)
+  {
+    getBrokerRecords(key).consumers.remove(consumerUri);
+  }
+
+  private void applyPublishRegister(final MALMessageHeader hdr, final QoSLevel qosLevel, final EntityKeyList keys)
+  {
+    final Map<ProviderKey, ProviderRecord> providers = getBrokerRecords(new BrokerKey(hdr)).providers;
+    final ProviderKey key = new ProviderKey(hdr.getURIFrom().getValue(), hdr);
+    final ProviderRecord existing = providers.get(key);
+
+    // the QoS level of the original publish register is retained
+    providers.put(key, new ProviderRecord(hdr, (null == existing) ? qosLevel : existing.qosLevel, keys));
+  }
+
+  private void applyPublishDeregister(final MALMessageHeader hdr)
+  {
+    getBrokerRecords(new BrokerKey(hdr)).providers.remove(new ProviderKey(hdr.getURIFrom().getValue(), hdr));
+  }
+
+  private static void writeHeader(final DataOutputStream out, final MALMessageHeader hdr) throws IOException
+  {
+    writeString(out, (null == hdr.getURIFrom()) ? null : hdr.getURIFrom().getValue());
+    writeBlob(out, hdr.getAuthenticationId());
+    writeString(out, (null == hdr.getURITo()) ? null : hdr.getURITo().getValue());
+    writeLong(out, (null == hdr.getTimestamp()) ? null : hdr.getTimestamp().getValue());
+    writeEnumeration(out, hdr.getQoSlevel());
+    writeLong(out, (null == hdr.getPriority()) ? null : hdr.getPriority().getValue());
+    writeIdentifierList(out, hdr.getDomain());
+    writeIdentifier(out, hdr.getNetworkZone());
+    writeEnumeration(out, hdr.getSession());
+    writeIdentifier(out, hdr.getSessionName());
+    writeEnumeration(out, hdr.getInteractionType());
+    writeLong(out, (null == hdr.getInteractionStage()) ? null : (long) hdr.getInteractionStage().getValue());
+    writeLong(out, hdr.getTransactionId());
+    writeLong(out, (null == hdr.getServiceArea()) ? null : (long) hdr.getServiceArea().getValue());
+    writeLong(out, (null == hdr.getService()) ? null : (long) hdr.getService().getValue());
+    writeLong(out, (null == hdr.getOperation()) ? null : (long) hdr.getOperation().getValue());
+    writeLong(out, (null == hdr.getAreaVersion()) ? null : (long) hdr.getAreaVersion().getValue());
+    writeBoolean(out, hdr.getIsErrorMessage());
+  }
+
+  private static MALMessageHeader readHeader(final ByteBuffer in)
+  {
+    final JournalHeader hdr = new JournalHeader();
+    final String uriFrom = readString(in);
+    hdr.setURIFrom((null == uriFrom) ? null : new URI(uriFrom));
+    hdr.setAuthenticationId(readBlob(in));
+    final String uriTo = readString(in);
+    hdr.setURITo((null == uriTo) ? null : new URI(uriTo));
+    final Long timestamp = readLong(in);
+    hdr.setTimestamp((null == timestamp) ? null : new Time(timestamp));
+    final int qos = in.getInt();
+    hdr.setQoSlevel((0 > qos) ? null : QoSLevel.fromOrdinal(qos));
+    final Long priority = readLong(in);
+    hdr.setPriority((null == priority) ? null : new UInteger(priority));
+    hdr.setDomain(readIdentifierList(in));
+    hdr.setNetworkZone(readIdentifier(in));
+    final int session = in.getInt();
+    hdr.setSession((0 > session) ? null : SessionType.fromOrdinal(session));
+    hdr.setSessionName(readIdentifier(in));
+    final int interactionType = in.getInt();
+    hdr.setInteractionType((0 > interactionType) ? null : InteractionType.fromOrdinal(interactionType));
+    final Long stage = readLong(in);
+    hdr.setInteractionStage((null == stage) ? null : new UOctet(stage.shortValue()));
+    hdr.setTransactionId(readLong(in));
+    final Long area = readLong(in);
+    hdr.setServiceArea((null == area) ? null : new UShort(area.intValue()));
+    final Long service = readLong(in);
+    hdr.setService((null == service) ? null : new UShort(service.intValue()));
+    final Long operation = readLong(in);
+    hdr.setOperation((null == operation) ? null : new UShort(operation.intValue()));
+    final Long version = readLong(in);
+    hdr.setAreaVersion((null == version) ? null : new UOctet(version.shortValue()));
+    hdr.setIsErrorMessage(readBoolean(in));
+    return hdr;
+  }
+
+  private static void writeSubscription(final DataOutputStream out, final Subscription subscription)
+          throws IOException
+  {
+    writeIdentifier(out, subscription.getSubscriptionId());
+
+    final EntityRequestList entities = subscription.getEntities();
+    out.writeInt((null == entities) ? -1 : entities.size());
+
+    if (null != entities)
+    {
+      for (EntityRequest req : entities)
+      {
+        writeIdentifierList(out, req.getSubDomain());
+        writeBoolean(out, req.getAllAreas());
+        writeBoolean(out, req.getAllServices());
+        writeBoolean(out, req.getAllOperations());
+        writeBoolean(out, req.getOnlyOnChange());
+        writeEntityKeyList(out, req.getEntityKeys());
+      }
+    }
+  }
+
+  private static Subscription readSubscription(final ByteBuffer in)
+  {
+    final Identifier subscriptionId = readIdentifier(in);
+    final int count = in.getInt();
+    EntityRequestList entities = null;
+
+    if (0 <= count)
+    {
+      entities = new EntityRequestList(count);
+
+      for (int i = 0; i < count; i++)
+      {
+        entities.add(new EntityRequest(readIdentifierList(in),
+                readBoolean(in),
+                readBoolean(in),
+                readBoolean(in),
+                readBoolean(in),
+                readEntityKeyList(in)));
+      }
+    }
+
+    return new Subscription(subscriptionId, entities);
+  }
+
+  private static void writeEntityKeyList(final DataOutputStream out, final EntityKeyList keys) throws IOException
+  {
+    out.writeInt((null == keys) ? -1 : keys.size());
+
+    if (null != keys)
+    {
+      for (EntityKey key : keys)
+      {
+        writeIdentifier(out, key.getFirstSubKey());
+        writeLong(out, key.getSecondSubKey());
+        writeLong(out, key.getThirdSubKey());
+        writeLong(out, key.getFourthSubKey());
+      }
+    }
+  }
+
+  private static EntityKeyList readEntityKeyList(final ByteBuffer in)
+  {
+    final int count = in.getInt();
+
+    if (0 > count)
+    {
+      return null;
+    }
+
+    final EntityKeyList keys = new EntityKeyList(count);
+
+    for (int i = 0; i < count; i++)
+    {
+      keys.add(new EntityKey(readIdentifier(in), readLong(in), readLong(in), readLong(in)));
+    }
+
+    return keys;
+  }
+
+  private static void writeIdentifierList(final DataOutputStream out, final IdentifierList ids) throws IOException
+  {
+    out.writeInt((null == ids) ? -1 : ids.size());
+
+    if (null != ids)
+    {
+      for (Identifier id : ids)
+      {
+        writeIdentifier(out, id);
+      }
+    }
+  }
+
+  private static IdentifierList readIdentifierList(final ByteBuffer in)
+  {
+    final int count = in.getInt();
+
+    if (0 > count)
+    {
+      return null;
+    }
+
+    final IdentifierList ids = new IdentifierList(count);
+
+    for (int i = 0; i < count; i++)
+    {
+      ids.add(readIdentifier(in));
+    }
+
+    return ids;
+  }
+
+  private static void writeBrokerKey(final DataOutputStream out, final BrokerKey key) throws IOException
+  {
+    writeString(out, key.getUri());
+    out.writeInt(key.getSession());
+    writeString(out, key.getSessionName());
+  }
+
+  private static BrokerKey readBrokerKey(final ByteBuffer in)
+  {
+    return new BrokerKey(readString(in), in.getInt(), readString(in));
+  }
+
+  private static void writeIdentifier(final DataOutputStream out, final Identifier id) throws IOException
+  {
+    out.writeBoolean(null != id);
+
+    if (null != id)
+    {
+      writeString(out, id.getValue());
+    }
+  }
+
+  private static Identifier readIdentifier(final ByteBuffer in)
+  {
+    return (0 == in.get()) ? null : new Identifier(readString(in));
+  }
+
+  private static void writeEnumeration(final DataOutputStream out, final Enumeration value) throws IOException
+  {
+    out.writeInt((null == value) ? -1 : value.getOrdinal());
+  }
+
+  private static void writeBlob(final DataOutputStream out, final Blob value) throws IOException
+  {
+    byte[] bytes = null;
+
+    if (null != value)
+    {
+      try
+      {
+        final byte[] all = value.getValue();
+
+        if (null != all)
+        {
+          bytes = new byte[value.getLength()];
+          System.arraycopy(all, value.getOffset(), bytes, 0, bytes.length);
+        }
+      }
+      catch (MALException ex)
+      {
+        // URL based blobs are not journaled
+      }
+    }
+
+    out.writeInt((null == bytes) ? -1 : bytes.length);
+
+    if (null != bytes)
+    {
+      out.write(bytes);
+    }
+  }
+
+  private static Blob readBlob(final ByteBuffer in)
+  {
+    final int length = in.getInt();
+
+    if (0 > length)
+    {
+      return null;
+    }
+
+    final byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new Blob(bytes);
+  }
+
+  private static void writeString(final DataOutputStream out, final String value) throws IOException
+  {
+    if (null == value)
+    {
+      out.writeInt(-1);
+    }
+    else
+    {
+      final byte[] bytes = value.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(final ByteBuffer in)
+  {
+    final int length = in.getInt();
+
+    if (0 > length)
+    {
+      return null;
+    }
+
+    final byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private static void writeLong(final DataOutputStream out, final Long value) throws IOException
+  {
+    out.writeBoolean(null != value);
+
+    if (null != value)
+    {
+      out.writeLong(value);
+    }
+  }
+
+  private static Long readLong(final ByteBuffer in)
+  {
+    return (0 == in.get()) ? null : in.getLong();
+  }
+
+  private static void writeBoolean(final DataOutputStream out, final Boolean value) throws IOException
+  {
+    out.writeByte((null == value) ? -1 : (value ? 1 : 0));
+  }
+
+  private static Boolean readBoolean(final ByteBuffer in)
+  {
+    final byte value = in.get();
+    return (0 > value) ? null : Boolean.valueOf(0 != value);
+  }
+
+  /**
+   * The registrations of a single broker key.
+   */
+  private static final class BrokerRecords
+  {
+    private final Map<String, ConsumerRecord> consumers = new LinkedHashMap<String, ConsumerRecord>();
+    private final Map<ProviderKey, ProviderRecord> providers = new LinkedHashMap<ProviderKey, ProviderRecord>();
+  }
+
+  /**
+   * A consumer, the header is that of the register that created the consumer.
+   */
+  private static final class ConsumerRecord
+  {
+    private final MALMessageHeader hdr;
+    private final Map<String, Registration> subscriptions = new LinkedHashMap<String, Registration>();
+
+    private ConsumerRecord(final MALMessageHeader hdr)
+    {
+      this.hdr = hdr;
+    }
+  }
+
+  /**
+   * A provider.
+   */
+  private static final class ProviderRecord
+  {
+    private final MALMessageHeader hdr;
+    private final QoSLevel qosLevel;
+    private final EntityKeyList keys;
+
+    private ProviderRecord(final MALMessageHeader hdr, final QoSLevel qosLevel, final EntityKeyList keys)
+    {
+      this.hdr = hdr;
+      this.qosLevel = qosLevel;
+      this.keys = keys;
+    }
+  }
+}
@@ -20,19 +20,34 @@
  */
 package esa.mo.mal.impl.broker;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.ccsds.moims.mo.mal.MALException;
 import org.ccsds.moims.mo.mal.structures.*;
 import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
 import org.ccsds.moims.mo.mal.transport.MALPublishBody;
 
 /**
- * Base class for subscription sources.
+ * Base class for subscription sources. Subscriptions are added and removed holding the lock of the broker key, whereas
+ * the notify list is populated without a lock, so implementations must publish a consistent view of their
+ * subscriptions on each change.
+ *
+ * The subscriptions are also recorded in the form they were registered so that they can be forwarded to federated
+ * brokers, see {@link FederationLink}, and the subscriptions that set a minimum notify interval are throttled, see
+ * {@link SubscriptionThrottle}.
  */
 public abstract class SubscriptionSource
 {
   private final NotifyMessageSet.MessageHeaderDetails msgHeaderDetails;
   private int commsErrorCount = 0;
+  private volatile OutboundQueue outboundQueue = null;
+  private volatile MALBrokerBindingImpl binding = null;
+  private final Map<String, Registration> registrations = new LinkedHashMap<String, Registration>();
+  private volatile int registrationCount = 0;
+  private volatile SubscriptionThrottle throttle = null;
+  private final SnapshotGate snapshotGate = new SnapshotGate();
 
   /**
    * Constructor.
@@ -87,6 +102,147 @@ public abstract class SubscriptionSource
     commsErrorCount = 0;
   }
 
+  /**
+   * Returns the outbound queue of this source.
+   *
+   * @return the queue, or null if notify messages are sent on the publishing thread.
+   */
+  public OutboundQueue getOutboundQueue()
+  {
+    return outboundQueue;
+  }
+
+  /**
+   * Sets the outbound queue of this source.
+   *
+   * @param queue The queue.
+   */
+  void setOutboundQueue(final OutboundQueue queue)
+  {
+    this.outboundQueue = queue;
+  }
+
+  /**
+   * Returns the broker binding the consumer of this source registered through.
+   *
+   * @return the binding, or null if not known.
+   */
+  MALBrokerBindingImpl getBinding()
+  {
+    return binding;
+  }
+
+  /**
+   * Sets the broker binding the consumer of this source registered through.
+   *
+   * @param binding The binding.
+   */
+  void setBinding(final MALBrokerBindingImpl binding)
+  {
+    this.binding = binding;
+  }
+
+  /**
+   * Records a subscription in the form it was registered and applies its minimum notify interval. Called holding the
+   * lock of the broker key.
+   *
+   * @param registration The registration.
+   */
+  void recordRegistration(final Registration registration)
+  {
+    final String subId = registration.subscription.getSubscriptionId().getValue();
+    registrations.put(subId, registration);
+    registrationCount = registrations.size();
+
+    if (0 < registration.minimumInterval)
+    {
+      if (null == throttle)
+      {
+        throttle = new SubscriptionThrottle();
+      }
+
+      throttle.setInterval(subId, registration.minimumInterval);
+    }
+    else if (null != throttle)
+    {
+      throttle.remove(subId);
+    }
+  }
+
+  /**
+   * Removes the record of subscriptions. Called holding the lock of the broker key.
+   *
+   * @param subscriptions The subscriptions to remove, null removes all of them.
+   */
+  void recordDeregistration(final IdentifierList subscriptions)
+  {
+    if (null == subscriptions)
+    {
+      registrations.clear();
+
+      if (null != throttle)
+      {
+        throttle.clear();
+      }
+    }
+    else
+    {
+      for (Identifier sub : subscriptions)
+      {
+        final Registration removed = registrations.remove(sub.getValue());
+
+        if ((null != removed) && (0 < removed.minimumInterval) && (null != throttle))
+        {
+          throttle.remove(sub.getValue());
+        }
+      }
+    }
+
+    registrationCount = registrations.size();
+  }
+
+  /**
+   * Returns the subscriptions of this source in the form they were registered. Called holding the lock of the broker
+   * key.
+   *
+   * @return the registrations.
+   */
+  List<Registration> getRegistrations()
+  {
+    return new ArrayList<Registration>(registrations.values());
+  }
+
+  /**
+   * Returns the gate that holds back the notify messages of this source while a last value snapshot is sent to it.
+   *
+   * @return the gate.
+   */
+  SnapshotGate getSnapshotGate()
+  {
+    return snapshotGate;
+  }
+
+  /**
+   * Returns the throttle of the subscriptions of this source that set a minimum notify interval.
+   *
+   * @return the throttle, or null if no subscription has ever been throttled.
+   */
+  SubscriptionThrottle getThrottle()
+  {
+    return throttle;
+  }
+
+  /**
+   * Returns the number of subscriptions of this source. Called without holding the lock of the broker key. The default
+   * implementation returns the number of subscriptions registered through the broker.
+   *
+   * @return the subscription count.
+   */
+  public int getSubscriptionCount()
+  {
+    return registrationCount;
+  }
+
   /**
    * Returns the signature for this source.
    *
@@ -128,10 +284,88 @@ public abstract class SubscriptionSource
           final UpdateHeaderList updateHeaderList,
           final MALPublishBody publishBody) throws MALException;
 
+  /**
+   * Adds messages to the list of notify messages to be sent out. This is the form called by the broker, the default
+   * implementation passes the updates on to the form taking the publish message body, implementations override it to
+   * share the decoded, or encoded, update lists between the sources of a publish.
+   *
+   * @param srcHdr Source publish message.
+   * @param lst List of broker messages.
+   * @param updateHeaderList The update header list.
+   * @param updates The update lists of the publish message.
+   * @throws MALException On error.
+   */
+  public void populateNotifyList(final MALMessageHeader srcHdr,
+          final List<NotifyMessageSet> lst,
+          final UpdateHeaderList updateHeaderList,
+          final PublishedUpdates updates) throws MALException
+  {
+    populateNotifyList(srcHdr, lst, updateHeaderList, updates.getPublishBody());
+  }
+
   /**
    * Removes a subscription.
    *
    * @param subscriptions List of subscription identifiers to remove.
    */
   public abstract void removeSubscriptions(final IdentifierList subscriptions);
+
+  /**
+   * Adds several subscriptions to this source in one pass, the result is the same as adding each of them in turn. The
+   * default implementation does just that, implementations that maintain an index override it to update the index
+   * once.
+   *
+   * @param registrations The subscriptions and their register message headers.
+   */
+  public void addSubscriptions(final List<Registration> registrations)
+  {
+    for (Registration reg : registrations)
+    {
+      addSubscription(reg.hdr, reg.subscription);
+    }
+  }
+
+  /**
+   * Simple struct style class that holds a subscription in the form it was registered.
+   */
+  public static final class Registration
+  {
+    /**
+     * The register message header.
+     */
+    public final MALMessageHeader hdr;
+    /**
+     * The subscription.
+     */
+    public final Subscription subscription;
+    /**
+     * The minimum interval, in milliseconds, between two notifications of the same entity, zero if not throttled.
+     */
+    public final long minimumInterval;
+
+    /**
+     * Constructor.
+     *
+     * @param hdr The register message header.
+     * @param subscription The subscription.
+     */
+    public Registration(final MALMessageHeader hdr, final Subscription subscription)
+    {
+      this(hdr, subscription, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param hdr The register message header.
+     * @param subscription The subscription.
+     * @param minimumInterval The minimum notify interval in milliseconds, zero if not throttled.
+     */
+    public Registration(final MALMessageHeader hdr, final Subscription subscription, final long minimumInterval)
+    {
+      this.hdr = hdr;
+      this.subscription = subscription;
+      this.minimumInterval = minimumInterval;
+    }
+  }
 }
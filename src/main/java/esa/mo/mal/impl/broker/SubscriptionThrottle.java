@@ -0,0 +1,537 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker;
+
+import esa.mo.mal.impl.broker.NotifyMessageSet.NotifyMessage;
+import esa.mo.mal.impl.util.InternedDomain;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.ccsds.moims.mo.mal.structures.EntityKey;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.UpdateHeader;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.structures.UpdateType;
+
+/**
+ * Limits the rate at which the throttled subscriptions of a consumer are notified of each entity. A subscription is
+ * throttled by setting the {@link #MINIMUM_INTERVAL_PROPERTY} QoS property on its register message. An update of an
+ * entity notified less than the minimum interval after the previous one is held back, a newer update replacing it, and
+ * the held update is sent once the interval has expired, so the consumer always ends up with the latest value.
+ *
+ * Only updates of type UPDATE or MODIFICATION are held back. A CREATION or DELETION is sent straight away and
+ * discards any update of the same entity being held, as it supersedes it.
+ *
+ * The throttle is used by concurrent publishes and by the timer that sends the held updates, all methods are
+ * synchronized. The updates passed or released by the throttle must be handed on for sending while holding its
+ * {@link #getSendLock send lock}, so that they reach the consumer in the order the throttle let them through and a
+ * held update is never sent after the CREATION or DELETION that discarded it.
+ *
+ * The time an entity was last notified is kept until its interval has expired, after which it is forgotten by the next
+ * flush, or by the next hold once enough entities have been seen.
+ */
+final class SubscriptionThrottle
+{
+  /**
+   * QoS property of a register message that sets the minimum interval, in milliseconds, between two notifications of
+   * the same entity to the subscription. Zero, the default, does not throttle the subscription.
+   */
+  public static final String MINIMUM_INTERVAL_PROPERTY = "org.ccsds.moims.mo.mal.broker.subscription.minimumInterval";
+  private static final int MINIMUM_PRUNE_SIZE = 64;
+  private final Object sendLock = new Object();
+  private final Map<String, Long> intervals = new HashMap<String, Long>();
+  private final Map<Key, Slot> slots = new HashMap<Key, Slot>();
+  private int pruneSize = MINIMUM_PRUNE_SIZE;
+  private boolean flushScheduled = false;
+
+  /**
+   * Returns the minimum interval requested by the QoS properties of a register message.
+   *
+   * @param qosProperties The QoS properties, may be null.
+   * @return The interval in milliseconds, zero if the subscription is not throttled.
+   */
+  static long getMinimumInterval(final Map qosProperties)
+  {
+    final Object value = (null == qosProperties) ? null : qosProperties.get(MINIMUM_INTERVAL_PROPERTY);
+
+    if (null != value)
+    {
+      try
+      {
+        return Math.max(0, Long.parseLong(value.toString().trim()));
+      }
+      catch (NumberFormatException ex)
+      {
+        MALBrokerImpl.LOGGER.log(Level.WARNING, "Invalid value for subscription property {0} : {1}", new Object[]
+        {
+          MINIMUM_INTERVAL_PROPERTY, value
+        });
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Returns the lock to hold from the call to {@link #hold} or {@link #flush} until the resulting messages have been
+   * handed on for sending. It is distinct from the lock of the throttle so that it can be held while the broker state
+   * is locked to drop a failed consumer.
+   *
+   * @return The send lock.
+   */
+  Object getSendLock()
+  {
+    return sendLock;
+  }
+
+  /**
+   * Sets the minimum interval of a subscription, an interval of zero removes the throttle of the subscription.
+   *
+   * @param subscriptionId The subscription.
+   * @param minimumInterval The interval in milliseconds.
+   */
+  synchronized void setInterval(final String subscriptionId, final long minimumInterval)
+  {
+    if (0 < minimumInterval)
+    {
+      intervals.put(subscriptionId, TimeUnit.MILLISECONDS.toNanos(minimumInterval));
+    }
+    else if (null != intervals.remove(subscriptionId))
+    {
+      removeSlots(subscriptionId);
+    }
+  }
+
+  /**
+   * Removes the throttle of a subscription, any updates held for it are discarded.
+   *
+   * @param subscriptionId The subscription.
+   */
+  synchronized void remove(final String subscriptionId)
+  {
+    setInterval(subscriptionId, 0);
+  }
+
+  /**
+   * Removes the throttles of all subscriptions.
+   */
+  synchronized void clear()
+  {
+    intervals.clear();
+    slots.clear();
+  }
+
+  /**
+   * Returns true if no subscription is throttled.
+   *
+   * @return True if empty.
+   */
+  synchronized boolean isEmpty()
+  {
+    return intervals.isEmpty();
+  }
+
+  /**
+   * Holds back the updates of a set of notify messages that arrive within the minimum interval of their subscription.
+   * The held updates are removed from the messages, as are any messages left empty.
+   *
+   * @param notifyMessageSet The messages of a publish.
+   * @param now The current time, from System.nanoTime.
+   * @return The delay, in nanoseconds, after which {@link #flush} must be called, or -1 if no call needs to be
+   * scheduled.
+   */
+  synchronized long hold(final NotifyMessageSet notifyMessageSet, final long now)
+  {
+    if (intervals.isEmpty())
+    {
+      return -1;
+    }
+
+    if (slots.size() >= pruneSize)
+    {
+      prune(now);
+    }
+
+    boolean held = false;
+    final Iterator<NotifyMessage> it = notifyMessageSet.messages.iterator();
+
+    while (it.hasNext())
+    {
+      final NotifyMessage msg = it.next();
+      final Long interval = intervals.get(msg.subscriptionId.getValue());
+
+      if (null != interval)
+      {
+        final InternedDomain domain = InternedDomain.intern(msg.domain);
+        int i = 0;
+
+        while (i < msg.updateHeaderList.size())
+        {
+          final UpdateHeader updateHeader = msg.updateHeaderList.get(i);
+          final Key key = new Key(msg, domain, updateHeader.getKey());
+          final Slot slot = slots.get(key);
+
+          if (!isThrottled(updateHeader))
+          {
+            if (UpdateType.DELETION.equals(updateHeader.getUpdateType()))
+            {
+              slots.remove(key);
+            }
+            else if (null != slot)
+            {
+              slot.sent(now);
+            }
+
+            ++i;
+          }
+          else if ((null == slot) || (now - slot.lastSent >= interval))
+          {
+            if (null == slot)
+            {
+              slots.put(key, new Slot(now));
+            }
+            else
+            {
+              slot.sent(now);
+            }
+
+            ++i;
+          }
+          else
+          {
+            slot.hold(msg, i);
+            held = true;
+          }
+        }
+
+        if (msg.updateHeaderList.isEmpty())
+        {
+          it.remove();
+        }
+      }
+    }
+
+    if (held && !flushScheduled)
+    {
+      flushScheduled = true;
+      return nextDue(now);
+    }
+
+    return -1;
+  }
+
+  /**
+   * Removes the held updates whose interval has expired, and forgets the entities with no held update whose interval
+   * has expired.
+   *
+   * @param details The message header details of the consumer.
+   * @param now The current time, from System.nanoTime.
+   * @return The notify messages holding the updates, or null if there are none.
+   */
+  synchronized NotifyMessageSet flush(final NotifyMessageSet.MessageHeaderDetails details, final long now)
+  {
+    final Map<Key, NotifyMessage> groups = new LinkedHashMap<Key, NotifyMessage>();
+    final Iterator<Map.Entry<Key, Slot>> it = slots.entrySet().iterator();
+
+    while (it.hasNext())
+    {
+      final Map.Entry<Key, Slot> entry = it.next();
+      final Slot slot = entry.getValue();
+
+      if (now - slot.lastSent >= getInterval(entry.getKey()))
+      {
+        if (null == slot.pendingHeader)
+        {
+          it.remove();
+        }
+        else
+        {
+          final Key groupKey = entry.getKey().getGroupKey();
+          NotifyMessage msg = groups.get(groupKey);
+
+          if (null == msg)
+          {
+            msg = slot.createMessage();
+            groups.put(groupKey, msg);
+          }
+
+          slot.addTo(msg);
+          slot.sent(now);
+        }
+      }
+    }
+
+    if (groups.isEmpty())
+    {
+      return null;
+    }
+
+    final NotifyMessageSet rv = new NotifyMessageSet();
+    rv.details = details;
+    rv.messages = new LinkedList<NotifyMessage>(groups.values());
+    return rv;
+  }
+
+  /**
+   * Returns the delay until the next call to {@link #flush}, called after each flush.
+   *
+   * @param now The current time, from System.nanoTime.
+   * @return The delay in nanoseconds, or -1 if no updates are held in which case no call needs to be scheduled.
+   */
+  synchronized long reschedule(final long now)
+  {
+    final long rv = nextDue(now);
+
+    flushScheduled = (0 <= rv);
+    return rv;
+  }
+
+  private long nextDue(final long now)
+  {
+    long rv = -1;
+
+    for (Map.Entry<Key, Slot> entry : slots.entrySet())
+    {
+      final Slot slot = entry.getValue();
+
+      if (null != slot.pendingHeader)
+      {
+        final long due = Math.max(0, slot.lastSent + getInterval(entry.getKey()) - now);
+
+        if ((0 > rv) || (due < rv))
+        {
+          rv = due;
+        }
+      }
+    }
+
+    return rv;
+  }
+
+  private void prune(final long now)
+  {
+    final Iterator<Map.Entry<Key, Slot>> it = slots.entrySet().iterator();
+
+    while (it.hasNext())
+    {
+      final Map.Entry<Key, Slot> entry = it.next();
+      final Slot slot = entry.getValue();
+
+      if ((null == slot.pendingHeader) && (now - slot.lastSent >= getInterval(entry.getKey())))
+      {
+        it.remove();
+      }
+    }
+
+    pruneSize = Math.max(MINIMUM_PRUNE_SIZE, 2 * slots.size());
+  }
+
+  private long getInterval(final Key key)
+  {
+    // the slots of a subscription are removed with its interval
+    return intervals.get(key.subscriptionId.getValue());
+  }
+
+  private void removeSlots(final String subscriptionId)
+  {
+    final Iterator<Key> it = slots.keySet().iterator();
+
+    while (it.hasNext())
+    {
+      if (subscriptionId.equals(it.next().subscriptionId.getValue()))
+      {
+        it.remove();
+      }
+    }
+  }
+
+  private static boolean isThrottled(final UpdateHeader updateHeader)
+  {
+    final UpdateType updateType = updateHeader.getUpdateType();
+
+    return UpdateType.UPDATE.equals(updateType) || UpdateType.MODIFICATION.equals(updateType);
+  }
+
+  private static boolean equal(final Object lhs, final Object rhs)
+  {
+    return (lhs == null) ? (rhs == null) : lhs.equals(rhs);
+  }
+
+  /**
+   * The time an entity was last notified to a subscription and the newest update held back since.
+   */
+  private static final class Slot
+  {
+    private long lastSent;
+    private NotifyMessage pendingSource;
+    private UpdateHeader pendingHeader;
+    private Object[] pendingElements;
+
+    private Slot(final long lastSent)
+    {
+      this.lastSent = lastSent;
+    }
+
+    private void sent(final long now)
+    {
+      lastSent = now;
+      pendingSource = null;
+      pendingHeader = null;
+      pendingElements = null;
+    }
+
+    private void hold(final NotifyMessage msg, final int index)
+    {
+      pendingSource = msg;
+      pendingHeader = msg.updateHeaderList.remove(index);
+      pendingElements = null;
+
+      if (null != msg.updateList)
+      {
+        pendingElements = new Object[msg.updateList.length];
+
+        for (int i = 0; i < msg.updateList.length; i++)
+        {
+          if (null != msg.updateList[i])
+          {
+            pendingElements[i] = msg.updateList[i].remove(index);
+          }
+        }
+      }
+    }
+
+    private NotifyMessage createMessage()
+    {
+      final NotifyMessage rv = new NotifyMessage();
+      rv.domain = pendingSource.domain;
+      rv.networkZone = pendingSource.networkZone;
+      rv.area = pendingSource.area;
+      rv.service = pendingSource.service;
+      rv.operation = pendingSource.operation;
+      rv.version = pendingSource.version;
+      rv.subscriptionId = pendingSource.subscriptionId;
+      rv.updateHeaderList = new UpdateHeaderList();
+      rv.updateList = PublishedUpdates.createEmptyLists(pendingSource.updateList);
+      return rv;
+    }
+
+    private void addTo(final NotifyMessage msg)
+    {
+      msg.updateHeaderList.add(pendingHeader);
+
+      if ((null != msg.updateList) && (null != pendingElements))
+      {
+        for (int i = 0; i < msg.updateList.length; i++)
+        {
+          if ((null != msg.updateList[i]) && (i < pendingElements.length))
+          {
+            msg.updateList[i].add(pendingElements[i]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The subscription, message routing and entity key of an update, the group key of an update has no entity key.
+   */
+  private static final class Key
+  {
+    private static final int HASH_MAGIC_NUMBER = 71;
+    private final Identifier subscriptionId;
+    private final InternedDomain domain;
+    private final Object networkZone;
+    private final Object area;
+    private final Object service;
+    private final Object operation;
+    private final Object version;
+    private final EntityKey entityKey;
+    private final int hash;
+
+    private Key(final NotifyMessage msg, final InternedDomain domain, final EntityKey entityKey)
+    {
+      this(msg.subscriptionId, domain, msg.networkZone, msg.area, msg.service, msg.operation, msg.version,
+              entityKey);
+    }
+
+    private Key(final Identifier subscriptionId, final InternedDomain domain, final Object networkZone,
+            final Object area, final Object service, final Object operation, final Object version,
+            final EntityKey entityKey)
+    {
+      this.subscriptionId = subscriptionId;
+      this.domain = domain;
+      this.networkZone = networkZone;
+      this.area = area;
+      this.service = service;
+      this.operation = operation;
+      this.version = version;
+      this.entityKey = entityKey;
+
+      int h = 7;
+      h = HASH_MAGIC_NUMBER * h + (null == subscriptionId ? 0 : subscriptionId.hashCode());
+      h = HASH_MAGIC_NUMBER * h + (null == domain ? 0 : domain.hashCode());
+      h = HASH_MAGIC_NUMBER * h + (null == operation ? 0 : operation.hashCode());
+      h = HASH_MAGIC_NUMBER * h + (null == entityKey ? 0 : entityKey.hashCode());
+      this.hash = h;
+    }
+
+    private Key getGroupKey()
+    {
+      return new Key(subscriptionId, domain, networkZone, area, service, operation, version, null);
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+      if (this == obj)
+      {
+        return true;
+      }
+
+      if (!(obj instanceof Key))
+      {
+        return false;
+      }
+
+      final Key other = (Key) obj;
+
+      return (hash == other.hash)
+              && (domain == other.domain)
+              && equal(subscriptionId, other.subscriptionId)
+              && equal(networkZone, other.networkZone)
+              && equal(area, other.area)
+              && equal(service, other.service)
+              && equal(operation, other.operation)
+              && equal(version, other.version)
+              && equal(entityKey, other.entityKey);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker.indexed;
+
+import esa.mo.mal.impl.broker.MALBrokerHandlerImpl;
+import esa.mo.mal.impl.broker.NotifyMessageSet;
+import esa.mo.mal.impl.broker.PublishedUpdates;
+import esa.mo.mal.impl.broker.SubscriptionSource;
+import esa.mo.mal.impl.broker.key.BrokerKey;
+import esa.mo.mal.impl.util.MALClose;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+
+/**
+ * Extends the base broker handler for the Indexed broker implementation. Rather than checking every update against
+ * every subscription this broker holds all subscriptions of a broker context in a single index so that the cost of a
+ * publish is proportional to the number of matched subscriptions. It can be selected by setting the
+ * org.ccsds.moims.mo.mal.broker.class property to the name of this class.
+ *
+ * Each index is only modified holding the lock of its broker key, publishes search it without locking, and is dropped
+ * once its broker key has no providers or consumers left. The result of each search is cached by update key until the
+ * index next changes, so that the keys a provider publishes repeatedly are only searched for once.
+ */
+public class IndexedBrokerHandler extends MALBrokerHandlerImpl
+{
+  /**
+   * Property that sets the maximum number of update keys held in the match cache of each broker context, zero
+   * disables the cache.
+   */
+  public static final String MATCH_CACHE_SIZE_PROPERTY = "org.ccsds.moims.mo.mal.broker.matchCache.size";
+  private static final int DEFAULT_MATCH_CACHE_SIZE = 8192;
+  private final ConcurrentMap<BrokerKey, SubscriptionIndex> indexMap
+          = new ConcurrentHashMap<BrokerKey, SubscriptionIndex>();
+  private volatile int matchCacheSize = DEFAULT_MATCH_CACHE_SIZE;
+
+  /**
+   * Constructor
+   *
+   * @param parent The parent of this class.
+   */
+  public IndexedBrokerHandler(MALClose parent)
+  {
+    super(parent);
+  }
+
+  @Override
+  protected void configure(final Map qosProperties)
+  {
+    matchCacheSize = getIntProperty(qosProperties, MATCH_CACHE_SIZE_PROPERTY, DEFAULT_MATCH_CACHE_SIZE);
+  }
+
+  @Override
+  protected SubscriptionSource createEntry(final MALMessageHeader hdr)
+  {
+    return new IndexedSubscriptionSource(hdr, getIndex(new BrokerKey(hdr)));
+  }
+
+  @Override
+  protected void brokerKeyRemoved(final BrokerKey key)
+  {
+    indexMap.remove(key);
+  }
+
+  @Override
+  protected void populateNotifyList(final BrokerKey key,
+          final MALMessageHeader hdr,
+          final List<NotifyMessageSet> lst,
+          final UpdateHeaderList updateHeaderList,
+          final PublishedUpdates updates) throws MALException
+  {
+    final SubscriptionIndex index = indexMap.get(key);
+
+    if (null != index)
+    {
+      index.populateNotifyList(hdr, lst, updateHeaderList, updates, null);
+    }
+  }
+
+  private SubscriptionIndex getIndex(final BrokerKey key)
+  {
+    SubscriptionIndex index = indexMap.get(key);
+
+    if (null == index)
+    {
+      final SubscriptionIndex newIndex = new SubscriptionIndex(matchCacheSize);
+      index = indexMap.putIfAbsent(key, newIndex);
+
+      if (null == index)
+      {
+        index = newIndex;
+      }
+    }
+
+    return index;
+  }
+}
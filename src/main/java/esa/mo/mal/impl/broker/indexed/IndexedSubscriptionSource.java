@@ -0,0 +1,213 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker.indexed;
+
+import esa.mo.mal.impl.broker.MALBrokerImpl;
+import esa.mo.mal.impl.broker.NotifyMessageSet;
+import esa.mo.mal.impl.broker.PublishedUpdates;
+import esa.mo.mal.impl.broker.SubscriptionSource;
+import esa.mo.mal.impl.broker.indexed.SubscriptionIndex.Entry;
+import esa.mo.mal.impl.broker.indexed.SubscriptionIndex.SubscriptionRef;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.Subscription;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+import org.ccsds.moims.mo.mal.transport.MALPublishBody;
+
+/**
+ * An IndexedSubscriptionSource represents a single consumer indexed by URI. Its subscriptions are held in the
+ * subscription index of the broker context it belongs to, which is only changed by the keys that are added or removed.
+ */
+class IndexedSubscriptionSource extends SubscriptionSource
+{
+  private final String signature;
+  private final SubscriptionIndex index;
+  private final Map<String, List<Entry>> details = new HashMap<String, List<Entry>>();
+  private int keyCount = 0;
+  private volatile int subscriptionCount = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param hdr The message header of the subscription message.
+   * @param index The subscription index of the broker context.
+   */
+  IndexedSubscriptionSource(final MALMessageHeader hdr, final SubscriptionIndex index)
+  {
+    super(hdr, hdr.getURIFrom());
+    this.signature = hdr.getURIFrom().getValue();
+    this.index = index;
+  }
+
+  @Override
+  public boolean active()
+  {
+    return 0 < keyCount;
+  }
+
+  @Override
+  public void report()
+  {
+    MALBrokerImpl.LOGGER.log(Level.FINE, "  START Consumer ( {0} )", signature);
+    MALBrokerImpl.LOGGER.log(Level.FINE, "   Required: {0}", keyCount);
+    for (Map.Entry<String, List<Entry>> entry : details.entrySet())
+    {
+      MALBrokerImpl.LOGGER.log(Level.FINE, "    START Subscription ( {0} )", entry.getKey());
+      for (Entry key : entry.getValue())
+      {
+        MALBrokerImpl.LOGGER.log(Level.FINE, "            : Rqd : {0}", key);
+      }
+      MALBrokerImpl.LOGGER.log(Level.FINE, "    END Subscription ( {0} )", entry.getKey());
+    }
+    MALBrokerImpl.LOGGER.log(Level.FINE, "  END Consumer ( {0} )", signature);
+  }
+
+  @Override
+  public int getSubscriptionCount()
+  {
+    // the details are modified holding the lock of the broker key so their size is published separately
+    return subscriptionCount;
+  }
+
+  @Override
+  public String getSignature()
+  {
+    return signature;
+  }
+
+  @Override
+  public void addSubscription(final MALMessageHeader srcHdr, final Subscription subscription)
+  {
+    final List<Entry> removed = new ArrayList<Entry>();
+    final List<Entry> added = new ArrayList<Entry>();
+
+    put(srcHdr, subscription, removed, added);
+
+    index.update(removed, added);
+    subscriptionCount = details.size();
+  }
+
+  @Override
+  public void addSubscriptions(final List<Registration> registrations)
+  {
+    // only the last registration of a subscription counts, so the entries of the index are never replaced twice
+    final Map<String, Registration> latest = new LinkedHashMap<String, Registration>();
+    for (Registration reg : registrations)
+    {
+      latest.put(reg.subscription.getSubscriptionId().getValue(), reg);
+    }
+
+    final List<Entry> removed = new ArrayList<Entry>();
+    final List<Entry> added = new ArrayList<Entry>();
+
+    for (Registration reg : latest.values())
+    {
+      put(reg.hdr, reg.subscription, removed, added);
+    }
+
+    index.update(removed, added);
+    subscriptionCount = details.size();
+  }
+
+  @Override
+  public void populateNotifyList(final MALMessageHeader srcHdr,
+          final List<NotifyMessageSet> lst,
+          final UpdateHeaderList updateHeaderList,
+          final MALPublishBody publishBody) throws MALException
+  {
+    populateNotifyList(srcHdr, lst, updateHeaderList, new PublishedUpdates(publishBody, updateHeaderList, null, false));
+  }
+
+  @Override
+  public void populateNotifyList(final MALMessageHeader srcHdr,
+          final List<NotifyMessageSet> lst,
+          final UpdateHeaderList updateHeaderList,
+          final PublishedUpdates updates) throws MALException
+  {
+    MALBrokerImpl.LOGGER.log(Level.FINE, "Checking IdxComSource : {0}", signature);
+
+    index.populateNotifyList(srcHdr, lst, updateHeaderList, updates, this);
+  }
+
+  @Override
+  public void removeSubscriptions(final IdentifierList subscriptions)
+  {
+    final List<Entry> removed = new ArrayList<Entry>();
+
+    if (null != subscriptions)
+    {
+      for (Identifier sub : subscriptions)
+      {
+        final List<Entry> entries = details.remove(sub.getValue());
+
+        if (null != entries)
+        {
+          removed.addAll(entries);
+        }
+      }
+    }
+    else
+    {
+      // remove all
+      for (List<Entry> entries : details.values())
+      {
+        removed.addAll(entries);
+      }
+
+      details.clear();
+    }
+
+    index.update(removed, null);
+    keyCount -= removed.size();
+    subscriptionCount = details.size();
+  }
+
+  private void put(final MALMessageHeader srcHdr,
+          final Subscription subscription,
+          final List<Entry> removed,
+          final List<Entry> added)
+  {
+    final String subId = subscription.getSubscriptionId().getValue();
+    final List<Entry> previous = details.get(subId);
+
+    // a re-registered subscription keeps its reference so that its kept and new entries notify as one
+    final SubscriptionRef ref = ((null == previous) || previous.isEmpty())
+            ? new SubscriptionRef(this, subId) : previous.get(0).ref;
+    final List<Entry> entries = SubscriptionIndex.replaceEntries(previous,
+            SubscriptionIndex.createEntries(ref, srcHdr, subscription.getEntities()), removed, added);
+
+    details.put(subId, entries);
+
+    if (null != previous)
+    {
+      keyCount -= previous.size();
+    }
+    keyCount += entries.size();
+  }
+}
@@ -0,0 +1,950 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker.indexed;
+
+import esa.mo.mal.impl.broker.NotifyMessageSet;
+import esa.mo.mal.impl.broker.NotifyMessageSet.NotifyMessage;
+import esa.mo.mal.impl.broker.PublishedUpdates;
+import esa.mo.mal.impl.broker.key.PublisherKey;
+import esa.mo.mal.impl.broker.key.UpdateKey;
+import esa.mo.mal.impl.util.InternedDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.structures.*;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+
+/**
+ * A subscription index for a single broker context. The index is a tree, the first levels of which are the
+ * components of the subscription domain, followed by a level each for the area, service, operation and the four entity
+ * sub-keys. Each level holds a branch for every explicit value registered and a dedicated branch for the wildcard value
+ * so that the search for an update only visits the branches that can match it.
+ *
+ * Published nodes of the tree are never modified, a change copies the nodes on the path to the modified leaves and
+ * then replaces the root so that a search, which reads the root once, always sees a consistent tree without locking.
+ * Changes must be serialised by the caller. A change of many entries copies each node at most once, so registering the
+ * subscriptions of a consumer in one change costs far less than registering them one by one, and a re-registered
+ * subscription only changes the entries of its keys that differ, see {@link #replaceEntries}.
+ *
+ * The entries matched by each update key are cached against the root they were found in, so a change to the index
+ * implicitly invalidates the cache and a publish never sees the matches of a different tree to the one it searches.
+ */
+final class SubscriptionIndex
+{
+  /**
+   * Number of levels in the key part of the tree: area, service, operation and the four sub-keys.
+   */
+  private static final int KEY_DEPTH = 7;
+  private static final ThreadLocal<PublishScratch> SCRATCH = new ThreadLocal<PublishScratch>();
+  private final int matchCacheSize;
+  private volatile DomainNode root = new DomainNode(null);
+  private volatile MatchCache matchCache = null;
+
+  /**
+   * Constructor.
+   *
+   * @param matchCacheSize The maximum number of update keys held in the match cache, zero disables the cache.
+   */
+  SubscriptionIndex(final int matchCacheSize)
+  {
+    this.matchCacheSize = matchCacheSize;
+  }
+
+  /**
+   * Removes and adds subscription keys to the index, publishing the result as a single change.
+   *
+   * @param removed The entries to remove, may be null.
+   * @param added The entries to add, may be null.
+   */
+  void update(final List<Entry> removed, final List<Entry> added)
+  {
+    if (((null == removed) || removed.isEmpty()) && ((null == added) || added.isEmpty()))
+    {
+      // keep the current root, and so the match cache
+      return;
+    }
+
+    final Mutation mutation = new Mutation();
+    final DomainNode newRoot = mutation.copy(root);
+
+    if (null != removed)
+    {
+      for (Entry entry : removed)
+      {
+        removeDomain(mutation, newRoot, entry, 0);
+      }
+    }
+
+    if (null != added)
+    {
+      for (Entry entry : added)
+      {
+        add(mutation, newRoot, entry);
+      }
+    }
+
+    root = newRoot;
+  }
+
+  /**
+   * Returns true if there are no subscriptions held in this index.
+   *
+   * @return True if empty.
+   */
+  boolean isEmpty()
+  {
+    return root.isEmpty();
+  }
+
+  /**
+   * Adds messages to the list of notify messages to be sent out for every subscription that matches the supplied
+   * updates.
+   *
+   * @param srcHdr Source publish message.
+   * @param lst List of broker messages.
+   * @param updateHeaderList The update header list.
+   * @param updates The update lists of the publish message.
+   * @param consumer If not null only subscriptions of this consumer are considered.
+   * @throws MALException On error.
+   */
+  void populateNotifyList(final MALMessageHeader srcHdr,
+          final List<NotifyMessageSet> lst,
+          final UpdateHeaderList updateHeaderList,
+          final PublishedUpdates updates,
+          final IndexedSubscriptionSource consumer) throws MALException
+  {
+    PublishScratch scratch = SCRATCH.get();
+
+    if (null == scratch)
+    {
+      scratch = new PublishScratch();
+      SCRATCH.set(scratch);
+    }
+    else if (scratch.inUse)
+    {
+      // not expected, but a nested publish on the same thread must not share the working state
+      scratch = new PublishScratch();
+    }
+
+    scratch.inUse = true;
+
+    try
+    {
+      populateNotifyList(srcHdr, lst, updateHeaderList, updates, consumer, scratch);
+    }
+    finally
+    {
+      scratch.release();
+    }
+  }
+
+  private void populateNotifyList(final MALMessageHeader srcHdr,
+          final List<NotifyMessageSet> lst,
+          final UpdateHeaderList updateHeaderList,
+          final PublishedUpdates updates,
+          final IndexedSubscriptionSource consumer,
+          final PublishScratch scratch) throws MALException
+  {
+    final DomainNode snapshot = root;
+    final MatchCache cache = getMatchCache(snapshot);
+    final InternedDomain srcDomain = InternedDomain.intern(srcHdr.getDomain());
+    final List<String> domain = domainComponents(srcHdr.getDomain(), null, null);
+    final Object[] keys = scratch.keys;
+    keys[0] = srcHdr.getServiceArea();
+    keys[1] = srcHdr.getService();
+    keys[2] = srcHdr.getOperation();
+
+    final Map<SubscriptionRef, NotifyBuilder> builders = scratch.builders;
+    final List<Entry> matches = scratch.matches;
+    final int updateCount = updateHeaderList.size();
+
+    for (int i = 0; i < updateCount; ++i)
+    {
+      final UpdateHeader updateHeader = updateHeaderList.get(i);
+      final EntityKey entityKey = updateHeader.getKey();
+      keys[3] = getIdValue(entityKey.getFirstSubKey());
+      keys[4] = entityKey.getSecondSubKey();
+      keys[5] = entityKey.getThirdSubKey();
+      keys[6] = entityKey.getFourthSubKey();
+
+      final boolean isUpdate = updateHeader.getUpdateType().getOrdinal() == UpdateType._UPDATE_INDEX;
+
+      Entry[] entries = null;
+      UpdateKey updateKey = null;
+
+      if (null != cache)
+      {
+        updateKey = new UpdateKey(srcHdr, srcDomain, entityKey);
+        entries = cache.entries.get(updateKey);
+      }
+
+      if (null == entries)
+      {
+        matches.clear();
+        search(snapshot, domain, keys, matches);
+        entries = matches.toArray(new Entry[matches.size()]);
+
+        if (null != cache)
+        {
+          cache.put(updateKey, entries);
+        }
+      }
+
+      for (Entry entry : entries)
+      {
+        if (((null == consumer) || (consumer == entry.ref.consumer)) && (!entry.onlyOnChange || !isUpdate))
+        {
+          NotifyBuilder builder = builders.get(entry.ref);
+          if (null == builder)
+          {
+            builder = scratch.builder(entry.ref);
+            builders.put(entry.ref, builder);
+          }
+
+          builder.add(i);
+        }
+      }
+    }
+
+    if (!builders.isEmpty())
+    {
+      final Map<IndexedSubscriptionSource, NotifyMessageSet> sets = scratch.sets;
+
+      for (NotifyBuilder builder : scratch.used)
+      {
+        final IndexedSubscriptionSource source = builder.ref.consumer;
+        NotifyMessageSet msgSet = sets.get(source);
+        if (null == msgSet)
+        {
+          msgSet = new NotifyMessageSet();
+          msgSet.details = source.getMsgHeaderDetails();
+          msgSet.messages = new LinkedList<NotifyMessage>();
+          sets.put(source, msgSet);
+          lst.add(msgSet);
+        }
+
+        final NotifyMessage msg = new NotifyMessage();
+        msg.subscriptionId = builder.ref.subscriptionIdentifier;
+        msg.updateHeaderList = builder.createNotifyHeaders(updateHeaderList);
+        msg.updateList = builder.createNotifyLists(updates);
+        msg.domain = srcHdr.getDomain();
+        msg.networkZone = srcHdr.getNetworkZone();
+        msg.area = srcHdr.getServiceArea();
+        msg.service = srcHdr.getService();
+        msg.operation = srcHdr.getOperation();
+        msg.version = srcHdr.getAreaVersion();
+        msgSet.messages.add(msg);
+      }
+    }
+  }
+
+  private MatchCache getMatchCache(final DomainNode snapshot)
+  {
+    if (0 >= matchCacheSize)
+    {
+      return null;
+    }
+
+    MatchCache rv = matchCache;
+
+    if ((null == rv) || (snapshot != rv.root))
+    {
+      // a publish racing with a change may replace a newer cache, which is then rebuilt by the next publish
+      rv = new MatchCache(snapshot, matchCacheSize);
+      matchCache = rv;
+    }
+
+    return rv;
+  }
+
+  /**
+   * Creates the index entries for a subscription.
+   *
+   * @param ref The subscription the entries belong to.
+   * @param hdr The subscription message header.
+   * @param lst The entity requests of the subscription.
+   * @return The list of entries.
+   */
+  static List<Entry> createEntries(final SubscriptionRef ref, final MALMessageHeader hdr, final EntityRequestList lst)
+  {
+    final List<Entry> entries = new ArrayList<Entry>();
+
+    for (EntityRequest rqst : lst)
+    {
+      final boolean[] andSubDomains = new boolean[1];
+      final List<String> domain = domainComponents(hdr.getDomain(), rqst.getSubDomain(), andSubDomains);
+      final UShort area = rqst.getAllAreas() ? PublisherKey.ALL_SHORT : hdr.getServiceArea();
+      final UShort service = rqst.getAllServices() ? PublisherKey.ALL_SHORT : hdr.getService();
+      final UShort operation = rqst.getAllOperations() ? PublisherKey.ALL_SHORT : hdr.getOperation();
+      final boolean onlyOnChange = rqst.getOnlyOnChange();
+
+      for (EntityKey id : rqst.getEntityKeys())
+      {
+        final Object[] keys = new Object[]
+        {
+          area, service, operation,
+          getIdValue(id.getFirstSubKey()), id.getSecondSubKey(), id.getThirdSubKey(), id.getFourthSubKey()
+        };
+
+        for (int i = 0; i < KEY_DEPTH; ++i)
+        {
+          if (isWildcard(keys[i]))
+          {
+            keys[i] = Wildcard.INSTANCE;
+          }
+        }
+
+        entries.add(new Entry(ref, domain, andSubDomains[0], keys, onlyOnChange));
+      }
+    }
+
+    return entries;
+  }
+
+  /**
+   * Replaces the entries of a subscription. The entries of the previous registration whose keys are unchanged are kept
+   * so that only the keys that differ are removed from and added to the index.
+   *
+   * @param previous The entries of the previous registration, may be null.
+   * @param entries The entries of the new registration, created with the reference of the previous one.
+   * @param removed Receives the entries to remove from the index.
+   * @param added Receives the entries to add to the index.
+   * @return The entries now held by the subscription.
+   */
+  static List<Entry> replaceEntries(final List<Entry> previous,
+          final List<Entry> entries,
+          final List<Entry> removed,
+          final List<Entry> added)
+  {
+    if ((null == previous) || previous.isEmpty())
+    {
+      added.addAll(entries);
+      return entries;
+    }
+
+    final Map<EntryKey, Entry> unchanged = new HashMap<EntryKey, Entry>();
+
+    for (Entry entry : previous)
+    {
+      final Entry duplicate = unchanged.put(new EntryKey(entry), entry);
+
+      if (null != duplicate)
+      {
+        removed.add(duplicate);
+      }
+    }
+
+    final List<Entry> rv = new ArrayList<Entry>(entries.size());
+
+    for (Entry entry : entries)
+    {
+      final Entry kept = unchanged.remove(new EntryKey(entry));
+
+      if (null == kept)
+      {
+        added.add(entry);
+        rv.add(entry);
+      }
+      else
+      {
+        rv.add(kept);
+      }
+    }
+
+    removed.addAll(unchanged.values());
+
+    return rv;
+  }
+
+  private static void add(final Mutation mutation, final DomainNode root, final Entry entry)
+  {
+    DomainNode node = root;
+    for (String id : entry.domain)
+    {
+      final DomainNode child = mutation.copy(node.children.get(id));
+      node.children.put(id, child);
+      node = child;
+    }
+
+    KeyNode keyNode;
+    if (entry.andSubDomains)
+    {
+      node.andSubDomains = mutation.copy(node.andSubDomains);
+      keyNode = node.andSubDomains;
+    }
+    else
+    {
+      node.exact = mutation.copy(node.exact);
+      keyNode = node.exact;
+    }
+
+    for (int i = 0; i < KEY_DEPTH; ++i)
+    {
+      keyNode = keyNode.getOrCreate(mutation, entry.keys[i]);
+    }
+
+    keyNode.entries.add(entry);
+  }
+
+  private static void search(final DomainNode root,
+          final List<String> domain,
+          final Object[] keys,
+          final List<Entry> matches)
+  {
+    DomainNode node = root;
+    final int e = domain.size();
+
+    for (int i = 0; i <= e; ++i)
+    {
+      searchKeys(node.andSubDomains, keys, 0, matches);
+
+      if (i == e)
+      {
+        searchKeys(node.exact, keys, 0, matches);
+      }
+      else
+      {
+        node = node.children.get(domain.get(i));
+        if (null == node)
+        {
+          break;
+        }
+      }
+    }
+  }
+
+  private static void searchKeys(final KeyNode node, final Object[] keys, final int depth, final List<Entry> matches)
+  {
+    if (null != node)
+    {
+      if (KEY_DEPTH == depth)
+      {
+        matches.addAll(node.entries);
+      }
+      else
+      {
+        final Object value = keys[depth];
+
+        if (isWildcard(value))
+        {
+          // a wildcard in the update matches every branch
+          for (KeyNode child : node.children.values())
+          {
+            searchKeys(child, keys, depth + 1, matches);
+          }
+        }
+        else
+        {
+          searchKeys(node.children.get(value), keys, depth + 1, matches);
+        }
+
+        searchKeys(node.wildcard, keys, depth + 1, matches);
+      }
+    }
+  }
+
+  private static boolean removeDomain(final Mutation mutation,
+          final DomainNode node,
+          final Entry entry,
+          final int depth)
+  {
+    if (depth == entry.domain.size())
+    {
+      if (entry.andSubDomains)
+      {
+        if (null != node.andSubDomains)
+        {
+          node.andSubDomains = mutation.copy(node.andSubDomains);
+          if (removeKeys(mutation, node.andSubDomains, entry, 0))
+          {
+            node.andSubDomains = null;
+          }
+        }
+      }
+      else
+      {
+        if (null != node.exact)
+        {
+          node.exact = mutation.copy(node.exact);
+          if (removeKeys(mutation, node.exact, entry, 0))
+          {
+            node.exact = null;
+          }
+        }
+      }
+    }
+    else
+    {
+      final String id = entry.domain.get(depth);
+      DomainNode child = node.children.get(id);
+      if (null != child)
+      {
+        child = mutation.copy(child);
+        node.children.put(id, child);
+        if (removeDomain(mutation, child, entry, depth + 1))
+        {
+          node.children.remove(id);
+        }
+      }
+    }
+
+    return node.isEmpty();
+  }
+
+  private static boolean removeKeys(final Mutation mutation, final KeyNode node, final Entry entry, final int depth)
+  {
+    if (KEY_DEPTH == depth)
+    {
+      node.entries.remove(entry);
+    }
+    else
+    {
+      final Object value = entry.keys[depth];
+      if (Wildcard.INSTANCE == value)
+      {
+        if (null != node.wildcard)
+        {
+          node.wildcard = mutation.copy(node.wildcard);
+          if (removeKeys(mutation, node.wildcard, entry, depth + 1))
+          {
+            node.wildcard = null;
+          }
+        }
+      }
+      else
+      {
+        KeyNode child = node.children.get(value);
+        if (null != child)
+        {
+          child = mutation.copy(child);
+          node.children.put(value, child);
+          if (removeKeys(mutation, child, entry, depth + 1))
+          {
+            node.children.remove(value);
+          }
+        }
+      }
+    }
+
+    return node.isEmpty();
+  }
+
+  private static List<String> domainComponents(final IdentifierList domain,
+          final IdentifierList subDomain,
+          final boolean[] andSubDomains)
+  {
+    final List<String> rv = new ArrayList<String>();
+
+    if (null != domain)
+    {
+      for (Identifier identifier : domain)
+      {
+        rv.add(getIdValue(identifier));
+      }
+    }
+
+    if (null != subDomain)
+    {
+      for (Identifier identifier : subDomain)
+      {
+        final String id = getIdValue(identifier);
+        if (PublisherKey.ALL_ID.equals(id))
+        {
+          andSubDomains[0] = true;
+        }
+        else
+        {
+          rv.add(id);
+        }
+      }
+    }
+
+    return rv;
+  }
+
+  private static String getIdValue(final Identifier id)
+  {
+    if (null != id)
+    {
+      return id.getValue();
+    }
+
+    return null;
+  }
+
+  private static boolean isWildcard(final Object value)
+  {
+    return (Wildcard.INSTANCE == value)
+            || PublisherKey.ALL_ID.equals(value)
+            || PublisherKey.ALL_NUMBER.equals(value)
+            || PublisherKey.ALL_SHORT.equals(value);
+  }
+
+  /**
+   * Marker for the wildcard branch of a key level.
+   */
+  private static final class Wildcard
+  {
+    private static final Wildcard INSTANCE = new Wildcard();
+
+    @Override
+    public String toString()
+    {
+      return "*";
+    }
+  }
+
+  /**
+   * Identifies a single subscription of a consumer.
+   */
+  static final class SubscriptionRef
+  {
+    final IndexedSubscriptionSource consumer;
+    final String subscriptionId;
+    final Identifier subscriptionIdentifier;
+
+    SubscriptionRef(final IndexedSubscriptionSource consumer, final String subscriptionId)
+    {
+      this.consumer = consumer;
+      this.subscriptionId = subscriptionId;
+      this.subscriptionIdentifier = new Identifier(subscriptionId);
+    }
+  }
+
+  /**
+   * A single subscription key held in the index.
+   */
+  static final class Entry
+  {
+    final SubscriptionRef ref;
+    final List<String> domain;
+    final boolean andSubDomains;
+    final Object[] keys;
+    final boolean onlyOnChange;
+
+    Entry(final SubscriptionRef ref,
+            final List<String> domain,
+            final boolean andSubDomains,
+            final Object[] keys,
+            final boolean onlyOnChange)
+    {
+      this.ref = ref;
+      this.domain = domain;
+      this.andSubDomains = andSubDomains;
+      this.keys = keys;
+      this.onlyOnChange = onlyOnChange;
+    }
+
+    @Override
+    public String toString()
+    {
+      final StringBuilder buf = new StringBuilder();
+      buf.append('[');
+      buf.append(domain);
+      if (andSubDomains)
+      {
+        buf.append(".*");
+      }
+      for (Object key : keys)
+      {
+        buf.append(':');
+        buf.append(key);
+      }
+      buf.append(onlyOnChange ? ":Chg" : ":All");
+      buf.append(']');
+      return buf.toString();
+    }
+  }
+
+  /**
+   * The keys of an entry, entries themselves are compared by identity as those of different subscriptions may hold the
+   * same keys.
+   */
+  private static final class EntryKey
+  {
+    private static final int HASH_MAGIC_NUMBER = 67;
+    private final Entry entry;
+    private final int hash;
+
+    private EntryKey(final Entry entry)
+    {
+      this.entry = entry;
+      this.hash = HASH_MAGIC_NUMBER * (HASH_MAGIC_NUMBER * entry.domain.hashCode() + Arrays.hashCode(entry.keys))
+              + (entry.andSubDomains ? 2 : 0) + (entry.onlyOnChange ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+      if (!(obj instanceof EntryKey))
+      {
+        return false;
+      }
+
+      final Entry other = ((EntryKey) obj).entry;
+
+      return (entry.andSubDomains == other.andSubDomains)
+              && (entry.onlyOnChange == other.onlyOnChange)
+              && entry.domain.equals(other.domain)
+              && Arrays.equals(entry.keys, other.keys);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+  }
+
+  /**
+   * The entries matched by each update key searched for in a single root of the index. The cache is emptied if it
+   * reaches its maximum size, a provider publishing a stable set of keys quickly fills it again.
+   */
+  private static final class MatchCache
+  {
+    private final DomainNode root;
+    private final int maxSize;
+    private final ConcurrentMap<UpdateKey, Entry[]> entries = new ConcurrentHashMap<UpdateKey, Entry[]>();
+
+    private MatchCache(final DomainNode root, final int maxSize)
+    {
+      this.root = root;
+      this.maxSize = maxSize;
+    }
+
+    private void put(final UpdateKey key, final Entry[] matched)
+    {
+      if (entries.size() >= maxSize)
+      {
+        entries.clear();
+      }
+
+      entries.put(key, matched);
+    }
+  }
+
+  private static final class DomainNode
+  {
+    private final Map<String, DomainNode> children;
+    private KeyNode exact;
+    private KeyNode andSubDomains;
+
+    private DomainNode(final DomainNode other)
+    {
+      if (null == other)
+      {
+        children = new HashMap<String, DomainNode>();
+        exact = null;
+        andSubDomains = null;
+      }
+      else
+      {
+        children = new HashMap<String, DomainNode>(other.children);
+        exact = other.exact;
+        andSubDomains = other.andSubDomains;
+      }
+    }
+
+    private boolean isEmpty()
+    {
+      return children.isEmpty() && (null == exact) && (null == andSubDomains);
+    }
+  }
+
+  private static final class KeyNode
+  {
+    private final Map<Object, KeyNode> children;
+    private final List<Entry> entries;
+    private KeyNode wildcard;
+
+    private KeyNode(final KeyNode other)
+    {
+      if (null == other)
+      {
+        children = new HashMap<Object, KeyNode>();
+        entries = new ArrayList<Entry>();
+        wildcard = null;
+      }
+      else
+      {
+        children = new HashMap<Object, KeyNode>(other.children);
+        entries = new ArrayList<Entry>(other.entries);
+        wildcard = other.wildcard;
+      }
+    }
+
+    private KeyNode getOrCreate(final Mutation mutation, final Object value)
+    {
+      if (Wildcard.INSTANCE == value)
+      {
+        wildcard = mutation.copy(wildcard);
+        return wildcard;
+      }
+
+      final KeyNode child = mutation.copy(children.get(value));
+      children.put(value, child);
+      return child;
+    }
+
+    private boolean isEmpty()
+    {
+      return children.isEmpty() && entries.isEmpty() && (null == wildcard);
+    }
+  }
+
+  /**
+   * Tracks the nodes created during a single change so that each published node is copied at most once.
+   */
+  private static final class Mutation
+  {
+    private final Set<Object> created = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    private DomainNode copy(final DomainNode node)
+    {
+      if ((null != node) && created.contains(node))
+      {
+        return node;
+      }
+
+      final DomainNode rv = new DomainNode(node);
+      created.add(rv);
+      return rv;
+    }
+
+    private KeyNode copy(final KeyNode node)
+    {
+      if ((null != node) && created.contains(node))
+      {
+        return node;
+      }
+
+      final KeyNode rv = new KeyNode(node);
+      created.add(rv);
+      return rv;
+    }
+  }
+
+  /**
+   * The working state of a publish, held by each publishing thread and reused by its publishes so that matching only
+   * allocates the notify messages it produces. The builders are kept in the order they are first used so that the
+   * notify messages are generated in the order the subscriptions were matched.
+   */
+  private static final class PublishScratch
+  {
+    private final Object[] keys = new Object[KEY_DEPTH];
+    private final List<Entry> matches = new ArrayList<Entry>();
+    private final Map<SubscriptionRef, NotifyBuilder> builders = new IdentityHashMap<SubscriptionRef, NotifyBuilder>();
+    private final Map<IndexedSubscriptionSource, NotifyMessageSet> sets
+            = new IdentityHashMap<IndexedSubscriptionSource, NotifyMessageSet>();
+    private final List<NotifyBuilder> used = new ArrayList<NotifyBuilder>();
+    private final List<NotifyBuilder> free = new ArrayList<NotifyBuilder>();
+    private boolean inUse = false;
+
+    private NotifyBuilder builder(final SubscriptionRef ref)
+    {
+      final NotifyBuilder rv = free.isEmpty() ? new NotifyBuilder() : free.remove(free.size() - 1);
+      rv.reset(ref);
+      used.add(rv);
+      return rv;
+    }
+
+    private void release()
+    {
+      for (NotifyBuilder builder : used)
+      {
+        builder.ref = null;
+        free.add(builder);
+      }
+
+      used.clear();
+      builders.clear();
+      sets.clear();
+      matches.clear();
+      Arrays.fill(keys, null);
+      inUse = false;
+    }
+  }
+
+  /**
+   * Collects the indexes of the updates matched by a single subscription during a publish, so that its notify lists are
+   * created at their final size once all of the updates have been matched. Reused by the publishes of a thread.
+   */
+  private static final class NotifyBuilder
+  {
+    private static final int INITIAL_INDEXES = 8;
+    private SubscriptionRef ref;
+    private int[] indexes = new int[INITIAL_INDEXES];
+    private int count;
+
+    private void reset(final SubscriptionRef ref)
+    {
+      this.ref = ref;
+      this.count = 0;
+    }
+
+    private void add(final int index)
+    {
+      // a subscription may match the same update through more than one of its keys
+      if ((0 == count) || (index != indexes[count - 1]))
+      {
+        if (count == indexes.length)
+        {
+          indexes = Arrays.copyOf(indexes, 2 * count);
+        }
+
+        indexes[count++] = index;
+      }
+    }
+
+    private UpdateHeaderList createNotifyHeaders(final UpdateHeaderList updateHeaderList)
+    {
+      final UpdateHeaderList rv = new UpdateHeaderList(count);
+
+      for (int i = 0; i < count; ++i)
+      {
+        rv.add(updateHeaderList.get(indexes[i]));
+      }
+
+      return rv;
+    }
+
+    private List[] createNotifyLists(final PublishedUpdates updates) throws MALException
+    {
+      final List[] rv = updates.createNotifyLists(count);
+
+      for (int i = 0; i < count; ++i)
+      {
+        updates.addUpdate(rv, indexes[i]);
+      }
+
+      return rv;
+    }
+  }
+}
@@ -57,6 +57,33 @@ public class BrokerKey implements Comparable
     this.sessionName = sessionName;
   }
 
+  /**
+   * Returns the URI of the broker.
+   * @return the URI.
+   */
+  public String getUri()
+  {
+    return uri;
+  }
+
+  /**
+   * Returns the ordinal of the broker session enumeration.
+   * @return the session.
+   */
+  public int getSession()
+  {
+    return session;
+  }
+
+  /**
+   * Returns the broker session name.
+   * @return the session name.
+   */
+  public String getSessionName()
+  {
+    return sessionName;
+  }
+
   @Override
   public boolean equals(final Object obj)
   {
@@ -0,0 +1,294 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker.key;
+
+import esa.mo.mal.impl.util.InternedDomain;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+import org.ccsds.moims.mo.mal.structures.UShort;
+
+/**
+ * The primitive form of a subscription or update key, built once when the key is created so that matching a
+ * subscription against an update is a handful of integer and identity comparisons rather than boxed and string
+ * comparisons.
+ *
+ * The area, service and operation are packed into one long with a mask that clears the wildcard fields, the first
+ * entity sub key is replaced by an interned symbol and the wildcard sub keys are flagged in a bit mask. A null value is
+ * held as zero with its wildcard flag clear, which cannot be confused with a real value as zero is the wildcard of the
+ * numeric fields.
+ *
+ * Symbols are only created for subscription keys, an update sub key that no subscription uses is given a symbol that
+ * matches nothing but a wildcard. Like interned domains, symbols are held weakly and are dropped once no key refers to
+ * them.
+ */
+final class PackedKey
+{
+  private static final ConcurrentMap<String, SymbolReference> SYMBOLS
+          = new ConcurrentHashMap<String, SymbolReference>();
+  private static final ReferenceQueue<Object> CLEARED = new ReferenceQueue<Object>();
+  private static final Object NULL_SYMBOL = new Object();
+  private static final Object UNKNOWN_SYMBOL = new Object();
+  private static final int SHORT_BITS = 16;
+  private static final long SHORT_MASK = 0xFFFFL;
+  private static final int KEY1_WILD = 1;
+  private static final int KEY2_WILD = 2;
+  private static final int KEY3_WILD = 4;
+  private static final int KEY4_WILD = 8;
+  private static final InternedDomain ROOT_DOMAIN = InternedDomain.intern(new IdentifierList());
+  private final InternedDomain domain;
+  private final boolean andSubDomains;
+  private final long routing;
+  private final long routingMask;
+  private final Object key1;
+  private final long key2;
+  private final long key3;
+  private final long key4;
+  private final int wildcards;
+
+  private PackedKey(final InternedDomain domain,
+          final boolean andSubDomains,
+          final UShort area,
+          final UShort service,
+          final UShort operation,
+          final Object key1,
+          final Long key2,
+          final Long key3,
+          final Long key4,
+          final boolean key1Wild)
+  {
+    this.domain = (null == domain) ? ROOT_DOMAIN : domain;
+    this.andSubDomains = andSubDomains;
+    this.routing = (shortValue(area) << (2 * SHORT_BITS)) | (shortValue(service) << SHORT_BITS)
+            | shortValue(operation);
+    this.routingMask = (shortMask(area) << (2 * SHORT_BITS)) | (shortMask(service) << SHORT_BITS)
+            | shortMask(operation);
+    this.key1 = key1;
+    this.key2 = longValue(key2);
+    this.key3 = longValue(key3);
+    this.key4 = longValue(key4);
+    this.wildcards = (key1Wild ? KEY1_WILD : 0)
+            | (PublisherKey.ALL_NUMBER.equals(key2) ? KEY2_WILD : 0)
+            | (PublisherKey.ALL_NUMBER.equals(key3) ? KEY3_WILD : 0)
+            | (PublisherKey.ALL_NUMBER.equals(key4) ? KEY4_WILD : 0);
+  }
+
+  /**
+   * Creates the packed form of a subscription key.
+   *
+   * @param domain The subscription domain, without any wildcard.
+   * @param andSubDomains True if the sub-domains of the domain also match.
+   * @param area The area, or the wildcard.
+   * @param service The service, or the wildcard.
+   * @param operation The operation, or the wildcard.
+   * @param key1 The first sub key.
+   * @param key2 The second sub key.
+   * @param key3 The third sub key.
+   * @param key4 The fourth sub key.
+   * @return the packed key.
+   */
+  static PackedKey forSubscription(final IdentifierList domain,
+          final boolean andSubDomains,
+          final UShort area,
+          final UShort service,
+          final UShort operation,
+          final String key1,
+          final Long key2,
+          final Long key3,
+          final Long key4)
+  {
+    return new PackedKey(InternedDomain.intern(domain), andSubDomains, area, service, operation,
+            symbol(key1, true), key2, key3, key4, PublisherKey.ALL_ID.equals(key1));
+  }
+
+  /**
+   * Creates the packed form of an update key.
+   *
+   * @param domain The update domain.
+   * @param area The area.
+   * @param service The service.
+   * @param operation The operation.
+   * @param key1 The first sub key.
+   * @param key2 The second sub key.
+   * @param key3 The third sub key.
+   * @param key4 The fourth sub key.
+   * @return the packed key.
+   */
+  static PackedKey forUpdate(final InternedDomain domain,
+          final UShort area,
+          final UShort service,
+          final UShort operation,
+          final String key1,
+          final Long key2,
+          final Long key3,
+          final Long key4)
+  {
+    return new PackedKey(domain, false, area, service, operation,
+            symbol(key1, false), key2, key3, key4, PublisherKey.ALL_ID.equals(key1));
+  }
+
+  /**
+   * Returns true if this subscription key matches an update key taking into account wildcards.
+   *
+   * @param update The packed update key.
+   * @return True if matches.
+   */
+  boolean matches(final PackedKey update)
+  {
+    if (0 != ((routing ^ update.routing) & routingMask & update.routingMask))
+    {
+      return false;
+    }
+
+    final int wild = wildcards | update.wildcards;
+
+    return ((0 != (wild & KEY1_WILD)) || (key1 == update.key1))
+            && ((0 != (wild & KEY2_WILD)) || (key2 == update.key2))
+            && ((0 != (wild & KEY3_WILD)) || (key3 == update.key3))
+            && ((0 != (wild & KEY4_WILD)) || (key4 == update.key4))
+            && (andSubDomains ? update.domain.isSubDomainOf(domain) : (domain == update.domain));
+  }
+
+  /**
+   * Returns the domain of the key.
+   *
+   * @return the interned domain.
+   */
+  InternedDomain getDomain()
+  {
+    return domain;
+  }
+
+  /**
+   * Returns the domain of a subscription, the message domain followed by the subscription sub-domain without any
+   * wildcard.
+   *
+   * @param domain The message domain.
+   * @param subDomain The subscription sub-domain.
+   * @return the domain.
+   */
+  static IdentifierList subscriptionDomain(final IdentifierList domain, final IdentifierList subDomain)
+  {
+    final IdentifierList rv = new IdentifierList();
+
+    if (null != domain)
+    {
+      rv.addAll(domain);
+    }
+
+    if (null != subDomain)
+    {
+      for (Identifier identifier : subDomain)
+      {
+        if (!PublisherKey.ALL_ID.equals(identifier.getValue()))
+        {
+          rv.add(identifier);
+        }
+      }
+    }
+
+    return rv;
+  }
+
+  private static Object symbol(final String value, final boolean create)
+  {
+    if (null == value)
+    {
+      return NULL_SYMBOL;
+    }
+
+    final SymbolReference ref = SYMBOLS.get(value);
+    Object rv = (null == ref) ? null : ref.get();
+
+    if ((null == rv) && create)
+    {
+      purge();
+
+      while (null == rv)
+      {
+        final Object newSymbol = new Object();
+        final SymbolReference newRef = new SymbolReference(newSymbol, value);
+        final SymbolReference existing = SYMBOLS.putIfAbsent(value, newRef);
+
+        if (null == existing)
+        {
+          rv = newSymbol;
+        }
+        else
+        {
+          rv = existing.get();
+
+          // an entry whose symbol has been collected is replaced
+          if ((null == rv) && SYMBOLS.replace(value, existing, newRef))
+          {
+            rv = newSymbol;
+          }
+        }
+      }
+    }
+
+    return (null == rv) ? UNKNOWN_SYMBOL : rv;
+  }
+
+  private static void purge()
+  {
+    Reference<?> ref = CLEARED.poll();
+
+    while (null != ref)
+    {
+      SYMBOLS.remove(((SymbolReference) ref).value, ref);
+      ref = CLEARED.poll();
+    }
+  }
+
+  private static long shortValue(final UShort value)
+  {
+    return (null == value) ? 0 : (value.getValue() & SHORT_MASK);
+  }
+
+  private static long shortMask(final UShort value)
+  {
+    return PublisherKey.ALL_SHORT.equals(value) ? 0 : SHORT_MASK;
+  }
+
+  private static long longValue(final Long value)
+  {
+    return (null == value) ? 0 : value;
+  }
+
+  /**
+   * The entry of a symbol in the symbol table, removed from it once the symbol has been collected.
+   */
+  private static final class SymbolReference extends WeakReference<Object>
+  {
+    private final String value;
+
+    private SymbolReference(final Object symbol, final String value)
+    {
+      super(symbol, CLEARED);
+      this.value = value;
+    }
+  }
+}
@@ -152,6 +152,15 @@ public class PublisherKey implements Comparable
     return rv;
   }
 
+  /**
+   * Returns true if any of the sub keys of this key is the wildcard value.
+   * @return True if this key contains a wildcard.
+   */
+  public boolean hasWildcard()
+  {
+    return ALL_ID.equals(key1) || ALL_NUMBER.equals(key2) || ALL_NUMBER.equals(key3) || ALL_NUMBER.equals(key4);
+  }
+
   /**
    * Returns true if this key matches supplied argument taking into account wildcards.
    * @param rhs Key to match against.
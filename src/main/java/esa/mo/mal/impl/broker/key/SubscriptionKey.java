@@ -34,6 +34,7 @@ public final class SubscriptionKey extends PublisherKey
   private final UShort area;
   private final UShort service;
   private final UShort operation;
+  private final PackedKey packed;
 
   /**
    * Constructor.
@@ -89,6 +90,9 @@ public final class SubscriptionKey extends PublisherKey
     this.area = rqst.getAllAreas() ? ALL_SHORT : hdr.getServiceArea();
     this.service = rqst.getAllServices() ? ALL_SHORT : hdr.getService();
     this.operation = rqst.getAllOperations() ? ALL_SHORT : hdr.getOperation();
+    this.packed = PackedKey.forSubscription(PackedKey.subscriptionDomain(mdomain, sdomain), andSubDomains,
+            area, service, operation, getIdValue(key.getFirstSubKey()), key.getSecondSubKey(), key.getThirdSubKey(),
+            key.getFourthSubKey());
   }
 
   @Override
@@ -150,34 +154,7 @@ public final class SubscriptionKey extends PublisherKey
    */
   public boolean matchesWithWildcard(final UpdateKey rhs)
   {
-    boolean matched = super.matchesWithWildcard(rhs);
-    if (matched)
-    {
-      matched = rhs.getDomain().startsWith(this.domain);
-
-      if (matched)
-      {
-        if (this.domain.length() < rhs.getDomain().length())
-        {
-          matched = this.andSubDomains;
-        }
-
-        if (matched)
-        {
-          matched = matchedSubkeyWithWildcard(area, rhs.getArea());
-          if (matched)
-          {
-            matched = matchedSubkeyWithWildcard(service, rhs.getService());
-            if (matched)
-            {
-              matched = matchedSubkeyWithWildcard(operation, rhs.getOperation());
-            }
-          }
-        }
-      }
-    }
-
-    return matched;
+    return packed.matches(rhs.getPackedKey());
   }
 
   @Override
@@ -20,6 +20,7 @@
  */
 package esa.mo.mal.impl.broker.key;
 
+import esa.mo.mal.impl.util.InternedDomain;
 import org.ccsds.moims.mo.mal.structures.EntityKey;
 import org.ccsds.moims.mo.mal.structures.UShort;
 import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
@@ -45,22 +46,28 @@ public final class UpdateKey extends PublisherKey
    * The operation of the update.
    */
   private final UShort operation;
+  /**
+   * The primitive form of the key used for matching.
+   */
+  private final PackedKey packed;
 
   /**
    * Constructor.
    *
    * @param srcHdr Update message header.
-   * @param domainId Update domain.
+   * @param domain Update domain.
    * @param key Entity key.
    */
-  public UpdateKey(final MALMessageHeader srcHdr, final String domainId, final EntityKey key)
+  public UpdateKey(final MALMessageHeader srcHdr, final InternedDomain domain, final EntityKey key)
   {
     super(key);
 
-    this.domain = domainId;
+    this.domain = (null == domain) ? null : domain.toString();
     this.area = srcHdr.getServiceArea();
     this.service = srcHdr.getService();
     this.operation = srcHdr.getOperation();
+    this.packed = PackedKey.forUpdate(domain, area, service, operation, getIdValue(key.getFirstSubKey()),
+            key.getSecondSubKey(), key.getThirdSubKey(), key.getFourthSubKey());
   }
 
   @Override
@@ -72,7 +79,19 @@ public final class UpdateKey extends PublisherKey
     }
 
     final UpdateKey other = (UpdateKey) obj;
-    if (this.domain == null ? other.domain != null : !this.domain.equals(other.domain))
+    if (this.packed.getDomain() != other.packed.getDomain())
+    {
+      return false;
+    }
+    if (this.area != other.area && (this.area == null || !this.area.equals(other.area)))
+    {
+      return false;
+    }
+    if (this.service != other.service && (this.service == null || !this.service.equals(other.service)))
+    {
+      return false;
+    }
+    if (this.operation != other.operation && (this.operation == null || !this.operation.equals(other.operation)))
     {
       return false;
     }
@@ -82,7 +101,11 @@ public final class UpdateKey extends PublisherKey
   @Override
   public int hashCode()
   {
-    return HASH_MAGIC_NUMBER * super.hashCode() + (this.domain != null ? this.domain.hashCode() : 0);
+    int hash = HASH_MAGIC_NUMBER * super.hashCode() + this.packed.getDomain().hashCode();
+    hash = HASH_MAGIC_NUMBER * hash + (this.area != null ? this.area.hashCode() : 0);
+    hash = HASH_MAGIC_NUMBER * hash + (this.service != null ? this.service.hashCode() : 0);
+    hash = HASH_MAGIC_NUMBER * hash + (this.operation != null ? this.operation.hashCode() : 0);
+    return hash;
   }
 
   @Override
@@ -142,4 +165,14 @@ public final class UpdateKey extends PublisherKey
   {
     return operation;
   }
+
+  /**
+   * Returns the primitive form of the key.
+   *
+   * @return the packed key.
+   */
+  PackedKey getPackedKey()
+  {
+    return packed;
+  }
 }
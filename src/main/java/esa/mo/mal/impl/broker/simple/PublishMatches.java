@@ -0,0 +1,83 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker.simple;
+
+import esa.mo.mal.impl.broker.key.UpdateKey;
+import esa.mo.mal.impl.util.InternedDomain;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+
+/**
+ * The matching state of a single publish. The keys of the updates are built once and the result of each distinct
+ * subscription matcher shared by several subscriptions is remembered, so that they are only matched once. Used by a
+ * single thread.
+ */
+final class PublishMatches
+{
+  private final UpdateHeaderList updateHeaderList;
+  private final UpdateKey[] updateKeys;
+  private Map<SubscriptionMatcher, int[]> results = null;
+
+  PublishMatches(final MALMessageHeader srcHdr, final UpdateHeaderList updateHeaderList)
+  {
+    final InternedDomain srcDomain = InternedDomain.intern(srcHdr.getDomain());
+
+    this.updateHeaderList = updateHeaderList;
+    this.updateKeys = new UpdateKey[updateHeaderList.size()];
+
+    for (int i = 0; i < updateKeys.length; ++i)
+    {
+      updateKeys[i] = new UpdateKey(srcHdr, srcDomain, updateHeaderList.get(i).getKey());
+    }
+  }
+
+  /**
+   * Returns the indexes of the updates matched by a subscription matcher.
+   *
+   * @param matcher The matcher.
+   * @return The matched indexes, in ascending order.
+   */
+  int[] getMatches(final SubscriptionMatcher matcher)
+  {
+    // the result of a matcher used by a single subscription is not needed again
+    if (!matcher.isShared())
+    {
+      return matcher.match(updateKeys, updateHeaderList);
+    }
+
+    if (null == results)
+    {
+      results = new IdentityHashMap<SubscriptionMatcher, int[]>();
+    }
+
+    int[] rv = results.get(matcher);
+
+    if (null == rv)
+    {
+      rv = matcher.match(updateKeys, updateHeaderList);
+      results.put(matcher, rv);
+    }
+
+    return rv;
+  }
+}
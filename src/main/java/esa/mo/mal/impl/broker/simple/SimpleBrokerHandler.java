@@ -21,15 +21,28 @@
 package esa.mo.mal.impl.broker.simple;
 
 import esa.mo.mal.impl.broker.MALBrokerHandlerImpl;
+import esa.mo.mal.impl.broker.NotifyMessageSet;
+import esa.mo.mal.impl.broker.PublishedUpdates;
 import esa.mo.mal.impl.broker.SubscriptionSource;
+import esa.mo.mal.impl.broker.key.BrokerKey;
 import esa.mo.mal.impl.util.MALClose;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.ccsds.moims.mo.mal.MALException;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
 import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
 
 /**
- * Extends the base broker handler for the Simple broker implementation.
+ * Extends the base broker handler for the Simple broker implementation. Each consumer is checked in turn, but
+ * consumers that register identical subscriptions share their subscription keys so that the cost of matching a publish
+ * grows with the number of distinct subscriptions rather than the number of consumers.
  */
 public class SimpleBrokerHandler extends MALBrokerHandlerImpl
 {
+  private final ConcurrentMap<BrokerKey, SubscriptionMatchers> matchersMap
+          = new ConcurrentHashMap<BrokerKey, SubscriptionMatchers>();
+
   /**
    * Constructor
    *
@@ -43,6 +56,45 @@ public class SimpleBrokerHandler extends MALBrokerHandlerImpl
   @Override
   protected SubscriptionSource createEntry(final MALMessageHeader hdr)
   {
-    return new SimpleSubscriptionSource(hdr);
+    return new SimpleSubscriptionSource(hdr, getMatchers(new BrokerKey(hdr)));
+  }
+
+  @Override
+  protected void brokerKeyRemoved(final BrokerKey key)
+  {
+    matchersMap.remove(key);
+  }
+
+  @Override
+  protected void populateNotifyList(final BrokerKey key,
+          final MALMessageHeader hdr,
+          final List<NotifyMessageSet> lst,
+          final UpdateHeaderList updateHeaderList,
+          final PublishedUpdates updates) throws MALException
+  {
+    final PublishMatches matches = new PublishMatches(hdr, updateHeaderList);
+
+    for (SubscriptionSource subscriptionSource : getConsumers(key))
+    {
+      ((SimpleSubscriptionSource) subscriptionSource).populateNotifyList(hdr, lst, matches, updateHeaderList, updates);
+    }
+  }
+
+  private SubscriptionMatchers getMatchers(final BrokerKey key)
+  {
+    SubscriptionMatchers matchers = matchersMap.get(key);
+
+    if (null == matchers)
+    {
+      final SubscriptionMatchers newMatchers = new SubscriptionMatchers();
+      matchers = matchersMap.putIfAbsent(key, newMatchers);
+
+      if (null == matchers)
+      {
+        matchers = newMatchers;
+      }
+    }
+
+    return matchers;
   }
 }
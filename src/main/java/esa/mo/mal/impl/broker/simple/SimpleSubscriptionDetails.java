@@ -22,195 +22,69 @@ package esa.mo.mal.impl.broker.simple;
 
 import esa.mo.mal.impl.broker.MALBrokerImpl;
 import esa.mo.mal.impl.broker.NotifyMessageSet.NotifyMessage;
-import esa.mo.mal.impl.broker.key.SubscriptionKey;
-import esa.mo.mal.impl.broker.key.UpdateKey;
+import esa.mo.mal.impl.broker.PublishedUpdates;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
 import java.util.logging.Level;
 import org.ccsds.moims.mo.mal.MALException;
 import org.ccsds.moims.mo.mal.structures.*;
-import org.ccsds.moims.mo.mal.transport.MALEncodedElementList;
-import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
-import org.ccsds.moims.mo.mal.transport.MALPublishBody;
 
 /**
- * A SimpleSubscriptionDetails is keyed on subscription Id
+ * A SimpleSubscriptionDetails is keyed on subscription Id. Instances are immutable, a new registration of the same
+ * subscription Id replaces the existing instance. The keys of the subscription are held by a
+ * {@link SubscriptionMatcher} that is shared with any identical subscription of the broker key.
  */
 class SimpleSubscriptionDetails
 {
   private final String subscriptionId;
-  private Set<SubscriptionKey> required = new TreeSet<SubscriptionKey>();
-  private Set<SubscriptionKey> onAll = new TreeSet<SubscriptionKey>();
-  private Set<SubscriptionKey> onChange = new TreeSet<SubscriptionKey>();
+  private final Identifier subscriptionIdentifier;
+  private final SubscriptionMatcher matcher;
 
-  SimpleSubscriptionDetails(final String subscriptionId)
+  SimpleSubscriptionDetails(final String subscriptionId, final SubscriptionMatcher matcher)
   {
     this.subscriptionId = subscriptionId;
+    this.subscriptionIdentifier = new Identifier(subscriptionId);
+    this.matcher = matcher;
   }
 
-  void report()
+  SubscriptionMatcher getMatcher()
   {
-    MALBrokerImpl.LOGGER.log(Level.FINE, "    START Subscription ( {0} )", subscriptionId);
-    MALBrokerImpl.LOGGER.log(Level.FINE, "     Required: {0}", required.size());
-    for (SubscriptionKey key : required)
-    {
-      MALBrokerImpl.LOGGER.log(Level.FINE, "            : Rqd : {0}", key);
-    }
-    for (SubscriptionKey key : onAll)
-    {
-      MALBrokerImpl.LOGGER.log(Level.FINE, "            : All : {0}", key);
-    }
-    for (SubscriptionKey key : onChange)
-    {
-      MALBrokerImpl.LOGGER.log(Level.FINE, "            : Chg : {0}", key);
-    }
-    MALBrokerImpl.LOGGER.log(Level.FINE, "    END Subscription ( {0} )", subscriptionId);
+    return matcher;
   }
 
-  void setIds(final MALMessageHeader srcHdr, final EntityRequestList lst)
+  void report()
   {
-    required.clear();
-    onAll.clear();
-    onChange.clear();
-    for (EntityRequest rqst : lst)
-    {
-      final EntityKeyList keyList = rqst.getEntityKeys();
-      final boolean bOnChange = rqst.getOnlyOnChange();
-
-      for (EntityKey id : keyList)
-      {
-        final SubscriptionKey key = new SubscriptionKey(srcHdr, rqst, id);
-        required.add(key);
-        if (bOnChange)
-        {
-          onChange.add(key);
-        }
-        else
-        {
-          onAll.add(key);
-        }
-      }
-    }
+    MALBrokerImpl.LOGGER.log(Level.FINE, "    START Subscription ( {0} )", subscriptionId);
+    matcher.report();
+    MALBrokerImpl.LOGGER.log(Level.FINE, "    END Subscription ( {0} )", subscriptionId);
   }
 
-  NotifyMessage populateNotifyList(final MALMessageHeader srcHdr,
-          final String srcDomainId,
+  NotifyMessage populateNotifyList(final PublishMatches matches,
           final UpdateHeaderList updateHeaderList,
-          final MALPublishBody publishBody) throws MALException
+          final PublishedUpdates updates) throws MALException
   {
     MALBrokerImpl.LOGGER.fine("Checking SimSubDetails");
 
-    final UpdateHeaderList notifyHeaders = new UpdateHeaderList();
-
-    final List[] updateLists = publishBody.getUpdateLists((List[]) null);
-    final List[] notifyLists;
+    final int[] matched = matches.getMatches(matcher);
 
-    // have to check for the case where the pubsub message does not contain a body
-    if (null == updateLists)
-    {
-      notifyLists = null;
-    }
-    else
+    NotifyMessage retVal = null;
+    if (0 < matched.length)
     {
-      notifyLists = new List[updateLists.length];
+      final UpdateHeaderList notifyHeaders = new UpdateHeaderList(matched.length);
+      final List[] notifyLists = updates.createNotifyLists(matched.length);
 
-      for (int i = 0; i < notifyLists.length; i++)
+      for (int index : matched)
       {
-        if (null != updateLists[i])
-        {
-          if (updateLists[i] instanceof MALEncodedElementList)
-          {
-            MALEncodedElementList encodedElementList = (MALEncodedElementList) updateLists[i];
-            notifyLists[i] = new MALEncodedElementList(encodedElementList.getShortForm(), encodedElementList.size());
-          }
-          else
-          {
-            notifyLists[i] = (List) ((Element) updateLists[i]).createElement();
-          }
-        }
-        else
-        {
-          // publishing an empty list
-          notifyLists[i] = null;
-        }
+        // add update for this consumer/subscription
+        notifyHeaders.add(updateHeaderList.get(index));
+        updates.addUpdate(notifyLists, index);
       }
-    }
-
-    for (int i = 0; i < updateHeaderList.size(); ++i)
-    {
-      populateNotifyList(srcHdr, srcDomainId, updateHeaderList.get(i), updateLists, i, notifyHeaders, notifyLists);
-    }
 
-    NotifyMessage retVal = null;
-    if (!notifyHeaders.isEmpty())
-    {
       retVal = new NotifyMessage();
-      retVal.subscriptionId = new Identifier(subscriptionId);
+      retVal.subscriptionId = subscriptionIdentifier;
       retVal.updateHeaderList = notifyHeaders;
       retVal.updateList = notifyLists;
     }
 
     return retVal;
   }
-
-  private void populateNotifyList(final MALMessageHeader srcHdr,
-          final String srcDomainId,
-          final UpdateHeader updateHeader,
-          final List[] updateLists,
-          final int index,
-          final UpdateHeaderList notifyHeaders,
-          final List[] notifyLists) throws MALException
-  {
-    final UpdateKey key = new UpdateKey(srcHdr, srcDomainId, updateHeader.getKey());
-    MALBrokerImpl.LOGGER.log(Level.FINE, "Checking {0}", key);
-    boolean updateRequired = matchedUpdate(key, onAll);
-
-    if (!updateRequired && (updateHeader.getUpdateType().getOrdinal() != UpdateType._UPDATE_INDEX))
-    {
-      updateRequired = matchedUpdate(key, onChange);
-    }
-
-    if (updateRequired)
-    {
-      // add update for this consumer/subscription
-      notifyHeaders.add(updateHeader);
-
-      if (null != notifyLists)
-      {
-        for (int i = 0; i < notifyLists.length; i++)
-        {
-          if ((null != notifyLists[i]) && (null != updateLists[i]))
-          {
-            notifyLists[i].add(updateLists[i].get(index));
-          }
-        }
-      }
-    }
-  }
-
-  private static boolean matchedUpdate(final UpdateKey key, final Set<SubscriptionKey> searchSet)
-  {
-    boolean matched = false;
-    for (SubscriptionKey subscriptionKey : searchSet)
-    {
-      MALBrokerImpl.LOGGER.log(Level.FINE, "Checking {0} against {1}", new Object[]
-      {
-        key, subscriptionKey
-      });
-      if (subscriptionKey.matchesWithWildcard(key))
-      {
-        MALBrokerImpl.LOGGER.fine("    : Matched");
-        matched = true;
-        break;
-      }
-      MALBrokerImpl.LOGGER.fine("    : No match");
-    }
-    return matched;
-  }
-
-  void appendIds(final Set<SubscriptionKey> subSet)
-  {
-    subSet.addAll(required);
-  }
 }
@@ -23,9 +23,8 @@ package esa.mo.mal.impl.broker.simple;
 import esa.mo.mal.impl.broker.MALBrokerImpl;
 import esa.mo.mal.impl.broker.NotifyMessageSet;
 import esa.mo.mal.impl.broker.NotifyMessageSet.NotifyMessage;
+import esa.mo.mal.impl.broker.PublishedUpdates;
 import esa.mo.mal.impl.broker.SubscriptionSource;
-import esa.mo.mal.impl.broker.key.SubscriptionKey;
-import esa.mo.mal.impl.util.StructureHelper;
 import java.util.*;
 import java.util.logging.Level;
 import org.ccsds.moims.mo.mal.MALException;
@@ -37,37 +36,45 @@ import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
 import org.ccsds.moims.mo.mal.transport.MALPublishBody;
 
 /**
- * A SimpleSubscriptionSource represents a single consumer indexed by URI.
+ * A SimpleSubscriptionSource represents a single consumer indexed by URI. The subscription details are replaced rather
+ * than modified so that publishes can read them without locking. Identical subscriptions of different consumers share
+ * their keys, so that a publish matching several consumers through a {@link PublishMatches} only checks them once.
+ *
+ * Only the number of keys held is maintained across the subscriptions, so a change costs in proportion to the
+ * subscriptions changed rather than to all of those of the consumer.
  */
 class SimpleSubscriptionSource extends SubscriptionSource
 {
   private final String signature;
-  private final Set<SubscriptionKey> required = new TreeSet<SubscriptionKey>();
-  private final Map<String, SimpleSubscriptionDetails> details = new HashMap<String, SimpleSubscriptionDetails>();
+  private final SubscriptionMatchers matchers;
+  private int keyCount = 0;
+  private volatile Map<String, SimpleSubscriptionDetails> details = Collections.emptyMap();
+  private volatile SimpleSubscriptionDetails[] detailArray = new SimpleSubscriptionDetails[0];
 
   /**
    * Constructor.
    *
    * @param hdr The message header of the subscription message.
-   * @param binding The broker binding that received the subscription.
+   * @param matchers The subscription matchers of the broker key.
    */
-  public SimpleSubscriptionSource(final MALMessageHeader hdr)
+  public SimpleSubscriptionSource(final MALMessageHeader hdr, final SubscriptionMatchers matchers)
   {
     super(hdr, hdr.getURIFrom());
     this.signature = hdr.getURIFrom().getValue();
+    this.matchers = matchers;
   }
 
   @Override
   public boolean active()
   {
-    return !required.isEmpty();
+    return 0 < keyCount;
   }
 
   @Override
   public void report()
   {
     MALBrokerImpl.LOGGER.log(Level.FINE, "  START Consumer ( {0} )", signature);
-    MALBrokerImpl.LOGGER.log(Level.FINE, "   Required: {0}", required.size());
+    MALBrokerImpl.LOGGER.log(Level.FINE, "   Required: {0}", keyCount);
     for (Map.Entry<String, SimpleSubscriptionDetails> entry : details.entrySet())
     {
       entry.getValue().report();
@@ -75,6 +82,12 @@ class SimpleSubscriptionSource extends SubscriptionSource
     MALBrokerImpl.LOGGER.log(Level.FINE, "  END Consumer ( {0} )", signature);
   }
 
+  @Override
+  public int getSubscriptionCount()
+  {
+    return details.size();
+  }
+
   @Override
   public String getSignature()
   {
@@ -84,16 +97,23 @@ class SimpleSubscriptionSource extends SubscriptionSource
   @Override
   public void addSubscription(final MALMessageHeader srcHdr, final Subscription subscription)
   {
-    final String subId = subscription.getSubscriptionId().getValue();
-    SimpleSubscriptionDetails sub = details.get(subId);
-    if (null == sub)
+    final Map<String, SimpleSubscriptionDetails> newDetails
+            = new HashMap<String, SimpleSubscriptionDetails>(details);
+    put(newDetails, srcHdr, subscription);
+    setDetails(newDetails);
+  }
+
+  @Override
+  public void addSubscriptions(final List<Registration> registrations)
+  {
+    // the details are only copied and published once for all of the subscriptions
+    final Map<String, SimpleSubscriptionDetails> newDetails
+            = new HashMap<String, SimpleSubscriptionDetails>(details);
+    for (Registration reg : registrations)
     {
-      sub = new SimpleSubscriptionDetails(subId);
-      details.put(subId, sub);
+      put(newDetails, reg.hdr, reg.subscription);
     }
-    sub.setIds(srcHdr, subscription.getEntities());
-
-    updateIds();
+    setDetails(newDetails);
   }
 
   @Override
@@ -101,23 +121,55 @@ class SimpleSubscriptionSource extends SubscriptionSource
           final List<NotifyMessageSet> lst,
           final UpdateHeaderList updateHeaderList,
           final MALPublishBody publishBody) throws MALException
+  {
+    populateNotifyList(srcHdr, lst, updateHeaderList, new PublishedUpdates(publishBody, updateHeaderList, null, false));
+  }
+
+  @Override
+  public void populateNotifyList(final MALMessageHeader srcHdr,
+          final List<NotifyMessageSet> lst,
+          final UpdateHeaderList updateHeaderList,
+          final PublishedUpdates updates) throws MALException
+  {
+    populateNotifyList(srcHdr, lst, new PublishMatches(srcHdr, updateHeaderList), updateHeaderList, updates);
+  }
+
+  /**
+   * Adds a notify message set to the list for any of the subscriptions of this source matched by a publish.
+   *
+   * @param srcHdr Source publish message.
+   * @param lst List of broker messages.
+   * @param matches The matching state of the publish, shared by the sources of the broker key.
+   * @param updateHeaderList The update header list.
+   * @param updates The update lists of the publish message.
+   * @throws MALException On error.
+   */
+  void populateNotifyList(final MALMessageHeader srcHdr,
+          final List<NotifyMessageSet> lst,
+          final PublishMatches matches,
+          final UpdateHeaderList updateHeaderList,
+          final PublishedUpdates updates) throws MALException
   {
     MALBrokerImpl.LOGGER.log(Level.FINE, "Checking SimComSource : {0}", signature);
 
-    final String srcDomainId = StructureHelper.domainToString(srcHdr.getDomain());
-    final List<NotifyMessage> msgs = new LinkedList<NotifyMessage>();
+    List<NotifyMessage> msgs = null;
 
-    for (Map.Entry<String, SimpleSubscriptionDetails> ent : details.entrySet())
+    for (SimpleSubscriptionDetails subscriptionDetails : detailArray)
     {
-      final NotifyMessage subUpdate
-              = ent.getValue().populateNotifyList(srcHdr, srcDomainId, updateHeaderList, publishBody);
+      final NotifyMessage subUpdate = subscriptionDetails.populateNotifyList(matches, updateHeaderList, updates);
       if (null != subUpdate)
       {
+        // most consumers match nothing so the list is only created on the first match
+        if (null == msgs)
+        {
+          msgs = new LinkedList<NotifyMessage>();
+        }
+
         msgs.add(subUpdate);
       }
     }
 
-    if (!msgs.isEmpty())
+    if (null != msgs)
     {
       NotifyMessageSet msgSet = new NotifyMessageSet();
       msgSet.details = getMsgHeaderDetails();
@@ -142,28 +194,52 @@ class SimpleSubscriptionSource extends SubscriptionSource
   {
     if (null != subscriptions)
     {
+      final Map<String, SimpleSubscriptionDetails> newDetails
+              = new HashMap<String, SimpleSubscriptionDetails>(details);
       for (Identifier sub : subscriptions)
       {
-        details.remove(sub.getValue());
+        released(newDetails.remove(sub.getValue()));
       }
-
-      updateIds();
+      setDetails(newDetails);
     }
     else
     {
       // remove all
-      details.clear();
-      required.clear();
+      for (SimpleSubscriptionDetails removed : details.values())
+      {
+        matchers.release(removed.getMatcher());
+      }
+
+      setDetails(new HashMap<String, SimpleSubscriptionDetails>());
+      keyCount = 0;
     }
   }
 
-  private void updateIds()
+  private void setDetails(final Map<String, SimpleSubscriptionDetails> newDetails)
   {
-    required.clear();
+    // a publish iterates an array of the details so that it does not create an iterator for every consumer
+    detailArray = newDetails.values().toArray(new SimpleSubscriptionDetails[newDetails.size()]);
+    details = Collections.unmodifiableMap(newDetails);
+  }
 
-    for (Map.Entry<String, SimpleSubscriptionDetails> entry : details.entrySet())
+  private void put(final Map<String, SimpleSubscriptionDetails> newDetails,
+          final MALMessageHeader srcHdr,
+          final Subscription subscription)
+  {
+    final String subId = subscription.getSubscriptionId().getValue();
+    final SimpleSubscriptionDetails added = new SimpleSubscriptionDetails(subId,
+            matchers.retain(new SubscriptionMatcher(srcHdr, subscription.getEntities())));
+
+    released(newDetails.put(subId, added));
+    keyCount += added.getMatcher().getKeyCount();
+  }
+
+  private void released(final SimpleSubscriptionDetails removed)
+  {
+    if (null != removed)
     {
-      entry.getValue().appendIds(required);
+      matchers.release(removed.getMatcher());
+      keyCount -= removed.getMatcher().getKeyCount();
     }
   }
 }
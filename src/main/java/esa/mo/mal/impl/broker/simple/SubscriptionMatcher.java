@@ -0,0 +1,239 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker.simple;
+
+import esa.mo.mal.impl.broker.MALBrokerImpl;
+import esa.mo.mal.impl.broker.key.SubscriptionKey;
+import esa.mo.mal.impl.broker.key.UpdateKey;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import org.ccsds.moims.mo.mal.structures.EntityKey;
+import org.ccsds.moims.mo.mal.structures.EntityRequest;
+import org.ccsds.moims.mo.mal.structures.EntityRequestList;
+import org.ccsds.moims.mo.mal.structures.UpdateHeaderList;
+import org.ccsds.moims.mo.mal.structures.UpdateType;
+import org.ccsds.moims.mo.mal.transport.MALMessageHeader;
+
+/**
+ * The subscription keys of a subscription, split into those that match every update and those that only match
+ * changes. Instances are immutable and are equal if they hold the same keys, so that the subscriptions of consumers that
+ * register identical entity requests from the same domain can share one instance, see {@link SubscriptionMatchers}.
+ */
+final class SubscriptionMatcher
+{
+  private static final int HASH_MAGIC_NUMBER = 59;
+  private static final int[] NO_MATCHES = new int[0];
+  private static final ThreadLocal<int[]> SCRATCH = new ThreadLocal<int[]>();
+  private final Set<SubscriptionKey> required;
+  private final Set<SubscriptionKey> onAll;
+  private final Set<SubscriptionKey> onChange;
+  private final SubscriptionKey[] onAllKeys;
+  private final SubscriptionKey[] onChangeKeys;
+  private final int hash;
+  private volatile int referenceCount = 0;
+
+  SubscriptionMatcher(final MALMessageHeader srcHdr, final EntityRequestList lst)
+  {
+    // the sets are hashed, the ordering of the keys only compares the sub keys and not the domain or operation
+    final Set<SubscriptionKey> rqd = new LinkedHashSet<SubscriptionKey>();
+    final Set<SubscriptionKey> all = new LinkedHashSet<SubscriptionKey>();
+    final Set<SubscriptionKey> chg = new LinkedHashSet<SubscriptionKey>();
+    for (EntityRequest rqst : lst)
+    {
+      final boolean bOnChange = rqst.getOnlyOnChange();
+
+      for (EntityKey id : rqst.getEntityKeys())
+      {
+        final SubscriptionKey key = new SubscriptionKey(srcHdr, rqst, id);
+        rqd.add(key);
+        if (bOnChange)
+        {
+          chg.add(key);
+        }
+        else
+        {
+          all.add(key);
+        }
+      }
+    }
+
+    this.required = Collections.unmodifiableSet(rqd);
+    this.onAll = Collections.unmodifiableSet(all);
+    this.onChange = Collections.unmodifiableSet(chg);
+    this.onAllKeys = all.toArray(new SubscriptionKey[all.size()]);
+    this.onChangeKeys = chg.toArray(new SubscriptionKey[chg.size()]);
+    this.hash = HASH_MAGIC_NUMBER * onAll.hashCode() + onChange.hashCode();
+  }
+
+  /**
+   * Returns the indexes of the updates of a publish that match this subscription.
+   *
+   * @param updateKeys The keys of the updates.
+   * @param updateHeaderList The update headers.
+   * @return The matched indexes, in ascending order, a shared empty array if none match.
+   */
+  int[] match(final UpdateKey[] updateKeys, final UpdateHeaderList updateHeaderList)
+  {
+    // the indexes are gathered in a buffer of the thread so only a match allocates its result
+    int[] matched = SCRATCH.get();
+    if ((null == matched) || (matched.length < updateKeys.length))
+    {
+      matched = new int[updateKeys.length];
+      SCRATCH.set(matched);
+    }
+
+    int count = 0;
+
+    for (int i = 0; i < updateKeys.length; ++i)
+    {
+      boolean updateRequired = matchedUpdate(updateKeys[i], onAllKeys);
+
+      if (!updateRequired && (0 < onChangeKeys.length)
+              && (updateHeaderList.get(i).getUpdateType().getOrdinal() != UpdateType._UPDATE_INDEX))
+      {
+        updateRequired = matchedUpdate(updateKeys[i], onChangeKeys);
+      }
+
+      if (updateRequired)
+      {
+        matched[count++] = i;
+      }
+    }
+
+    if (0 == count)
+    {
+      return NO_MATCHES;
+    }
+
+    final int[] rv = new int[count];
+    System.arraycopy(matched, 0, rv, 0, count);
+    return rv;
+  }
+
+  /**
+   * Returns the number of distinct keys of the subscription.
+   *
+   * @return the key count.
+   */
+  int getKeyCount()
+  {
+    return required.size();
+  }
+
+  void report()
+  {
+    MALBrokerImpl.LOGGER.log(Level.FINE, "     Required: {0}", required.size());
+    for (SubscriptionKey key : required)
+    {
+      MALBrokerImpl.LOGGER.log(Level.FINE, "            : Rqd : {0}", key);
+    }
+    for (SubscriptionKey key : onAll)
+    {
+      MALBrokerImpl.LOGGER.log(Level.FINE, "            : All : {0}", key);
+    }
+    for (SubscriptionKey key : onChange)
+    {
+      MALBrokerImpl.LOGGER.log(Level.FINE, "            : Chg : {0}", key);
+    }
+  }
+
+  /**
+   * Counts a subscription sharing this instance, guarded by the owning {@link SubscriptionMatchers}.
+   *
+   * @return the new count.
+   */
+  int retain()
+  {
+    return ++referenceCount;
+  }
+
+  /**
+   * Releases a subscription sharing this instance, guarded by the owning {@link SubscriptionMatchers}.
+   *
+   * @return the new count.
+   */
+  int release()
+  {
+    return --referenceCount;
+  }
+
+  /**
+   * Returns true if more than one subscription shares this instance, so that its result is worth remembering across
+   * the subscriptions of a publish.
+   *
+   * @return True if shared.
+   */
+  boolean isShared()
+  {
+    return 1 < referenceCount;
+  }
+
+  @Override
+  public boolean equals(final Object obj)
+  {
+    if (this == obj)
+    {
+      return true;
+    }
+
+    if (!(obj instanceof SubscriptionMatcher))
+    {
+      return false;
+    }
+
+    final SubscriptionMatcher other = (SubscriptionMatcher) obj;
+
+    return (hash == other.hash) && onAll.equals(other.onAll) && onChange.equals(other.onChange);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return hash;
+  }
+
+  private static boolean matchedUpdate(final UpdateKey key, final SubscriptionKey[] searchKeys)
+  {
+    // the keys are held in an array and the trace only built when enabled as this is run for every update
+    final boolean trace = MALBrokerImpl.LOGGER.isLoggable(Level.FINE);
+    boolean matched = false;
+    for (SubscriptionKey subscriptionKey : searchKeys)
+    {
+      if (trace)
+      {
+        MALBrokerImpl.LOGGER.log(Level.FINE, "Checking {0} against {1}", new Object[]
+        {
+          key, subscriptionKey
+        });
+      }
+      if (subscriptionKey.matchesWithWildcard(key))
+      {
+        MALBrokerImpl.LOGGER.fine("    : Matched");
+        matched = true;
+        break;
+      }
+      MALBrokerImpl.LOGGER.fine("    : No match");
+    }
+    return matched;
+  }
+}
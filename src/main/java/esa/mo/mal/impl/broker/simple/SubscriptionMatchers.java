@@ -0,0 +1,77 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.broker.simple;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The distinct subscription matchers of a broker key. Equal matchers are replaced by a single shared instance, which
+ * is dropped once the last subscription using it is removed.
+ */
+final class SubscriptionMatchers
+{
+  private final Map<SubscriptionMatcher, SubscriptionMatcher> matchers
+          = new HashMap<SubscriptionMatcher, SubscriptionMatcher>();
+
+  /**
+   * Returns the shared instance equal to a matcher, adding it if there is none.
+   *
+   * @param matcher The matcher of a new subscription.
+   * @return The shared instance.
+   */
+  synchronized SubscriptionMatcher retain(final SubscriptionMatcher matcher)
+  {
+    SubscriptionMatcher rv = matchers.get(matcher);
+
+    if (null == rv)
+    {
+      rv = matcher;
+      matchers.put(rv, rv);
+    }
+
+    rv.retain();
+    return rv;
+  }
+
+  /**
+   * Releases a shared instance when a subscription using it is removed.
+   *
+   * @param matcher The shared instance.
+   */
+  synchronized void release(final SubscriptionMatcher matcher)
+  {
+    if (0 == matcher.release())
+    {
+      matchers.remove(matcher);
+    }
+  }
+
+  /**
+   * Returns the number of distinct matchers.
+   *
+   * @return the count.
+   */
+  synchronized int size()
+  {
+    return matchers.size();
+  }
+}
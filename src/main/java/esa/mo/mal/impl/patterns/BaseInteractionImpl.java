@@ -93,6 +93,17 @@ public abstract class BaseInteractionImpl implements MALInteraction
     return qosProperties;
   }
 
+  /**
+   * Returns the QoS properties of the message that started this interaction, rather than those set on the interaction
+   * for its responses.
+   *
+   * @return the message QoS properties, may be null.
+   */
+  public Map getMessageQoSProperties()
+  {
+    return msg.getQoSProperties();
+  }
+
   /**
    * Returns the Address object used to create this object.
    *
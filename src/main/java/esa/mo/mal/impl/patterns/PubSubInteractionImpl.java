@@ -22,7 +22,10 @@ package esa.mo.mal.impl.patterns;
 
 import esa.mo.mal.impl.Address;
 import esa.mo.mal.impl.MessageSend;
+import org.ccsds.moims.mo.mal.MALException;
 import org.ccsds.moims.mo.mal.MALInteractionException;
+import org.ccsds.moims.mo.mal.MALPubSubOperation;
+import org.ccsds.moims.mo.mal.MALStandardError;
 import org.ccsds.moims.mo.mal.transport.MALMessage;
 
 /**
@@ -44,4 +47,17 @@ public class PubSubInteractionImpl extends BaseInteractionImpl
   {
     super(sender, address, msg);
   }
+
+  /**
+   * Returns an error for a publish message, used by a broker that checks the publish after the transport has
+   * returned.
+   *
+   * @param error The error to send.
+   * @return the sent message.
+   * @throws MALException On error.
+   */
+  public MALMessage returnPublishError(final MALStandardError error) throws MALException
+  {
+    return returnError(MALPubSubOperation.PUBLISH_STAGE, error);
+  }
 }
@@ -0,0 +1,257 @@
+/* ----------------------------------------------------------------------------
+ * Copyright (C) 2013      European Space Agency
+ *                         European Space Operations Centre
+ *                         Darmstadt
+ *                         Germany
+ * ----------------------------------------------------------------------------
+ * System                : CCSDS MO MAL Java Implementation
+ * ----------------------------------------------------------------------------
+ * Licensed under the European Space Agency Public License, Version 2.0
+ * You may not use this file except in compliance with the License.
+ *
+ * Except as expressly set forth in this License, the Software is provided to
+ * You on an "as is" basis and without warranties of any kind, including without
+ * limitation merchantability, fitness for a particular purpose, absence of
+ * defects or errors, accuracy or non-infringement of intellectual property rights.
+ * 
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ * ----------------------------------------------------------------------------
+ */
+package esa.mo.mal.impl.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.ccsds.moims.mo.mal.structures.Identifier;
+import org.ccsds.moims.mo.mal.structures.IdentifierList;
+
+/**
+ * An immutable, interned, representation of a domain. There is only ever one instance for a given domain content so
+ * domains can be compared by identity, and each instance holds the ids of all of its parent domains so that a
+ * sub-domain check is a single comparison. The dot delimited form of the domain is built once when the domain is first
+ * seen.
+ *
+ * Interned domains are held weakly, each domain keeping its parent domains alive, so that the domains of remote
+ * messages are not held once nothing refers to them. Interning the same content again while an instance is in use
+ * returns that instance, so two domains that are both held can always be compared by identity.
+ */
+public final class InternedDomain
+{
+  private static final Object NULL_IDENTIFIER = new Object();
+  private static final Object NULL_VALUE = new Object();
+  private static final AtomicLong NEXT_ID = new AtomicLong();
+  private static final ReferenceQueue<InternedDomain> CLEARED = new ReferenceQueue<InternedDomain>();
+  private static final InternedDomain ROOT = new InternedDomain(null, null);
+  private final ConcurrentMap<Object, ChildReference> children = new ConcurrentHashMap<Object, ChildReference>();
+  private final InternedDomain parent;
+  private final long id;
+  private final long[] prefixIds;
+  private final String dottedForm;
+
+  private InternedDomain(final InternedDomain parent, final Identifier component)
+  {
+    // the parent is held so that its id, used by the sub-domain check, cannot be interned again under a new id
+    this.parent = parent;
+    this.id = NEXT_ID.getAndIncrement();
+
+    if (null == parent)
+    {
+      this.prefixIds = new long[0];
+      this.dottedForm = "";
+    }
+    else
+    {
+      final int depth = parent.prefixIds.length;
+      this.prefixIds = new long[depth + 1];
+      System.arraycopy(parent.prefixIds, 0, this.prefixIds, 0, depth);
+      this.prefixIds[depth] = this.id;
+
+      final String value = (null == component) ? null : component.getValue();
+      if (0 == depth)
+      {
+        this.dottedForm = String.valueOf((Object) value);
+      }
+      else
+      {
+        this.dottedForm = parent.dottedForm + '.' + value;
+      }
+    }
+  }
+
+  /**
+   * Returns the interned instance for the supplied domain.
+   *
+   * @param domain The domain, may be null.
+   * @return The interned domain, or null if the supplied domain is null.
+   */
+  public static InternedDomain intern(final IdentifierList domain)
+  {
+    if (null == domain)
+    {
+      return null;
+    }
+
+    purge();
+
+    InternedDomain node = ROOT;
+    final int e = domain.size();
+    for (int i = 0; i < e; ++i)
+    {
+      node = node.getChild(domain.get(i));
+    }
+
+    return node;
+  }
+
+  /**
+   * Determines if one domain is a sub-domain, or the same domain, of another. Two null domains are considered the same
+   * domain.
+   *
+   * @param srcDomain The main domain.
+   * @param testDomain The sub-domain.
+   * @return True if testDomain is a sub-domain of srcDomain, else false.
+   */
+  public static boolean isSubDomainOf(final InternedDomain srcDomain, final InternedDomain testDomain)
+  {
+    if ((null != srcDomain) && (null != testDomain))
+    {
+      return testDomain.isSubDomainOf(srcDomain);
+    }
+
+    return (null == srcDomain) && (null == testDomain);
+  }
+
+  /**
+   * Returns true if this domain is the same as, or a sub-domain of, the supplied domain.
+   *
+   * @param parent The possible parent domain.
+   * @return True if a sub-domain.
+   */
+  public boolean isSubDomainOf(final InternedDomain parent)
+  {
+    final int depth = parent.prefixIds.length;
+
+    return (depth == 0) || ((depth <= prefixIds.length) && (prefixIds[depth - 1] == parent.id));
+  }
+
+  /**
+   * Returns the unique id of this domain.
+   *
+   * @return the id.
+   */
+  public long getId()
+  {
+    return id;
+  }
+
+  /**
+   * Returns the number of components of this domain.
+   *
+   * @return the depth.
+   */
+  public int getDepth()
+  {
+    return prefixIds.length;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return (int) (id ^ (id >>> 32));
+  }
+
+  @Override
+  public boolean equals(final Object obj)
+  {
+    return this == obj;
+  }
+
+  /**
+   * Returns the dot delimited form of the domain.
+   *
+   * @return the domain string.
+   */
+  @Override
+  public String toString()
+  {
+    return dottedForm;
+  }
+
+  private InternedDomain getChild(final Identifier component)
+  {
+    final Object key;
+    if (null == component)
+    {
+      key = NULL_IDENTIFIER;
+    }
+    else if (null == component.getValue())
+    {
+      key = NULL_VALUE;
+    }
+    else
+    {
+      key = component.getValue();
+    }
+
+    final ChildReference ref = children.get(key);
+    InternedDomain child = (null == ref) ? null : ref.get();
+
+    while (null == child)
+    {
+      final InternedDomain newChild = new InternedDomain(this, component);
+      final ChildReference newRef = new ChildReference(newChild, key);
+      final ChildReference existing = children.putIfAbsent(key, newRef);
+
+      if (null == existing)
+      {
+        child = newChild;
+      }
+      else
+      {
+        child = existing.get();
+
+        // an entry whose domain has been collected is replaced
+        if ((null == child) && children.replace(key, existing, newRef))
+        {
+          child = newChild;
+        }
+      }
+    }
+
+    return child;
+  }
+
+  private static void purge()
+  {
+    Reference<? extends InternedDomain> ref = CLEARED.poll();
+
+    while (null != ref)
+    {
+      ((ChildReference) ref).remove();
+      ref = CLEARED.poll();
+    }
+  }
+
+  /**
+   * The entry of a domain in the children of its parent, removed from them once the domain has been collected.
+   */
+  private final class ChildReference extends WeakReference<InternedDomain>
+  {
+    private final Object key;
+
+    private ChildReference(final InternedDomain child, final Object key)
+    {
+      super(child, CLEARED);
+      this.key = key;
+    }
+
+    private void remove()
+    {
+      children.remove(key, this);
+    }
+  }
+}